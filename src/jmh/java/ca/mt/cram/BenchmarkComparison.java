@@ -0,0 +1,127 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.mt.cram;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares JMH results written with {@code -rf json} against a baseline from an earlier run, and
+ * fails if any benchmark regressed by more than a threshold. Usage:
+ *
+ * <pre>
+ * mvn -Pbenchmarks verify -DskipTests -Dbenchmark.main=ca.mt.cram.BenchmarkComparison \
+ *     -Dbenchmark.args="baseline.json target/jmh-result.json [threshold-percent]"
+ * </pre>
+ *
+ * <p>The default threshold is 10%, beyond the combined error of both scores. Benchmarks are matched
+ * by name and parameters; those missing from the baseline are reported but do not fail.
+ */
+public class BenchmarkComparison {
+  private static final double DEFAULT_THRESHOLD = 10;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("usage: BenchmarkComparison baseline.json results.json [threshold%]");
+      System.exit(2);
+    }
+    double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+    Map<String, JsonNode> baseline = read(new File(args[0]));
+    Map<String, JsonNode> results = read(new File(args[1]));
+    int regressions = 0;
+    for (Map.Entry<String, JsonNode> pair : results.entrySet()) {
+      JsonNode result = pair.getValue();
+      JsonNode base = baseline.get(pair.getKey());
+      if (base == null) {
+        System.out.printf("NEW        %s: %s\n", pair.getKey(), describe(result));
+        continue;
+      }
+      double change = change(base, result);
+      boolean regressed = change > threshold && !withinError(base, result);
+      if (regressed) {
+        regressions++;
+      }
+      System.out.printf(
+          "%-10s %s: %s -> %s (%+.1f%%)\n",
+          regressed ? "REGRESSED" : "OK",
+          pair.getKey(),
+          describe(base),
+          describe(result),
+          change);
+    }
+    if (regressions > 0) {
+      System.out.printf("%d benchmarks regressed by more than %.0f%%\n", regressions, threshold);
+      System.exit(1);
+    }
+  }
+
+  /** Read JMH results keyed by benchmark name and parameters. */
+  private static Map<String, JsonNode> read(File file) throws IOException {
+    Map<String, JsonNode> results = new LinkedHashMap<>();
+    for (JsonNode result : new ObjectMapper().readTree(file)) {
+      StringBuilder key = new StringBuilder(result.get("benchmark").asText());
+      if (result.has("params")) {
+        Map<String, String> params = new TreeMap<>();
+        for (Iterator<Map.Entry<String, JsonNode>> fields = result.get("params").fields();
+            fields.hasNext(); ) {
+          Map.Entry<String, JsonNode> field = fields.next();
+          params.put(field.getKey(), field.getValue().asText());
+        }
+        key.append(params);
+      }
+      results.put(key.toString(), result);
+    }
+    return results;
+  }
+
+  /**
+   * Return by how many percent the result is worse than the baseline: lower is better for times,
+   * and higher is better for throughput.
+   */
+  private static double change(JsonNode base, JsonNode result) {
+    double baseScore = score(base);
+    double resultScore = score(result);
+    double change = (resultScore - baseScore) / baseScore * 100;
+    return result.get("mode").asText().equals("thrpt") ? -change : change;
+  }
+
+  /** Return true if the difference is within the combined error of the two scores. */
+  private static boolean withinError(JsonNode base, JsonNode result) {
+    double error = error(base) + error(result);
+    return Math.abs(score(result) - score(base)) <= error;
+  }
+
+  private static double score(JsonNode result) {
+    return result.get("primaryMetric").get("score").asDouble();
+  }
+
+  private static double error(JsonNode result) {
+    double error = result.get("primaryMetric").path("scoreError").asDouble(0);
+    return Double.isNaN(error) ? 0 : error;
+  }
+
+  private static String describe(JsonNode result) {
+    JsonNode metric = result.get("primaryMetric");
+    return String.format(
+        "%.3f %s", metric.get("score").asDouble(), metric.get("scoreUnit").asText());
+  }
+}
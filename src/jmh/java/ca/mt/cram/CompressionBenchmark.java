@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures compressing 64 MiB of partly compressible content as a single gzip stream, as Jib does,
+ * and with a {@link ParallelGzipOutputStream} at each block size on one thread per processor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CompressionBenchmark {
+  private static final int SIZE = 64 << 20;
+
+  @Param({"0", "131072", "1048576"})
+  int blockSize;
+
+  @Param({"1", "6", "9"})
+  int level;
+
+  private byte[] content;
+  private ExecutorService executor;
+
+  @Setup
+  public void setUp() {
+    // half random bytes, half text
+    Random random = new Random(0);
+    content = new byte[SIZE];
+    for (int i = 0; i < SIZE; i += 4096) {
+      if ((i / 4096) % 2 == 0) {
+        byte[] page = new byte[4096];
+        random.nextBytes(page);
+        System.arraycopy(page, 0, content, i, 4096);
+      } else {
+        for (int j = i; j < i + 4096; j++) {
+          content[j] = (byte) (random.nextInt(8) == 0 ? ' ' : 'a' + random.nextInt(20));
+        }
+      }
+    }
+    executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public void compress() throws IOException {
+    try (OutputStream output = newStream(ByteStreams.nullOutputStream())) {
+      for (int offset = 0; offset < SIZE; offset += 8192) {
+        output.write(content, offset, 8192);
+      }
+    }
+  }
+
+  private OutputStream newStream(OutputStream output) throws IOException {
+    if (blockSize > 0) {
+      return new ParallelGzipOutputStream(output, level, blockSize, executor);
+    }
+    return new GZIPOutputStream(output) {
+      {
+        def.setLevel(level);
+      }
+    };
+  }
+}
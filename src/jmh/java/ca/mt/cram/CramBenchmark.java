@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.common.io.ByteStreams;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import picocli.CommandLine;
+
+/**
+ * Measures a complete {@link Cram#call()} from a {@code scratch} base image to a local target, so
+ * that no registry or Docker daemon is involved. With {@code cached}, the layers are kept in a
+ * {@code --cache-dir} so that every build after the first reuses them; without it each build
+ * compresses its layers afresh.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CramBenchmark {
+  @Param({"1000", "10000"})
+  int fileCount;
+
+  @Param({"tar", "oci-layout"})
+  String target;
+
+  @Param({"false", "true"})
+  boolean cached;
+
+  private String[] arguments;
+  private Path output;
+
+  @Setup
+  public void setUp() throws Exception {
+    Path tree = SyntheticTree.get(fileCount, 1024);
+    output = Files.createTempDirectory("cram-benchmark");
+    List<String> list = new ArrayList<>();
+    list.add("--" + target);
+    list.add(target.equals("tar") ? "image.tar" : "layout");
+    if (cached) {
+      list.add("--cache-dir");
+      list.add("cache");
+    }
+    // a fixed creation time so that every build produces the same image
+    list.addAll(
+        Arrays.asList("-c", "2019-01-01T00:00:00Z", "scratch", "benchmark:latest", tree + ":/app"));
+    arguments = list.toArray(new String[0]);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    SyntheticTree.delete(output);
+  }
+
+  @Benchmark
+  public DescriptorDigest call() throws Exception {
+    Cram cram = CommandLine.populateCommand(new Cram(), arguments);
+    cram.workingDirectory = output;
+    cram.out = new PrintStream(ByteStreams.nullOutputStream());
+    cram.call();
+    return cram.imageDigest;
+  }
+}
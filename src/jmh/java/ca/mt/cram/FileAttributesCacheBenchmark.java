@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.AbsoluteUnixPath;
+import com.google.cloud.tools.jib.api.FilePermissions;
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.api.LayerEntry;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares building a layer with {@code perms=actual:ts=actual} using Jib's {@code
+ * addEntryRecursive} with per-provider {@link Files} calls against the {@link FileTreeScanner}
+ * sharing a {@link FileAttributesCache}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FileAttributesCacheBenchmark {
+  private static final BiFunction<Path, AbsoluteUnixPath, FilePermissions> PERMISSIONS =
+      (local, inContainer) -> {
+        try {
+          return FilePermissions.fromPosixFilePermissions(Files.getPosixFilePermissions(local));
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      };
+  private static final BiFunction<Path, AbsoluteUnixPath, Instant> TIMESTAMPS =
+      (local, inContainer) -> {
+        try {
+          return Files.getLastModifiedTime(local).toInstant();
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      };
+
+  @Param({"10000", "100000"})
+  int fileCount;
+
+  private Path tree;
+
+  @Setup
+  public void setUp() throws IOException {
+    tree = SyntheticTree.get(fileCount, 0);
+  }
+
+  @Benchmark
+  public LayerConfiguration uncached() throws IOException {
+    return LayerConfiguration.builder()
+        .addEntryRecursive(tree, AbsoluteUnixPath.get("/"), PERMISSIONS, TIMESTAMPS)
+        .build();
+  }
+
+  @Benchmark
+  public List<LayerEntry> cached() throws IOException {
+    FileAttributesCache cache = new FileAttributesCache();
+    return new FileTreeScanner(1, cache)
+        .scan(
+            tree,
+            AbsoluteUnixPath.get("/"),
+            LayerDefinitionParser.configurePermissionsProvider("actual", cache),
+            LayerDefinitionParser.configureTimestampsProvider("actual", cache));
+  }
+}
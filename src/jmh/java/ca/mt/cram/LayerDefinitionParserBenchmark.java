@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link LayerDefinitionParser#convert} on trees of empty files with each permissions and
+ * timestamps provider: the defaults, {@code actual} values read from the file system, and fixed
+ * values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LayerDefinitionParserBenchmark {
+  @Param({"1000", "10000", "100000", "1000000"})
+  int fileCount;
+
+  @Param({"default", "perms=actual", "ts=actual", "perms=actual:ts=actual", "fixed"})
+  String providers;
+
+  private String definition;
+
+  @Setup
+  public void setUp() throws Exception {
+    Path tree = SyntheticTree.get(fileCount, 0);
+    switch (providers) {
+      case "default":
+        definition = tree + ":/app";
+        break;
+      case "fixed":
+        definition = tree + ":/app:perms=640/750:ts=1546300800";
+        break;
+      default:
+        definition = tree + ":/app:" + providers;
+        break;
+    }
+  }
+
+  @Benchmark
+  public LayerConfiguration convert() throws Exception {
+    return new LayerDefinitionParser().convert(definition);
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.common.io.ByteStreams;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import picocli.CommandLine;
+
+/**
+ * Measures a complete {@link Cram#call()} that pushes to an in-process {@link TestRegistry}, with
+ * the registry's latency and bandwidth shaped to approximate a remote registry. With {@code
+ * existing}, every build pushes to the same repository, so that the layers are already present and
+ * only the manifest is pushed; otherwise each build pushes to a new repository and uploads all of
+ * its blobs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RegistryPushBenchmark {
+  @Param({"1000", "10000"})
+  int fileCount;
+
+  /** The delay added to every registry request, in milliseconds. */
+  @Param({"0", "20"})
+  long latencyMillis;
+
+  /** The registry's bandwidth in bytes per second, or 0 for no limit. */
+  @Param({"0", "10000000"})
+  long bandwidth;
+
+  @Param({"false", "true"})
+  boolean existing;
+
+  private TestRegistry registry;
+  private Path tree;
+  private Path output;
+  private int builds;
+
+  @Setup
+  public void setUp() throws Exception {
+    tree = SyntheticTree.get(fileCount, 1024);
+    output = Files.createTempDirectory("cram-benchmark");
+    registry = new TestRegistry();
+    registry.setLatency(Duration.ofMillis(latencyMillis));
+    registry.setBandwidth(bandwidth);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    registry.close();
+    SyntheticTree.delete(output);
+  }
+
+  @Benchmark
+  public DescriptorDigest call() throws Exception {
+    String repository = existing ? "benchmark" : "benchmark" + builds++;
+    // a fixed creation time so that every build produces the same image
+    String[] arguments = {
+      "--registry",
+      "--insecure",
+      "-c",
+      "2019-01-01T00:00:00Z",
+      "scratch",
+      registry.getAddress() + "/" + repository + ":latest",
+      tree + ":/app"
+    };
+    Cram cram = CommandLine.populateCommand(new Cram(), arguments);
+    cram.workingDirectory = output;
+    cram.out = new PrintStream(ByteStreams.nullOutputStream());
+    cram.call();
+    return cram.imageDigest;
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.mt.cram;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures running cram as a new process, as for a short build from a script: on the JVM, on the
+ * JVM with the class data sharing archive of {@code mvn -Pcds package}, and as the native
+ * executable of {@code mvn -Pnative package}. Each runs either {@code --help} or a small build of
+ * 100 files from {@code scratch} to a tarball.
+ *
+ * <p>The fatjar, archive and executable are looked for in the directory given by the {@code
+ * cram.target} system property, by default {@code target}; a launcher whose file is missing fails.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class StartupBenchmark {
+  @Param({"jvm", "jvm-cds", "native"})
+  String launcher;
+
+  @Param({"help", "build"})
+  String command;
+
+  private List<String> commandLine;
+  private Path output;
+
+  @Setup
+  public void setUp() throws Exception {
+    Path target = Paths.get(System.getProperty("cram.target", "target")).toAbsolutePath();
+    Path jar = target.resolve("cram-0.0.1-SNAPSHOT-jar-with-dependencies.jar");
+    commandLine = new ArrayList<>();
+    switch (launcher) {
+      case "jvm":
+        commandLine.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        commandLine.add("-jar");
+        commandLine.add(checkExists(jar, "mvn package").toString());
+        break;
+      case "jvm-cds":
+        commandLine.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        Path archive = checkExists(target.resolve("cram.jsa"), "mvn -Pcds package");
+        commandLine.add("-XX:SharedArchiveFile=" + archive);
+        commandLine.add("-jar");
+        commandLine.add(checkExists(jar, "mvn -Pcds package").toString());
+        break;
+      case "native":
+        commandLine.add(checkExists(target.resolve("cram"), "mvn -Pnative package").toString());
+        break;
+      default:
+        throw new IllegalArgumentException("unknown launcher: " + launcher);
+    }
+    output = Files.createTempDirectory("cram-startup");
+    if ("help".equals(command)) {
+      commandLine.add("--help");
+    } else {
+      Path tree = SyntheticTree.get(100, 1024);
+      // a fixed creation time so that every build produces the same image
+      commandLine.addAll(
+          Arrays.asList(
+              "-c",
+              "2019-01-01T00:00:00Z",
+              "--tar",
+              output.resolve("image.tar").toString(),
+              "scratch",
+              "startup:latest",
+              tree + ":/app"));
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    SyntheticTree.delete(output);
+  }
+
+  @Benchmark
+  public int run() throws Exception {
+    File log = output.resolve("output.log").toFile();
+    Process process =
+        new ProcessBuilder(commandLine)
+            .redirectErrorStream(true)
+            .redirectOutput(log)
+            .start();
+    int status = process.waitFor();
+    if (status != 0) {
+      throw new IllegalStateException(
+          String.join(" ", commandLine) + " failed with " + status + "; see " + log);
+    }
+    return status;
+  }
+
+  private static Path checkExists(Path path, String build) {
+    if (!Files.exists(path)) {
+      throw new IllegalStateException(path + " is missing; build it with " + build);
+    }
+    return path;
+  }
+}
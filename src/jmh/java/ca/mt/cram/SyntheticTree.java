@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ca.mt.cram;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Generates file trees for the benchmarks. Trees are kept in the temporary directory and reused
+ * across trials and forks, as generating a million files takes far longer than scanning them.
+ */
+final class SyntheticTree {
+  /** The number of files per directory. */
+  private static final int FILES_PER_DIRECTORY = 100;
+
+  private SyntheticTree() {}
+
+  /**
+   * Return a tree of {@code fileCount} files of {@code fileSize} random bytes each, in directories
+   * of 100 files grouped into directories of 100 directories, creating it if necessary.
+   */
+  static Path get(int fileCount, int fileSize) throws IOException {
+    Path root =
+        Paths.get(System.getProperty("java.io.tmpdir"), "cram-benchmarks")
+            .resolve("tree-" + fileCount + "-" + fileSize);
+    Path complete = root.resolveSibling(root.getFileName() + ".complete");
+    if (Files.exists(complete)) {
+      return root;
+    }
+    if (Files.exists(root)) {
+      delete(root);
+    }
+    // the same seed generates the same contents, so the images are reproducible
+    Random random = new Random(fileCount);
+    byte[] contents = new byte[fileSize];
+    for (int i = 0; i < fileCount; i++) {
+      Path directory =
+          root.resolve("d" + (i / (FILES_PER_DIRECTORY * FILES_PER_DIRECTORY)))
+              .resolve("d" + (i / FILES_PER_DIRECTORY));
+      if (i % FILES_PER_DIRECTORY == 0) {
+        Files.createDirectories(directory);
+      }
+      random.nextBytes(contents);
+      Files.write(directory.resolve("f" + i), contents);
+    }
+    Files.createFile(complete);
+    return root;
+  }
+
+  /** Delete {@code root} and its contents. */
+  static void delete(Path root) throws IOException {
+    try (Stream<Path> files = Files.walk(root)) {
+      files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded thread pool for running Cram's own build work: scanning file trees, hashing files, and
+ * compressing and storing layers. The pool never grows beyond the configured number of threads, so
+ * that many layers don't result in an unbounded burst of threads competing for the CPU. Threads
+ * may be either platform threads or, on Java 21 and later, virtual threads. The pool records the
+ * largest queue depth seen to help tune the thread count. As builds may share the pool, the time
+ * spent running each build's tasks is measured by submitting them through a {@link Tracker}.
+ *
+ * <p>Jib's steps run on a separate {@linkplain #getStepExecutor() step executor} that creates
+ * threads as they are needed. Jib's final steps (writing a tarball, loading the image into Docker,
+ * or pushing the manifest) block their threads while they wait for work scheduled on the same
+ * executor, so a bounded pool, whether single-threaded or shared by several builds, could starve
+ * them. The application layers are compressed and pushed, and the base image pulled for local
+ * targets, on this pool before Jib runs, so the steps mostly wait on each other and on small
+ * requests, and Jib starts a bounded number of them per layer.
+ */
+class BuildExecutor extends ThreadPoolExecutor {
+
+  /** Runs one build's tasks on the pool, and measures how long they ran. */
+  static class Tracker implements Executor {
+    private final Executor executor;
+    private final AtomicLong busyNanos = new AtomicLong();
+
+    private Tracker(Executor executor) {
+      this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      executor.execute(
+          () -> {
+            long start = System.nanoTime();
+            try {
+              command.run();
+            } finally {
+              busyNanos.addAndGet(System.nanoTime() - start);
+            }
+          });
+    }
+
+    /** Return the total time that threads have spent running these tasks, in nanoseconds. */
+    long getBusyNanos() {
+      return busyNanos.get();
+    }
+  }
+
+  /** The kind of threads used to run build steps. */
+  enum Kind {
+    PLATFORM,
+    VIRTUAL
+  }
+
+  private final Kind kind;
+  private final int threads;
+  private final AtomicInteger largestQueueDepth = new AtomicInteger();
+  private final ThreadPoolExecutor stepExecutor;
+
+  /**
+   * Create a new executor.
+   *
+   * @param kind the kind of threads to create
+   * @param threads the maximum number of threads
+   * @throws IllegalArgumentException if {@code threads} is less than 1
+   * @throws UnsupportedOperationException if virtual threads are requested but not supported
+   */
+  static BuildExecutor create(Kind kind, int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("thread count must be at least 1: " + threads);
+    }
+    return new BuildExecutor(kind, threads, threadFactory(kind, "cram-"));
+  }
+
+  /** Return true if this JVM supports virtual threads. */
+  static boolean isVirtualThreadsSupported() {
+    try {
+      virtualThreadFactory("cram-");
+      return true;
+    } catch (UnsupportedOperationException ex) {
+      return false;
+    }
+  }
+
+  private BuildExecutor(Kind kind, int threads, ThreadFactory threadFactory) {
+    super(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+    this.kind = kind;
+    this.threads = threads;
+    this.stepExecutor =
+        new ThreadPoolExecutor(
+            0,
+            Integer.MAX_VALUE,
+            60L,
+            TimeUnit.SECONDS,
+            new SynchronousQueue<>(),
+            threadFactory(kind, "cram-step-"));
+  }
+
+  /**
+   * Return the executor for Jib's steps, and for other work that waits on them. It creates threads
+   * as they are needed, so that a step blocked on another step's result never starves it.
+   */
+  ExecutorService getStepExecutor() {
+    return stepExecutor;
+  }
+
+  @Override
+  public void shutdown() {
+    stepExecutor.shutdown();
+    super.shutdown();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    stepExecutor.shutdownNow();
+    return super.shutdownNow();
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    super.execute(command);
+    int depth = getQueue().size();
+    largestQueueDepth.accumulateAndGet(depth, Math::max);
+  }
+
+  Kind getKind() {
+    return kind;
+  }
+
+  /** Return the configured number of threads, excluding those of the step executor. */
+  int getThreads() {
+    return threads;
+  }
+
+  /** Return an executor that runs tasks on this pool and measures the time spent on them. */
+  Tracker track() {
+    return new Tracker(this);
+  }
+
+  /** Return the largest number of tasks that were waiting for a thread at one time. */
+  int getLargestQueueDepth() {
+    return largestQueueDepth.get();
+  }
+
+  /** Return a human-readable summary of the pool utilization. */
+  String getStatistics() {
+    return String.format(
+        "%d %s threads max, %d used, %d tasks completed, largest queue depth %d, "
+            + "%d step threads used",
+        threads,
+        kind.name().toLowerCase(Locale.ROOT),
+        getLargestPoolSize(),
+        getCompletedTaskCount(),
+        getLargestQueueDepth(),
+        stepExecutor.getLargestPoolSize());
+  }
+
+  /** Return a factory for threads of {@code kind} named with {@code prefix}. */
+  private static ThreadFactory threadFactory(Kind kind, String prefix) {
+    return kind == Kind.VIRTUAL ? virtualThreadFactory(prefix) : new PlatformThreadFactory(prefix);
+  }
+
+  /**
+   * Return a factory for virtual threads. Cram is compiled for Java 8 so the {@code
+   * Thread.ofVirtual()} builder is found reflectively.
+   */
+  private static ThreadFactory virtualThreadFactory(String prefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder =
+          builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+      Method factory = builderClass.getMethod("factory");
+      return (ThreadFactory) factory.invoke(builder);
+    } catch (NoSuchMethodException | ClassNotFoundException ex) {
+      throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+    } catch (InvocationTargetException ex) {
+      // preview releases throw UnsupportedOperationException unless preview features are enabled
+      throw new UnsupportedOperationException(
+          "virtual threads are not available: " + ex.getCause().getMessage());
+    } catch (ReflectiveOperationException ex) {
+      throw new IllegalStateException("unable to create virtual thread factory", ex);
+    }
+  }
+
+  /** Creates daemon platform threads with recognizable names. */
+  private static class PlatformThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    PlatformThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
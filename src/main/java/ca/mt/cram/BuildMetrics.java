@@ -0,0 +1,393 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.tools.jib.api.JibEvent;
+import com.google.cloud.tools.jib.api.LogEvent;
+import com.google.cloud.tools.jib.event.events.ProgressEvent;
+import com.google.cloud.tools.jib.event.events.TimerEvent;
+import com.google.common.annotations.VisibleForTesting;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects the timing and throughput of a build from Jib's timer, progress and log events, along
+ * with cram's own phases, cache statistics and executor utilization, and writes them as JSON or in
+ * the Prometheus text format (for node_exporter's textfile collector).
+ *
+ * <p>Jib times each step, and some steps once per layer, so a phase records the number of times it
+ * ran and its total and longest duration. As steps run concurrently, the total duration of a phase
+ * may exceed the duration of the build. The bytes pushed or pulled for each layer are taken from
+ * Jib's progress events and divided by the duration of the layer's push or pull.
+ */
+class BuildMetrics implements Consumer<JibEvent> {
+  private static final String PUSH_PROGRESS = "pushing blob ";
+  private static final String PULL_PROGRESS = "pulling base image layer ";
+  private static final String PUSH_TIMER = "Pushing BLOB ";
+  private static final String PULL_TIMER = "Pulling base image layer ";
+  private static final String BLOB_EXISTS = " already exists on registry";
+
+  /** The durations of one phase of the build. */
+  private static class Phase {
+    int count;
+    long nanos;
+    long maximumNanos;
+  }
+
+  /** The bytes transferred for one layer, or in total for a direction. */
+  private static class Transfer {
+    final String direction;
+    long bytes;
+    long nanos;
+    boolean existing;
+    int count;
+
+    Transfer(String direction) {
+      this.direction = direction;
+    }
+
+    /** Return true unless the layer was already present. */
+    boolean isTransferred() {
+      return direction.equals("push") ? !existing : bytes > 0;
+    }
+  }
+
+  /** A count of hits and misses. */
+  private static class CacheCounts {
+    long hits;
+    long misses;
+  }
+
+  private final String image;
+  private final long startNanos = System.nanoTime();
+  private final Map<String, Phase> phases = new LinkedHashMap<>();
+  private final Map<String, Transfer> transfers = new LinkedHashMap<>();
+  private final Map<String, CacheCounts> caches = new LinkedHashMap<>();
+  private long durationNanos;
+  private boolean succeeded;
+  private String digest;
+  private BuildExecutor executor;
+  private BuildExecutor.Tracker tracker;
+  private long executorBusyNanos;
+
+  /** Start collecting metrics for a build of {@code image}. */
+  BuildMetrics(String image) {
+    this.image = image;
+  }
+
+  @Override
+  public synchronized void accept(JibEvent event) {
+    if (event instanceof TimerEvent) {
+      TimerEvent timerEvent = (TimerEvent) event;
+      if (timerEvent.getState() != TimerEvent.State.FINISHED) {
+        return;
+      }
+      String description = timerEvent.getDescription();
+      long nanos = timerEvent.getElapsed().toNanos();
+      recordPhase(phaseName(description), nanos);
+      if (description.startsWith(PUSH_TIMER)) {
+        transfer(description.substring(PUSH_TIMER.length()), "push").nanos += nanos;
+      } else if (description.startsWith(PULL_TIMER)) {
+        transfer(description.substring(PULL_TIMER.length()), "pull").nanos += nanos;
+      }
+    } else if (event instanceof ProgressEvent) {
+      ProgressEvent progressEvent = (ProgressEvent) event;
+      String description = progressEvent.getAllocation().getDescription();
+      if (description.startsWith(PUSH_PROGRESS)) {
+        transfer(description.substring(PUSH_PROGRESS.length()), "push").bytes +=
+            progressEvent.getUnits();
+      } else if (description.startsWith(PULL_PROGRESS)) {
+        transfer(description.substring(PULL_PROGRESS.length()), "pull").bytes +=
+            progressEvent.getUnits();
+      }
+    } else if (event instanceof LogEvent) {
+      // e.g., "BLOB : sha256:... already exists on registry"
+      String message = ((LogEvent) event).getMessage();
+      if (message.endsWith(BLOB_EXISTS)) {
+        String blob = message.substring(0, message.length() - BLOB_EXISTS.length());
+        transfer(blob.substring(blob.lastIndexOf(' ') + 1), "push").existing = true;
+      }
+    }
+  }
+
+  /** Record that a phase took {@code nanos} nanoseconds. */
+  synchronized void recordPhase(String name, long nanos) {
+    Phase phase = phases.computeIfAbsent(name, key -> new Phase());
+    phase.count++;
+    phase.nanos += nanos;
+    phase.maximumNanos = Math.max(phase.maximumNanos, nanos);
+  }
+
+  /** Record the hits and misses of a cache. */
+  synchronized void recordCache(String name, long hits, long misses) {
+    CacheCounts counts = caches.computeIfAbsent(name, key -> new CacheCounts());
+    counts.hits += hits;
+    counts.misses += misses;
+  }
+
+  /**
+   * Measure the utilization of {@code executor} by the tasks run through {@code tracker}, from now
+   * until the build finishes.
+   */
+  synchronized void startExecutor(BuildExecutor executor, BuildExecutor.Tracker tracker) {
+    this.executor = executor;
+    this.tracker = tracker;
+  }
+
+  /** Record the end of the build. */
+  synchronized void finish(boolean succeeded, String digest) {
+    this.durationNanos = System.nanoTime() - startNanos;
+    this.succeeded = succeeded;
+    this.digest = digest;
+    if (tracker != null) {
+      executorBusyNanos = tracker.getBusyNanos();
+    }
+    // registry blobs that already existed are cache hits; those pushed are misses
+    long existing = 0;
+    long pushed = 0;
+    // Jib times every base image layer, but only reports progress for those it has to pull
+    long checked = 0;
+    long pulled = 0;
+    for (Transfer transfer : transfers.values()) {
+      if (transfer.direction.equals("push")) {
+        existing += transfer.existing ? 1 : 0;
+        pushed += transfer.existing ? 0 : 1;
+      } else {
+        checked++;
+        pulled += transfer.bytes > 0 ? 1 : 0;
+      }
+    }
+    if (existing + pushed > 0) {
+      recordCache("registry", existing, pushed);
+    }
+    if (checked > 0) {
+      recordCache("base-image", checked - pulled, pulled);
+    }
+  }
+
+  /**
+   * Write the metrics to {@code file}, in the Prometheus text format if the file name ends with
+   * {@code .prom} and as JSON otherwise.
+   */
+  void write(Path file) throws IOException {
+    byte[] contents =
+        file.getFileName().toString().endsWith(".prom")
+            ? toPrometheus().getBytes(StandardCharsets.UTF_8)
+            : new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsBytes(toJson());
+    Path directory = file.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    // scrapers must never see a partially-written file
+    Path temporary = Files.createTempFile(directory, ".metrics", ".tmp");
+    try {
+      Files.write(temporary, contents);
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized ObjectNode toJson() {
+    ObjectMapper mapper = new ObjectMapper();
+    ObjectNode root = mapper.createObjectNode();
+    root.put("image", image);
+    root.put("succeeded", succeeded);
+    if (digest != null) {
+      root.put("digest", digest);
+    }
+    root.put("durationMillis", millis(durationNanos));
+
+    ObjectNode phasesNode = root.putObject("phases");
+    for (Map.Entry<String, Phase> pair : phases.entrySet()) {
+      ObjectNode phaseNode = phasesNode.putObject(pair.getKey());
+      phaseNode.put("count", pair.getValue().count);
+      phaseNode.put("totalMillis", millis(pair.getValue().nanos));
+      phaseNode.put("maximumMillis", millis(pair.getValue().maximumNanos));
+    }
+
+    ArrayNode layersNode = root.putArray("layers");
+    for (Map.Entry<String, Transfer> pair : transfers.entrySet()) {
+      Transfer transfer = pair.getValue();
+      if (!transfer.isTransferred()) {
+        continue;
+      }
+      ObjectNode layerNode = layersNode.addObject();
+      layerNode.put("digest", pair.getKey());
+      layerNode.put("direction", transfer.direction);
+      layerNode.put("bytes", transfer.bytes);
+      layerNode.put("millis", millis(transfer.nanos));
+      layerNode.put("bytesPerSecond", bytesPerSecond(transfer));
+    }
+
+    ObjectNode cachesNode = root.putObject("caches");
+    for (Map.Entry<String, CacheCounts> pair : caches.entrySet()) {
+      ObjectNode cacheNode = cachesNode.putObject(pair.getKey());
+      cacheNode.put("hits", pair.getValue().hits);
+      cacheNode.put("misses", pair.getValue().misses);
+    }
+
+    if (executor != null) {
+      ObjectNode executorNode = root.putObject("executor");
+      executorNode.put("kind", executor.getKind().name().toLowerCase(Locale.ROOT));
+      executorNode.put("threads", executor.getThreads());
+      executorNode.put("largestPoolSize", executor.getLargestPoolSize());
+      executorNode.put("largestQueueDepth", executor.getLargestQueueDepth());
+      executorNode.put("busyMillis", millis(executorBusyNanos));
+      executorNode.put("utilization", utilization());
+    }
+    return root;
+  }
+
+  @VisibleForTesting
+  synchronized String toPrometheus() {
+    StringBuilder text = new StringBuilder();
+    String imageLabel = "image=\"" + escape(image) + "\"";
+    gauge(text, "cram_build_success", "Whether the build succeeded.");
+    sample(text, "cram_build_success", imageLabel, succeeded ? 1 : 0);
+    gauge(text, "cram_build_duration_seconds", "Duration of the build.");
+    sample(text, "cram_build_duration_seconds", imageLabel, seconds(durationNanos));
+
+    gauge(text, "cram_phase_duration_seconds", "Total duration of each phase of the build.");
+    for (Map.Entry<String, Phase> pair : phases.entrySet()) {
+      String labels = imageLabel + ",phase=\"" + escape(pair.getKey()) + "\"";
+      sample(text, "cram_phase_duration_seconds", labels, seconds(pair.getValue().nanos));
+    }
+    gauge(text, "cram_phase_runs", "Number of times each phase of the build ran.");
+    for (Map.Entry<String, Phase> pair : phases.entrySet()) {
+      String labels = imageLabel + ",phase=\"" + escape(pair.getKey()) + "\"";
+      sample(text, "cram_phase_runs", labels, pair.getValue().count);
+    }
+
+    // layer digests change with every build, so transfers are summed rather than labelled with
+    // them; the JSON format has the details of each layer
+    Map<String, Transfer> totals = new LinkedHashMap<>();
+    for (Transfer transfer : transfers.values()) {
+      if (transfer.isTransferred()) {
+        Transfer total = totals.computeIfAbsent(transfer.direction, Transfer::new);
+        total.bytes += transfer.bytes;
+        total.nanos += transfer.nanos;
+        total.count++;
+      }
+    }
+    gauge(text, "cram_layers_transferred", "Number of layers pushed or pulled.");
+    for (Transfer total : totals.values()) {
+      String labels = imageLabel + ",direction=\"" + total.direction + "\"";
+      sample(text, "cram_layers_transferred", labels, total.count);
+    }
+    gauge(text, "cram_layer_bytes", "Bytes of layers pushed or pulled.");
+    for (Transfer total : totals.values()) {
+      String labels = imageLabel + ",direction=\"" + total.direction + "\"";
+      sample(text, "cram_layer_bytes", labels, total.bytes);
+    }
+    gauge(text, "cram_layer_bytes_per_second", "Throughput of layer pushes or pulls.");
+    for (Transfer total : totals.values()) {
+      String labels = imageLabel + ",direction=\"" + total.direction + "\"";
+      sample(text, "cram_layer_bytes_per_second", labels, bytesPerSecond(total));
+    }
+
+    gauge(text, "cram_cache_hits", "Cache hits by cache.");
+    for (Map.Entry<String, CacheCounts> pair : caches.entrySet()) {
+      String labels = imageLabel + ",cache=\"" + pair.getKey() + "\"";
+      sample(text, "cram_cache_hits", labels, pair.getValue().hits);
+    }
+    gauge(text, "cram_cache_misses", "Cache misses by cache.");
+    for (Map.Entry<String, CacheCounts> pair : caches.entrySet()) {
+      String labels = imageLabel + ",cache=\"" + pair.getKey() + "\"";
+      sample(text, "cram_cache_misses", labels, pair.getValue().misses);
+    }
+
+    if (executor != null) {
+      gauge(text, "cram_executor_threads", "Configured number of build threads.");
+      sample(text, "cram_executor_threads", imageLabel, executor.getThreads());
+      gauge(text, "cram_executor_utilization", "Fraction of thread time spent running tasks.");
+      sample(text, "cram_executor_utilization", imageLabel, utilization());
+      gauge(text, "cram_executor_largest_queue_depth", "Most tasks waiting for a thread.");
+      sample(
+          text, "cram_executor_largest_queue_depth", imageLabel, executor.getLargestQueueDepth());
+    }
+    return text.toString();
+  }
+
+  /**
+   * Return the phase of a Jib timer description, without the digests and layer names that
+   * distinguish repetitions of a step: e.g., {@code Pushing BLOB sha256:...} becomes {@code
+   * pushing-blob}.
+   */
+  @VisibleForTesting
+  static String phaseName(String description) {
+    String phase = description.toLowerCase(Locale.ROOT);
+    if (phase.startsWith("building ") && phase.endsWith(" layer")) {
+      // "Building <layer name> layer"
+      return "building-layer";
+    }
+    phase = phase.replaceAll("sha256:[0-9a-f]*", "").replaceAll("[^a-z0-9]+", "-");
+    return phase.replaceAll("^-+|-+$", "");
+  }
+
+  private Transfer transfer(String blob, String direction) {
+    return transfers.computeIfAbsent(blob, key -> new Transfer(direction));
+  }
+
+  private double utilization() {
+    if (executor == null || durationNanos == 0) {
+      return 0;
+    }
+    return (double) executorBusyNanos / (durationNanos * (double) executor.getThreads());
+  }
+
+  private static long bytesPerSecond(Transfer transfer) {
+    return transfer.nanos == 0 ? 0 : transfer.bytes * TimeUnit.SECONDS.toNanos(1) / transfer.nanos;
+  }
+
+  private static long millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  private static double seconds(long nanos) {
+    return nanos / 1e9;
+  }
+
+  private static void gauge(StringBuilder text, String name, String help) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(" gauge\n");
+  }
+
+  private static void sample(StringBuilder text, String name, String labels, double value) {
+    text.append(name).append('{').append(labels).append("} ");
+    if (value == Math.rint(value) && !Double.isInfinite(value)) {
+      text.append((long) value);
+    } else {
+      text.append(value);
+    }
+    text.append('\n');
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
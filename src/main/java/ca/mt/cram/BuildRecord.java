@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestException;
+import java.util.List;
+
+/**
+ * Remembers the inputs of the last image built to a destination and the digest of the result, for
+ * {@code --skip-if-unchanged}. Jib assembles the manifest internally, so rather than computing the
+ * would-be digest, the inputs that determine it are fingerprinted: the digest of the base image,
+ * the {@link LayerCache#fingerprint fingerprint} of each layer, and the container configuration.
+ * When the fingerprint matches the last build's and the destination still holds the image that
+ * build produced, building again would produce the same image.
+ *
+ * <p>Records are kept in {@code builds/} of the cache directory, one file per destination holding
+ * the fingerprint and the digest.
+ */
+class BuildRecord {
+  private final Path file;
+  private String fingerprint;
+  private DescriptorDigest digest;
+
+  /** Load the record of the last build to {@code destination}, which may not exist. */
+  static BuildRecord load(Path cacheDirectory, String destination) throws IOException {
+    String name = Hashing.sha256().hashString(destination, StandardCharsets.UTF_8).toString();
+    BuildRecord record = new BuildRecord(cacheDirectory.resolve("builds").resolve(name));
+    try {
+      List<String> lines = Files.readAllLines(record.file, StandardCharsets.UTF_8);
+      if (lines.size() >= 2) {
+        record.fingerprint = lines.get(0);
+        record.digest = DescriptorDigest.fromDigest(lines.get(1));
+      }
+    } catch (NoSuchFileException ex) {
+      // never built
+    } catch (DigestException ex) {
+      // corrupt: treat as never built
+    }
+    return record;
+  }
+
+  private BuildRecord(Path file) {
+    this.file = file;
+  }
+
+  /**
+   * Return the digest of the image last built from inputs with this fingerprint, or {@code null}
+   * if the inputs have changed since.
+   */
+  DescriptorDigest getDigest(String fingerprint) {
+    return fingerprint.equals(this.fingerprint) ? digest : null;
+  }
+
+  /** Record that inputs with this fingerprint produced the image {@code digest}. */
+  void save(String fingerprint, DescriptorDigest digest) throws IOException {
+    this.fingerprint = fingerprint;
+    this.digest = digest;
+    Files.createDirectories(file.getParent());
+    Path temporary = Files.createTempFile(file.getParent(), ".record", ".tmp");
+    try {
+      Files.write(
+          temporary, (fingerprint + "\n" + digest + "\n").getBytes(StandardCharsets.UTF_8));
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /** Fingerprint the inputs of a build, given as {@code name=value} lines. */
+  static String fingerprint(String inputs) {
+    return Hashing.sha256().hashString(inputs, StandardCharsets.UTF_8).toString();
+  }
+}
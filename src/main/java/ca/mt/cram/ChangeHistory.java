@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the fingerprints of the subtrees of an auto-split layer over the most recent builds, so
+ * that subtrees that change often can be told apart from those that are stable. There is one
+ * history file per layer definition, with a line per subtree: the subtree's path in the container,
+ * a tab, and its fingerprints separated by spaces, oldest first.
+ */
+class ChangeHistory {
+  /** The number of builds remembered. */
+  static final int DEPTH = 10;
+
+  private final Path file;
+  private final Map<String, List<String>> previous = new LinkedHashMap<>();
+  private final Map<String, List<String>> current = new LinkedHashMap<>();
+
+  /** Load the history of the layer definition {@code key} from {@code directory}. */
+  static ChangeHistory load(Path directory, String key) throws IOException {
+    String fileName = Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString();
+    Path file = directory.resolve(fileName);
+    ChangeHistory history = new ChangeHistory(file);
+    if (Files.exists(file)) {
+      for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+        int tab = line.indexOf('\t');
+        if (tab > 0) {
+          List<String> fingerprints =
+              Splitter.on(' ').omitEmptyStrings().splitToList(line.substring(tab + 1));
+          history.previous.put(line.substring(0, tab), fingerprints);
+        }
+      }
+    }
+    return history;
+  }
+
+  @VisibleForTesting
+  ChangeHistory(Path file) {
+    this.file = file;
+  }
+
+  /**
+   * Record the fingerprint of a subtree in this build.
+   *
+   * @return the number of times the subtree changed over the remembered builds
+   */
+  int record(String subtree, String fingerprint) {
+    List<String> fingerprints = new ArrayList<>(previous.getOrDefault(subtree, new ArrayList<>()));
+    fingerprints.add(fingerprint);
+    while (fingerprints.size() > DEPTH) {
+      fingerprints.remove(0);
+    }
+    current.put(subtree, fingerprints);
+    int changes = 0;
+    for (int i = 1; i < fingerprints.size(); i++) {
+      if (!fingerprints.get(i).equals(fingerprints.get(i - 1))) {
+        changes++;
+      }
+    }
+    return changes;
+  }
+
+  /** Write the fingerprints recorded in this build; subtrees that no longer exist are dropped. */
+  void save() throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, List<String>> pair : current.entrySet()) {
+      lines.add(pair.getKey() + "\t" + Joiner.on(' ').join(pair.getValue()));
+    }
+    Files.createDirectories(file.getParent());
+    Path temporary = Files.createTempFile(file.getParent(), ".history", ".tmp");
+    try {
+      Files.write(temporary, lines, StandardCharsets.UTF_8);
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+}
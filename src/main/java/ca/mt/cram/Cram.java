@@ -16,42 +16,93 @@
 
 package ca.mt.cram;
 
+import com.google.cloud.tools.jib.ProjectInfo;
 import com.google.cloud.tools.jib.api.AbsoluteUnixPath;
 import com.google.cloud.tools.jib.api.Containerizer;
+import com.google.cloud.tools.jib.api.Credential;
+import com.google.cloud.tools.jib.api.CredentialRetriever;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
 import com.google.cloud.tools.jib.api.DockerDaemonImage;
 import com.google.cloud.tools.jib.api.ImageReference;
 import com.google.cloud.tools.jib.api.Jib;
-import com.google.cloud.tools.jib.api.JibContainer;
 import com.google.cloud.tools.jib.api.JibContainerBuilder;
 import com.google.cloud.tools.jib.api.LayerConfiguration;
-import com.google.cloud.tools.jib.api.LogEvent;
 import com.google.cloud.tools.jib.api.Port;
 import com.google.cloud.tools.jib.api.Ports;
+import com.google.cloud.tools.jib.api.RegistryException;
 import com.google.cloud.tools.jib.api.RegistryImage;
+import com.google.cloud.tools.jib.api.TarImage;
+import com.google.cloud.tools.jib.cache.Cache;
+import com.google.cloud.tools.jib.cache.CacheCorruptedException;
+import com.google.cloud.tools.jib.cache.CachedLayer;
+import com.google.cloud.tools.jib.event.EventHandlers;
 import com.google.cloud.tools.jib.frontend.CredentialRetrieverFactory;
+import com.google.cloud.tools.jib.hash.Digests;
+import com.google.cloud.tools.jib.http.Authorization;
+import com.google.cloud.tools.jib.image.Image;
+import com.google.cloud.tools.jib.image.json.BuildableManifestTemplate;
+import com.google.cloud.tools.jib.image.json.ContainerConfigurationTemplate;
+import com.google.cloud.tools.jib.image.json.HistoryEntry;
+import com.google.cloud.tools.jib.image.json.JsonToImageTranslator;
+import com.google.cloud.tools.jib.image.json.ManifestAndConfig;
+import com.google.cloud.tools.jib.image.json.ManifestTemplate;
+import com.google.cloud.tools.jib.image.json.OCIManifestTemplate;
+import com.google.cloud.tools.jib.json.JsonTemplateMapper;
+import com.google.cloud.tools.jib.registry.RegistryAuthenticator;
+import com.google.cloud.tools.jib.registry.RegistryClient;
+import com.google.cloud.tools.jib.registry.credentials.CredentialRetrievalException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
+import com.google.common.hash.HashCode;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.DigestException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Model.ArgSpec;
 import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 import picocli.CommandLine.Spec;
 
 /** A simple command-line container builder. */
+@Command(
+    name = "cram",
+    subcommands = {CramBatch.class, CramDaemon.class, CramClient.class})
 public class Cram implements Callable<Void> {
+  /** The largest compression block size, bounding the memory used by blocks in flight. */
+  private static final long MAXIMUM_COMPRESSION_BLOCK_SIZE = 16L << 20;
 
   /** Parses a port specification like {@code 25/tcp} into a {@link Port} objects. */
   @VisibleForTesting
@@ -85,9 +136,130 @@ public class Cram implements Callable<Void> {
     }
   }
 
+  /** Parses an executor kind like {@code virtual} into a {@link BuildExecutor.Kind}. */
+  @VisibleForTesting
+  static class ExecutorKindParser implements CommandLine.ITypeConverter<BuildExecutor.Kind> {
+
+    @Override
+    public BuildExecutor.Kind convert(String value) throws Exception {
+      return BuildExecutor.Kind.valueOf(value.toUpperCase(Locale.ROOT));
+    }
+  }
+
+  /** Parses a size like {@code 512m} or {@code 10g} into a number of bytes. */
+  @VisibleForTesting
+  static class SizeParser implements CommandLine.ITypeConverter<Long> {
+
+    @Override
+    public Long convert(String value) throws Exception {
+      String lower = value.trim().toLowerCase(Locale.ROOT);
+      long multiplier = 1;
+      switch (lower.isEmpty() ? ' ' : lower.charAt(lower.length() - 1)) {
+        case 'k':
+          multiplier = 1L << 10;
+          break;
+        case 'm':
+          multiplier = 1L << 20;
+          break;
+        case 'g':
+          multiplier = 1L << 30;
+          break;
+        default:
+          return Long.parseLong(lower);
+      }
+      return Long.parseLong(lower.substring(0, lower.length() - 1)) * multiplier;
+    }
+  }
+
+  /**
+   * Parses a compression level: 0 to 9, {@code none}, {@code fast} or {@code best}. Layers are
+   * always gzip streams, as registries expect, so {@code none} (level 0) stores the tarball in
+   * uncompressed deflate blocks rather than writing a plain tarball.
+   */
+  @VisibleForTesting
+  static class CompressionLevelParser implements CommandLine.ITypeConverter<Integer> {
+
+    @Override
+    public Integer convert(String value) throws Exception {
+      switch (value.toLowerCase(Locale.ROOT)) {
+        case "none":
+          return Deflater.NO_COMPRESSION;
+        case "fast":
+          return Deflater.BEST_SPEED;
+        case "best":
+          return Deflater.BEST_COMPRESSION;
+        default:
+          if (!value.matches("[0-9]")) {
+            throw new CommandLine.TypeConversionException(
+                "invalid compression level: " + value + " (expected 0-9, none, fast or best)");
+          }
+          return Integer.parseInt(value);
+      }
+    }
+  }
+
+  /** A destination of the image, and how to containerize to it. */
+  private static class Target {
+    final String description;
+    final JibContainerBuilder builder;
+    final Containerizer containerizer;
+    /** Whether the target is a registry, which Jib never builds to offline. */
+    final boolean registry;
+    /**
+     * The image whose repository the application layers are pushed to before containerizing, or
+     * {@code null} if they are not, or are pushed once for several targets.
+     */
+    final ImageReference uploadTo;
+    /**
+     * Writes the image to a destination that Jib has no containerizer for, such as an OCI layout,
+     * or {@code null} to containerize with Jib.
+     */
+    final ImageWriter writer;
+
+    Target(
+        String description,
+        JibContainerBuilder builder,
+        Containerizer containerizer,
+        boolean registry,
+        ImageReference uploadTo,
+        ImageWriter writer) {
+      this.description = description;
+      this.builder = builder;
+      this.containerizer = containerizer;
+      this.registry = registry;
+      this.uploadTo = uploadTo;
+      this.writer = writer;
+    }
+  }
+
+  /** Writes the image from the compressed layers, in place of Jib. */
+  private interface ImageWriter {
+    /** Write the image, returning the digest of its manifest. */
+    DescriptorDigest write(Path layersCache, Executor executor, BuildMetrics metrics)
+        throws Exception;
+  }
+
   /** The magic starts here. */
   public static void main(String[] args) {
-    CommandLine.call(new Cram(), args);
+    List<Object> results = newCommandLine().parseWithHandler(new CommandLine.RunLast(), args);
+    // the client exits with the exit code of the build it sent
+    if (results != null && results.size() == 1 && results.get(0) instanceof Integer) {
+      System.exit((Integer) results.get(0));
+    }
+  }
+
+  /**
+   * Create the command line of a build, with the {@code batch}, {@code serve} and {@code client}
+   * subcommands.
+   */
+  @VisibleForTesting
+  static CommandLine newCommandLine() {
+    CommandLine commandLine = new CommandLine(new Cram());
+    // the client forwards everything after its own options to the daemon
+    CommandLine client = commandLine.getSubcommands().get("client");
+    client.setStopAtPositional(true);
+    client.setStopAtUnmatched(true);
+    return commandLine;
   }
 
   /** The Picocli command object. */
@@ -106,11 +278,91 @@ public class Cram implements Callable<Void> {
   @VisibleForTesting
   boolean toRegistry = false;
 
+  @Option(
+      names = {"--tar"},
+      paramLabel = "file",
+      description = "write result to a tarball that can be loaded with 'docker load'")
+  @VisibleForTesting
+  Path tarFile;
+
+  @Option(
+      names = {"--oci-layout"},
+      paramLabel = "dir",
+      description = "write result to an OCI image layout directory, reusing blobs already there")
+  @VisibleForTesting
+  Path ociLayoutDirectory;
+
+  @Option(
+      names = {"--also-push"},
+      paramLabel = "image",
+      description = "also push the image to this registry image, e.g., a mirror (repeatable)",
+      converter = ImageReferenceParser.class)
+  @VisibleForTesting
+  List<ImageReference> mirrors = new ArrayList<>();
+
+  @Option(
+      names = {"-t", "--tag"},
+      paramLabel = "tag",
+      description = "also tag the image with this tag at each destination (repeatable)")
+  @VisibleForTesting
+  List<String> additionalTags = new ArrayList<>();
+
+  @Option(
+      names = {"--platforms"},
+      split = ",",
+      paramLabel = "os/arch",
+      description =
+          "build the image for each of these platforms (e.g., linux/amd64,linux/arm64) "
+              + "from a multi-platform base image, and push a manifest list of them",
+      converter = Platform.Parser.class)
+  @VisibleForTesting
+  List<Platform> platforms;
+
   @Option(
       names = {"-c", "--creation-time"},
-      description = "set the image creation time")
+      description = "set the image creation time (default: now, or the epoch with --reproducible)")
+  @VisibleForTesting
+  Instant creationTime;
+
+  @Option(
+      names = {"--reproducible"},
+      description =
+          "use the epoch as the creation time unless --creation-time is given, "
+              + "so that the same inputs produce the same image")
+  @VisibleForTesting
+  boolean reproducible;
+
+  @Option(
+      names = {"--skip-if-unchanged"},
+      description =
+          "do nothing if the inputs are unchanged since the last build and the destination "
+              + "still holds its image; implies --reproducible and requires --cache-dir")
+  @VisibleForTesting
+  boolean skipIfUnchanged;
+
+  @Option(
+      names = {"--offline"},
+      description =
+          "build from the base image in the local cache without contacting any registry; "
+              + "cannot push to a registry")
+  @VisibleForTesting
+  boolean offline;
+
+  @Option(
+      names = {"--base-image-ttl"},
+      paramLabel = "duration",
+      description =
+          "use the digest a base image tag resolved to for this long before resolving it again "
+              + "(e.g., 90s, 30m; default: 0, to always resolve)",
+      converter = CramDaemon.DurationParser.class)
   @VisibleForTesting
-  Instant creationTime = Instant.now();
+  Duration baseImageTimeToLive = TagCache.DEFAULT_TIME_TO_LIVE;
+
+  @Option(
+      names = {"-h", "--help"},
+      usageHelp = true,
+      description = "show this help and exit")
+  boolean help;
 
   @Option(
       names = {"-v", "--verbose"},
@@ -189,8 +441,126 @@ public class Cram implements Callable<Void> {
   @VisibleForTesting
   boolean insecure = false;
 
+  @Option(
+      names = {"--threads"},
+      paramLabel = "n",
+      description = "maximum number of build threads (default: number of processors)")
+  @VisibleForTesting
+  int threads = Runtime.getRuntime().availableProcessors();
+
+  @Option(
+      names = {"--executor"},
+      paramLabel = "platform|virtual",
+      description = "run build steps on platform threads or virtual threads (Java 21+)",
+      converter = ExecutorKindParser.class)
+  @VisibleForTesting
+  BuildExecutor.Kind executorKind = BuildExecutor.Kind.PLATFORM;
+
+  @Option(
+      names = {"--cache-dir"},
+      paramLabel = "dir",
+      description = "keep compressed layers in this directory to reuse them across builds")
+  @VisibleForTesting
+  Path cacheDirectory;
+
+  @Option(
+      names = {"--cache-size"},
+      paramLabel = "size",
+      description =
+          "evict least-recently-used layers when the cache exceeds this size "
+              + "(e.g., 512m, 10g; 0 for no limit; default: 10g)",
+      converter = SizeParser.class)
+  @VisibleForTesting
+  long cacheSize = 10L << 30;
+
+  @Option(
+      names = {"--compression-level"},
+      paramLabel = "level",
+      description =
+          "compress layers at this level: 0-9, none, fast or best "
+              + "(default: 6; lower levels are faster on fast networks; "
+              + "none still writes gzip, as stored blocks)",
+      converter = CompressionLevelParser.class)
+  @VisibleForTesting
+  int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+  @Option(
+      names = {"--compression-block-size"},
+      paramLabel = "size",
+      description =
+          "compress each layer as blocks of this size (e.g., 1m) on all build threads; "
+              + "a layer's digest depends on the block size",
+      converter = SizeParser.class)
+  @VisibleForTesting
+  Long compressionBlockSize;
+
+  @Option(
+      names = {"--dedup"},
+      description =
+          "pack files with the same contents once: as hard links within a layer, and in a "
+              + "shared layer when they appear in several layers")
+  @VisibleForTesting
+  boolean deduplicate;
+
+  @Option(
+      names = {"--progress"},
+      description =
+          "show a progress line with the throughput and the time remaining for each layer")
+  @VisibleForTesting
+  boolean showProgress;
+
+  @Option(
+      names = {"--events"},
+      paramLabel = "file",
+      description = "write the build events to this file as JSON lines")
+  @VisibleForTesting
+  Path eventsFile;
+
+  @Option(
+      names = {"--metrics"},
+      paramLabel = "file",
+      description =
+          "write build timings, throughput, cache and thread statistics to this file, "
+              + "in Prometheus text format if it ends with .prom and as JSON otherwise")
+  @VisibleForTesting
+  Path metricsFile;
+
+  @Option(
+      names = {"--watch"},
+      description =
+          "after building, watch the layers' sources and rebuild when they change, "
+              + "resolving only the changed layers again")
+  @VisibleForTesting
+  boolean watch;
+
+  @Option(
+      names = {"--watch-delay"},
+      paramLabel = "ms",
+      description =
+          "wait until no changes have been seen for this long before rebuilding (default: 300)")
+  @VisibleForTesting
+  long watchDelay = 300;
+
+  /** Set when run from {@link CramBatch} to share one executor between builds. */
+  @VisibleForTesting BuildExecutor sharedExecutor;
+
+  /** Where Jib keeps base image layers and metadata. */
+  @VisibleForTesting Path baseImageCache = Containerizer.DEFAULT_BASE_CACHE_DIRECTORY;
+
+  /** Where {@link TagCache} keeps base image tag resolutions when there is no cache directory. */
+  @VisibleForTesting Path tagCacheDirectory = TagCache.DEFAULT_DIRECTORY;
+
+  /** Credentials retrieved for each registry; shared between builds by {@link CramBatch}. */
+  @VisibleForTesting CredentialCache credentialCache = new CredentialCache();
+
+  /** The digest of the resulting image, once built. */
+  @VisibleForTesting DescriptorDigest imageDigest;
+
+  // the images are checked in call() rather than required here, as they are not given with a
+  // subcommand
   @Parameters(
       index = "0",
+      arity = "0..1",
       paramLabel = "base-image",
       description = "the base image (e.g., busybox, nginx, gcr.io/distroless/java)",
       converter = ImageReferenceParser.class)
@@ -199,6 +569,7 @@ public class Cram implements Callable<Void> {
 
   @Parameters(
       index = "1",
+      arity = "0..1",
       paramLabel = "destination-image",
       description =
           "the destination image (e.g., localhost:5000/image:1.0, "
@@ -218,106 +589,1241 @@ public class Cram implements Callable<Void> {
               + "- perms=fff/ddd - to set file and directory permissions (octal)\n"
               + "- ts=timestamp - to set last-modified timestamps, either in ISO8601 format, "
               + "or 'actual' to take last-modified timestamps in file-system\n"
+              + "- parallelism=n - to limit the number of threads used to scan the file tree\n"
+              + "- include=glob, exclude=glob - to only add, or to skip, the matching files and "
+              + "directories; a glob without a '/' matches names at any depth (repeatable)\n"
+              + "- auto-split[=size] - to split into layers of about this size (default: 64m), "
+              + "with the least often changed content in the lowest layers\n"
+              + "- explode - to lay out a jar, or a directory with a jar and a lib/ directory, "
+              + "as dependency, snapshot dependency, resource and class layers, and to launch "
+              + "it with java -cp\n"
               + "File permission default to 0644 and directories to 0755. "
-              + "Timestamps default to 1 second after Unix epoch (1970-01-01 00:00:00 UTC)",
-      converter = LayerDefinitionParser.class)
+              + "Timestamps default to 1 second after Unix epoch (1970-01-01 00:00:00 UTC)")
   @VisibleForTesting
-  List<LayerConfiguration> layers;
+  List<String> layerDefinitions;
+
+  /** The layers of each layer definition from the last build, reused by {@code --watch}. */
+  private List<CompletableFuture<List<LayerConfiguration>>> resolvedLayers;
+
+  /** The parser of each layer definition, which records any exploded applications. */
+  private List<LayerDefinitionParser> layerParsers = Collections.emptyList();
+
+  /**
+   * Where Jib keeps compressed layers between builds with {@code --watch}, or between the targets
+   * of a build, when there is no cache.
+   */
+  private Path temporaryLayersCache;
+
+  /** Deletes {@link #temporaryLayersCache} should the JVM exit first. */
+  private Thread temporaryLayersCleanup;
+
+  /** The directory against which relative paths are resolved; set by {@link CramDaemon}. */
+  @VisibleForTesting Path workingDirectory = Paths.get("");
+
+  /** Where progress and results are written; set by {@link CramDaemon}. */
+  @VisibleForTesting PrintStream out = System.out;
 
   @Override
   public Void call() throws Exception {
-    if (toDocker == toRegistry) {
+    if (baseImage == null || destinationImage == null) {
+      List<ArgSpec> images = new ArrayList<>(commandSpec.positionalParameters().subList(0, 2));
+      throw new CommandLine.MissingParameterException(
+          commandSpec.commandLine(),
+          images,
+          "Missing required parameters: base-image, destination-image");
+    }
+    int targets =
+        (toDocker ? 1 : 0)
+            + (toRegistry ? 1 : 0)
+            + (tarFile != null ? 1 : 0)
+            + (ociLayoutDirectory != null ? 1 : 0);
+    if (targets == 0) {
+      throw new CommandLine.ParameterException(
+          commandSpec.commandLine(),
+          "One of --docker, --registry, --tar or --oci-layout is required");
+    }
+    for (String tag : additionalTags) {
+      if (!ImageReference.isValidTag(tag)) {
+        throw new CommandLine.ParameterException(commandSpec.commandLine(), "Invalid tag: " + tag);
+      }
+    }
+    if (threads < 1) {
+      throw new CommandLine.ParameterException(
+          commandSpec.commandLine(), "--threads must be at least 1");
+    }
+    if (executorKind == BuildExecutor.Kind.VIRTUAL
+        && !BuildExecutor.isVirtualThreadsSupported()) {
+      throw new CommandLine.ParameterException(
+          commandSpec.commandLine(), "--executor=virtual requires Java 21 or later");
+    }
+    if (watch && sharedExecutor != null) {
+      throw new CommandLine.ParameterException(
+          commandSpec.commandLine(), "--watch cannot be used with batch builds or the daemon");
+    }
+    if (watch && (layerDefinitions == null || layerDefinitions.isEmpty())) {
+      throw new CommandLine.ParameterException(
+          commandSpec.commandLine(), "--watch requires at least one layer");
+    }
+    if (compressionBlockSize != null
+        && (compressionBlockSize < ParallelGzipOutputStream.MINIMUM_BLOCK_SIZE
+            || compressionBlockSize > MAXIMUM_COMPRESSION_BLOCK_SIZE)) {
+      throw new CommandLine.ParameterException(
+          commandSpec.commandLine(), "--compression-block-size must be between 32k and 16m");
+    }
+    if (platforms != null) {
+      if (!toRegistry || targets > 1 || !mirrors.isEmpty()) {
+        throw new CommandLine.ParameterException(
+            commandSpec.commandLine(), "--platforms requires --registry as the only destination");
+      }
+      if (baseImage.isScratch()) {
+        throw new CommandLine.ParameterException(
+            commandSpec.commandLine(), "--platforms requires a multi-platform base image");
+      }
+      if (skipIfUnchanged) {
+        throw new CommandLine.ParameterException(
+            commandSpec.commandLine(), "--skip-if-unchanged cannot be used with --platforms");
+      }
+    }
+    if (offline && (toRegistry || !mirrors.isEmpty())) {
       throw new CommandLine.ParameterException(
-          commandSpec.commandLine(), "One of --docker or --registry is required");
+          commandSpec.commandLine(), "--offline cannot be used to push to a registry");
     }
-    JibContainerBuilder builder = Jib.from(toCredentialedImage(baseImage));
-    verbose("FROM " + baseImage);
-    builder.setCreationTime(creationTime);
-    if (entrypoint != null) {
-      verbose("ENTRYPOINT [" + Joiner.on(",").join(entrypoint) + "]");
-      builder.setEntrypoint(entrypoint);
+    if (skipIfUnchanged && cacheDirectory == null) {
+      throw new CommandLine.ParameterException(
+          commandSpec.commandLine(), "--skip-if-unchanged requires --cache-dir");
+    }
+    if (skipIfUnchanged && !toRegistry && ociLayoutDirectory == null) {
+      throw new CommandLine.ParameterException(
+          commandSpec.commandLine(), "--skip-if-unchanged requires --registry or --oci-layout");
     }
+    if (skipIfUnchanged && (targets > 1 || !mirrors.isEmpty())) {
+      throw new CommandLine.ParameterException(
+          commandSpec.commandLine(), "--skip-if-unchanged requires a single destination");
+    }
+    if (eventsFile != null) {
+      // events are appended by each build, as with --watch
+      Files.deleteIfExists(workingDirectory.resolve(eventsFile));
+    }
+    BuildExecutor executor =
+        sharedExecutor != null ? sharedExecutor : BuildExecutor.create(executorKind, threads);
+    try {
+      build(executor, null);
+      if (watch) {
+        watch(executor);
+      }
+      return null;
+    } finally {
+      if (executor != sharedExecutor) {
+        executor.shutdown();
+        verbose("Executor: " + executor.getStatistics());
+      }
+      if (temporaryLayersCache != null) {
+        deleteRecursively(temporaryLayersCache);
+        temporaryLayersCache = null;
+        try {
+          Runtime.getRuntime().removeShutdownHook(temporaryLayersCleanup);
+        } catch (IllegalStateException ex) {
+          // already shutting down
+        }
+        temporaryLayersCleanup = null;
+      }
+    }
+  }
+
+  /**
+   * Build and containerize the image once.
+   *
+   * @param changedDefinitions the indices of the layer definitions to resolve, reusing the layers
+   *     of the others from the previous build, or {@code null} to resolve all of them
+   */
+  private void build(BuildExecutor pool, Set<Integer> changedDefinitions) throws Exception {
+    LayerCache layerCache = null;
+    List<Target> targets = Collections.emptyList();
+    BuildMetrics metrics = new BuildMetrics(destinationImage.toString());
+    // the pool may be shared with other builds, so this build's tasks are measured on their own
+    BuildExecutor.Tracker executor = pool.track();
+    metrics.startExecutor(pool, executor);
+    EventLog eventLog =
+        new EventLog(
+            out, showProgress, eventsFile == null ? null : workingDirectory.resolve(eventsFile));
+    boolean succeeded = false;
+    try {
+      // scan the layers while registry credentials are retrieved and any base image digests are
+      // resolved; Jib pulls the base image once containerization starts
+      long scanStart = System.nanoTime();
+      // shared by the scans and the deduplicator, so that each file is stat'ed once per build
+      FileAttributesCache attributesCache = new FileAttributesCache();
+      List<CompletableFuture<List<LayerConfiguration>>> pendingLayers =
+          resolveLayers(executor, changedDefinitions, attributesCache);
+      if (!offline) {
+        prefetchCredentials(executor);
+      }
+      CompletableFuture<ImageReference> pendingBase =
+          platforms == null ? CompletableFuture.supplyAsync(this::pinBaseImage, executor) : null;
+      CompletableFuture<Map<Platform, String>> pendingPlatformBases =
+          platforms == null
+              ? null
+              : CompletableFuture.supplyAsync(
+                  () -> {
+                    try {
+                      return resolvePlatformBases();
+                    } catch (Exception ex) {
+                      throw new CompletionException(ex);
+                    }
+                  },
+                  executor);
+      Instant created = creationTime;
+      if (created == null) {
+        created = reproducible || skipIfUnchanged ? Instant.EPOCH : Instant.now();
+      }
+
+      List<LayerConfiguration> layers = awaitLayers(pendingLayers);
+      long scanNanos = System.nanoTime() - scanStart;
+      metrics.recordPhase("resolve-layers", scanNanos);
+      verbose(String.format("Resolved %d layers in %d ms", layers.size(), scanNanos / 1_000_000));
+      // the entrypoint of an exploded application must match its layout
+      List<String> resolvedEntrypoint = entrypoint;
+      List<JarExploder.Application> applications = new ArrayList<>();
+      // layers taken from tarballs are stored in Jib's cache rather than built from files
+      Map<LayerConfiguration, TarballLayer> tarballs = new HashMap<>();
+      for (LayerDefinitionParser parser : layerParsers) {
+        applications.addAll(parser.getApplications());
+        tarballs.putAll(parser.getTarballs());
+      }
+      tarballs.keySet().retainAll(layers);
+      if (applications.size() == 1) {
+        resolvedEntrypoint = applications.get(0).rewriteEntrypoint(entrypoint);
+      } else {
+        // there is no telling which of several applications the entrypoint should launch
+        for (JarExploder.Application application : applications) {
+          if (!Objects.equals(application.rewriteEntrypoint(entrypoint), entrypoint)) {
+            throw new CommandLine.ParameterException(
+                commandSpec.commandLine(),
+                String.format(
+                    "Cannot rewrite the entrypoint for %d exploded applications;"
+                        + " set one with --entrypoint",
+                    applications.size()));
+          }
+        }
+      }
+      BuildRecord record = null;
+      String fingerprint = null;
+      if (skipIfUnchanged) {
+        long checkStart = System.nanoTime();
+        record = BuildRecord.load(workingDirectory.resolve(cacheDirectory), describeDestination());
+        ImageReference base = pendingBase.join();
+        String baseDigest =
+            base.isScratch() ? "scratch" : base.isTagDigest() ? base.getTag() : null;
+        if (baseDigest != null) {
+          fingerprint =
+              fingerprintInputs(baseDigest, layers, resolvedEntrypoint, created, attributesCache);
+        }
+        DescriptorDigest previous = fingerprint == null ? null : record.getDigest(fingerprint);
+        boolean unchanged = previous != null && previous.equals(getDestinationDigest());
+        metrics.recordPhase("check-unchanged", System.nanoTime() - checkStart);
+        if (unchanged) {
+          imageDigest = previous;
+          out.printf("Unchanged: %s (%s)\n", describeTarget(), imageDigest);
+          succeeded = true;
+          return;
+        }
+      }
+      Map<Path, HashCode> contents = null;
+      if (deduplicate) {
+        long deduplicateStart = System.nanoTime();
+        LayerDeduplicator.Result deduplicated =
+            LayerDeduplicator.deduplicate(
+                layers, tarballs.keySet(), attributesCache, executor);
+        metrics.recordPhase("deduplicate", System.nanoTime() - deduplicateStart);
+        layers = deduplicated.layers;
+        contents = deduplicated.contents;
+        out.printf(
+            "Deduplicated %d files, saving %d bytes\n",
+            deduplicated.duplicates, deduplicated.bytesSaved);
+      }
+      // Jib need not contact the registry for a base image it holds by digest, except to build to
+      // a registry
+      boolean cachedBase = false;
+      if (platforms == null) {
+        ImageReference base = pendingBase.join();
+        targets = createTargets(base, created, layers, resolvedEntrypoint);
+        cachedBase = base.isTagDigest() && isBaseImageCached(base);
+        boolean localTarget = targets.stream().anyMatch(target -> !target.registry);
+        if (!cachedBase
+            && !offline
+            && (targets.size() > 1 || localTarget)
+            && base.isTagDigest()) {
+          // pull the base image on the bounded pool, once rather than in every target at the same
+          // time
+          long pullStart = System.nanoTime();
+          cachedBase = cacheBaseImage(base, executor);
+          metrics.recordPhase("pull-base-image", System.nanoTime() - pullStart);
+        }
+      } else {
+        Map<Platform, String> platformBases = awaitResult(pendingPlatformBases);
+        targets = createPlatformTargets(platformBases, created, layers, resolvedEntrypoint);
+      }
+      // compress the layers on the bounded pool rather than on Jib's step threads, once for all
+      // targets
+      Path layersCache;
+      if (cacheDirectory != null) {
+        layerCache = LayerCache.open(workingDirectory.resolve(cacheDirectory), cacheSize);
+        layerCache.prepare(layers, describeCompression(), attributesCache);
+        metrics.recordCache("layer", layerCache.getHits(), layerCache.getMisses());
+        verbose(
+            String.format(
+                "Layer cache: %d hits, %d misses", layerCache.getHits(), layerCache.getMisses()));
+        layersCache = layerCache.getApplicationLayersDirectory();
+      } else {
+        // keep the compressed layers between builds, and between targets, so that they are reused
+        if (temporaryLayersCache == null) {
+          temporaryLayersCache = Files.createTempDirectory("cram-layers");
+          // --watch ends only when the JVM is stopped, which skips the cleanup in call()
+          Path directory = temporaryLayersCache;
+          temporaryLayersCleanup =
+              new Thread(
+                  () -> {
+                    try {
+                      deleteRecursively(directory);
+                    } catch (IOException ex) {
+                      // left for the system to clean up
+                    }
+                  },
+                  "cram-layers-cleanup");
+          Runtime.getRuntime().addShutdownHook(temporaryLayersCleanup);
+        }
+        layersCache = temporaryLayersCache;
+      }
+      for (Target target : targets) {
+        Containerizer containerizer = target.containerizer;
+        if (containerizer == null) {
+          continue;
+        }
+        containerizer.setAllowInsecureRegistries(insecure);
+        containerizer.setToolName("cram");
+        containerizer.setBaseImageLayersCache(baseImageCache);
+        containerizer.setOfflineMode(offline || (cachedBase && !target.registry));
+        containerizer.addEventHandler(eventLog);
+        containerizer.addEventHandler(metrics);
+        // the additional tags of a multi-platform image are given to its manifest list
+        for (String tag : platforms == null ? additionalTags : Collections.<String>emptyList()) {
+          containerizer.withAdditionalTag(tag);
+        }
+        containerizer.setApplicationLayersCache(layersCache);
+        // Jib's steps block on each other, so they run on threads of their own; the layers are
+        // compressed and pushed on the bounded pool beforehand, and Jib finds them done
+        containerizer.setExecutorService(pool.getStepExecutor());
+      }
+
+      long containerizeStart = System.nanoTime();
+      List<CompletableFuture<DescriptorDigest>> results = new ArrayList<>();
+      Executor targetExecutor = Runnable::run;
+      long compressStart = System.nanoTime();
+      if (!tarballs.isEmpty()) {
+        int stored =
+            TarballLayer.store(
+                layersCache,
+                new ArrayList<>(tarballs.values()),
+                compressionLevel,
+                compressionBlockSize == null ? 0 : compressionBlockSize.intValue(),
+                executor);
+        verbose(String.format("Stored %d tarball layers", stored));
+      }
+      int compressed =
+          LayerCompressor.compress(
+              layersCache,
+              layers,
+              compressionLevel,
+              compressionBlockSize == null ? 0 : compressionBlockSize.intValue(),
+              contents,
+              executor);
+      metrics.recordPhase("compress-layers", System.nanoTime() - compressStart);
+      verbose(String.format("Compressed %d layers for %d targets", compressed, targets.size()));
+      if (targets.size() > 1 || platforms != null) {
+        // containerize to every target at once; each waits for Jib's steps, so like them runs on
+        // the step executor
+        targetExecutor = pool.getStepExecutor();
+      }
+      if (platforms != null) {
+        // the platforms share the application layers: upload them once
+        long uploadStart = System.nanoTime();
+        uploadLayers(destinationImage, layersCache, layers, executor);
+        metrics.recordPhase("upload-layers", System.nanoTime() - uploadStart);
+      }
+      List<LayerConfiguration> uploadLayers = layers;
+      for (Target target : targets) {
+        results.add(
+            CompletableFuture.supplyAsync(
+                () -> {
+                  try {
+                    if (target.uploadTo != null) {
+                      // push the layers on the bounded pool too; Jib then finds them in the
+                      // repository
+                      uploadLayers(target.uploadTo, layersCache, uploadLayers, executor);
+                    }
+                    if (target.writer != null) {
+                      return target.writer.write(layersCache, executor, metrics);
+                    }
+                    return target.builder.containerize(target.containerizer).getDigest();
+                  } catch (Exception ex) {
+                    throw new CompletionException(ex);
+                  }
+                },
+                targetExecutor));
+      }
+      // wait for every target, whether or not the others fail
+      for (CompletableFuture<DescriptorDigest> result : results) {
+        result.handle((digest, ex) -> null).join();
+      }
+      // write out Jib's remaining events before the results
+      closeEventLog(eventLog);
+      metrics.recordPhase("containerize", System.nanoTime() - containerizeStart);
+      Exception failure = null;
+      for (int i = 0; i < targets.size(); i++) {
+        Target target = targets.get(i);
+        try {
+          DescriptorDigest digest = awaitResult(results.get(i));
+          out.printf("Containerized to %s (%s)\n", target.description, digest);
+          if (i == 0) {
+            imageDigest = digest;
+          }
+        } catch (Exception ex) {
+          if (targets.size() > 1) {
+            out.printf("Failed to containerize to %s: %s\n", target.description, ex.getMessage());
+          }
+          if (failure == null) {
+            failure = ex;
+          } else {
+            failure.addSuppressed(ex);
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      if (platforms != null) {
+        imageDigest = pushManifestList(results);
+        out.printf("Containerized to %s (%s)\n", destinationImage, imageDigest);
+      }
+      if (layerCache != null) {
+        layerCache.recordUse();
+      }
+      if (fingerprint != null) {
+        record.save(fingerprint, imageDigest);
+      }
+      for (LayerDefinitionParser parser : layerParsers) {
+        parser.saveHistories();
+      }
+      succeeded = true;
+    } finally {
+      try {
+        closeEventLog(eventLog);
+        metrics.finish(succeeded, succeeded ? imageDigest.toString() : null);
+        if (metricsFile != null) {
+          try {
+            metrics.write(workingDirectory.resolve(metricsFile));
+          } catch (IOException ex) {
+            out.println("Unable to write metrics to " + metricsFile + ": " + ex);
+          }
+        }
+      } finally {
+        // release the cache's lock however the build ended
+        if (layerCache != null) {
+          layerCache.close();
+        }
+      }
+    }
+  }
+
+  /** Stop the event log, reporting rather than failing if the events could not be written. */
+  private void closeEventLog(EventLog eventLog) {
+    try {
+      eventLog.close();
+    } catch (IOException ex) {
+      out.println("Unable to write events to " + eventsFile + ": " + ex);
+    }
+  }
+
+  /**
+   * Create a containerizer for each destination: the destination image in the registry, in the
+   * Docker daemon, as a tarball or in an OCI layout, as requested, and any mirrors.
+   */
+  private List<Target> createTargets(
+      ImageReference base,
+      Instant created,
+      List<LayerConfiguration> layers,
+      List<String> resolvedEntrypoint)
+      throws IOException {
+    List<Target> targets = new ArrayList<>();
+    // Jib's builder holds the configuration of the containerizer it is running, so each target,
+    // being containerized at the same time as the others, has its own
+    Supplier<JibContainerBuilder> builders =
+        () ->
+            createBuilder(
+                base,
+                created,
+                layers,
+                resolvedEntrypoint,
+                targets.isEmpty() ? this::verbose : message -> {});
+    if (toRegistry) {
+      targets.add(
+          new Target(
+              destinationImage.toString(),
+              builders.get(),
+              Containerizer.to(toCredentialedImage(destinationImage)),
+              true,
+              destinationImage,
+              null));
+    }
+    for (ImageReference mirror : mirrors) {
+      targets.add(
+          new Target(
+              mirror.toString(),
+              builders.get(),
+              Containerizer.to(toCredentialedImage(mirror)),
+              true,
+              mirror,
+              null));
+    }
+    if (toDocker) {
+      targets.add(
+          new Target(
+              "Docker daemon as " + destinationImage,
+              builders.get(),
+              Containerizer.to(DockerDaemonImage.named(destinationImage)),
+              false,
+              null,
+              null));
+    }
+    if (tarFile != null) {
+      targets.add(
+          new Target(
+              tarFile + " as " + destinationImage,
+              builders.get(),
+              Containerizer.to(
+                  TarImage.named(destinationImage).saveTo(workingDirectory.resolve(tarFile))),
+              false,
+              null,
+              null));
+    }
+    if (ociLayoutDirectory != null) {
+      // Jib has no OCI layout target: the image is written from Jib's caches instead
+      if (targets.isEmpty()) {
+        // describe the image, as creating the first target's builder does
+        createBuilder(base, created, layers, resolvedEntrypoint, this::verbose);
+      }
+      targets.add(
+          new Target(
+              ociLayoutDirectory + " as " + destinationImage.getTag(),
+              null,
+              null,
+              false,
+              null,
+              (layersCache, executor, metrics) ->
+                  writeOciLayout(
+                      base,
+                      created,
+                      layers,
+                      resolvedEntrypoint,
+                      layersCache,
+                      executor,
+                      metrics)));
+    }
+    return targets;
+  }
+
+  /** Push the compressed {@code layers} missing from the repository of {@code image}. */
+  private void uploadLayers(
+      ImageReference image, Path layersCache, List<LayerConfiguration> layers, Executor executor)
+      throws IOException, RegistryException, CredentialRetrievalException {
+    RegistryClient client =
+        newRegistryClientFactory(image)
+            .setAuthorization(authorize(image, true))
+            .newRegistryClient();
+    int uploaded = LayerUploader.upload(layersCache, layers, client, executor);
+    verbose(String.format("Uploaded %d layers to %s", uploaded, image));
+  }
+
+  /**
+   * Write the image to the OCI layout straight from Jib's caches: the base image's layers from the
+   * base image cache, pulled beforehand if need be, and the application layers from {@code
+   * layersCache}, compressed beforehand. Only the blobs missing from the layout are copied.
+   *
+   * <p>The image is assembled as Jib's {@code BuildImageStep} assembles it for its own targets.
+   */
+  private DescriptorDigest writeOciLayout(
+      ImageReference base,
+      Instant created,
+      List<LayerConfiguration> layers,
+      List<String> resolvedEntrypoint,
+      Path layersCache,
+      Executor executor,
+      BuildMetrics metrics)
+      throws Exception {
+    long writeStart = System.nanoTime();
+    Image.Builder image = Image.builder(OCIManifestTemplate.class);
+    Image baseImage = null;
+    if (!base.isScratch()) {
+      if (!isBaseImageCached(base) && (offline || !cacheBaseImage(base, executor))) {
+        throw new IOException("Unable to pull the base image " + base);
+      }
+      Cache cache = Cache.withDirectory(baseImageCache);
+      ManifestAndConfig metadata = cache.retrieveMetadata(base).get();
+      BuildableManifestTemplate manifest = (BuildableManifestTemplate) metadata.getManifest();
+      Optional<ContainerConfigurationTemplate> configuration = metadata.getConfig();
+      if (!configuration.isPresent()) {
+        throw new IOException("The configuration of the base image " + base + " is not cached");
+      }
+      baseImage = JsonToImageTranslator.toImage(manifest, configuration.get());
+      for (BuildableManifestTemplate.ContentDescriptorTemplate layer : manifest.getLayers()) {
+        image.addLayer(cache.retrieve(layer.getDigest()).get());
+      }
+      // Jib 0.10's hasCorrespondingLayer() is the empty_layer flag
+      int nonEmptyHistory = 0;
+      for (HistoryEntry entry : baseImage.getHistory()) {
+        image.addHistory(entry);
+        if (!entry.hasCorrespondingLayer()) {
+          nonEmptyHistory++;
+        }
+      }
+      image
+          .setArchitecture(baseImage.getArchitecture())
+          .setOs(baseImage.getOs())
+          .addEnvironment(baseImage.getEnvironment())
+          .addLabels(baseImage.getLabels())
+          .setHealthCheck(baseImage.getHealthCheck())
+          .addExposedPorts(baseImage.getExposedPorts())
+          .addVolumes(baseImage.getVolumes())
+          .setWorkingDirectory(baseImage.getWorkingDirectory());
+      for (int i = nonEmptyHistory; i < manifest.getLayers().size(); i++) {
+        image.addHistory(
+            HistoryEntry.builder()
+                .setCreationTimestamp(created)
+                .setComment("auto-generated by Jib")
+                .build());
+      }
+    }
+    Cache applicationCache = Cache.withDirectory(layersCache);
+    for (LayerConfiguration layer : layers) {
+      if (layer.getLayerEntries().isEmpty()) {
+        continue;
+      }
+      Optional<CachedLayer> cached = applicationCache.retrieve(layer.getLayerEntries());
+      if (!cached.isPresent()) {
+        throw new IOException("The " + layer.getName() + " layer was not compressed");
+      }
+      image.addLayer(cached.get());
+      image.addHistory(
+          HistoryEntry.builder()
+              .setCreationTimestamp(created)
+              .setAuthor("Jib")
+              .setCreatedBy("cram:" + ProjectInfo.VERSION)
+              .setComment(layer.getName())
+              .build());
+    }
+    if (environment != null) {
+      image.addEnvironment(environment);
+    }
+    if (labels != null) {
+      image.addLabels(labels);
+    }
+    if (ports != null) {
+      image.addExposedPorts(new LinkedHashSet<>(ports));
+    }
+    if (volumes != null) {
+      image.addVolumes(new LinkedHashSet<>(volumes));
+    }
+    image.setCreated(created).setUser(user);
+    // the base image's entrypoint and arguments are kept unless overridden, as by Jib
+    if (resolvedEntrypoint == null && baseImage != null && baseImage.getEntrypoint() != null) {
+      image.setEntrypoint(baseImage.getEntrypoint());
+    } else {
+      image.setEntrypoint(resolvedEntrypoint);
+    }
+    if (resolvedEntrypoint == null
+        && arguments == null
+        && baseImage != null
+        && baseImage.getProgramArguments() != null) {
+      image.setProgramArguments(baseImage.getProgramArguments());
+    } else {
+      image.setProgramArguments(arguments);
+    }
+
+    OciLayoutWriter writer = new OciLayoutWriter(workingDirectory.resolve(ociLayoutDirectory));
+    List<String> refNames = new ArrayList<>();
+    refNames.add(destinationImage.getTag());
+    refNames.addAll(additionalTags);
+    String manifestDigest = writer.write(image.build(), refNames);
+    metrics.recordPhase("write-oci-layout", System.nanoTime() - writeStart);
+    metrics.recordCache("oci-layout", writer.getBlobsReused(), writer.getBlobsWritten());
+    verbose(
+        String.format(
+            "OCI layout: %d blobs written, %d reused",
+            writer.getBlobsWritten(), writer.getBlobsReused()));
+    return DescriptorDigest.fromDigest(manifestDigest);
+  }
+
+  /** Wait for a target's result, rethrowing its failure. */
+  private static <T> T awaitResult(CompletableFuture<T> result) throws Exception {
+    try {
+      return result.join();
+    } catch (CompletionException ex) {
+      Throwables.throwIfUnchecked(ex.getCause());
+      Throwables.throwIfInstanceOf(ex.getCause(), Exception.class);
+      throw ex;
+    }
+  }
+
+  /** Create a builder of the image from {@code base}, logging its configuration to {@code log}. */
+  private JibContainerBuilder createBuilder(
+      ImageReference base,
+      Instant created,
+      List<LayerConfiguration> layers,
+      List<String> resolvedEntrypoint,
+      Consumer<String> log) {
+    JibContainerBuilder builder = Jib.from(toCredentialedImage(base));
+    log.accept("FROM " + base);
+    builder.setCreationTime(created);
     if (arguments != null) {
-      verbose("CMD [" + Joiner.on(",").join(arguments) + "]");
+      log.accept("CMD [" + Joiner.on(",").join(arguments) + "]");
       builder.setProgramArguments(arguments);
     }
     if (environment != null) {
       for (Entry<String, String> pair : environment.entrySet()) {
-        verbose("ENV " + pair.getKey() + "=" + pair.getValue());
+        log.accept("ENV " + pair.getKey() + "=" + pair.getValue());
         builder.addEnvironmentVariable(pair.getKey(), pair.getValue());
       }
     }
     if (labels != null) {
       for (Entry<String, String> pair : labels.entrySet()) {
-        verbose("LABEL " + pair.getKey() + "=" + pair.getValue());
+        log.accept("LABEL " + pair.getKey() + "=" + pair.getValue());
         builder.addLabel(pair.getKey(), pair.getValue());
       }
     }
     if (ports != null) {
       for (Port port : ports) {
-        verbose("EXPOSE " + port);
+        log.accept("EXPOSE " + port);
         builder.addExposedPort(port);
       }
     }
     if (volumes != null) {
       for (AbsoluteUnixPath volume : volumes) {
-        verbose("VOLUME " + volume);
+        log.accept("VOLUME " + volume);
         builder.addVolume(volume);
       }
     }
     if (user != null) {
-      verbose("USER " + environment);
+      log.accept("USER " + environment);
       builder.setUser(user);
     }
-    if (layers != null) {
-      for (LayerConfiguration layer : layers) {
-        builder.addLayer(layer);
+    for (LayerConfiguration layer : layers) {
+      builder.addLayer(layer);
+    }
+    if (resolvedEntrypoint != null) {
+      log.accept("ENTRYPOINT [" + Joiner.on(",").join(resolvedEntrypoint) + "]");
+      builder.setEntrypoint(resolvedEntrypoint);
+    }
+    return builder;
+  }
+
+  /** Resolve each platform to the digest of its image in the base image's manifest list. */
+  private Map<Platform, String> resolvePlatformBases()
+      throws IOException, RegistryException, CredentialRetrievalException {
+    ManifestListClient client =
+        new ManifestListClient(
+            baseImage.getRegistry(),
+            baseImage.getRepository(),
+            authorize(baseImage, false),
+            insecure);
+    return client.resolvePlatforms(baseImage.getTag(), platforms);
+  }
+
+  /**
+   * Create a target for each platform, built from the platform's base image and pushed with a tag
+   * suffixed by the platform, like {@code 1.0-linux-arm64}, for the manifest list to refer to.
+   */
+  private List<Target> createPlatformTargets(
+      Map<Platform, String> platformBases,
+      Instant created,
+      List<LayerConfiguration> layers,
+      List<String> resolvedEntrypoint) {
+    List<Target> targets = new ArrayList<>();
+    for (Entry<Platform, String> platformBase : platformBases.entrySet()) {
+      ImageReference base =
+          ImageReference.of(
+              baseImage.getRegistry(), baseImage.getRepository(), platformBase.getValue());
+      ImageReference destination =
+          ImageReference.of(
+              destinationImage.getRegistry(),
+              destinationImage.getRepository(),
+              destinationImage.getTag() + "-" + platformBase.getKey().toTagSuffix());
+      verbose("PLATFORM " + platformBase.getKey() + " FROM " + base);
+      targets.add(
+          new Target(
+              destination.toString(),
+              createBuilder(base, created, layers, resolvedEntrypoint, message -> {}),
+              Containerizer.to(toCredentialedImage(destination)),
+              true,
+              null,
+              null));
+    }
+    return targets;
+  }
+
+  /**
+   * Push a manifest list of the images of each platform under the destination's tag and any
+   * additional tags.
+   *
+   * @param results the digests of the platforms' images, in the order of {@link #platforms}
+   * @return the digest of the manifest list
+   */
+  private DescriptorDigest pushManifestList(List<CompletableFuture<DescriptorDigest>> results)
+      throws Exception {
+    ManifestListClient client =
+        new ManifestListClient(
+            destinationImage.getRegistry(),
+            destinationImage.getRepository(),
+            authorize(destinationImage, true),
+            insecure);
+    Map<Platform, ManifestListClient.Manifest> images = new LinkedHashMap<>();
+    for (int i = 0; i < platforms.size(); i++) {
+      images.put(platforms.get(i), client.pull(awaitResult(results.get(i)).toString()));
+    }
+    List<String> tags = new ArrayList<>();
+    tags.add(destinationImage.getTag());
+    tags.addAll(additionalTags);
+    String digest = null;
+    for (String tag : tags) {
+      digest = client.push(tag, images);
+    }
+    return DescriptorDigest.fromDigest(digest);
+  }
+
+  /** Describe where the image was written, for a build with a single destination. */
+  private String describeTarget() {
+    if (tarFile != null) {
+      return tarFile + " as " + destinationImage;
+    } else if (ociLayoutDirectory != null) {
+      return ociLayoutDirectory + " as " + destinationImage.getTag();
+    }
+    return destinationImage.toString();
+  }
+
+  /** Identify the destination for {@link BuildRecord}. */
+  private String describeDestination() {
+    if (ociLayoutDirectory != null) {
+      Path layout = workingDirectory.resolve(ociLayoutDirectory).toAbsolutePath().normalize();
+      return "oci-layout:" + layout + ":" + destinationImage.getTag();
+    }
+    return "registry:" + destinationImage;
+  }
+
+  /**
+   * Fingerprint everything that determines the image besides the destination: the base image, the
+   * layers, and the container configuration.
+   */
+  private String fingerprintInputs(
+      String baseDigest,
+      List<LayerConfiguration> layers,
+      List<String> entrypoint,
+      Instant created,
+      FileAttributesCache attributesCache)
+      throws IOException {
+    StringBuilder inputs = new StringBuilder();
+    inputs.append("base=").append(baseDigest).append('\n');
+    inputs.append("format=").append(toRegistry ? "registry" : "oci-layout").append('\n');
+    inputs.append("created=").append(created).append('\n');
+    inputs.append("entrypoint=").append(entrypoint).append('\n');
+    inputs.append("arguments=").append(arguments).append('\n');
+    inputs.append("environment=").append(environment).append('\n');
+    inputs.append("labels=").append(labels).append('\n');
+    inputs.append("ports=").append(ports).append('\n');
+    inputs.append("volumes=").append(volumes).append('\n');
+    inputs.append("user=").append(user).append('\n');
+    inputs.append("compression=").append(describeCompression()).append('\n');
+    for (LayerConfiguration layer : layers) {
+      inputs.append("layer=").append(LayerCache.fingerprint(layer, attributesCache)).append('\n');
+    }
+    return BuildRecord.fingerprint(inputs.toString());
+  }
+
+  /**
+   * Describe how layers are compressed, for keying cached layers, or return {@code null} if they
+   * are compressed as Jib does.
+   */
+  private String describeCompression() {
+    if (compressionLevel == Deflater.DEFAULT_COMPRESSION
+        && compressionBlockSize == null
+        && !deduplicate) {
+      return null;
+    }
+    return "level="
+        + compressionLevel
+        + ",block-size="
+        + compressionBlockSize
+        + (deduplicate ? ",dedup" : "");
+  }
+
+  /**
+   * Pin the base image to the digest that its tag resolves to, through the {@link TagCache}, so
+   * that a recent resolution saves asking the registry and every target uses the same image. The
+   * registry is only contacted, and credentials only retrieved, if the tag has no recent
+   * resolution. The base image is returned as given if it is {@code scratch} or a digest, or if its
+   * tag cannot be resolved, leaving Jib to pull it by tag.
+   */
+  private ImageReference pinBaseImage() {
+    if (baseImage.isScratch() || baseImage.isTagDigest()) {
+      return baseImage;
+    }
+    Path directory =
+        cacheDirectory == null
+            ? tagCacheDirectory
+            : workingDirectory.resolve(cacheDirectory).resolve("tags");
+    TagCache tagCache = new TagCache(directory, baseImageTimeToLive);
+    try {
+      String digest = tagCache.get(baseImage, offline);
+      if (digest != null) {
+        out.printf(
+            "Using %s as last resolved, %s (%s)\n",
+            baseImage,
+            digest,
+            offline ? "offline" : "set --base-image-ttl 0 to resolve it again");
+      } else if (!offline) {
+        Authorization authorization = authorize(baseImage, false);
+        digest =
+            new ManifestListClient(
+                    baseImage.getRegistry(), baseImage.getRepository(), authorization, insecure)
+                .resolveDigest(baseImage.getTag());
+        tagCache.put(baseImage, digest);
+        verbose("Resolved " + baseImage + " to " + digest);
       }
+      return digest == null
+          ? baseImage
+          : ImageReference.of(baseImage.getRegistry(), baseImage.getRepository(), digest);
+    } catch (IOException | RegistryException | CredentialRetrievalException ex) {
+      verbose("Unable to resolve " + baseImage + ": " + ex);
+      return baseImage;
     }
-    Containerizer containerizer =
-        toDocker
-            ? Containerizer.to(DockerDaemonImage.named(destinationImage))
-            : Containerizer.to(toCredentialedImage(destinationImage));
-    containerizer.setAllowInsecureRegistries(insecure);
-    containerizer.setToolName("cram");
-    containerizer.addEventHandler(LogEvent.class, e -> System.out.println(e));
+  }
 
-    ExecutorService executor = Executors.newCachedThreadPool();
+  /**
+   * Pull the manifest, configuration and layers of {@code base}, held by digest, into Jib's base
+   * image cache, downloading the layers on {@code executor}. Jib then finds the layers in the
+   * cache, so that targets containerized at the same time do not each download them.
+   *
+   * @return true if the image was cached, or false if it could not be, leaving Jib to pull it
+   */
+  private boolean cacheBaseImage(ImageReference base, Executor executor) {
     try {
-      containerizer.setExecutorService(executor);
+      RegistryClient client =
+          newRegistryClientFactory(base)
+              .setAuthorization(authorize(base, false))
+              .newRegistryClient();
+      ManifestTemplate manifest = client.pullManifest(base.getTag());
+      if (!(manifest instanceof BuildableManifestTemplate)) {
+        return false;
+      }
+      BuildableManifestTemplate buildable = (BuildableManifestTemplate) manifest;
+      Cache cache = Cache.withDirectory(baseImageCache);
+      List<CompletableFuture<Void>> pulls = new ArrayList<>();
+      for (BuildableManifestTemplate.ContentDescriptorTemplate layer : buildable.getLayers()) {
+        if (!cache.retrieve(layer.getDigest()).isPresent()) {
+          pulls.add(
+              CompletableFuture.runAsync(
+                  () -> {
+                    try {
+                      cache.writeCompressedLayer(
+                          client.pullBlob(layer.getDigest(), size -> {}, size -> {}));
+                    } catch (IOException ex) {
+                      throw new CompletionException(ex);
+                    }
+                  },
+                  executor));
+        }
+      }
+      ByteArrayOutputStream configuration = new ByteArrayOutputStream();
+      client
+          .pullBlob(buildable.getContainerConfiguration().getDigest(), size -> {}, size -> {})
+          .writeTo(configuration);
+      for (CompletableFuture<Void> pull : pulls) {
+        awaitResult(pull);
+      }
+      // written last, as Jib takes the metadata to mean the image is cached
+      cache.writeMetadata(
+          base,
+          buildable,
+          JsonTemplateMapper.readJson(
+              configuration.toString(StandardCharsets.UTF_8.name()),
+              ContainerConfigurationTemplate.class));
+      verbose(String.format("Pulled %s for %d targets", base, buildable.getLayers().size()));
+      return true;
+    } catch (Exception ex) {
+      verbose("Unable to pull " + base + ": " + ex);
+      return false;
+    }
+  }
+
+  /**
+   * Return true if Jib's cache holds the manifest, configuration and layers of {@code base}, so
+   * that it can be built from offline.
+   */
+  private boolean isBaseImageCached(ImageReference base) {
+    try {
+      Cache cache = Cache.withDirectory(baseImageCache);
+      Optional<ManifestAndConfig> metadata = cache.retrieveMetadata(base);
+      if (!metadata.isPresent()
+          || !(metadata.get().getManifest() instanceof BuildableManifestTemplate)) {
+        return false;
+      }
+      BuildableManifestTemplate manifest =
+          (BuildableManifestTemplate) metadata.get().getManifest();
+      for (BuildableManifestTemplate.ContentDescriptorTemplate layer : manifest.getLayers()) {
+        // found by digest, without hashing the layer
+        if (layer.getDigest() == null || !cache.retrieve(layer.getDigest()).isPresent()) {
+          return false;
+        }
+      }
+      return true;
+    } catch (IOException | CacheCorruptedException ex) {
+      verbose("Unable to read the cached " + base + ": " + ex);
+      return false;
+    }
+  }
 
-      JibContainer result = builder.containerize(containerizer);
-      System.out.printf("Containerized to %s (%s)\n", destinationImage, result.getDigest());
+  /** Return the digest of the image the destination holds, or {@code null} if there is none. */
+  private DescriptorDigest getDestinationDigest() throws IOException {
+    if (ociLayoutDirectory != null) {
+      String digest =
+          new OciLayoutWriter(workingDirectory.resolve(ociLayoutDirectory))
+              .getManifestDigest(destinationImage.getTag());
+      try {
+        return digest == null ? null : DescriptorDigest.fromDigest(digest);
+      } catch (DigestException ex) {
+        return null;
+      }
+    }
+    try {
+      return getRegistryDigest(destinationImage);
+    } catch (IOException | RegistryException | CredentialRetrievalException ex) {
+      // including when the tag does not exist yet
+      verbose("Unable to pull " + destinationImage + ": " + ex);
       return null;
-    } finally {
-      executor.shutdown();
+    }
+  }
+
+  /** Pull the manifest of {@code reference} and compute its digest. */
+  private DescriptorDigest getRegistryDigest(ImageReference reference)
+      throws IOException, RegistryException, CredentialRetrievalException {
+    ManifestTemplate manifest =
+        newRegistryClientFactory(reference)
+            .setAuthorization(authorize(reference, false))
+            .newRegistryClient()
+            .pullManifest(reference.getTag());
+    return Digests.computeJsonDigest(manifest);
+  }
+
+  private RegistryClient.Factory newRegistryClientFactory(ImageReference reference) {
+    return RegistryClient.factory(
+            EventHandlers.NONE, reference.getRegistry(), reference.getRepository())
+        .setAllowInsecureRegistries(insecure);
+  }
+
+  /**
+   * Authorize pulling from, or pushing to, the repository of {@code reference} with its
+   * credentials, as Jib does.
+   *
+   * @return the authorization, or {@code null} if the registry requires none and there are no
+   *     credentials
+   */
+  private Authorization authorize(ImageReference reference, boolean push)
+      throws IOException, RegistryException, CredentialRetrievalException {
+    Credential credential = toCredentialRetriever(reference).retrieve().orElse(null);
+    RegistryAuthenticator authenticator =
+        newRegistryClientFactory(reference).newRegistryClient().getRegistryAuthenticator();
+    if (authenticator != null) {
+      return push
+          ? authenticator.authenticatePush(credential)
+          : authenticator.authenticatePull(credential);
+    } else if (credential != null) {
+      return Authorization.fromBasicCredentials(credential.getUsername(), credential.getPassword());
+    }
+    return null;
+  }
+
+  /**
+   * Rebuild whenever the sources of the layers change, until interrupted. Only the layers whose
+   * sources changed are resolved again; Jib reuses the compressed form of the others.
+   */
+  private void watch(BuildExecutor executor) throws Exception {
+    List<List<Path>> sources = new ArrayList<>();
+    List<List<PathFilter>> filters = new ArrayList<>();
+    for (String layerDefinition : layerDefinitions) {
+      sources.add(LayerDefinitionParser.getSourcePaths(workingDirectory, layerDefinition));
+      filters.add(LayerDefinitionParser.getSourceFilters(layerDefinition));
+    }
+    try (LayerWatcher watcher = new LayerWatcher(sources, filters)) {
+      while (true) {
+        out.println("Watching for changes...");
+        Set<Integer> changed;
+        do {
+          changed = watcher.awaitChanges(Duration.ofMillis(watchDelay));
+        } while (changed.isEmpty());
+        for (int index : changed) {
+          verbose("Changed: " + layerDefinitions.get(index));
+        }
+        long start = System.nanoTime();
+        try {
+          build(executor, changed);
+          verbose(String.format("Rebuilt in %d ms", (System.nanoTime() - start) / 1_000_000));
+        } catch (InterruptedException ex) {
+          throw ex;
+        } catch (Exception ex) {
+          // keep watching so that the next change can fix the build
+          out.println("Build failed: " + ex.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Start converting the layer definitions on {@code executor}, so that the file trees are walked
+   * concurrently with each other and with credential retrieval.
+   */
+  @VisibleForTesting
+  List<CompletableFuture<List<LayerConfiguration>>> resolveLayers(Executor executor) {
+    return resolveLayers(executor, null, new FileAttributesCache());
+  }
+
+  /**
+   * Start converting the layer definitions on {@code executor}, reusing the layers of the previous
+   * call for those not in {@code changedDefinitions}, unless it is {@code null}. The attributes
+   * read are recorded in {@code attributesCache}.
+   */
+  private List<CompletableFuture<List<LayerConfiguration>>> resolveLayers(
+      Executor executor, Set<Integer> changedDefinitions, FileAttributesCache attributesCache) {
+    List<CompletableFuture<List<LayerConfiguration>>> pendingLayers = new ArrayList<>();
+    List<LayerDefinitionParser> parsers = new ArrayList<>();
+    // changes to auto-split layers and exploded jars are kept alongside the layer cache
+    Path historyDirectory =
+        cacheDirectory == null ? null : workingDirectory.resolve(cacheDirectory);
+    if (layerDefinitions != null) {
+      for (int i = 0; i < layerDefinitions.size(); i++) {
+        // a definition that failed is resolved again, as the failure may have been transient
+        if (changedDefinitions != null
+            && !changedDefinitions.contains(i)
+            && !resolvedLayers.get(i).isCompletedExceptionally()) {
+          pendingLayers.add(resolvedLayers.get(i));
+          parsers.add(layerParsers.get(i));
+          continue;
+        }
+        String layerDefinition = layerDefinitions.get(i);
+        // a parser per definition so that its exploded applications can be reused with it
+        LayerDefinitionParser parser =
+            new LayerDefinitionParser(workingDirectory, historyDirectory);
+        parsers.add(parser);
+        pendingLayers.add(
+            CompletableFuture.supplyAsync(
+                () -> {
+                  try {
+                    return parser.convertAll(layerDefinition, attributesCache);
+                  } catch (CommandLine.TypeConversionException | IllegalArgumentException ex) {
+                    throw new CommandLine.ParameterException(
+                        commandSpec.commandLine(),
+                        "Invalid layer definition '" + layerDefinition + "': " + ex.getMessage());
+                  } catch (Exception ex) {
+                    throw new CompletionException(ex);
+                  }
+                },
+                executor));
+      }
+    }
+    resolvedLayers = pendingLayers;
+    layerParsers = parsers;
+    return pendingLayers;
+  }
+
+  /** Wait for the layers started by {@link #resolveLayers}, rethrowing the first failure. */
+  @VisibleForTesting
+  static List<LayerConfiguration> awaitLayers(
+      List<CompletableFuture<List<LayerConfiguration>>> pendingLayers) throws IOException {
+    List<LayerConfiguration> layers = new ArrayList<>();
+    for (CompletableFuture<List<LayerConfiguration>> pendingLayer : pendingLayers) {
+      try {
+        layers.addAll(pendingLayer.join());
+      } catch (CompletionException ex) {
+        Throwables.throwIfUnchecked(ex.getCause());
+        Throwables.throwIfInstanceOf(ex.getCause(), IOException.class);
+        throw ex;
+      }
+    }
+    return layers;
+  }
+
+  /**
+   * Retrieve the credentials for the base and destination registries in the background; the
+   * results are held by the {@link CredentialCache} for when Jib asks for them. Failures are
+   * ignored here as the retrieval is repeated when the image is pulled or pushed.
+   */
+  private void prefetchCredentials(Executor executor) {
+    List<ImageReference> references = new ArrayList<>();
+    if (!baseImage.isScratch()) {
+      references.add(baseImage);
+    }
+    if (toRegistry) {
+      references.add(destinationImage);
+    }
+    for (ImageReference reference : references) {
+      CredentialRetriever retriever = toCredentialRetriever(reference);
+      executor.execute(
+          () -> {
+            try {
+              retriever.retrieve();
+            } catch (CredentialRetrievalException | RuntimeException ex) {
+              verbose("Unable to retrieve credentials for " + reference.getRegistry() + ": " + ex);
+            }
+          });
     }
   }
 
   /** Create a {@link RegistryImage} with credential retrievers. */
   private RegistryImage toCredentialedImage(ImageReference reference) {
-    RegistryImage registryImage = RegistryImage.named(reference);
+    return RegistryImage.named(reference).addCredentialRetriever(toCredentialRetriever(reference));
+  }
 
+  /** Create a cached credential retriever for the registry of {@code reference}. */
+  private CredentialRetriever toCredentialRetriever(ImageReference reference) {
+    List<CredentialRetriever> retrievers = new ArrayList<>();
     // first add any explicitly specified credential helpers
     CredentialRetrieverFactory factory = CredentialRetrieverFactory.forImage(reference);
     for (String credentialHelper : credentialHelpers) {
-      Path path = Paths.get(credentialHelper);
+      Path path = workingDirectory.resolve(credentialHelper);
       if (Files.exists(path)) {
-        registryImage.addCredentialRetriever(factory.dockerCredentialHelper(path));
+        retrievers.add(factory.dockerCredentialHelper(path));
       } else {
-        registryImage.addCredentialRetriever(factory.dockerCredentialHelper(credentialHelper));
+        retrievers.add(factory.dockerCredentialHelper(credentialHelper));
       }
     }
     // then add any other known helpers
-    registryImage.addCredentialRetriever(factory.dockerConfig());
-    registryImage.addCredentialRetriever(factory.inferCredentialHelper());
+    retrievers.add(factory.dockerConfig());
+    retrievers.add(factory.inferCredentialHelper());
 
-    return registryImage;
+    String key = reference.getRegistry() + credentialHelpers;
+    return credentialCache.forRegistry(key, retrievers);
+  }
+
+  private static void deleteRecursively(Path path) throws IOException {
+    List<Path> paths;
+    try (Stream<Path> files = Files.walk(path)) {
+      paths = files.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+    }
+    for (Path file : paths) {
+      Files.deleteIfExists(file);
+    }
   }
 
   private void verbose(String message) {
     if (verbose) {
-      System.out.println(message);
+      out.println(message);
     }
   }
 }
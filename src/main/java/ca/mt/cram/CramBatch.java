@@ -0,0 +1,179 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.common.annotations.VisibleForTesting;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+import picocli.CommandLine.Spec;
+
+/**
+ * Builds many images in one JVM from a manifest. The builds share a single executor and a
+ * credential cache, so credential helpers are run once per registry rather than once per build.
+ * The manifest is a JSON or YAML file of the form:
+ *
+ * <pre>
+ * concurrency: 4
+ * defaults: [--registry, --insecure]
+ * builds:
+ *   - name: site1
+ *     args: [nginx, localhost:5000/site1, site1/html:/usr/share/nginx/html]
+ * </pre>
+ *
+ * <p>Each build's {@code args} are the usual {@link Cram} command-line arguments, and are appended
+ * to the {@code defaults}.
+ */
+@Command(name = "batch", description = "Builds several images described by a manifest file")
+public class CramBatch implements Callable<Void> {
+
+  /** The manifest of builds. */
+  @VisibleForTesting
+  static class Manifest {
+    public int concurrency;
+    public List<String> defaults = new ArrayList<>();
+    public List<Build> builds = new ArrayList<>();
+  }
+
+  /** A single build in the manifest. */
+  @VisibleForTesting
+  static class Build {
+    public String name;
+    public List<String> args = new ArrayList<>();
+  }
+
+  /** The Picocli command object. */
+  @Spec private CommandSpec commandSpec;
+
+  @Option(
+      names = {"-j", "--concurrency"},
+      paramLabel = "n",
+      description = "number of images to build at once (default: from manifest, or 1)")
+  @VisibleForTesting
+  int concurrency;
+
+  @Option(
+      names = {"--threads"},
+      paramLabel = "n",
+      description =
+          "maximum number of build threads shared by all builds "
+              + "(default: number of processors)")
+  @VisibleForTesting
+  int threads = Runtime.getRuntime().availableProcessors();
+
+  @Option(
+      names = {"--executor"},
+      paramLabel = "platform|virtual",
+      description = "run build steps on platform threads or virtual threads (Java 21+)",
+      converter = Cram.ExecutorKindParser.class)
+  @VisibleForTesting
+  BuildExecutor.Kind executorKind = BuildExecutor.Kind.PLATFORM;
+
+  @Option(
+      names = {"-v", "--verbose"},
+      description = "be verbose")
+  @VisibleForTesting
+  boolean verbose = false;
+
+  @Parameters(index = "0", paramLabel = "manifest", description = "the JSON or YAML manifest")
+  @VisibleForTesting
+  Path manifestFile;
+
+  @Override
+  public Void call() throws Exception {
+    if (threads < 1) {
+      throw new CommandLine.ParameterException(
+          commandSpec.commandLine(), "--threads must be at least 1");
+    }
+    Manifest manifest = readManifest(manifestFile);
+    int buildConcurrency = concurrency > 0 ? concurrency : Math.max(1, manifest.concurrency);
+
+    BuildExecutor executor = BuildExecutor.create(executorKind, threads);
+    CredentialCache credentialCache = new CredentialCache();
+    ExecutorService buildRunner = Executors.newFixedThreadPool(buildConcurrency);
+    try {
+      List<Future<DescriptorDigest>> results = new ArrayList<>();
+      for (Build build : manifest.builds) {
+        List<String> args = new ArrayList<>(manifest.defaults);
+        args.addAll(build.args);
+        results.add(buildRunner.submit(() -> build(args, executor, credentialCache)));
+      }
+
+      int failures = 0;
+      for (int i = 0; i < results.size(); i++) {
+        String name = manifest.builds.get(i).name;
+        if (name == null) {
+          name = "build " + (i + 1);
+        }
+        try {
+          System.out.printf("%s: %s\n", name, results.get(i).get());
+        } catch (ExecutionException ex) {
+          failures++;
+          System.out.printf("%s: FAILED: %s\n", name, ex.getCause());
+        }
+      }
+      if (failures > 0) {
+        throw new IllegalStateException(
+            String.format("%d of %d builds failed", failures, results.size()));
+      }
+      return null;
+    } finally {
+      buildRunner.shutdown();
+      executor.shutdown();
+      if (verbose) {
+        System.out.println("Executor: " + executor.getStatistics());
+      }
+    }
+  }
+
+  /** Run a single build with the shared executor and credentials. */
+  private static DescriptorDigest build(
+      List<String> args, BuildExecutor executor, CredentialCache credentialCache)
+      throws Exception {
+    Cram cram = CommandLine.populateCommand(new Cram(), args.toArray(new String[0]));
+    cram.sharedExecutor = executor;
+    cram.credentialCache = credentialCache;
+    cram.call();
+    return cram.imageDigest;
+  }
+
+  /** Read a manifest, treating {@code .yaml} and {@code .yml} files as YAML and others as JSON. */
+  @VisibleForTesting
+  static Manifest readManifest(Path file) throws IOException {
+    String fileName = file.getFileName().toString().toLowerCase(Locale.ROOT);
+    ObjectMapper mapper =
+        fileName.endsWith(".yaml") || fileName.endsWith(".yml")
+            ? new ObjectMapper(new YAMLFactory())
+            : new ObjectMapper();
+    return mapper.readValue(file.toFile(), Manifest.class);
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+import picocli.CommandLine.Unmatched;
+
+/**
+ * A thin client that forwards its command-line arguments to a running {@link CramDaemon} and
+ * prints the build output. Any argument that is not a client option, and all arguments that follow
+ * it, are forwarded unchanged.
+ */
+@Command(name = "client", description = "Sends a build to a daemon started with 'cram serve'")
+public class CramClient implements Callable<Integer> {
+
+  @Option(
+      names = {"-s", "--socket"},
+      paramLabel = "path",
+      description = "the daemon's Unix domain socket")
+  @VisibleForTesting
+  Path socketPath = UnixSockets.defaultSocketPath();
+
+  @Option(
+      names = {"--timing"},
+      description = "report the time to the first byte of output and the total time")
+  @VisibleForTesting
+  boolean timing = false;
+
+  @Parameters(paramLabel = "args", description = "the arguments for the build")
+  @VisibleForTesting
+  List<String> arguments = new ArrayList<>();
+
+  @Unmatched @VisibleForTesting List<String> unmatched = new ArrayList<>();
+
+  /** When the client started, for {@link #timing}. */
+  private final long start = System.nanoTime();
+
+  /** Run the build on the daemon; return the build's exit code. */
+  @Override
+  public Integer call() {
+    if (!UnixSockets.isSupported()) {
+      System.err.println("cram: client requires Java 16 or later");
+      return 2;
+    }
+    try {
+      return send(start, System.out);
+    } catch (IOException ex) {
+      System.err.printf("cram: unable to reach daemon at %s: %s\n", socketPath, ex);
+      return 2;
+    }
+  }
+
+  /** Return the arguments to forward to the daemon. */
+  @VisibleForTesting
+  List<String> getForwardedArguments() {
+    return arguments.isEmpty() ? unmatched : arguments;
+  }
+
+  /**
+   * Send the forwarded arguments and the working directory to the daemon, copying the build output
+   * to {@code output}.
+   *
+   * @param start the time the client started, from {@link System#nanoTime()}
+   * @return the build's exit code
+   */
+  @VisibleForTesting
+  int send(long start, PrintStream output) throws IOException {
+    List<String> forwarded = getForwardedArguments();
+    try (SocketChannel channel = UnixSockets.connect(socketPath)) {
+      DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+      out.writeUTF(Paths.get("").toAbsolutePath().toString());
+      out.writeInt(forwarded.size());
+      for (String argument : forwarded) {
+        out.writeUTF(argument);
+      }
+      out.flush();
+
+      DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+      long firstByte = 0;
+      while (true) {
+        byte type = in.readByte();
+        if (firstByte == 0) {
+          firstByte = System.nanoTime();
+        }
+        if (type == CramDaemon.EXIT) {
+          int exitCode = in.readInt();
+          if (timing) {
+            long end = System.nanoTime();
+            System.err.printf(
+                "cram: first byte after %d ms, finished after %d ms\n",
+                (firstByte - start) / 1_000_000,
+                (end - start) / 1_000_000);
+          }
+          return exitCode;
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        output.write(bytes);
+        output.flush();
+      }
+    }
+  }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Spec;
+
+/**
+ * A long-running build server that listens on a Unix domain socket for requests from {@link
+ * CramClient}. Each request carries the client's working directory and its command-line arguments,
+ * which are run as a {@link Cram} build; the build output is streamed back followed by an exit
+ * code. The JIT-compiled code, thread pool and retrieved credentials are kept warm between builds.
+ * Layer fingerprints are not: they cover the sizes and modification times of the layers' files,
+ * which each build must read again to trust them, and the {@link LayerCache} already keeps them
+ * on disk between builds.
+ *
+ * <p>The daemon exits once it has been idle for the configured timeout, or after a build when the
+ * heap in use exceeds the configured ceiling, so that the next client starts a fresh daemon.
+ *
+ * <p>Responses are a sequence of frames: {@link #OUTPUT} followed by a length and that many bytes
+ * of output, and finally {@link #EXIT} followed by the exit code.
+ */
+@Command(name = "serve", description = "Runs builds sent by 'cram client' over a Unix socket")
+public class CramDaemon implements Callable<Void> {
+  static final byte OUTPUT = 'O';
+  static final byte EXIT = 'X';
+
+  /** Parses a duration like {@code 90s}, {@code 30m} or {@code 2h}; plain numbers are seconds. */
+  @VisibleForTesting
+  static class DurationParser implements CommandLine.ITypeConverter<Duration> {
+
+    @Override
+    public Duration convert(String value) throws Exception {
+      String lower = value.trim().toLowerCase(Locale.ROOT);
+      if (lower.startsWith("p")) {
+        return Duration.parse(value);
+      }
+      switch (lower.isEmpty() ? ' ' : lower.charAt(lower.length() - 1)) {
+        case 's':
+          return Duration.ofSeconds(Long.parseLong(lower.substring(0, lower.length() - 1)));
+        case 'm':
+          return Duration.ofMinutes(Long.parseLong(lower.substring(0, lower.length() - 1)));
+        case 'h':
+          return Duration.ofHours(Long.parseLong(lower.substring(0, lower.length() - 1)));
+        default:
+          return Duration.ofSeconds(Long.parseLong(lower));
+      }
+    }
+  }
+
+  /** The Picocli command object. */
+  @Spec private CommandSpec commandSpec;
+
+  @Option(
+      names = {"-s", "--socket"},
+      paramLabel = "path",
+      description = "the Unix domain socket to listen on (default: ${DEFAULT-VALUE})")
+  @VisibleForTesting
+  Path socketPath = UnixSockets.defaultSocketPath();
+
+  @Option(
+      names = {"--idle-timeout"},
+      paramLabel = "duration",
+      description = "exit after being idle this long (e.g., 90s, 30m; default: 30m)",
+      converter = DurationParser.class)
+  @VisibleForTesting
+  Duration idleTimeout = Duration.ofMinutes(30);
+
+  @Option(
+      names = {"--max-memory"},
+      paramLabel = "size",
+      description = "exit after a build if the heap in use exceeds this size (e.g., 2g)",
+      converter = Cram.SizeParser.class)
+  @VisibleForTesting
+  long maxMemory;
+
+  @Option(
+      names = {"--credential-ttl"},
+      paramLabel = "duration",
+      description =
+          "retrieve registry credentials again once they are this old (e.g., 5m; default: 10m)",
+      converter = DurationParser.class)
+  @VisibleForTesting
+  Duration credentialTimeToLive = CredentialCache.DEFAULT_TIME_TO_LIVE;
+
+  @Option(
+      names = {"--threads"},
+      paramLabel = "n",
+      description =
+          "maximum number of build threads shared by all builds "
+              + "(default: number of processors)")
+  @VisibleForTesting
+  int threads = Runtime.getRuntime().availableProcessors();
+
+  @Option(
+      names = {"--executor"},
+      paramLabel = "platform|virtual",
+      description = "run build steps on platform threads or virtual threads (Java 21+)",
+      converter = Cram.ExecutorKindParser.class)
+  @VisibleForTesting
+  BuildExecutor.Kind executorKind = BuildExecutor.Kind.PLATFORM;
+
+  @Option(
+      names = {"-v", "--verbose"},
+      description = "be verbose")
+  @VisibleForTesting
+  boolean verbose = false;
+
+  private final AtomicInteger activeRequests = new AtomicInteger();
+  private volatile long lastActivity = System.nanoTime();
+  private BuildExecutor executor;
+  private CredentialCache credentialCache;
+  private ServerSocketChannel server;
+
+  @Override
+  public Void call() throws Exception {
+    if (!UnixSockets.isSupported()) {
+      throw new CommandLine.ParameterException(
+          commandSpec.commandLine(), "serve requires Java 16 or later");
+    }
+    if (Files.exists(socketPath)) {
+      if (isListening(socketPath)) {
+        throw new CommandLine.ParameterException(
+            commandSpec.commandLine(), "a daemon is already listening on " + socketPath);
+      }
+      // stale socket from a daemon that did not exit cleanly
+      Files.delete(socketPath);
+    }
+
+    executor = BuildExecutor.create(executorKind, threads);
+    credentialCache = new CredentialCache(credentialTimeToLive);
+    server = UnixSockets.bind(socketPath);
+    ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+    watchdog.scheduleWithFixedDelay(this::checkIdle, 1, 1, TimeUnit.SECONDS);
+    ExecutorService handlers = Executors.newCachedThreadPool();
+    System.out.println("Listening on " + socketPath);
+    try {
+      while (true) {
+        SocketChannel client;
+        try {
+          client = server.accept();
+        } catch (ClosedChannelException ex) {
+          break;
+        }
+        activeRequests.incrementAndGet();
+        handlers.execute(() -> handle(client));
+      }
+    } finally {
+      watchdog.shutdownNow();
+      handlers.shutdown();
+      handlers.awaitTermination(1, TimeUnit.HOURS);
+      executor.shutdown();
+      Files.deleteIfExists(socketPath);
+      if (verbose) {
+        System.out.println("Executor: " + executor.getStatistics());
+      }
+    }
+    return null;
+  }
+
+  /** Read a request from the client, run it, and stream back the output and exit code. */
+  private void handle(SocketChannel client) {
+    try (SocketChannel channel = client) {
+      DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      Path workingDirectory = Paths.get(in.readUTF());
+      String[] args = new String[in.readInt()];
+      for (int i = 0; i < args.length; i++) {
+        args[i] = in.readUTF();
+      }
+
+      PrintStream output = new PrintStream(new FrameOutputStream(out), true, "UTF-8");
+      int exitCode = build(workingDirectory, args, output);
+      output.flush();
+      synchronized (out) {
+        out.writeByte(EXIT);
+        out.writeInt(exitCode);
+        out.flush();
+      }
+    } catch (IOException ex) {
+      System.err.println("cram: request failed: " + ex);
+    } finally {
+      lastActivity = System.nanoTime();
+      activeRequests.decrementAndGet();
+      checkMemory();
+    }
+  }
+
+  /** Run a build with the daemon's warm executor and credentials; return the exit code. */
+  @VisibleForTesting
+  int build(Path workingDirectory, String[] args, PrintStream output) {
+    Cram cram = new Cram();
+    cram.workingDirectory = workingDirectory;
+    cram.out = output;
+    cram.sharedExecutor = executor;
+    cram.credentialCache = credentialCache;
+    CommandLine commandLine = new CommandLine(cram);
+    try {
+      commandLine.parse(args);
+      cram.call();
+      return 0;
+    } catch (CommandLine.ParameterException ex) {
+      output.println(ex.getMessage());
+      commandLine.usage(output);
+      return 2;
+    } catch (Exception ex) {
+      ex.printStackTrace(output);
+      return 1;
+    }
+  }
+
+  /** Return true if a daemon accepts connections on {@code socketPath}. */
+  private static boolean isListening(Path socketPath) {
+    try {
+      UnixSockets.connect(socketPath).close();
+      return true;
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  private void checkIdle() {
+    long idle = System.nanoTime() - lastActivity;
+    if (activeRequests.get() == 0 && idle > idleTimeout.toNanos()) {
+      System.out.println("Idle for " + idleTimeout + "; exiting");
+      stop();
+    }
+  }
+
+  private void checkMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = runtime.totalMemory() - runtime.freeMemory();
+    if (maxMemory > 0 && used > maxMemory) {
+      System.out.printf("Heap in use (%d MB) exceeds ceiling; exiting\n", used >> 20);
+      stop();
+    }
+  }
+
+  /** Stop accepting requests; requests in progress are completed. */
+  private void stop() {
+    try {
+      server.close();
+    } catch (IOException ex) {
+      System.err.println("cram: " + ex);
+    }
+  }
+
+  /** Writes each chunk of build output as an {@link #OUTPUT} frame. */
+  private static class FrameOutputStream extends OutputStream {
+    private final DataOutputStream out;
+
+    FrameOutputStream(DataOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      synchronized (out) {
+        out.writeByte(OUTPUT);
+        out.writeInt(length);
+        out.write(bytes, offset, length);
+        out.flush();
+      }
+    }
+  }
+}
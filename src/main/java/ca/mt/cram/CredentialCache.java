@@ -0,0 +1,161 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.Credential;
+import com.google.cloud.tools.jib.api.CredentialRetriever;
+import com.google.cloud.tools.jib.registry.credentials.CredentialRetrievalException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the credentials retrieved for each registry so that credential helpers are run at
+ * most once per registry within a time-to-live, rather than once per image and per build. A
+ * registry for which no credentials were found is remembered too. Credentials are only held in
+ * memory; the build daemon keeps them across builds.
+ *
+ * <p>The retrievers for a registry, typically credential helpers that each start a process, are
+ * probed concurrently, and the first to find credentials in priority order wins, so that a lookup
+ * takes as long as the slowest helper consulted rather than the sum of them all.
+ */
+class CredentialCache {
+  static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(10);
+
+  /** Runs the probes; the threads mostly wait on helper processes. */
+  private static final ExecutorService probes =
+      Executors.newCachedThreadPool(
+          runnable -> {
+            Thread thread = new Thread(runnable, "cram-credentials");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** Credentials found (or not) for a registry, and when they expire. */
+  private static class Entry {
+    final Optional<Credential> credential;
+    final long expiryNanos;
+
+    Entry(Optional<Credential> credential, long expiryNanos) {
+      this.credential = credential;
+      this.expiryNanos = expiryNanos;
+    }
+  }
+
+  private final long timeToLiveNanos;
+  private final LongSupplier nanoTime;
+  private final ConcurrentMap<String, Entry> credentials = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+
+  CredentialCache() {
+    this(DEFAULT_TIME_TO_LIVE);
+  }
+
+  CredentialCache(Duration timeToLive) {
+    this(timeToLive, System::nanoTime);
+  }
+
+  @VisibleForTesting
+  CredentialCache(Duration timeToLive, LongSupplier nanoTime) {
+    this.timeToLiveNanos = timeToLive.toNanos();
+    this.nanoTime = nanoTime;
+  }
+
+  /**
+   * Return a retriever that probes {@code retrievers}, in order of priority, the first time it is
+   * used for {@code registry} or once the previous result has expired, and otherwise returns the
+   * previous result. The {@code registry} key should also identify any explicitly configured
+   * credential helpers, as different builds may configure different helpers for the same registry.
+   */
+  CredentialRetriever forRegistry(String registry, List<CredentialRetriever> retrievers) {
+    return () -> {
+      Optional<Credential> cached = lookup(registry);
+      if (cached != null) {
+        return cached;
+      }
+      // serialize retrievals for the same registry so that concurrent builds share one lookup
+      synchronized (registryLock(registry)) {
+        cached = lookup(registry);
+        if (cached == null) {
+          cached = retrieve(retrievers);
+          credentials.put(registry, new Entry(cached, nanoTime.getAsLong() + timeToLiveNanos));
+        }
+        return cached;
+      }
+    };
+  }
+
+  /** Return the unexpired result for {@code registry}, or {@code null} if there is none. */
+  private Optional<Credential> lookup(String registry) {
+    Entry entry = credentials.get(registry);
+    if (entry == null || nanoTime.getAsLong() - entry.expiryNanos >= 0) {
+      return null;
+    }
+    return entry.credential;
+  }
+
+  /**
+   * Probe all of the retrievers at once, and return the result of the first in order to find
+   * credentials. As with probing them in turn, a failure is reported only if every retriever
+   * before the failed one found nothing. Probes that are no longer needed are left to finish.
+   */
+  private static Optional<Credential> retrieve(List<CredentialRetriever> retrievers)
+      throws CredentialRetrievalException {
+    List<FutureTask<Optional<Credential>>> tasks = new ArrayList<>();
+    for (CredentialRetriever retriever : retrievers) {
+      FutureTask<Optional<Credential>> task = new FutureTask<>(retriever::retrieve);
+      tasks.add(task);
+      // the first is probed on this thread
+      if (tasks.size() > 1) {
+        probes.execute(task);
+      }
+    }
+    for (FutureTask<Optional<Credential>> task : tasks) {
+      // probe here if no thread has started it
+      task.run();
+      Optional<Credential> credential;
+      try {
+        credential = task.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new CredentialRetrievalException(ex);
+      } catch (ExecutionException ex) {
+        Throwables.throwIfInstanceOf(ex.getCause(), CredentialRetrievalException.class);
+        Throwables.throwIfUnchecked(ex.getCause());
+        throw new CredentialRetrievalException(ex.getCause());
+      }
+      if (credential.isPresent()) {
+        return credential;
+      }
+    }
+    return Optional.empty();
+  }
+
+  private Object registryLock(String registry) {
+    return locks.computeIfAbsent(registry, key -> new Object());
+  }
+}
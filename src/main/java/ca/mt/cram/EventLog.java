@@ -0,0 +1,360 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.tools.jib.api.JibEvent;
+import com.google.cloud.tools.jib.api.LogEvent;
+import com.google.cloud.tools.jib.event.events.ProgressEvent;
+import com.google.cloud.tools.jib.event.events.TimerEvent;
+import com.google.cloud.tools.jib.event.progress.Allocation;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Writes Jib's build events from a single thread, so that Jib's steps do not wait on a slow
+ * console. Log and timer events are handed over through a {@link RingBuffer}; timer events and
+ * log events below a warning are dropped, and counted, if the writer falls behind, while warnings
+ * and errors wait for room. Progress events, by far the most frequent, are coalesced into
+ * per-allocation counters instead, and sampled by the writer each tick.
+ *
+ * <p>Log events are printed as before. Optionally, a progress line shows the overall progress, the
+ * throughput and an estimate of the time remaining for the layers being pushed or pulled, and every
+ * event is written as a JSON line to an events file, with coalesced progress.
+ */
+class EventLog implements Consumer<JibEvent>, Closeable {
+  private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final int CAPACITY = 4096;
+  private static final int PROGRESS_WIDTH = 30;
+  private static final int MAXIMUM_LAYERS_SHOWN = 3;
+  private static final String[] TRANSFERS = {"pushing blob ", "pulling base image layer "};
+
+  /** The bytes transferred for one allocation of a push or pull. */
+  private static class Transfer {
+    final String blob;
+    final long total;
+    final AtomicLong bytes = new AtomicLong();
+    final long startNanos = System.nanoTime();
+    /** The bytes last written to the events file; used only by the writer. */
+    long reportedBytes;
+
+    Transfer(String blob, long total) {
+      this.blob = blob;
+      this.total = total;
+    }
+  }
+
+  private final PrintStream out;
+  private final boolean showProgress;
+  private final Writer events;
+  private final RingBuffer<JibEvent> buffer = new RingBuffer<>(CAPACITY);
+  private final Map<Allocation, Transfer> transfers = new ConcurrentHashMap<>();
+  private final DoubleAdder progress = new DoubleAdder();
+  private final long startNanos = System.nanoTime();
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Thread writer;
+  private volatile boolean closed;
+  private int progressLineLength;
+  private IOException failure;
+
+  /**
+   * Start writing events.
+   *
+   * @param out where log events, and any progress line, are printed
+   * @param showProgress true to show a progress line
+   * @param eventsFile the file to append events to as JSON lines, or {@code null}
+   */
+  EventLog(PrintStream out, boolean showProgress, Path eventsFile) throws IOException {
+    this.out = out;
+    this.showProgress = showProgress;
+    this.events =
+        eventsFile == null
+            ? null
+            : new BufferedWriter(
+                Files.newBufferedWriter(
+                    eventsFile,
+                    StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND),
+                64 * 1024);
+    writer = new Thread(this::run, "cram-events");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /** Accept an event from any thread, waiting only to hand over a warning or error. */
+  @Override
+  public void accept(JibEvent event) {
+    if (event instanceof ProgressEvent) {
+      ProgressEvent progressEvent = (ProgressEvent) event;
+      Allocation allocation = progressEvent.getAllocation();
+      // the fraction of the root allocation is per unit of this allocation
+      progress.add(allocation.getFractionOfRoot() * progressEvent.getUnits());
+      Transfer transfer = transfers.get(allocation);
+      if (transfer == null) {
+        String blob = blob(allocation.getDescription());
+        if (blob == null) {
+          return;
+        }
+        transfer =
+            transfers.computeIfAbsent(
+                allocation, key -> new Transfer(blob, key.getAllocationUnits()));
+      }
+      transfer.bytes.addAndGet(progressEvent.getUnits());
+    } else if (event instanceof LogEvent && isRetained(((LogEvent) event).getLevel())) {
+      put(event);
+    } else if (event instanceof LogEvent || event instanceof TimerEvent) {
+      buffer.offer(event);
+    }
+  }
+
+  /** Return true for the levels of log events that are never dropped. */
+  private static boolean isRetained(LogEvent.Level level) {
+    return level == LogEvent.Level.ERROR || level == LogEvent.Level.WARN;
+  }
+
+  /** Hand over an event, waiting for the writer to make room for it. */
+  private void put(JibEvent event) {
+    while (!buffer.tryOffer(event)) {
+      if (!writer.isAlive()) {
+        // the writer has stopped, so nothing else is printing
+        out.println(event);
+        return;
+      }
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+  }
+
+  /** Write the remaining events, and stop the writer. */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    if (events != null) {
+      events.close();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void run() {
+    try {
+      boolean finished;
+      do {
+        finished = closed;
+        buffer.drain(this::write);
+        long dropped = buffer.takeDropped();
+        if (dropped > 0) {
+          writeDropped(dropped);
+        }
+        writeProgress(finished);
+        if (events != null) {
+          events.flush();
+        }
+        if (!finished) {
+          LockSupport.parkNanos(TICK_NANOS);
+        }
+      } while (!finished);
+    } catch (IOException ex) {
+      failure = ex;
+    } catch (UncheckedIOException ex) {
+      failure = ex.getCause();
+    }
+  }
+
+  private void write(JibEvent event) {
+    try {
+      if (event instanceof LogEvent) {
+        LogEvent logEvent = (LogEvent) event;
+        print(event.toString());
+        if (events != null) {
+          ObjectNode json = newEvent("log");
+          json.put("level", logEvent.getLevel().toString().toLowerCase(Locale.ROOT));
+          json.put("message", logEvent.getMessage());
+          writeEvent(json);
+        }
+      } else if (event instanceof TimerEvent && events != null) {
+        TimerEvent timerEvent = (TimerEvent) event;
+        ObjectNode json = newEvent("timer");
+        json.put("state", timerEvent.getState().toString().toLowerCase(Locale.ROOT));
+        json.put("description", timerEvent.getDescription());
+        json.put("elapsedMillis", timerEvent.getElapsed().toMillis());
+        writeEvent(json);
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  private void writeDropped(long dropped) throws IOException {
+    print(String.format("(%d build events dropped)", dropped));
+    if (events != null) {
+      ObjectNode json = newEvent("dropped");
+      json.put("count", dropped);
+      writeEvent(json);
+    }
+  }
+
+  /** Write the progress of each transfer that has moved since the last tick. */
+  private void writeProgress(boolean finished) throws IOException {
+    List<Transfer> active = new ArrayList<>();
+    long bytes = 0;
+    for (Transfer transfer : transfers.values()) {
+      long transferred = transfer.bytes.get();
+      bytes += transferred;
+      if (transferred < transfer.total) {
+        active.add(transfer);
+      }
+      if (events != null && transferred != transfer.reportedBytes) {
+        ObjectNode json = newEvent("progress");
+        json.put("blob", transfer.blob);
+        json.put("bytes", transferred);
+        json.put("total", transfer.total);
+        writeEvent(json);
+        transfer.reportedBytes = transferred;
+      }
+    }
+    if (showProgress) {
+      if (finished) {
+        clearProgressLine();
+      } else if (!transfers.isEmpty()) {
+        String line = formatProgress(Math.min(1, progress.sum()), bytes, active);
+        out.print("\r" + pad(line, progressLineLength));
+        out.flush();
+        progressLineLength = line.length();
+      }
+    }
+  }
+
+  /** Format a progress line like {@code [=====>    ] 45% 12.3 MB/s | 1a2b3c4 ETA 0:12}. */
+  private String formatProgress(double fraction, long bytes, List<Transfer> active) {
+    long nanos = Math.max(1, System.nanoTime() - startNanos);
+    int filled = (int) (fraction * PROGRESS_WIDTH);
+    StringBuilder line = new StringBuilder("[");
+    for (int i = 0; i < PROGRESS_WIDTH; i++) {
+      line.append(i < filled ? '=' : i == filled ? '>' : ' ');
+    }
+    line.append("] ").append((int) (fraction * 100)).append("% ");
+    line.append(formatRate(bytes * 1e9 / nanos));
+    for (int i = 0; i < active.size() && i < MAXIMUM_LAYERS_SHOWN; i++) {
+      Transfer transfer = active.get(i);
+      long transferred = transfer.bytes.get();
+      long elapsed = Math.max(1, System.nanoTime() - transfer.startNanos);
+      String hash = transfer.blob.substring(transfer.blob.indexOf(':') + 1);
+      line.append(" | ").append(hash, 0, Math.min(7, hash.length())).append(" ETA ");
+      if (transferred == 0) {
+        line.append("?");
+      } else {
+        long remainingSeconds =
+            (long) ((transfer.total - transferred) * (elapsed / 1e9) / transferred);
+        line.append(String.format("%d:%02d", remainingSeconds / 60, remainingSeconds % 60));
+      }
+    }
+    if (active.size() > MAXIMUM_LAYERS_SHOWN) {
+      line.append(" | +").append(active.size() - MAXIMUM_LAYERS_SHOWN);
+    }
+    return line.toString();
+  }
+
+  private static String formatRate(double bytesPerSecond) {
+    String[] units = {"B/s", "KB/s", "MB/s", "GB/s"};
+    int unit = 0;
+    while (bytesPerSecond >= 1000 && unit < units.length - 1) {
+      bytesPerSecond /= 1000;
+      unit++;
+    }
+    return String.format(Locale.ROOT, "%.1f %s", bytesPerSecond, units[unit]);
+  }
+
+  /** Print a line, keeping any progress line below it. */
+  private void print(String line) {
+    if (progressLineLength > 0) {
+      out.print("\r" + pad(line, progressLineLength) + "\n");
+      progressLineLength = 0;
+    } else {
+      out.println(line);
+    }
+  }
+
+  private void clearProgressLine() {
+    if (progressLineLength > 0) {
+      out.print("\r" + pad("", progressLineLength) + "\r");
+      out.flush();
+      progressLineLength = 0;
+    }
+  }
+
+  private ObjectNode newEvent(String type) {
+    ObjectNode json = mapper.createObjectNode();
+    json.put("timeMillis", (System.nanoTime() - startNanos) / 1_000_000);
+    json.put("type", type);
+    return json;
+  }
+
+  private void writeEvent(ObjectNode json) throws IOException {
+    events.write(mapper.writeValueAsString(json));
+    events.write('\n');
+  }
+
+  /** Return the blob of a push or pull allocation, or {@code null}. */
+  private static String blob(String description) {
+    for (String prefix : TRANSFERS) {
+      if (description.startsWith(prefix)) {
+        return description.substring(prefix.length());
+      }
+    }
+    return null;
+  }
+
+  /** Pad {@code text} with spaces to overwrite a line of {@code length}. */
+  private static String pad(String text, int length) {
+    StringBuilder padded = new StringBuilder(text);
+    while (padded.length() < length) {
+      padded.append(' ');
+    }
+    return padded.toString();
+  }
+}
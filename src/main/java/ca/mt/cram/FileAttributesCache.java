@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches file attributes so that each path is stat'ed at most once per build. Attributes are read
+ * as {@link PosixFileAttributes} where supported, falling back to {@link BasicFileAttributes}
+ * otherwise. The {@link FileTreeScanner} populates the cache as it walks so that the permissions
+ * and timestamp providers never need to go back to the file system.
+ */
+class FileAttributesCache {
+  private final ConcurrentMap<Path, BasicFileAttributes> attributes = new ConcurrentHashMap<>();
+  private final AtomicLong reads = new AtomicLong();
+
+  /** Return the attributes for {@code path}, reading them from the file system on first use. */
+  BasicFileAttributes get(Path path) throws IOException {
+    BasicFileAttributes cached = attributes.get(path);
+    if (cached != null) {
+      return cached;
+    }
+    // racing readers may both stat the file, but the result is the same
+    BasicFileAttributes read = read(path);
+    attributes.put(path, read);
+    return read;
+  }
+
+  /** Return true if {@code path} is a directory; like {@link Files#isDirectory}, false on error. */
+  boolean isDirectory(Path path) {
+    try {
+      return get(path).isDirectory();
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  Instant getLastModifiedTime(Path path) throws IOException {
+    return get(path).lastModifiedTime().toInstant();
+  }
+
+  Set<PosixFilePermission> getPosixFilePermissions(Path path) throws IOException {
+    BasicFileAttributes pathAttributes = get(path);
+    if (pathAttributes instanceof PosixFileAttributes) {
+      return ((PosixFileAttributes) pathAttributes).permissions();
+    }
+    // raises the appropriate UnsupportedOperationException
+    return Files.getPosixFilePermissions(path);
+  }
+
+  /** Return the number of times attributes were read from the file system. */
+  @VisibleForTesting
+  long getReadCount() {
+    return reads.get();
+  }
+
+  private BasicFileAttributes read(Path path) throws IOException {
+    reads.incrementAndGet();
+    try {
+      return Files.readAttributes(path, PosixFileAttributes.class);
+    } catch (UnsupportedOperationException ex) {
+      return Files.readAttributes(path, BasicFileAttributes.class);
+    }
+  }
+}
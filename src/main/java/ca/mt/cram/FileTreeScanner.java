@@ -0,0 +1,219 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.AbsoluteUnixPath;
+import com.google.cloud.tools.jib.api.FilePermissions;
+import com.google.cloud.tools.jib.api.LayerEntry;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Walks a file tree in parallel using a work-stealing {@link ForkJoinPool} to produce {@link
+ * LayerEntry LayerEntries}, equivalent to {@link
+ * com.google.cloud.tools.jib.api.LayerConfiguration.Builder#addEntryRecursive(Path,
+ * AbsoluteUnixPath, BiFunction, BiFunction)}. Each directory is listed by its own task. Entries are
+ * returned in a deterministic pre-order: a directory precedes its children, and children are
+ * ordered by file name. File attributes are read once per path through a {@link
+ * FileAttributesCache}, which the providers may share. A {@link PathFilter} prunes the walk: an
+ * excluded path is dropped as soon as it is listed, so its attributes are never read and an
+ * excluded directory is never listed.
+ */
+class FileTreeScanner {
+  private final int parallelism;
+  private final FileAttributesCache attributesCache;
+
+  /** Create a scanner that uses the common fork/join pool. */
+  FileTreeScanner() {
+    this(0);
+  }
+
+  /**
+   * Create a scanner with at most {@code parallelism} threads.
+   *
+   * @param parallelism the maximum number of threads, or 0 to use the common fork/join pool
+   */
+  FileTreeScanner(int parallelism) {
+    this(parallelism, new FileAttributesCache());
+  }
+
+  /**
+   * Create a scanner with at most {@code parallelism} threads.
+   *
+   * @param parallelism the maximum number of threads, or 0 to use the common fork/join pool
+   * @param attributesCache the cache to populate with file attributes while walking
+   */
+  FileTreeScanner(int parallelism, FileAttributesCache attributesCache) {
+    if (parallelism < 0) {
+      throw new IllegalArgumentException("parallelism must not be negative: " + parallelism);
+    }
+    this.parallelism = parallelism;
+    this.attributesCache = attributesCache;
+  }
+
+  /** Return the list of layer entries for {@code sourceFile} and its descendants. */
+  List<LayerEntry> scan(
+      Path sourceFile,
+      AbsoluteUnixPath pathInContainer,
+      BiFunction<Path, AbsoluteUnixPath, FilePermissions> permissionsProvider,
+      BiFunction<Path, AbsoluteUnixPath, Instant> timestampProvider)
+      throws IOException {
+    return scan(
+        sourceFile, pathInContainer, permissionsProvider, timestampProvider, PathFilter.ALL);
+  }
+
+  /**
+   * Return the list of layer entries for {@code sourceFile} and those of its descendants selected
+   * by {@code filter}. The filter does not apply to {@code sourceFile} itself.
+   */
+  List<LayerEntry> scan(
+      Path sourceFile,
+      AbsoluteUnixPath pathInContainer,
+      BiFunction<Path, AbsoluteUnixPath, FilePermissions> permissionsProvider,
+      BiFunction<Path, AbsoluteUnixPath, Instant> timestampProvider,
+      PathFilter filter)
+      throws IOException {
+    ScanTask root =
+        new ScanTask(
+            sourceFile,
+            pathInContainer,
+            null,
+            !filter.hasIncludes(),
+            permissionsProvider,
+            timestampProvider,
+            filter);
+    ForkJoinPool pool =
+        parallelism == 0 ? ForkJoinPool.commonPool() : new ForkJoinPool(parallelism);
+    try {
+      return pool.invoke(root);
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    } finally {
+      if (pool != ForkJoinPool.commonPool()) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /** Produces the entries for a single file, or for a directory and all of its descendants. */
+  private class ScanTask extends RecursiveTask<List<LayerEntry>> {
+    private static final long serialVersionUID = 1L;
+
+    private final Path sourceFile;
+    private final AbsoluteUnixPath pathInContainer;
+    /** The path relative to the root of the scan, or {@code null} for the root. */
+    private final Path relativePath;
+    /** True if everything below is included, false if only what matches an include. */
+    private final boolean included;
+    private final BiFunction<Path, AbsoluteUnixPath, FilePermissions> permissionsProvider;
+    private final BiFunction<Path, AbsoluteUnixPath, Instant> timestampProvider;
+    private final PathFilter filter;
+
+    ScanTask(
+        Path sourceFile,
+        AbsoluteUnixPath pathInContainer,
+        Path relativePath,
+        boolean included,
+        BiFunction<Path, AbsoluteUnixPath, FilePermissions> permissionsProvider,
+        BiFunction<Path, AbsoluteUnixPath, Instant> timestampProvider,
+        PathFilter filter) {
+      this.sourceFile = sourceFile;
+      this.pathInContainer = pathInContainer;
+      this.relativePath = relativePath;
+      this.included = included;
+      this.permissionsProvider = permissionsProvider;
+      this.timestampProvider = timestampProvider;
+      this.filter = filter;
+    }
+
+    @Override
+    protected List<LayerEntry> compute() {
+      List<LayerEntry> entries = new ArrayList<>();
+      entries.add(toEntry(sourceFile, pathInContainer));
+      if (!attributesCache.isDirectory(sourceFile)) {
+        return entries;
+      }
+
+      List<Path> children;
+      try (Stream<Path> files = Files.list(sourceFile)) {
+        children = files.sorted().collect(Collectors.toList());
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+
+      // fork subdirectories so that idle workers can steal them; plain files are cheap
+      // enough to handle inline
+      List<Object> results = new ArrayList<>(children.size());
+      for (Path child : children) {
+        Path childRelative =
+            relativePath == null ? child.getFileName() : relativePath.resolve(child.getFileName());
+        // test the name before reading attributes so that excluded paths cost nothing
+        if (filter.isExcluded(childRelative)) {
+          continue;
+        }
+        boolean childIncluded = included || filter.isIncluded(childRelative);
+        AbsoluteUnixPath childInContainer = pathInContainer.resolve(child.getFileName());
+        if (attributesCache.isDirectory(child)) {
+          ScanTask task =
+              new ScanTask(
+                  child,
+                  childInContainer,
+                  childRelative,
+                  childIncluded,
+                  permissionsProvider,
+                  timestampProvider,
+                  filter);
+          task.fork();
+          results.add(task);
+        } else if (childIncluded) {
+          results.add(toEntry(child, childInContainer));
+        }
+      }
+      for (Object result : results) {
+        if (result instanceof ScanTask) {
+          entries.addAll(((ScanTask) result).join());
+        } else {
+          entries.add((LayerEntry) result);
+        }
+      }
+      if (!included && relativePath != null && entries.size() == 1) {
+        // nothing below this directory was included
+        return Collections.emptyList();
+      }
+      return entries;
+    }
+
+    private LayerEntry toEntry(Path file, AbsoluteUnixPath inContainer) {
+      return new LayerEntry(
+          file,
+          inContainer,
+          permissionsProvider.apply(file, inContainer),
+          timestampProvider.apply(file, inContainer));
+    }
+  }
+}
@@ -18,7 +18,6 @@ package ca.mt.cram;
 
 import com.google.cloud.tools.jib.api.AbsoluteUnixPath;
 import com.google.cloud.tools.jib.api.FilePermissions;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.function.BiFunction;
 
@@ -26,15 +25,24 @@ class FixedPermissionsProvider
     implements BiFunction<Path, AbsoluteUnixPath, FilePermissions> {
   private final FilePermissions filesPermission;
   private final FilePermissions directoriesPermission;
+  private final FileAttributesCache attributesCache;
 
   FixedPermissionsProvider(
       FilePermissions filesPermission, FilePermissions directoriesPermission) {
+    this(filesPermission, directoriesPermission, new FileAttributesCache());
+  }
+
+  FixedPermissionsProvider(
+      FilePermissions filesPermission,
+      FilePermissions directoriesPermission,
+      FileAttributesCache attributesCache) {
     this.filesPermission = filesPermission;
     this.directoriesPermission = directoriesPermission;
+    this.attributesCache = attributesCache;
   }
 
   @Override
   public FilePermissions apply(Path local, AbsoluteUnixPath inContainer) {
-    return Files.isDirectory(local) ? directoriesPermission : filesPermission;
+    return attributesCache.isDirectory(local) ? directoriesPermission : filesPermission;
   }
 }
\ No newline at end of file
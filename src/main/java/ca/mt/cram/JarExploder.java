@@ -0,0 +1,466 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.AbsoluteUnixPath;
+import com.google.cloud.tools.jib.api.FilePermissions;
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.api.LayerEntry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import picocli.CommandLine;
+
+/**
+ * Explodes a Java application into separate layers for its dependencies, snapshot dependencies,
+ * resources and classes, from the least to the most frequently changed, so that a rebuild after a
+ * code change only pushes the small classes layer. The source may be:
+ *
+ * <ul>
+ *   <li>a Spring Boot jar, whose {@code BOOT-INF/lib} jars are the dependencies and whose {@code
+ *       BOOT-INF/classes} are the application;
+ *   <li>a fat jar with its dependencies merged in, such as a {@code jar-with-dependencies}, where
+ *       the classes in the package of the {@code Main-Class} and its subpackages are taken as the
+ *       application and all other classes as dependencies;
+ *   <li>a directory like Maven's {@code target/}, holding the application jar and a {@code lib},
+ *       {@code libs} or {@code dependency} directory of dependency jars.
+ * </ul>
+ *
+ * <p>In the container, the application is laid out as {@code resources/}, {@code classes/}, {@code
+ * dependencies/} (for classes from a fat jar) and {@code libs/} below the destination directory,
+ * and is launched with {@code java -cp} rather than {@code java -jar}; see {@link
+ * Application#getClasspath()}.
+ *
+ * <p>Jar contents are extracted into a staging directory that is specific to the source and is
+ * reused while the source is unchanged. Extracted files keep the modification times recorded in
+ * the jar, so that unchanged content results in unchanged layers.
+ */
+class JarExploder {
+  private static final String[] LIBRARY_DIRECTORIES = {"lib", "libs", "dependency"};
+  /** Jars built alongside the application jar that are not part of the application. */
+  private static final String ATTACHED_JAR_PATTERN = ".*-(sources|javadoc|tests)\\.jar";
+
+  /** The layers of an exploded application and how to launch it. */
+  static class Application {
+    private final List<LayerConfiguration> layers;
+    private final String mainClass;
+    private final List<String> classpath;
+
+    Application(List<LayerConfiguration> layers, String mainClass, List<String> classpath) {
+      this.layers = layers;
+      this.mainClass = mainClass;
+      this.classpath = classpath;
+    }
+
+    List<LayerConfiguration> getLayers() {
+      return layers;
+    }
+
+    /** Return the application's main class, or {@code null} if the jar does not name one. */
+    String getMainClass() {
+      return mainClass;
+    }
+
+    /** Return the classpath elements in the container. */
+    List<String> getClasspath() {
+      return classpath;
+    }
+
+    /**
+     * Rewrite a {@code java -jar app.jar} entrypoint to launch the exploded application instead,
+     * keeping any JVM options and program arguments. If there is no entrypoint, one is created.
+     * Other entrypoints are returned unchanged.
+     */
+    List<String> rewriteEntrypoint(List<String> entrypoint) {
+      String joinedClasspath = String.join(":", classpath);
+      if (entrypoint == null || entrypoint.isEmpty()) {
+        return mainClass == null
+            ? entrypoint
+            : Arrays.asList("java", "-cp", joinedClasspath, mainClass);
+      }
+      int jar = entrypoint.indexOf("-jar");
+      if (jar < 0 || jar + 1 >= entrypoint.size() || mainClass == null) {
+        return entrypoint;
+      }
+      List<String> rewritten = new ArrayList<>(entrypoint.subList(0, jar));
+      rewritten.add("-cp");
+      rewritten.add(joinedClasspath);
+      rewritten.add(mainClass);
+      rewritten.addAll(entrypoint.subList(jar + 2, entrypoint.size()));
+      return rewritten;
+    }
+  }
+
+  /** The kinds of content, in layer order. */
+  private enum Kind {
+    DEPENDENCIES("dependencies"),
+    SNAPSHOT_DEPENDENCIES("snapshot-dependencies"),
+    RESOURCES("resources"),
+    CLASSES("classes");
+
+    final String layerSuffix;
+
+    Kind(String layerSuffix) {
+      this.layerSuffix = layerSuffix;
+    }
+  }
+
+  /** The monitors of the staging directories, since file locks are held per process. */
+  private static final ConcurrentMap<Path, Object> STAGING_LOCKS = new ConcurrentHashMap<>();
+
+  private static Path temporaryStagingRoot;
+
+  private final Path stagingRoot;
+  private final BiFunction<Path, AbsoluteUnixPath, FilePermissions> permissionsProvider;
+  private final BiFunction<Path, AbsoluteUnixPath, Instant> timestampProvider;
+  private final FileAttributesCache attributesCache;
+
+  /**
+   * Create an exploder.
+   *
+   * @param stagingRoot the directory in which to extract jars
+   */
+  JarExploder(
+      Path stagingRoot,
+      BiFunction<Path, AbsoluteUnixPath, FilePermissions> permissionsProvider,
+      BiFunction<Path, AbsoluteUnixPath, Instant> timestampProvider,
+      FileAttributesCache attributesCache) {
+    this.stagingRoot = stagingRoot;
+    this.permissionsProvider = permissionsProvider;
+    this.timestampProvider = timestampProvider;
+    this.attributesCache = attributesCache;
+  }
+
+  /**
+   * Return a staging root for when there is no layer cache: a directory that only the current
+   * user can access, created for this process and deleted when it exits.
+   */
+  static synchronized Path getTemporaryStagingRoot() throws IOException {
+    if (temporaryStagingRoot == null) {
+      Path directory = Files.createTempDirectory("cram-exploded");
+      Runtime.getRuntime()
+          .addShutdownHook(
+              new Thread(
+                  () -> {
+                    try {
+                      deleteRecursively(directory);
+                    } catch (IOException ex) {
+                      // left for the system to clean up
+                    }
+                  },
+                  "cram-exploded-cleanup"));
+      temporaryStagingRoot = directory;
+    }
+    return temporaryStagingRoot;
+  }
+
+  /**
+   * Explode the application at {@code source} into layers named after {@code name}.
+   *
+   * @param source a jar, or a directory holding a jar and its dependencies
+   * @param destination the application directory in the container
+   * @param name the prefix for the layer names
+   */
+  Application explode(Path source, AbsoluteUnixPath destination, String name) throws IOException {
+    String prefix = name.isEmpty() ? "app" : name;
+    Path jar = source;
+    List<Path> libraries = new ArrayList<>();
+    if (Files.isDirectory(source)) {
+      jar = findApplicationJar(source);
+      libraries = findLibraries(source);
+    } else if (!Files.isRegularFile(source)) {
+      throw new CommandLine.TypeConversionException("no such jar: " + source);
+    }
+
+    // a jar next to its dependencies holds only the application
+    Path staging = stage(jar, !libraries.isEmpty());
+    String mainClass = readMainClass(staging);
+    List<List<LayerEntry>> entries = new ArrayList<>();
+    for (int i = 0; i < Kind.values().length; i++) {
+      entries.add(new ArrayList<>());
+    }
+    for (Kind kind : Kind.values()) {
+      Path directory = staging.resolve(kind.name());
+      if (Files.isDirectory(directory)) {
+        addTree(entries.get(kind.ordinal()), directory, destination, kind);
+      }
+    }
+    for (Path library : libraries) {
+      Kind kind = isSnapshot(library) ? Kind.SNAPSHOT_DEPENDENCIES : Kind.DEPENDENCIES;
+      AbsoluteUnixPath path =
+          destination.resolve("libs").resolve(library.getFileName().toString());
+      entries
+          .get(kind.ordinal())
+          .add(
+              new LayerEntry(
+                  library,
+                  path,
+                  permissionsProvider.apply(library, path),
+                  timestampProvider.apply(library, path)));
+    }
+
+    List<LayerConfiguration> layers = new ArrayList<>();
+    for (Kind kind : Kind.values()) {
+      List<LayerEntry> kindEntries = entries.get(kind.ordinal());
+      if (!kindEntries.isEmpty()) {
+        LayerConfiguration.Builder builder =
+            LayerConfiguration.builder().setName(prefix + "-" + kind.layerSuffix);
+        kindEntries.forEach(builder::addEntry);
+        layers.add(builder.build());
+      }
+    }
+
+    List<String> classpath = new ArrayList<>();
+    classpath.add(destination.resolve("resources").toString());
+    classpath.add(destination.resolve("classes").toString());
+    if (Files.isDirectory(staging.resolve(Kind.DEPENDENCIES.name()).resolve("dependencies"))) {
+      classpath.add(destination.resolve("dependencies").toString());
+    }
+    if (!libraries.isEmpty() || hasLibraries(staging)) {
+      classpath.add(destination.resolve("libs").toString() + "/*");
+    }
+    return new Application(layers, mainClass, classpath);
+  }
+
+  /**
+   * Add the entries below {@code directory} in the staging area, whose children are the container
+   * directories ({@code classes}, {@code libs}, ...) to place below {@code destination}.
+   */
+  private void addTree(
+      List<LayerEntry> entries, Path directory, AbsoluteUnixPath destination, Kind kind)
+      throws IOException {
+    FileTreeScanner scanner = new FileTreeScanner(0, attributesCache);
+    try (Stream<Path> children = Files.list(directory)) {
+      for (Path child : children.sorted().collect(Collectors.toList())) {
+        entries.addAll(
+            scanner.scan(
+                child,
+                destination.resolve(child.getFileName().toString()),
+                permissionsProvider,
+                timestampProvider));
+      }
+    }
+  }
+
+  /**
+   * Extract {@code jar} into its staging directory, unless it was already extracted from an
+   * identical jar, and return the staging directory. Extracted content is placed in a
+   * subdirectory per {@link Kind}, within which the layout matches that in the container. The
+   * staging directory is locked while it is checked and extracted, so that concurrent builds of
+   * the same jar do not extract over each other.
+   *
+   * @param thin whether the jar holds only the application, rather than being a fat jar
+   */
+  @VisibleForTesting
+  Path stage(Path jar, boolean thin) throws IOException {
+    String key = jar.toAbsolutePath().toString();
+    String hash = Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString();
+    Path staging = stagingRoot.resolve(hash);
+    Files.createDirectories(stagingRoot);
+    // file locks exclude other processes, and the monitor other threads of this one
+    synchronized (STAGING_LOCKS.computeIfAbsent(staging, unused -> new Object())) {
+      try (FileChannel lockChannel =
+          FileChannel.open(
+              stagingRoot.resolve(hash + ".lock"),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE)) {
+        // closing the channel releases the lock
+        lockChannel.lock();
+        return extract(jar, thin, key, staging);
+      }
+    }
+  }
+
+  private static Path extract(Path jar, boolean thin, String key, Path staging)
+      throws IOException {
+    String stamp =
+        String.join(
+            "\n",
+            key,
+            String.valueOf(Files.size(jar)),
+            String.valueOf(Files.getLastModifiedTime(jar).toMillis()),
+            String.valueOf(thin));
+    Path stampFile = staging.resolve("source");
+    if (Files.exists(stampFile)
+        && stamp.equals(new String(Files.readAllBytes(stampFile), StandardCharsets.UTF_8))) {
+      return staging;
+    }
+
+    if (Files.exists(staging)) {
+      deleteRecursively(staging);
+    }
+    Files.createDirectories(staging);
+    try (JarFile jarFile = new JarFile(jar.toFile())) {
+      Manifest manifest = jarFile.getManifest();
+      Attributes attributes = manifest == null ? new Attributes() : manifest.getMainAttributes();
+      boolean springBoot =
+          attributes.getValue("Start-Class") != null || jarFile.getEntry("BOOT-INF/") != null;
+      String mainClass =
+          springBoot
+              ? attributes.getValue("Start-Class")
+              : attributes.getValue(Attributes.Name.MAIN_CLASS);
+      // in a fat jar, classes outside the main class's package are from dependencies
+      String applicationPackage =
+          mainClass == null || springBoot || thin
+              ? null
+              : mainClass.substring(0, mainClass.lastIndexOf('.') + 1).replace('.', '/');
+
+      for (Enumeration<? extends ZipEntry> zipEntries = jarFile.entries();
+          zipEntries.hasMoreElements(); ) {
+        ZipEntry entry = zipEntries.nextElement();
+        String target = classify(entry.getName(), springBoot, applicationPackage);
+        if (entry.isDirectory() || target == null) {
+          continue;
+        }
+        Path file = staging.resolve(target).normalize();
+        if (!file.startsWith(staging)) {
+          throw new IOException("jar entry outside of jar: " + entry.getName());
+        }
+        Files.createDirectories(file.getParent());
+        try (InputStream in = jarFile.getInputStream(entry)) {
+          Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.setLastModifiedTime(file, FileTime.fromMillis(entry.getTime()));
+      }
+      if (mainClass != null) {
+        Files.write(staging.resolve("main-class"), mainClass.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    // written last: an interrupted extraction is redone
+    Files.write(stampFile, stamp.getBytes(StandardCharsets.UTF_8));
+    return staging;
+  }
+
+  /**
+   * Return where to extract a jar entry, as {@code KIND/container-path}, or {@code null} to skip
+   * the entry.
+   *
+   * @param applicationPackage the package directory of the application's classes in a fat jar,
+   *     or {@code null} if all classes belong to the application
+   */
+  @VisibleForTesting
+  static String classify(String name, boolean springBoot, String applicationPackage) {
+    if (name.equals(JarFile.MANIFEST_NAME)) {
+      return null;
+    }
+    if (springBoot) {
+      if (name.startsWith("BOOT-INF/lib/")) {
+        String jar = name.substring("BOOT-INF/lib/".length());
+        Kind kind = isSnapshot(jar) ? Kind.SNAPSHOT_DEPENDENCIES : Kind.DEPENDENCIES;
+        return kind.name() + "/libs/" + jar;
+      } else if (name.startsWith("BOOT-INF/classes/")) {
+        name = name.substring("BOOT-INF/classes/".length());
+      } else {
+        // the Spring Boot launcher is not needed to run with java -cp
+        return null;
+      }
+    } else if (applicationPackage != null
+        && !name.startsWith(applicationPackage)
+        && name.indexOf('/') >= 0) {
+      return Kind.DEPENDENCIES.name() + "/dependencies/" + name;
+    }
+    Kind kind = name.endsWith(".class") ? Kind.CLASSES : Kind.RESOURCES;
+    return kind.name() + "/" + kind.layerSuffix + "/" + name;
+  }
+
+  private static String readMainClass(Path staging) throws IOException {
+    Path file = staging.resolve("main-class");
+    return Files.exists(file)
+        ? new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim()
+        : null;
+  }
+
+  private static boolean hasLibraries(Path staging) {
+    return Files.isDirectory(staging.resolve(Kind.DEPENDENCIES.name()).resolve("libs"))
+        || Files.isDirectory(staging.resolve(Kind.SNAPSHOT_DEPENDENCIES.name()).resolve("libs"));
+  }
+
+  private static boolean isSnapshot(Path jar) {
+    return isSnapshot(jar.getFileName().toString());
+  }
+
+  private static boolean isSnapshot(String jarName) {
+    return jarName.contains("-SNAPSHOT");
+  }
+
+  /** Find the single application jar in a build output directory. */
+  private static Path findApplicationJar(Path directory) throws IOException {
+    List<Path> jars;
+    try (Stream<Path> children = Files.list(directory)) {
+      jars =
+          children
+              .filter(path -> path.getFileName().toString().endsWith(".jar"))
+              .filter(path -> !path.getFileName().toString().matches(ATTACHED_JAR_PATTERN))
+              .sorted()
+              .collect(Collectors.toList());
+    }
+    if (jars.size() != 1) {
+      throw new CommandLine.TypeConversionException(
+          "expected one application jar in " + directory + " but found " + jars.size());
+    }
+    return jars.get(0);
+  }
+
+  private static List<Path> findLibraries(Path directory) throws IOException {
+    for (String name : LIBRARY_DIRECTORIES) {
+      Path libraries = directory.resolve(name);
+      if (Files.isDirectory(libraries)) {
+        try (Stream<Path> children = Files.list(libraries)) {
+          return children
+              .filter(path -> path.getFileName().toString().endsWith(".jar"))
+              .sorted()
+              .collect(Collectors.toList());
+        }
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  private static void deleteRecursively(Path path) throws IOException {
+    List<Path> paths;
+    try (Stream<Path> files = Files.walk(path)) {
+      paths = files.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+    }
+    for (Path file : paths) {
+      Files.deleteIfExists(file);
+    }
+  }
+}
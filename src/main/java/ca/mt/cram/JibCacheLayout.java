@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.LayerEntry;
+import com.google.cloud.tools.jib.hash.Digests;
+import com.google.cloud.tools.jib.json.JsonTemplate;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The private file layout of Jib's application-layers cache, which Jib 0.10 has no API to write
+ * layers into other than by building them itself. A compressed layer is stored in {@code
+ * layers/<digest>/<diff ID>}, and the digest of the layer built from a set of entries in {@code
+ * selectors/<selector>}. Everything in Cram that depends on this layout is here, and is tested
+ * against the version of Jib that Cram is built with.
+ */
+class JibCacheLayout {
+  private final Path directory;
+
+  JibCacheLayout(Path directory) {
+    this.directory = directory;
+  }
+
+  Path getLayersDirectory() {
+    return directory.resolve("layers");
+  }
+
+  Path getSelectorsDirectory() {
+    return directory.resolve("selectors");
+  }
+
+  /** Return the file selecting the layer built from {@code entries}. */
+  Path getSelectorFile(ImmutableList<LayerEntry> entries) throws IOException {
+    return getSelectorsDirectory().resolve(selector(entries));
+  }
+
+  /** Return the directory of the layer named in a selector file, or null if there is none. */
+  Path readSelectedLayer(Path selectorFile) throws IOException {
+    String layerDigest;
+    try {
+      layerDigest = new String(Files.readAllBytes(selectorFile), StandardCharsets.UTF_8).trim();
+    } catch (NoSuchFileException ex) {
+      return null;
+    }
+    return getLayersDirectory().resolve(layerDigest);
+  }
+
+  /** Create a temporary file on the same file system as the cache, to be moved into it. */
+  Path createTemporaryFile() throws IOException {
+    Path temporaryDirectory = directory.resolve("tmp");
+    Files.createDirectories(temporaryDirectory);
+    return Files.createTempFile(temporaryDirectory, "layer", null);
+  }
+
+  /**
+   * Move the compressed layer in {@code temporaryFile} into place, and select it for {@code
+   * entries}. The temporary file is reused for the selector.
+   *
+   * @param digest the hash of the compressed layer
+   * @param diffId the hash of the uncompressed layer
+   */
+  void writeLayer(
+      ImmutableList<LayerEntry> entries, Path temporaryFile, String digest, String diffId)
+      throws IOException {
+    Path layerDirectory = getLayersDirectory().resolve(digest);
+    Files.createDirectories(layerDirectory);
+    try {
+      Files.move(temporaryFile, layerDirectory.resolve(diffId));
+    } catch (FileAlreadyExistsException ex) {
+      // another build has already written the same layer: the file name is its digest
+    }
+
+    Path selectorFile = getSelectorFile(entries);
+    Files.createDirectories(selectorFile.getParent());
+    Files.write(temporaryFile, digest.getBytes(StandardCharsets.UTF_8));
+    Files.move(temporaryFile, selectorFile, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Compute the selector Jib uses to find a cached layer: the digest of the JSON of its entries'
+   * source paths, source modification times, container paths and permissions, sorted. Jib does not
+   * expose this, so it is computed here as Jib's {@code LayerEntriesSelector} does.
+   */
+  static String selector(ImmutableList<LayerEntry> entries) throws IOException {
+    List<SelectorTemplate> templates = new ArrayList<>();
+    for (LayerEntry entry : entries) {
+      templates.add(new SelectorTemplate(entry));
+    }
+    Collections.sort(templates);
+    return Digests.computeJsonDigest(templates).getHash();
+  }
+
+  /** An entry as Jib's selector describes it; the names and order of the fields are significant. */
+  private static class SelectorTemplate implements JsonTemplate, Comparable<SelectorTemplate> {
+    private final String sourceFile;
+    private final String extractionPath;
+    private final Instant lastModifiedTime;
+    private final String permissions;
+
+    SelectorTemplate(LayerEntry entry) throws IOException {
+      sourceFile = entry.getSourceFile().toAbsolutePath().toString();
+      extractionPath = entry.getExtractionPath().toString();
+      lastModifiedTime = Files.getLastModifiedTime(entry.getSourceFile()).toInstant();
+      permissions = entry.getPermissions().toOctalString();
+    }
+
+    @Override
+    public int compareTo(SelectorTemplate other) {
+      return Comparator.comparing((SelectorTemplate template) -> template.sourceFile)
+          .thenComparing(template -> template.extractionPath)
+          .thenComparing(template -> template.lastModifiedTime)
+          .thenComparing(template -> template.permissions)
+          .compare(this, other);
+    }
+  }
+}
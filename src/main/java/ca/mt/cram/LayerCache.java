@@ -0,0 +1,365 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.api.LayerEntry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A persistent, size-bounded cache of compressed application layers that may be shared by several
+ * Cram processes on one host. The compressed blobs are stored by Jib's own application-layers
+ * cache; Jib looks up a layer by a selector derived from the source paths, source modification
+ * times and permissions. This class adds a fingerprint of each layer definition that also covers
+ * file sizes and the configured entry timestamps, and records the digest of the layer last built
+ * for each fingerprint. Jib's selector is discarded unless it still selects that layer, so that a
+ * blob built from other contents is never reused. Least-recently-used layers are evicted once the
+ * cache exceeds its maximum size.
+ *
+ * <p>Builds hold a shared lock on the cache; eviction requires an exclusive lock and is skipped if
+ * another process is building. A JVM can hold only one lock on a file, so the builds of one JVM
+ * (in batch mode or in the daemon) share a single lock per cache directory: the first build to
+ * open the cache takes it, and the last to close it releases it and evicts.
+ *
+ * <p>Layout: {@code jib/} is Jib's application-layers cache, {@code fingerprints/} maps layer
+ * fingerprints to the digests of the layers built for them, {@code history/} holds the {@link
+ * ChangeHistory} of auto-split layers, {@code tags/} the {@link TagCache} of base image tag
+ * resolutions, and {@code .lock} is the lock file.
+ */
+class LayerCache implements Closeable {
+  /** The lock on each cache directory held by this JVM, by the directory's real path. */
+  private static final Map<Path, SharedLock> LOCKS = new HashMap<>();
+
+  private final Path directory;
+  private final long maximumSize;
+  private final Path lockKey;
+  private boolean closed;
+  private final Map<String, String> fingerprintToSelector = new LinkedHashMap<>();
+  private int hits;
+  private int misses;
+
+  /** A shared lock on a cache directory, and the number of open caches using it. */
+  private static class SharedLock {
+    final FileChannel channel;
+    final FileLock lock;
+    int references;
+
+    SharedLock(FileChannel channel, FileLock lock) {
+      this.channel = channel;
+      this.lock = lock;
+    }
+  }
+
+  /**
+   * Open the cache in {@code directory}, creating it if necessary, and take a shared lock unless
+   * this JVM already holds one.
+   *
+   * @param directory the cache directory
+   * @param maximumSize the maximum size of the cached layers in bytes, or 0 for no limit
+   */
+  static LayerCache open(Path directory, long maximumSize) throws IOException {
+    Files.createDirectories(directory.resolve("fingerprints"));
+    Files.createDirectories(directory.resolve("jib"));
+    Path lockKey = directory.toRealPath();
+    synchronized (LOCKS) {
+      SharedLock sharedLock = LOCKS.get(lockKey);
+      if (sharedLock == null) {
+        FileChannel channel =
+            FileChannel.open(
+                directory.resolve(".lock"),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+          sharedLock = new SharedLock(channel, channel.lock(0, Long.MAX_VALUE, true));
+        } catch (IOException | RuntimeException ex) {
+          channel.close();
+          throw ex;
+        }
+        LOCKS.put(lockKey, sharedLock);
+      }
+      sharedLock.references++;
+    }
+    return new LayerCache(directory, maximumSize, lockKey);
+  }
+
+  private LayerCache(Path directory, long maximumSize, Path lockKey) {
+    this.directory = directory;
+    this.maximumSize = maximumSize;
+    this.lockKey = lockKey;
+  }
+
+  /** Return the directory to be used as Jib's application-layers cache. */
+  Path getApplicationLayersDirectory() {
+    return directory.resolve("jib");
+  }
+
+  private JibCacheLayout getJibCacheLayout() {
+    return new JibCacheLayout(getApplicationLayersDirectory());
+  }
+
+  /** Prepare layers compressed with Jib's default compression. */
+  void prepare(List<LayerConfiguration> layers) throws IOException {
+    prepare(layers, null, new FileAttributesCache());
+  }
+
+  /**
+   * Fingerprint each layer, counting hits and misses, and discard any Jib selector that does not
+   * select the layer last built for the fingerprint: its layer was built from a different layer
+   * definition, from other contents, or with a different compression.
+   *
+   * @param compression a description of how layers are compressed, or {@code null} for Jib's
+   *     default compression
+   * @param attributesCache the build's file attributes, read when the layers were scanned
+   */
+  void prepare(
+      List<LayerConfiguration> layers, String compression, FileAttributesCache attributesCache)
+      throws IOException {
+    for (LayerConfiguration layer : layers) {
+      String fingerprint = fingerprint(layer, attributesCache);
+      if (compression != null) {
+        fingerprint =
+            Hashing.sha256()
+                .hashString(fingerprint + "\n" + compression, StandardCharsets.UTF_8)
+                .toString();
+      }
+      Path selectorFile = getJibCacheLayout().getSelectorFile(layer.getLayerEntries());
+      fingerprintToSelector.put(fingerprint, selectorFile.getFileName().toString());
+
+      Path layerDirectory = getJibCacheLayout().readSelectedLayer(selectorFile);
+      String layerDigest = readString(fingerprintFile(fingerprint));
+      if (layerDirectory != null
+          && layerDirectory.getFileName().toString().equals(layerDigest)
+          && Files.isDirectory(layerDirectory)) {
+        hits++;
+      } else {
+        misses++;
+        Files.deleteIfExists(selectorFile);
+      }
+    }
+  }
+
+  /** Record that the prepared layers were built or used, for use in eviction. */
+  void recordUse() throws IOException {
+    FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+    for (Map.Entry<String, String> pair : fingerprintToSelector.entrySet()) {
+      Path selectorFile = getJibCacheLayout().getSelectorsDirectory().resolve(pair.getValue());
+      Path layerDirectory = getJibCacheLayout().readSelectedLayer(selectorFile);
+      if (layerDirectory == null || !Files.isDirectory(layerDirectory)) {
+        continue;
+      }
+      Files.setLastModifiedTime(layerDirectory, now);
+      Files.write(
+          fingerprintFile(pair.getKey()),
+          layerDirectory.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /** Return the Jib selectors of the prepared layers. */
+  @VisibleForTesting
+  Collection<String> getSelectors() {
+    return fingerprintToSelector.values();
+  }
+
+  int getHits() {
+    return hits;
+  }
+
+  int getMisses() {
+    return misses;
+  }
+
+  /**
+   * Release this build's use of the shared lock. The last build of this JVM to close the cache
+   * releases the lock, and evicts layers if the cache is over its maximum size and no other
+   * process holds a lock.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (LOCKS) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      SharedLock sharedLock = LOCKS.get(lockKey);
+      if (--sharedLock.references > 0) {
+        return;
+      }
+      // other builds of this JVM wait to open the cache until it has been evicted
+      LOCKS.remove(lockKey);
+      try {
+        sharedLock.lock.release();
+        if (maximumSize > 0) {
+          FileLock exclusive = sharedLock.channel.tryLock(0, Long.MAX_VALUE, false);
+          if (exclusive != null) {
+            try {
+              evict();
+            } finally {
+              exclusive.release();
+            }
+          }
+        }
+      } finally {
+        sharedLock.channel.close();
+      }
+    }
+  }
+
+  /** Remove least-recently-used layers until the cache fits within its maximum size. */
+  @VisibleForTesting
+  void evict() throws IOException {
+    Path layersDirectory = getJibCacheLayout().getLayersDirectory();
+    if (!Files.isDirectory(layersDirectory)) {
+      return;
+    }
+    List<Path> layerDirectories = new ArrayList<>();
+    try (Stream<Path> children = Files.list(layersDirectory)) {
+      children.filter(Files::isDirectory).forEach(layerDirectories::add);
+    }
+    Map<Path, Long> sizes = new LinkedHashMap<>();
+    long total = 0;
+    for (Path layerDirectory : layerDirectories) {
+      long size = sizeOf(layerDirectory);
+      sizes.put(layerDirectory, size);
+      total += size;
+    }
+    if (total <= maximumSize) {
+      return;
+    }
+    layerDirectories.sort(Comparator.comparing(LayerCache::lastModified));
+    for (Path layerDirectory : layerDirectories) {
+      if (total <= maximumSize) {
+        break;
+      }
+      deleteRecursively(layerDirectory);
+      total -= sizes.get(layerDirectory);
+    }
+    removeDanglingReferences();
+  }
+
+  /** Remove selectors and fingerprints that refer to evicted layers. */
+  private void removeDanglingReferences() throws IOException {
+    Path selectors = getJibCacheLayout().getSelectorsDirectory();
+    if (Files.isDirectory(selectors)) {
+      try (Stream<Path> children = Files.list(selectors)) {
+        for (Path selectorFile : (Iterable<Path>) children::iterator) {
+          Path layerDirectory = getJibCacheLayout().readSelectedLayer(selectorFile);
+          if (layerDirectory == null || !Files.isDirectory(layerDirectory)) {
+            Files.deleteIfExists(selectorFile);
+          }
+        }
+      }
+    }
+    try (Stream<Path> children = Files.list(directory.resolve("fingerprints"))) {
+      for (Path fingerprintFile : (Iterable<Path>) children::iterator) {
+        String layerDigest = readString(fingerprintFile);
+        if (layerDigest == null
+            || !Files.isDirectory(getJibCacheLayout().getLayersDirectory().resolve(layerDigest))) {
+          Files.deleteIfExists(fingerprintFile);
+        }
+      }
+    }
+  }
+
+  private Path fingerprintFile(String fingerprint) {
+    return directory.resolve("fingerprints").resolve(fingerprint);
+  }
+
+  private static String readString(Path file) throws IOException {
+    try {
+      return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+    } catch (NoSuchFileException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Compute a fingerprint of a layer definition from its name and, for each entry, the source
+   * path, size and modification time, and the path, permissions and timestamp in the container.
+   * File contents are not read.
+   */
+  static String fingerprint(LayerConfiguration layer) throws IOException {
+    return fingerprint(layer, new FileAttributesCache());
+  }
+
+  /** Compute the fingerprint of a layer definition from the attributes in a build's cache. */
+  static String fingerprint(LayerConfiguration layer, FileAttributesCache attributesCache)
+      throws IOException {
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putString(layer.getName(), StandardCharsets.UTF_8);
+    for (LayerEntry entry : layer.getLayerEntries()) {
+      hasher.putString(entry.getSourceFile().toAbsolutePath().toString(), StandardCharsets.UTF_8);
+      hasher.putString(entry.getExtractionPath().toString(), StandardCharsets.UTF_8);
+      hasher.putString(entry.getPermissions().toOctalString(), StandardCharsets.UTF_8);
+      hasher.putLong(entry.getLastModifiedTime().toEpochMilli());
+      try {
+        BasicFileAttributes attributes = attributesCache.get(entry.getSourceFile());
+        hasher.putLong(attributes.size());
+        hasher.putLong(attributes.lastModifiedTime().toMillis());
+      } catch (NoSuchFileException ex) {
+        hasher.putLong(-1L);
+      }
+    }
+    return hasher.hash().toString();
+  }
+
+  private static FileTime lastModified(Path path) {
+    try {
+      return Files.getLastModifiedTime(path);
+    } catch (IOException ex) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  private static long sizeOf(Path path) throws IOException {
+    try (Stream<Path> files = Files.walk(path)) {
+      return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+    }
+  }
+
+  private static void deleteRecursively(Path path) throws IOException {
+    List<Path> paths = new ArrayList<>();
+    try (Stream<Path> files = Files.walk(path)) {
+      files.forEach(paths::add);
+    }
+    paths.sort(Comparator.reverseOrder());
+    for (Path file : paths) {
+      Files.deleteIfExists(file);
+    }
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.api.LayerEntry;
+import com.google.cloud.tools.jib.blob.Blob;
+import com.google.cloud.tools.jib.blob.BlobDescriptor;
+import com.google.cloud.tools.jib.cache.Cache;
+import com.google.cloud.tools.jib.cache.CacheCorruptedException;
+import com.google.cloud.tools.jib.image.ReproducibleLayerBuilder;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses application layers into Jib's application-layers cache ahead of containerizing, on
+ * Cram's bounded pool rather than on the threads of Jib's steps, which are not bounded. When an
+ * image is containerized to several targets at once, each target's build would otherwise also find
+ * the layers missing from the cache and compress them itself. Jib looks layers up by their entries
+ * in the same way, so the targets then only read the compressed layers.
+ *
+ * <p>Jib always compresses at the default level on a single thread. To compress at another level,
+ * or in parallel blocks with a {@link ParallelGzipOutputStream}, layers are written directly into
+ * Jib's cache through its {@link JibCacheLayout}.
+ */
+class LayerCompressor {
+
+  /**
+   * Compress the layers missing from the cache in {@code cacheDirectory} on {@code executor} as
+   * Jib would.
+   *
+   * @return the number of layers compressed
+   */
+  static int compress(Path cacheDirectory, List<LayerConfiguration> layers, Executor executor)
+      throws IOException {
+    return compress(cacheDirectory, layers, Deflater.DEFAULT_COMPRESSION, 0, null, executor);
+  }
+
+  /**
+   * Compress the layers missing from the cache in {@code cacheDirectory} on {@code executor}.
+   *
+   * @param level the {@link Deflater} compression level
+   * @param blockSize the size of the blocks to compress in parallel, or 0 to compress each layer
+   *     as a single stream
+   * @param contents the hashes of the contents of files to write as hard links to their duplicates
+   *     in the same layer, as found by the {@link LayerDeduplicator}, or {@code null}
+   * @return the number of layers compressed
+   */
+  static int compress(
+      Path cacheDirectory,
+      List<LayerConfiguration> layers,
+      int level,
+      int blockSize,
+      Map<Path, HashCode> contents,
+      Executor executor)
+      throws IOException {
+    Cache cache = Cache.withDirectory(cacheDirectory);
+    List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+    for (LayerConfiguration layer : layers) {
+      ImmutableList<LayerEntry> entries = layer.getLayerEntries();
+      // Jib skips empty layers
+      if (!entries.isEmpty()) {
+        pending.add(
+            CompletableFuture.supplyAsync(
+                () ->
+                    compress(cache, cacheDirectory, entries, level, blockSize, contents, executor),
+                executor));
+      }
+    }
+    int compressed = 0;
+    for (CompletableFuture<Boolean> layer : pending) {
+      try {
+        compressed += layer.join() ? 1 : 0;
+      } catch (CompletionException ex) {
+        Throwables.throwIfUnchecked(ex.getCause());
+        Throwables.throwIfInstanceOf(ex.getCause(), IOException.class);
+        throw ex;
+      }
+    }
+    return compressed;
+  }
+
+  private static boolean compress(
+      Cache cache,
+      Path cacheDirectory,
+      ImmutableList<LayerEntry> entries,
+      int level,
+      int blockSize,
+      Map<Path, HashCode> contents,
+      Executor executor) {
+    try {
+      try {
+        if (cache.retrieve(entries).isPresent()) {
+          return false;
+        }
+      } catch (CacheCorruptedException ex) {
+        // overwritten below
+      }
+      Blob layer =
+          contents == null
+              ? new ReproducibleLayerBuilder(entries).build()
+              : new LinkingLayerBuilder(entries, contents).build();
+      store(cache, cacheDirectory, entries, layer, level, blockSize, executor);
+      return true;
+    } catch (IOException ex) {
+      throw new CompletionException(ex);
+    }
+  }
+
+  /**
+   * Compress the uncompressed tarball {@code layer} into the cache as the layer with {@code
+   * entries}.
+   */
+  static void store(
+      Cache cache,
+      Path cacheDirectory,
+      ImmutableList<LayerEntry> entries,
+      Blob layer,
+      int level,
+      int blockSize,
+      Executor executor)
+      throws IOException {
+    if (level == Deflater.DEFAULT_COMPRESSION && blockSize == 0) {
+      cache.writeUncompressedLayer(layer, entries);
+    } else {
+      write(cacheDirectory, entries, layer, level, blockSize, executor);
+    }
+  }
+
+  /**
+   * Copy the gzip-compressed tarball {@code compressedLayer} into the cache as is, as the layer
+   * with {@code entries}. The file is read once, to both copy it and decompress it for its diff
+   * ID.
+   */
+  static void storeCompressed(
+      Path cacheDirectory, ImmutableList<LayerEntry> entries, Path compressedLayer)
+      throws IOException {
+    JibCacheLayout layout = new JibCacheLayout(cacheDirectory);
+    Path temporaryFile = layout.createTemporaryFile();
+    try {
+      HashingInputStream compressed;
+      HashingOutputStream uncompressed =
+          new HashingOutputStream(Hashing.sha256(), ByteStreams.nullOutputStream());
+      try (OutputStream copy = new BufferedOutputStream(Files.newOutputStream(temporaryFile));
+          InputStream input = Files.newInputStream(compressedLayer)) {
+        compressed = new HashingInputStream(Hashing.sha256(), new TeeInputStream(input, copy));
+        ByteStreams.copy(new GZIPInputStream(compressed, 64 * 1024), uncompressed);
+        // anything after the gzip stream is part of the blob
+        ByteStreams.exhaust(compressed);
+      }
+      layout.writeLayer(
+          entries, temporaryFile, compressed.hash().toString(), uncompressed.hash().toString());
+    } finally {
+      Files.deleteIfExists(temporaryFile);
+    }
+  }
+
+  /** Compress a layer into the cache as Jib would have, but with this compression. */
+  private static void write(
+      Path cacheDirectory,
+      ImmutableList<LayerEntry> entries,
+      Blob layer,
+      int level,
+      int blockSize,
+      Executor executor)
+      throws IOException {
+    JibCacheLayout layout = new JibCacheLayout(cacheDirectory);
+    Path temporaryFile = layout.createTemporaryFile();
+    try {
+      HashingOutputStream compressed =
+          new HashingOutputStream(
+              Hashing.sha256(), new BufferedOutputStream(Files.newOutputStream(temporaryFile)));
+      BlobDescriptor uncompressed;
+      try (OutputStream output = newGzipStream(compressed, level, blockSize, executor)) {
+        uncompressed = layer.writeTo(output);
+      }
+      layout.writeLayer(
+          entries,
+          temporaryFile,
+          compressed.hash().toString(),
+          uncompressed.getDigest().getHash());
+    } finally {
+      Files.deleteIfExists(temporaryFile);
+    }
+  }
+
+  private static OutputStream newGzipStream(
+      OutputStream output, int level, int blockSize, Executor executor) throws IOException {
+    if (blockSize > 0) {
+      return new ParallelGzipOutputStream(output, level, blockSize, executor);
+    }
+    return new GZIPOutputStream(output) {
+      {
+        def.setLevel(level);
+      }
+    };
+  }
+
+  /** An input stream that copies what is read from it to an output stream. */
+  private static class TeeInputStream extends FilterInputStream {
+    private final OutputStream copy;
+
+    TeeInputStream(InputStream input, OutputStream copy) {
+      super(input);
+      this.copy = copy;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        copy.write(b);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int count = super.read(buffer, offset, length);
+      if (count > 0) {
+        copy.write(buffer, offset, count);
+      }
+      return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // read rather than skip, so that everything is copied
+      byte[] buffer = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+      return Math.max(read(buffer, 0, buffer.length), 0);
+    }
+  }
+}
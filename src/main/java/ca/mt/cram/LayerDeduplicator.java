@@ -0,0 +1,290 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.AbsoluteUnixPath;
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.api.LayerEntry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Finds files with the same contents in the layers of an image so that their contents are packed
+ * once. Only files whose sizes match another file are hashed, streamed on the build threads. Files
+ * are duplicates when their contents, permissions and modification times are the same, so that
+ * any copy can stand for the others.
+ *
+ * <p>Duplicates within a layer are written as hard links by {@link LinkingLayerBuilder}. A hard
+ * link cannot refer to a file in another layer, so duplicates found in several layers are moved
+ * together into a shared layer, named {@value #SHARED_LAYER_NAME}, where they are in turn linked.
+ * The shared layer is placed just below the lowest layer it takes files from, so that the layers
+ * keep their order and a change to an upper layer does not displace the layers below it. Files
+ * whose container paths appear in more than one layer are left in place, as moving them would
+ * change which layer's file is seen, as are files below a layer whose files are unknown, such as a
+ * {@link TarballLayer}.
+ */
+class LayerDeduplicator {
+  /** The name of the layer holding files duplicated across layers. */
+  static final String SHARED_LAYER_NAME = "duplicates";
+
+  /** The size of the buffer through which files are hashed. */
+  @VisibleForTesting static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+  /** The result of deduplicating the layers of an image. */
+  static class Result {
+    /** The layers to build: those given, less any duplicates moved to a shared layer. */
+    final List<LayerConfiguration> layers;
+    /** The hash of the contents of each source file that may have duplicates. */
+    final Map<Path, HashCode> contents;
+    /** The number of files whose contents are no longer packed. */
+    final int duplicates;
+    /** The number of bytes no longer packed. */
+    final long bytesSaved;
+
+    Result(
+        List<LayerConfiguration> layers,
+        Map<Path, HashCode> contents,
+        int duplicates,
+        long bytesSaved) {
+      this.layers = layers;
+      this.contents = contents;
+      this.duplicates = duplicates;
+      this.bytesSaved = bytesSaved;
+    }
+  }
+
+  /** A file in a layer that may be a duplicate. */
+  private static class Candidate {
+    final int layer;
+    final LayerEntry entry;
+    final long size;
+
+    Candidate(int layer, LayerEntry entry, long size) {
+      this.layer = layer;
+      this.entry = entry;
+      this.size = size;
+    }
+  }
+
+  /**
+   * Find the duplicate files in {@code layers}, hashing files on {@code executor}.
+   *
+   * @param opaqueLayers the layers whose entries are not the files they hold, which are left as
+   *     they are
+   * @param attributesCache the attributes of the source files, as read when scanning them
+   */
+  static Result deduplicate(
+      List<LayerConfiguration> layers,
+      Set<LayerConfiguration> opaqueLayers,
+      FileAttributesCache attributesCache,
+      Executor executor)
+      throws IOException {
+    // only files of the same size can be duplicates; a file in the same layer at the same path is
+    // superseded by the first, as in Jib
+    Map<Long, List<Candidate>> bySize = new HashMap<>();
+    Map<AbsoluteUnixPath, Set<Integer>> layersByPath = new HashMap<>();
+    // the entry of each directory in the highest layer holding it, which is the one seen
+    Map<String, LayerEntry> directories = new HashMap<>();
+    int highestOpaqueLayer = -1;
+    for (int layer = 0; layer < layers.size(); layer++) {
+      if (opaqueLayers.contains(layers.get(layer))) {
+        highestOpaqueLayer = layer;
+        continue;
+      }
+      for (LayerEntry entry : layers.get(layer).getLayerEntries()) {
+        if (!layersByPath
+            .computeIfAbsent(entry.getExtractionPath(), path -> new HashSet<>())
+            .add(layer)) {
+          continue;
+        }
+        BasicFileAttributes attributes = attributesCache.get(entry.getSourceFile());
+        if (attributes.isDirectory()) {
+          // layers are visited from the lowest, so a higher layer's entry replaces a lower one's
+          directories.put(entry.getExtractionPath().toString(), entry);
+        } else if (attributes.isRegularFile() && attributes.size() > 0) {
+          bySize
+              .computeIfAbsent(attributes.size(), size -> new ArrayList<>())
+              .add(new Candidate(layer, entry, attributes.size()));
+        }
+      }
+    }
+
+    Map<Path, CompletableFuture<HashCode>> pending = new LinkedHashMap<>();
+    for (List<Candidate> files : bySize.values()) {
+      if (files.size() > 1) {
+        for (Candidate file : files) {
+          Path source = file.entry.getSourceFile();
+          pending.computeIfAbsent(
+              source,
+              path ->
+                  CompletableFuture.supplyAsync(
+                      () -> {
+                        try {
+                          return hash(path);
+                        } catch (IOException ex) {
+                          throw new CompletionException(ex);
+                        }
+                      },
+                      executor));
+        }
+      }
+    }
+    Map<Path, HashCode> contents = new HashMap<>();
+    for (Map.Entry<Path, CompletableFuture<HashCode>> hash : pending.entrySet()) {
+      try {
+        contents.put(hash.getKey(), hash.getValue().join());
+      } catch (CompletionException ex) {
+        Throwables.throwIfUnchecked(ex.getCause());
+        Throwables.throwIfInstanceOf(ex.getCause(), IOException.class);
+        throw ex;
+      }
+    }
+
+    Map<String, List<Candidate>> groups = new LinkedHashMap<>();
+    for (List<Candidate> files : bySize.values()) {
+      for (Candidate file : files) {
+        HashCode hash = contents.get(file.entry.getSourceFile());
+        if (hash != null) {
+          groups.computeIfAbsent(key(hash, file.entry), key -> new ArrayList<>()).add(file);
+        }
+      }
+    }
+    Set<LayerEntry> shared = new HashSet<>();
+    int lowestSharingLayer = Integer.MAX_VALUE;
+    int duplicates = 0;
+    long bytesSaved = 0;
+    for (List<Candidate> group : groups.values()) {
+      Map<Integer, Integer> perLayer = new HashMap<>();
+      boolean movable = true;
+      for (Candidate file : group) {
+        perLayer.merge(file.layer, 1, Integer::sum);
+        movable &=
+            layersByPath.get(file.entry.getExtractionPath()).size() == 1
+                && file.layer > highestOpaqueLayer;
+      }
+      if (perLayer.size() > 1 && movable) {
+        for (Candidate file : group) {
+          shared.add(file.entry);
+          lowestSharingLayer = Math.min(lowestSharingLayer, file.layer);
+        }
+        duplicates += group.size() - 1;
+        bytesSaved += (group.size() - 1) * group.get(0).size;
+      } else {
+        for (int count : perLayer.values()) {
+          duplicates += count - 1;
+          bytesSaved += (count - 1) * group.get(0).size;
+        }
+      }
+    }
+    if (shared.isEmpty()) {
+      return new Result(layers, contents, duplicates, bytesSaved);
+    }
+
+    List<LayerConfiguration> deduplicated = new ArrayList<>();
+    List<LayerEntry> sharedEntries = new ArrayList<>();
+    for (int index = 0; index < layers.size(); index++) {
+      LayerConfiguration layer = layers.get(index);
+      if (index == lowestSharingLayer) {
+        // filled in once the shared entries are known
+        deduplicated.add(null);
+      }
+      if (opaqueLayers.contains(layer)) {
+        deduplicated.add(layer);
+        continue;
+      }
+      LayerConfiguration.Builder builder = LayerConfiguration.builder().setName(layer.getName());
+      for (LayerEntry entry : layer.getLayerEntries()) {
+        if (shared.contains(entry)) {
+          sharedEntries.add(entry);
+        } else {
+          builder.addEntry(entry);
+        }
+      }
+      deduplicated.add(builder.build());
+    }
+    deduplicated.set(lowestSharingLayer, buildSharedLayer(sharedEntries, directories));
+    return new Result(deduplicated, contents, duplicates, bytesSaved);
+  }
+
+  /**
+   * Build the shared layer, with the entries of the directories containing its files so that the
+   * directories keep their permissions and modification times.
+   */
+  private static LayerConfiguration buildSharedLayer(
+      List<LayerEntry> entries, Map<String, LayerEntry> directories) {
+    LayerConfiguration.Builder builder = LayerConfiguration.builder().setName(SHARED_LAYER_NAME);
+    Set<String> added = new HashSet<>();
+    for (LayerEntry entry : entries) {
+      for (String parent = parent(entry.getExtractionPath().toString());
+          parent != null && added.add(parent);
+          parent = parent(parent)) {
+        LayerEntry directory = directories.get(parent);
+        if (directory != null) {
+          builder.addEntry(directory);
+        }
+      }
+      builder.addEntry(entry);
+    }
+    return builder.build();
+  }
+
+  /** Return the parent directory of {@code path}, or {@code null} if it is the root. */
+  private static String parent(String path) {
+    int slash = path.lastIndexOf('/');
+    return slash <= 0 ? null : path.substring(0, slash);
+  }
+
+  private static String key(HashCode hash, LayerEntry entry) {
+    return hash
+        + ":"
+        + entry.getPermissions().toOctalString()
+        + ":"
+        + entry.getLastModifiedTime().toEpochMilli();
+  }
+
+  /** Hash the contents of a file, streaming it through a buffer. */
+  @VisibleForTesting
+  static HashCode hash(Path file) throws IOException {
+    Hasher hasher = Hashing.sha256().newHasher();
+    byte[] buffer = new byte[HASH_BUFFER_SIZE];
+    try (InputStream input = Files.newInputStream(file)) {
+      int count;
+      while ((count = input.read(buffer)) >= 0) {
+        hasher.putBytes(buffer, 0, count);
+      }
+    }
+    return hasher.hash();
+  }
+}
@@ -19,6 +19,7 @@ package ca.mt.cram;
 import com.google.cloud.tools.jib.api.AbsoluteUnixPath;
 import com.google.cloud.tools.jib.api.FilePermissions;
 import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.api.LayerEntry;
 import com.google.common.annotations.VisibleForTesting;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -27,31 +28,213 @@ import java.nio.file.Paths;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.function.BiFunction;
 import picocli.CommandLine;
 
 /**
  * Parses a layer mapping of the form of {@code
  * local-path:container-path:permissions=755,644:timestamps=actual}. A shortcut form, {@code
- * local-path} is also supported, equivalent to {@code local-path:/}.
+ * local-path} is also supported, equivalent to {@code local-path:/}. The {@code include} and
+ * {@code exclude} directives, which may be repeated, select the files to add; see {@link
+ * PathFilter}. A definition with the {@code auto-split} directive may result in several layers;
+ * see {@link LayerSplitter}. So does the {@code explode} directive, which lays out a Java
+ * application in layers; see {@link JarExploder}. A local path of the form {@code tar=archive}
+ * takes an existing tarball as a layer of its own, to which the {@code permissions} and {@code
+ * timestamps} directives are optional rewrites; see {@link TarballLayer}.
  */
 class LayerDefinitionParser implements CommandLine.ITypeConverter<LayerConfiguration> {
+  private final Path baseDirectory;
+  private final Path cacheDirectory;
+  private final List<JarExploder.Application> applications = new ArrayList<>();
+  private final Map<LayerConfiguration, TarballLayer> tarballs = new HashMap<>();
+  private final List<ChangeHistory> histories = new ArrayList<>();
 
+  /** Create a parser that resolves relative paths against the current directory. */
+  LayerDefinitionParser() {
+    this(Paths.get(""));
+  }
+
+  /** Create a parser that resolves relative paths against {@code baseDirectory}. */
+  LayerDefinitionParser(Path baseDirectory) {
+    this(baseDirectory, null);
+  }
+
+  /**
+   * Create a parser that resolves relative paths against {@code baseDirectory}.
+   *
+   * @param cacheDirectory where to record the changes to auto-split layers between builds and to
+   *     extract exploded jars, or {@code null} to not record changes and extract to a temporary
+   *     directory
+   */
+  LayerDefinitionParser(Path baseDirectory, Path cacheDirectory) {
+    this.baseDirectory = baseDirectory;
+    this.cacheDirectory = cacheDirectory;
+  }
+
+  /** Return the local paths of the specifications of a layer definition. */
+  static List<Path> getSourcePaths(Path baseDirectory, String layerDefinition) {
+    List<Path> paths = new ArrayList<>();
+    for (String specification : layerDefinition.split(";")) {
+      String source = specification.split(":")[0];
+      if (source.startsWith(TarballLayer.SOURCE_PREFIX)) {
+        source = source.substring(TarballLayer.SOURCE_PREFIX.length());
+      }
+      paths.add(baseDirectory.resolve(source));
+    }
+    return paths;
+  }
+
+  /**
+   * Return the filters of the specifications of a layer definition, in the order of {@link
+   * #getSourcePaths}, from their {@code include} and {@code exclude} directives.
+   */
+  static List<PathFilter> getSourceFilters(String layerDefinition) {
+    List<PathFilter> filters = new ArrayList<>();
+    for (String specification : layerDefinition.split(";")) {
+      List<String> includes = new ArrayList<>();
+      List<String> excludes = new ArrayList<>();
+      String[] definition = specification.split(":");
+      for (int i = 2; i < definition.length; i++) {
+        String[] directive = definition[i].split("=", 2);
+        if (directive.length == 2 && directive[0].equals("include")) {
+          includes.add(directive[1]);
+        } else if (directive.length == 2 && directive[0].equals("exclude")) {
+          excludes.add(directive[1]);
+        }
+      }
+      filters.add(PathFilter.compile(includes, excludes));
+    }
+    return filters;
+  }
+
+  /** Return the applications exploded by the {@code explode} directive so far. */
+  synchronized List<JarExploder.Application> getApplications() {
+    return new ArrayList<>(applications);
+  }
+
+  /** Return the layers taken from tarballs so far, with the tarball of each. */
+  synchronized Map<LayerConfiguration, TarballLayer> getTarballs() {
+    return new HashMap<>(tarballs);
+  }
+
+  /**
+   * Save the changes recorded for the auto-split layers so far. This is left until the image is
+   * built so that a failed build does not count as a change.
+   */
+  synchronized void saveHistories() throws IOException {
+    for (ChangeHistory history : histories) {
+      history.save();
+    }
+  }
+
+  /**
+   * Convert a layer definition to a single layer.
+   *
+   * @throws CommandLine.TypeConversionException if the definition is split into several layers
+   */
   @Override
   public LayerConfiguration convert(String layerDefinition) throws Exception {
+    List<LayerConfiguration> layers = convertAll(layerDefinition);
+    if (layers.size() != 1) {
+      throw new CommandLine.TypeConversionException(
+          "definition results in " + layers.size() + " layers");
+    }
+    return layers.get(0);
+  }
+
+  /**
+   * Convert a layer definition to its layers, splitting or exploding it if requested. The layers
+   * of exploded jars and of tarballs follow that of the files of the other specifications.
+   */
+  List<LayerConfiguration> convertAll(String layerDefinition) throws Exception {
+    return convertAll(layerDefinition, new FileAttributesCache());
+  }
+
+  /**
+   * Convert a layer definition to its layers, recording the attributes read in {@code
+   * attributesCache} so that later phases of the build need not read them again.
+   */
+  List<LayerConfiguration> convertAll(String layerDefinition, FileAttributesCache attributesCache)
+      throws Exception {
     LayerConfiguration.Builder layerBuilder = LayerConfiguration.builder();
+    List<LayerConfiguration> explodedLayers = new ArrayList<>();
+    List<LayerConfiguration> tarballLayers = new ArrayList<>();
+    long splitBudget = 0;
     for (String specification : layerDefinition.split(";")) {
-      parseSpecification(layerBuilder, specification);
+      splitBudget =
+          Math.max(
+              splitBudget,
+              parseSpecification(
+                  layerBuilder, specification, explodedLayers, tarballLayers, attributesCache));
+    }
+    LayerConfiguration layer = layerBuilder.build();
+    if (!explodedLayers.isEmpty() || !tarballLayers.isEmpty()) {
+      if (splitBudget > 0) {
+        throw new CommandLine.TypeConversionException(
+            explodedLayers.isEmpty()
+                ? "cannot auto-split a tarball layer"
+                : "cannot auto-split an exploded layer");
+      }
+      List<LayerConfiguration> layers = new ArrayList<>();
+      if (!layer.getLayerEntries().isEmpty()) {
+        layers.add(layer);
+      }
+      layers.addAll(explodedLayers);
+      layers.addAll(tarballLayers);
+      return layers;
+    }
+    if (splitBudget == 0) {
+      return Collections.singletonList(layer);
+    }
+    ChangeHistory history = null;
+    if (cacheDirectory != null) {
+      String key = baseDirectory.toAbsolutePath() + "\n" + layerDefinition;
+      history = ChangeHistory.load(cacheDirectory.resolve("history"), key);
+    }
+    if (history != null) {
+      synchronized (this) {
+        histories.add(history);
+      }
     }
-    return layerBuilder.build();
+    return new LayerSplitter(splitBudget, history, attributesCache)
+        .split(layer.getName(), layer.getLayerEntries());
   }
 
-  private void parseSpecification(LayerConfiguration.Builder layerBuilder, String subspecification)
+  /**
+   * Add the entries of one specification to the layer, or if the specification is to be
+   * exploded, add its layers to {@code explodedLayers}, or if it is a tarball, add its layer to
+   * {@code tarballLayers}.
+   *
+   * @return the size budget if the layer should be split, or 0
+   */
+  private long parseSpecification(
+      LayerConfiguration.Builder layerBuilder,
+      String subspecification,
+      List<LayerConfiguration> explodedLayers,
+      List<LayerConfiguration> tarballLayers,
+      FileAttributesCache attributesCache)
       throws IOException {
     BiFunction<Path, AbsoluteUnixPath, FilePermissions> permissionsProvider =
-        LayerConfiguration.DEFAULT_FILE_PERMISSIONS_PROVIDER;
+        new FixedPermissionsProvider(
+            FilePermissions.DEFAULT_FILE_PERMISSIONS,
+            FilePermissions.DEFAULT_FOLDER_PERMISSIONS,
+            attributesCache);
     BiFunction<Path, AbsoluteUnixPath, Instant> timestampProvider =
         LayerConfiguration.DEFAULT_MODIFIED_TIME_PROVIDER;
+    int parallelism = 0;
+    long splitBudget = 0;
+    String name = "";
+    boolean explode = false;
+    List<String> includes = new ArrayList<>();
+    List<String> excludes = new ArrayList<>();
+    // kept for tarballs, whose entries are rewritten only if asked
+    String permissions = null;
+    String timestamps = null;
 
     String[] definition = subspecification.split(":");
     String containerRoot = definition.length == 1 ? "/" : definition[1];
@@ -64,7 +247,8 @@ class LayerDefinitionParser implements CommandLine.ITypeConverter<LayerConfigura
           if (directive.length == 1) {
             throw new CommandLine.TypeConversionException("missing permissions configuration");
           }
-          permissionsProvider = configurePermissionsProvider(directive[1]);
+          permissionsProvider = configurePermissionsProvider(directive[1], attributesCache);
+          permissions = directive[1];
           break;
 
         case "timestamps":
@@ -73,7 +257,8 @@ class LayerDefinitionParser implements CommandLine.ITypeConverter<LayerConfigura
           if (directive.length == 1) {
             throw new CommandLine.TypeConversionException("missing timestamps configuration");
           }
-          timestampProvider = configureTimestampsProvider(directive[1]);
+          timestampProvider = configureTimestampsProvider(directive[1], attributesCache);
+          timestamps = directive[1];
           break;
 
         case "name":
@@ -81,6 +266,37 @@ class LayerDefinitionParser implements CommandLine.ITypeConverter<LayerConfigura
             throw new CommandLine.TypeConversionException("missing layer name");
           }
           layerBuilder.setName(directive[1]);
+          name = directive[1];
+          break;
+
+        case "parallelism":
+          if (directive.length == 1) {
+            throw new CommandLine.TypeConversionException("missing parallelism");
+          }
+          parallelism = parseParallelism(directive[1]);
+          break;
+
+        case "auto-split":
+          splitBudget =
+              directive.length == 1 ? LayerSplitter.DEFAULT_BUDGET : parseSplitBudget(directive[1]);
+          break;
+
+        case "explode":
+          explode = true;
+          break;
+
+        case "include":
+          if (directive.length == 1) {
+            throw new CommandLine.TypeConversionException("missing include glob");
+          }
+          includes.add(directive[1]);
+          break;
+
+        case "exclude":
+          if (directive.length == 1) {
+            throw new CommandLine.TypeConversionException("missing exclude glob");
+          }
+          excludes.add(directive[1]);
           break;
 
         default:
@@ -88,19 +304,112 @@ class LayerDefinitionParser implements CommandLine.ITypeConverter<LayerConfigura
               "unknown layer configuration directive: " + directive[0]);
       }
     }
-    layerBuilder.addEntryRecursive(
-        Paths.get(definition[0]),
-        AbsoluteUnixPath.get(containerRoot),
-        permissionsProvider,
-        timestampProvider);
+    PathFilter filter = PathFilter.compile(includes, excludes);
+    if (definition[0].startsWith(TarballLayer.SOURCE_PREFIX)) {
+      if (explode) {
+        throw new CommandLine.TypeConversionException("cannot explode a tarball layer");
+      }
+      if (filter != PathFilter.ALL) {
+        throw new CommandLine.TypeConversionException(
+            "cannot include or exclude files of a tarball layer");
+      }
+      Path archive =
+          baseDirectory.resolve(definition[0].substring(TarballLayer.SOURCE_PREFIX.length()));
+      if (!Files.isRegularFile(archive)) {
+        throw new CommandLine.TypeConversionException("no such tarball: " + archive);
+      }
+      FilePermissions filePermissions = null;
+      FilePermissions directoryPermissions = null;
+      if (permissions != null && !"actual".equals(permissions)) {
+        String[] spec = permissions.split("/");
+        filePermissions = parsePermissions(spec[0]);
+        directoryPermissions =
+            spec.length > 1
+                ? parsePermissions(spec[1])
+                : FilePermissions.DEFAULT_FOLDER_PERMISSIONS;
+      }
+      Instant timestamp =
+          timestamps == null || "actual".equals(timestamps) ? null : parseTimestamp(timestamps);
+      TarballLayer tarball =
+          new TarballLayer(
+              archive,
+              AbsoluteUnixPath.get(containerRoot),
+              filePermissions,
+              directoryPermissions,
+              timestamp,
+              name);
+      synchronized (this) {
+        tarballs.put(tarball.getLayer(), tarball);
+      }
+      tarballLayers.add(tarball.getLayer());
+      return splitBudget;
+    }
+    if (explode) {
+      if (filter != PathFilter.ALL) {
+        throw new CommandLine.TypeConversionException(
+            "cannot include or exclude files of an exploded layer");
+      }
+      // extracted jars are kept with the layer cache so that unchanged jars are not re-extracted
+      Path stagingRoot =
+          cacheDirectory != null
+              ? cacheDirectory.resolve("exploded")
+              : JarExploder.getTemporaryStagingRoot();
+      JarExploder.Application application =
+          new JarExploder(stagingRoot, permissionsProvider, timestampProvider, attributesCache)
+              .explode(
+                  baseDirectory.resolve(definition[0]), AbsoluteUnixPath.get(containerRoot), name);
+      synchronized (this) {
+        applications.add(application);
+      }
+      explodedLayers.addAll(application.getLayers());
+      return splitBudget;
+    }
+    FileTreeScanner scanner = new FileTreeScanner(parallelism, attributesCache);
+    for (LayerEntry entry :
+        scanner.scan(
+            baseDirectory.resolve(definition[0]),
+            AbsoluteUnixPath.get(containerRoot),
+            permissionsProvider,
+            timestampProvider,
+            filter)) {
+      layerBuilder.addEntry(entry);
+    }
+    return splitBudget;
+  }
+
+  @VisibleForTesting
+  static long parseSplitBudget(String directive) {
+    try {
+      long budget = new Cram.SizeParser().convert(directive);
+      if (budget >= 1) {
+        return budget;
+      }
+    } catch (Exception ex) {
+      // fall through
+    }
+    throw new CommandLine.TypeConversionException("invalid auto-split size: " + directive);
   }
 
   @VisibleForTesting
-  static BiFunction<Path, AbsoluteUnixPath, Instant> configureTimestampsProvider(String directive) {
+  static int parseParallelism(String directive) {
+    try {
+      int parallelism = Integer.parseInt(directive);
+      if (parallelism >= 1) {
+        return parallelism;
+      }
+    } catch (NumberFormatException ex) {
+      // fall through
+    }
+    throw new CommandLine.TypeConversionException("invalid parallelism: " + directive);
+  }
+
+  @VisibleForTesting
+  static BiFunction<Path, AbsoluteUnixPath, Instant> configureTimestampsProvider(
+      String directive, FileAttributesCache attributesCache) {
     if ("actual".equals(directive)) {
       return (local, inContainer) -> {
         try {
-          return Files.getLastModifiedTime(local).toInstant();
+          return attributesCache.getLastModifiedTime(local);
         } catch (IOException ex) {
           System.err.printf("%s: %s\n", local, ex);
           throw new RuntimeException(ex);
@@ -108,26 +417,28 @@ class LayerDefinitionParser implements CommandLine.ITypeConverter<LayerConfigura
       };
     }
 
-    // absolute time
-    Instant fixed;
+    Instant fixed = parseTimestamp(directive);
+    return (local, inContainer) -> fixed;
+  }
+
+  /** Parse an absolute time, as seconds since the epoch or a short localized date and time. */
+  private static Instant parseTimestamp(String directive) {
     // treat as seconds since epoch
     if (directive.matches("\\d+")) {
       long secondsSinceEpoch = Long.parseLong(directive);
-      fixed = Instant.ofEpochSecond(secondsSinceEpoch);
-    } else {
-      fixed =
-          DateTimeFormatter.ofLocalizedDateTime(FormatStyle.SHORT).parse(directive, Instant::from);
+      return Instant.ofEpochSecond(secondsSinceEpoch);
     }
-    return (local, inContainer) -> fixed;
+    return DateTimeFormatter.ofLocalizedDateTime(FormatStyle.SHORT).parse(directive, Instant::from);
   }
 
   @VisibleForTesting
   static BiFunction<Path, AbsoluteUnixPath, FilePermissions> configurePermissionsProvider(
-      String directive) {
+      String directive, FileAttributesCache attributesCache) {
     if ("actual".equals(directive)) {
       return (local, inContainer) -> {
         try {
-          return FilePermissions.fromPosixFilePermissions(Files.getPosixFilePermissions(local));
+          return FilePermissions.fromPosixFilePermissions(
+              attributesCache.getPosixFilePermissions(local));
         } catch (IOException ex) {
           System.err.printf("%s: %s\n", local, ex);
           throw new RuntimeException(ex);
@@ -138,10 +449,23 @@ class LayerDefinitionParser implements CommandLine.ITypeConverter<LayerConfigura
     FilePermissions filesPermission = FilePermissions.DEFAULT_FILE_PERMISSIONS;
     FilePermissions directoriesPermission = FilePermissions.DEFAULT_FOLDER_PERMISSIONS;
     String[] spec = directive.split("/");
-    filesPermission = FilePermissions.fromOctalString(spec[0]);
+    filesPermission = parsePermissions(spec[0]);
     if (spec.length > 1) {
-      directoriesPermission = FilePermissions.fromOctalString(spec[1]);
+      directoriesPermission = parsePermissions(spec[1]);
+    }
+    return new FixedPermissionsProvider(filesPermission, directoriesPermission, attributesCache);
+  }
+
+  /**
+   * Parse octal permissions such as {@code 644}.
+   *
+   * @throws CommandLine.TypeConversionException if the permissions are not three octal digits
+   */
+  private static FilePermissions parsePermissions(String octal) {
+    try {
+      return FilePermissions.fromOctalString(octal);
+    } catch (IllegalArgumentException ex) {
+      throw new CommandLine.TypeConversionException("invalid permissions: " + octal);
     }
-    return new FixedPermissionsProvider(filesPermission, directoriesPermission);
   }
 }
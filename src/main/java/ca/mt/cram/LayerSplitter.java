@@ -0,0 +1,237 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.api.LayerEntry;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Splits the entries of a layer into several layers of about a given size. The container file
+ * tree is divided into subtrees that fit within the size budget; a subtree that is too large is
+ * divided into its children, and a single file larger than the budget becomes a layer on its own.
+ * The subtrees are then packed into layers, with the least frequently changed subtrees in the
+ * lower layers, so that a change invalidates as few cached layers as possible and large pushes are
+ * spread across several layers.
+ *
+ * <p>How often a subtree changed is taken from its {@link ChangeHistory} when one is available.
+ * Otherwise, and between subtrees with the same number of changes, subtrees with older
+ * modification times are placed lower. Subtrees with different numbers of changes are never mixed
+ * in a layer.
+ */
+class LayerSplitter {
+  /** The default maximum layer size. */
+  static final long DEFAULT_BUDGET = 64L << 20;
+
+  /** A subtree of the container file system that is kept in a single layer. */
+  private static class Subtree {
+    final String path;
+    final List<LayerEntry> entries = new ArrayList<>();
+    long size;
+    long lastModified;
+    int changes;
+
+    Subtree(String path) {
+      this.path = path;
+    }
+  }
+
+  /** A node in the container file tree. */
+  private static class Node {
+    final String path;
+    final Map<String, Node> children = new TreeMap<>();
+    /** The entry for this path, or null if it is only implied by its children. */
+    LayerEntry entry;
+    long size;
+    long lastModified;
+
+    Node(String path) {
+      this.path = path;
+    }
+  }
+
+  private final long budget;
+  private final ChangeHistory history;
+  private final FileAttributesCache attributesCache;
+
+  /**
+   * Create a splitter.
+   *
+   * @param budget the maximum size of a layer in bytes, unless it holds a single larger file
+   * @param history the history of earlier builds of this layer, or {@code null} if there is none
+   */
+  LayerSplitter(long budget, ChangeHistory history) {
+    this(budget, history, new FileAttributesCache());
+  }
+
+  /**
+   * Create a splitter that reads the attributes of the source files through {@code
+   * attributesCache}, which the scan that produced the entries has usually populated.
+   */
+  LayerSplitter(long budget, ChangeHistory history, FileAttributesCache attributesCache) {
+    this.budget = budget;
+    this.history = history;
+    this.attributesCache = attributesCache;
+  }
+
+  /**
+   * Split the entries into layers named {@code name-1}, {@code name-2}, and so on, from the lowest
+   * layer to the highest.
+   */
+  List<LayerConfiguration> split(String name, List<LayerEntry> entries) throws IOException {
+    Node root = new Node("/");
+    for (LayerEntry entry : entries) {
+      insert(root, entry);
+    }
+    computeSizes(root);
+
+    // directories whose contents are split across layers are placed in the lowest layer
+    Subtree directories = new Subtree("/");
+    List<Subtree> subtrees = new ArrayList<>();
+    partition(root, directories, subtrees);
+    for (Subtree subtree : subtrees) {
+      if (history != null) {
+        subtree.changes = history.record(subtree.path, fingerprint(subtree));
+      }
+    }
+    subtrees.sort(
+        Comparator.comparingInt((Subtree subtree) -> subtree.changes)
+            .thenComparingLong(subtree -> subtree.lastModified)
+            .thenComparing(subtree -> subtree.path));
+    if (!directories.entries.isEmpty()) {
+      subtrees.add(0, directories);
+    }
+
+    List<LayerConfiguration> layers = new ArrayList<>();
+    String prefix = name.isEmpty() ? "layer" : name;
+    LayerConfiguration.Builder builder = null;
+    long layerSize = 0;
+    int layerChanges = 0;
+    for (Subtree subtree : subtrees) {
+      if (builder == null
+          || (layerSize > 0 && layerSize + subtree.size > budget)
+          || subtree.changes != layerChanges) {
+        if (builder != null) {
+          layers.add(builder.build());
+        }
+        builder = LayerConfiguration.builder().setName(prefix + "-" + (layers.size() + 1));
+        layerSize = 0;
+        layerChanges = subtree.changes;
+      }
+      for (LayerEntry entry : subtree.entries) {
+        builder.addEntry(entry);
+      }
+      layerSize += subtree.size;
+    }
+    if (builder != null) {
+      layers.add(builder.build());
+    }
+    return layers;
+  }
+
+  private static void insert(Node root, LayerEntry entry) {
+    Node node = root;
+    for (String component : entry.getExtractionPath().toString().split("/")) {
+      if (!component.isEmpty()) {
+        String path = node.path.equals("/") ? "/" + component : node.path + "/" + component;
+        node = node.children.computeIfAbsent(component, key -> new Node(path));
+      }
+    }
+    node.entry = entry;
+  }
+
+  /** Compute the total size and latest file modification time of each subtree. */
+  private void computeSizes(Node node) throws IOException {
+    BasicFileAttributes attributes = node.entry == null ? null : readAttributes(node.entry);
+    // directory modification times change whenever a file is added, so only files are considered
+    if (attributes != null && attributes.isRegularFile()) {
+      node.size = attributes.size();
+      node.lastModified = attributes.lastModifiedTime().toMillis();
+    }
+    for (Node child : node.children.values()) {
+      computeSizes(child);
+      node.size += child.size;
+      node.lastModified = Math.max(node.lastModified, child.lastModified);
+    }
+  }
+
+  /** Divide the tree into subtrees that fit within the budget. */
+  private void partition(Node node, Subtree directories, List<Subtree> subtrees) {
+    if (node.size <= budget || node.children.isEmpty()) {
+      Subtree subtree = new Subtree(node.path);
+      collect(node, subtree);
+      subtree.size = node.size;
+      subtree.lastModified = node.lastModified;
+      subtrees.add(subtree);
+      return;
+    }
+    if (node.entry != null) {
+      directories.entries.add(node.entry);
+    }
+    for (Node child : node.children.values()) {
+      partition(child, directories, subtrees);
+    }
+  }
+
+  /** Add the entries of {@code node} and its descendents to {@code subtree}, parents first. */
+  private static void collect(Node node, Subtree subtree) {
+    if (node.entry != null) {
+      subtree.entries.add(node.entry);
+    }
+    for (Node child : node.children.values()) {
+      collect(child, subtree);
+    }
+  }
+
+  /**
+   * Fingerprint a subtree from each entry's path, permissions and timestamp in the container, and
+   * the size and modification time of the source files.
+   */
+  private String fingerprint(Subtree subtree) throws IOException {
+    Hasher hasher = Hashing.sha256().newHasher();
+    for (LayerEntry entry : subtree.entries) {
+      hasher.putString(entry.getExtractionPath().toString(), StandardCharsets.UTF_8);
+      hasher.putString(entry.getPermissions().toOctalString(), StandardCharsets.UTF_8);
+      hasher.putLong(entry.getLastModifiedTime().toEpochMilli());
+      BasicFileAttributes attributes = readAttributes(entry);
+      if (attributes != null && attributes.isRegularFile()) {
+        hasher.putLong(attributes.size());
+        hasher.putLong(attributes.lastModifiedTime().toMillis());
+      }
+    }
+    return hasher.hash().toString();
+  }
+
+  /** Return the attributes of the entry's source file, or null if it does not exist. */
+  private BasicFileAttributes readAttributes(LayerEntry entry) throws IOException {
+    try {
+      return attributesCache.get(entry.getSourceFile());
+    } catch (NoSuchFileException ex) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.api.RegistryException;
+import com.google.cloud.tools.jib.cache.Cache;
+import com.google.cloud.tools.jib.cache.CacheCorruptedException;
+import com.google.cloud.tools.jib.cache.CachedLayer;
+import com.google.cloud.tools.jib.registry.RegistryClient;
+import com.google.common.base.Throwables;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Uploads application layers, compressed by {@link LayerCompressor}, to a repository ahead of
+ * containerizing, on Cram's bounded pool rather than on the threads of Jib's steps. When several
+ * images sharing these layers are pushed to the repository at once, as for the platforms of a
+ * multi-platform image, each push would otherwise also find the layers missing and upload them
+ * itself; Jib checks for each blob before uploading it.
+ */
+class LayerUploader {
+
+  /**
+   * Upload the layers missing from the repository of {@code client} on {@code executor}.
+   *
+   * @return the number of layers uploaded
+   */
+  static int upload(
+      Path cacheDirectory,
+      List<LayerConfiguration> layers,
+      RegistryClient client,
+      Executor executor)
+      throws IOException, RegistryException {
+    Cache cache = Cache.withDirectory(cacheDirectory);
+    List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+    for (LayerConfiguration layer : layers) {
+      if (layer.getLayerEntries().isEmpty()) {
+        continue;
+      }
+      Optional<CachedLayer> cached;
+      try {
+        cached = cache.retrieve(layer.getLayerEntries());
+      } catch (CacheCorruptedException ex) {
+        throw new IOException(ex);
+      }
+      if (!cached.isPresent()) {
+        throw new IOException("layer " + layer.getName() + " has not been compressed");
+      }
+      pending.add(CompletableFuture.supplyAsync(() -> upload(client, cached.get()), executor));
+    }
+    int uploaded = 0;
+    for (CompletableFuture<Boolean> layer : pending) {
+      try {
+        uploaded += layer.join() ? 1 : 0;
+      } catch (CompletionException ex) {
+        Throwables.throwIfUnchecked(ex.getCause());
+        Throwables.throwIfInstanceOf(ex.getCause(), IOException.class);
+        Throwables.throwIfInstanceOf(ex.getCause(), RegistryException.class);
+        throw ex;
+      }
+    }
+    return uploaded;
+  }
+
+  private static boolean upload(RegistryClient client, CachedLayer layer) {
+    try {
+      if (client.checkBlob(layer.getDigest()) != null) {
+        return false;
+      }
+      client.pushBlob(layer.getDigest(), layer.getBlob(), null, bytes -> {});
+      return true;
+    } catch (IOException | RegistryException ex) {
+      throw new CompletionException(ex);
+    }
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the sources of layer definitions for changes with a {@link WatchService}, to rebuild
+ * only the layers whose files changed. A watch service only reports changes to the entries of the
+ * directories registered with it, so every directory below a source directory is registered, and
+ * directories created later are registered as they appear. A source file is watched through its
+ * parent directory. Directories excluded by a definition's {@code exclude} globs are not
+ * registered, and changes to excluded files are ignored.
+ */
+class LayerWatcher implements Closeable {
+  private final WatchService watchService;
+  /** The absolute source paths of each layer definition. */
+  private final List<List<Path>> sources = new ArrayList<>();
+  /** The filter of each source path. */
+  private final List<List<PathFilter>> filters;
+  private final Map<WatchKey, Path> directories = new HashMap<>();
+
+  /**
+   * Start watching every file of the sources.
+   *
+   * @param sources the source paths of each layer definition, as from {@link
+   *     LayerDefinitionParser#getSourcePaths}
+   */
+  LayerWatcher(List<List<Path>> sources) throws IOException {
+    this(sources, allFiles(sources));
+  }
+
+  /**
+   * Start watching.
+   *
+   * @param sources the source paths of each layer definition, as from {@link
+   *     LayerDefinitionParser#getSourcePaths}
+   * @param filters the filter of each source path, as from {@link
+   *     LayerDefinitionParser#getSourceFilters}
+   */
+  LayerWatcher(List<List<Path>> sources, List<List<PathFilter>> filters) throws IOException {
+    this.filters = filters;
+    watchService = FileSystems.getDefault().newWatchService();
+    try {
+      for (int i = 0; i < sources.size(); i++) {
+        List<Path> absolute = new ArrayList<>();
+        for (int j = 0; j < sources.get(i).size(); j++) {
+          Path path = sources.get(i).get(j).toAbsolutePath().normalize();
+          absolute.add(path);
+          if (Files.isDirectory(path)) {
+            registerTree(path, path, filters.get(i).get(j));
+          } else if (path.getParent() != null && Files.isDirectory(path.getParent())) {
+            register(path.getParent());
+          }
+        }
+        this.sources.add(absolute);
+      }
+    } catch (IOException | RuntimeException ex) {
+      watchService.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Wait for a change, and then until there have been no further changes for {@code quietPeriod}
+   * so that a burst of changes, like saving several files or switching branches, results in a
+   * single rebuild.
+   *
+   * @return the indices of the layer definitions with changed sources, possibly empty if only
+   *     unrelated files next to a source file changed
+   */
+  Set<Integer> awaitChanges(Duration quietPeriod) throws IOException, InterruptedException {
+    Set<Integer> changed = new TreeSet<>();
+    WatchKey key = watchService.take();
+    while (key != null) {
+      process(key, changed);
+      key = watchService.poll(quietPeriod.toMillis(), TimeUnit.MILLISECONDS);
+    }
+    return changed;
+  }
+
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+  }
+
+  private void process(WatchKey key, Set<Integer> changed) throws IOException {
+    Path directory = directories.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+        // events were lost: assume everything changed
+        for (int i = 0; i < sources.size(); i++) {
+          changed.add(i);
+        }
+        continue;
+      }
+      Path child = directory.resolve((Path) event.context());
+      boolean created =
+          event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+              && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+      for (int i = 0; i < sources.size(); i++) {
+        for (int j = 0; j < sources.get(i).size(); j++) {
+          Path source = sources.get(i).get(j);
+          PathFilter filter = filters.get(i).get(j);
+          if (child.startsWith(source) && !isExcluded(filter, source.relativize(child))) {
+            changed.add(i);
+            if (created) {
+              registerTree(source, child, filter);
+            }
+          }
+        }
+      }
+    }
+    if (!key.reset()) {
+      directories.remove(key);
+    }
+  }
+
+  /** Register {@code start} and the directories below it that {@code filter} does not exclude. */
+  private void registerTree(Path source, Path start, PathFilter filter) throws IOException {
+    Files.walkFileTree(
+        start,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes)
+              throws IOException {
+            if (isExcluded(filter, source.relativize(directory))) {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            register(directory);
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException ex) {
+            // removed while being walked
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  /**
+   * Return true if {@code relative}, a path relative to a source directory, or one of the
+   * directories leading to it is excluded. The source itself is never excluded.
+   */
+  private static boolean isExcluded(PathFilter filter, Path relative) {
+    if (relative.toString().isEmpty()) {
+      return false;
+    }
+    for (int i = 1; i <= relative.getNameCount(); i++) {
+      if (filter.isExcluded(relative.subpath(0, i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static List<List<PathFilter>> allFiles(List<List<Path>> sources) {
+    List<List<PathFilter>> filters = new ArrayList<>();
+    for (List<Path> definitionSources : sources) {
+      filters.add(Collections.nCopies(definitionSources.size(), PathFilter.ALL));
+    }
+    return filters;
+  }
+
+  private void register(Path directory) throws IOException {
+    WatchKey key =
+        directory.register(
+            watchService,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+    directories.put(key, directory);
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.api.LayerEntry;
+import com.google.cloud.tools.jib.blob.Blob;
+import com.google.cloud.tools.jib.blob.Blobs;
+import com.google.cloud.tools.jib.image.ReproducibleLayerBuilder;
+import com.google.cloud.tools.jib.tar.TarStreamBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+
+/**
+ * Builds a layer tarball as Jib's {@link ReproducibleLayerBuilder} does, but writes each file with
+ * the same contents, permissions and modification time as a file earlier in the tarball as a hard
+ * link to that file, so its contents are stored once. A layer without such files is built by Jib's
+ * builder itself; otherwise the entries are prepared as Jib prepares them, which it does not
+ * expose, and written by Jib's {@link TarStreamBuilder}.
+ */
+class LinkingLayerBuilder {
+  private final ImmutableList<LayerEntry> entries;
+  private final Map<Path, HashCode> contents;
+
+  /**
+   * Create a builder.
+   *
+   * @param contents the hash of the contents of source files that may be duplicates; files
+   *     missing from the map are always written in full
+   */
+  LinkingLayerBuilder(ImmutableList<LayerEntry> entries, Map<Path, HashCode> contents) {
+    this.entries = entries;
+    this.contents = contents;
+  }
+
+  Blob build() {
+    if (!hasDuplicates()) {
+      return new ReproducibleLayerBuilder(entries).build();
+    }
+    // as Jib: the first entry for a path wins, its parent directories are added explicitly, and
+    // entries are sorted by name with no owner
+    Set<String> names = new HashSet<>();
+    List<TarArchiveEntry> tarEntries = new ArrayList<>();
+    Map<TarArchiveEntry, String> keys = new HashMap<>();
+    for (LayerEntry entry : entries) {
+      TarArchiveEntry tarEntry =
+          new TarArchiveEntry(entry.getSourceFile().toFile(), entry.getExtractionPath().toString());
+      tarEntry.setMode((tarEntry.getMode() & ~0777) | entry.getPermissions().getPermissionBits());
+      tarEntry.setModTime(entry.getLastModifiedTime().toEpochMilli());
+      if (add(tarEntry, names, tarEntries)) {
+        HashCode hash = contents.get(entry.getSourceFile());
+        if (hash != null && tarEntry.isFile()) {
+          keys.put(tarEntry, hash + ":" + tarEntry.getMode() + ":" + tarEntry.getModTime());
+        }
+      }
+    }
+    tarEntries.sort(Comparator.comparing(TarArchiveEntry::getName));
+
+    TarStreamBuilder tar = new TarStreamBuilder();
+    Map<String, String> written = new HashMap<>();
+    for (TarArchiveEntry tarEntry : tarEntries) {
+      String key = keys.get(tarEntry);
+      String target = key == null ? null : written.putIfAbsent(key, tarEntry.getName());
+      if (target != null) {
+        tarEntry = new HardLink(tarEntry, target);
+      }
+      tarEntry.setUserId(0);
+      tarEntry.setGroupId(0);
+      tarEntry.setUserName("");
+      tarEntry.setGroupName("");
+      tar.addTarArchiveEntry(tarEntry);
+    }
+    return Blobs.from(tar::writeAsTarArchiveTo);
+  }
+
+  /** Return true if two entries may have the same contents, permissions and modification time. */
+  private boolean hasDuplicates() {
+    Set<String> keys = new HashSet<>();
+    for (LayerEntry entry : entries) {
+      HashCode hash = contents.get(entry.getSourceFile());
+      if (hash != null
+          && !keys.add(
+              hash
+                  + ":"
+                  + entry.getPermissions().getPermissionBits()
+                  + ":"
+                  + entry.getLastModifiedTime().toEpochMilli())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Add an entry and its parent directories, unless an entry for its path was already added. */
+  private static boolean add(
+      TarArchiveEntry tarEntry, Set<String> names, List<TarArchiveEntry> tarEntries) {
+    if (names.contains(tarEntry.getName())) {
+      return false;
+    }
+    Path path = Paths.get(tarEntry.getName());
+    if (path.getParent() != path.getRoot()) {
+      TarArchiveEntry directory =
+          new TarArchiveEntry(Paths.get(".").toFile(), path.getParent().toString());
+      directory.setModTime(LayerConfiguration.DEFAULT_MODIFIED_TIME.toEpochMilli());
+      add(directory, names, tarEntries);
+    }
+    tarEntries.add(tarEntry);
+    names.add(tarEntry.getName());
+    return true;
+  }
+
+  /**
+   * A hard link in place of a file, to an earlier entry. It is not a file, so that Jib's {@link
+   * TarStreamBuilder} writes no contents for it.
+   */
+  private static class HardLink extends TarArchiveEntry {
+    HardLink(TarArchiveEntry file, String target) {
+      super(file.getName(), TarConstants.LF_LINK);
+      setLinkName(target);
+      setMode((getMode() & ~0777) | (file.getMode() & 0777));
+      setModTime(file.getModTime());
+    }
+
+    @Override
+    public boolean isFile() {
+      return false;
+    }
+  }
+}
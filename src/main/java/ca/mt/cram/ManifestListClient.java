@@ -0,0 +1,314 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.tools.jib.http.Authorization;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Pulls and pushes manifest lists over the registry HTTP API. Jib 0.10 neither pulls nor pushes
+ * manifest lists, so this uses an authorization obtained through Jib. As in Jib, HTTPS is tried
+ * first; for insecure registries, HTTPS without certificate verification is tried next if the
+ * handshake fails, and HTTP if the connection is refused, reset or times out.
+ */
+class ManifestListClient {
+  static final String MANIFEST_LIST_MEDIA_TYPE =
+      "application/vnd.docker.distribution.manifest.list.v2+json";
+  static final String OCI_INDEX_MEDIA_TYPE = "application/vnd.oci.image.index.v1+json";
+  static final String MANIFEST_MEDIA_TYPE = "application/vnd.docker.distribution.manifest.v2+json";
+
+  private static final String ACCEPT =
+      String.join(
+          ",",
+          MANIFEST_LIST_MEDIA_TYPE,
+          OCI_INDEX_MEDIA_TYPE,
+          MANIFEST_MEDIA_TYPE,
+          OciLayoutWriter.MANIFEST_MEDIA_TYPE);
+  /** The media types Jib pulls, so that a registry chooses the same manifest as for Jib. */
+  private static final String IMAGE_ACCEPT =
+      String.join(
+          ",",
+          OciLayoutWriter.MANIFEST_MEDIA_TYPE,
+          MANIFEST_MEDIA_TYPE,
+          "application/vnd.docker.distribution.manifest.v1+json");
+  private static final int TIMEOUT_MILLIS = 20_000;
+  private static SSLSocketFactory trustAllSocketFactory;
+
+  /** A manifest as stored in a registry. */
+  static class Manifest {
+    final String mediaType;
+    final byte[] contents;
+    /** The digest the registry reported, if any. */
+    private final String digest;
+
+    Manifest(String mediaType, byte[] contents) {
+      this(mediaType, contents, null);
+    }
+
+    private Manifest(String mediaType, byte[] contents, String digest) {
+      this.mediaType = mediaType;
+      this.contents = contents;
+      this.digest = digest;
+    }
+
+    String getDigest() {
+      return digest != null ? digest : "sha256:" + Hashing.sha256().hashBytes(contents);
+    }
+
+    boolean isList() {
+      return MANIFEST_LIST_MEDIA_TYPE.equals(mediaType) || OCI_INDEX_MEDIA_TYPE.equals(mediaType);
+    }
+  }
+
+  private final String registry;
+  private final String repository;
+  private final Authorization authorization;
+  private final boolean allowInsecure;
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  /**
+   * Create a client for a repository.
+   *
+   * @param authorization the authorization for the repository, or {@code null} for none
+   */
+  ManifestListClient(
+      String registry, String repository, Authorization authorization, boolean allowInsecure) {
+    this.registry = registry;
+    this.repository = repository;
+    this.authorization = authorization;
+    this.allowInsecure = allowInsecure;
+  }
+
+  /** Pull the manifest or manifest list with this tag or digest. */
+  Manifest pull(String reference) throws IOException {
+    return send("GET", reference, ACCEPT, null);
+  }
+
+  /**
+   * Resolve a tag to the digest of the image manifest that Jib would pull for it. The manifest is
+   * only pulled if the registry does not report its digest in reply to a {@code HEAD}, which
+   * registries such as Docker Hub do not count against pull limits.
+   */
+  String resolveDigest(String tag) throws IOException {
+    Manifest head = send("HEAD", tag, IMAGE_ACCEPT, null);
+    if (head.digest != null) {
+      return head.digest;
+    }
+    return send("GET", tag, IMAGE_ACCEPT, null).getDigest();
+  }
+
+  /**
+   * Resolve each platform to the digest of its image in the manifest list with this tag or digest.
+   *
+   * @throws IOException if the image is not a manifest list or lacks a platform
+   */
+  Map<Platform, String> resolvePlatforms(String reference, List<Platform> platforms)
+      throws IOException {
+    Manifest list = pull(reference);
+    String image = registry + "/" + repository + ":" + reference;
+    if (!list.isList()) {
+      throw new IOException(image + " is not a multi-platform image");
+    }
+    JsonNode entries = mapper.readTree(list.contents).path("manifests");
+    Map<Platform, String> digests = new LinkedHashMap<>();
+    for (Platform platform : platforms) {
+      for (JsonNode entry : entries) {
+        if (platform.matches(entry.path("platform"))) {
+          digests.put(platform, entry.path("digest").asText());
+          break;
+        }
+      }
+      if (!digests.containsKey(platform)) {
+        throw new IOException(image + " has no image for " + platform);
+      }
+    }
+    return digests;
+  }
+
+  /**
+   * Push a manifest list of the given images, each already pushed to the repository.
+   *
+   * @return the digest of the manifest list
+   */
+  String push(String tag, Map<Platform, Manifest> images) throws IOException {
+    ObjectNode list = mapper.createObjectNode();
+    list.put("schemaVersion", 2);
+    list.put("mediaType", MANIFEST_LIST_MEDIA_TYPE);
+    ArrayNode manifests = list.putArray("manifests");
+    for (Map.Entry<Platform, Manifest> image : images.entrySet()) {
+      Platform platform = image.getKey();
+      ObjectNode entry = manifests.addObject();
+      entry.put("mediaType", image.getValue().mediaType);
+      entry.put("size", image.getValue().contents.length);
+      entry.put("digest", image.getValue().getDigest());
+      ObjectNode platformNode = entry.putObject("platform");
+      platformNode.put("architecture", platform.getArchitecture());
+      platformNode.put("os", platform.getOs());
+      if (platform.getVariant() != null) {
+        platformNode.put("variant", platform.getVariant());
+      }
+    }
+    Manifest manifest = new Manifest(MANIFEST_LIST_MEDIA_TYPE, mapper.writeValueAsBytes(list));
+    send("PUT", tag, ACCEPT, manifest);
+    return manifest.getDigest();
+  }
+
+  private Manifest send(String method, String reference, String accept, Manifest body)
+      throws IOException {
+    try {
+      return send("https", true, method, reference, accept, body);
+    } catch (SSLException ex) {
+      if (!allowInsecure) {
+        throw ex;
+      }
+      // as in Jib, a server whose certificate cannot be verified may still speak HTTPS
+      try {
+        return send("https", false, method, reference, accept, body);
+      } catch (SSLException | SocketException | SocketTimeoutException insecureEx) {
+        return send("http", false, method, reference, accept, body);
+      }
+    } catch (SocketException | SocketTimeoutException ex) {
+      // refused, reset or unanswered: the registry may only listen for HTTP
+      if (!allowInsecure) {
+        throw ex;
+      }
+      return send("http", false, method, reference, accept, body);
+    }
+  }
+
+  private Manifest send(
+      String protocol,
+      boolean verify,
+      String method,
+      String reference,
+      String accept,
+      Manifest body)
+      throws IOException {
+    URL url = url(protocol, registry, "/v2/" + repository + "/manifests/" + reference);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    try {
+      if (!verify && connection instanceof HttpsURLConnection) {
+        ((HttpsURLConnection) connection).setSSLSocketFactory(trustAllSocketFactory());
+        ((HttpsURLConnection) connection).setHostnameVerifier((host, session) -> true);
+      }
+      connection.setConnectTimeout(TIMEOUT_MILLIS);
+      connection.setReadTimeout(TIMEOUT_MILLIS);
+      connection.setRequestMethod(method);
+      connection.setRequestProperty("Accept", accept);
+      if (authorization != null) {
+        connection.setRequestProperty(
+            "Authorization", authorization.getScheme() + " " + authorization.getToken());
+      }
+      if (body != null) {
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", body.mediaType);
+        connection.setFixedLengthStreamingMode(body.contents.length);
+        try (OutputStream output = connection.getOutputStream()) {
+          output.write(body.contents);
+        }
+      }
+      int status = connection.getResponseCode();
+      if (status >= 300) {
+        String message = "";
+        try (InputStream error = connection.getErrorStream()) {
+          if (error != null) {
+            message = ": " + new String(ByteStreams.toByteArray(error), StandardCharsets.UTF_8);
+          }
+        }
+        throw new IOException(method + " " + url + " failed with " + status + message);
+      }
+      String mediaType = connection.getContentType();
+      String digest =
+          "HEAD".equals(method) ? connection.getHeaderField("Docker-Content-Digest") : null;
+      try (InputStream input = connection.getInputStream()) {
+        return new Manifest(
+            mediaType == null ? null : mediaType.split(";")[0].trim(),
+            ByteStreams.toByteArray(input),
+            digest);
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Return the URL of a path on a registry given as {@code host[:port]}, where the host may be a
+   * bracketed IPv6 address such as {@code [::1]:5000}. The port defaults to the protocol's.
+   *
+   * @throws MalformedURLException if the registry is not a valid host and port
+   */
+  @VisibleForTesting
+  static URL url(String protocol, String registry, String path) throws MalformedURLException {
+    URL url = new URL(protocol + "://" + registry + path);
+    if (!registry.equals(url.getAuthority()) || url.getHost().isEmpty()) {
+      throw new MalformedURLException("Invalid registry: " + registry);
+    }
+    return url;
+  }
+
+  private static synchronized SSLSocketFactory trustAllSocketFactory() throws IOException {
+    if (trustAllSocketFactory == null) {
+      X509TrustManager trustAll =
+          new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+              return new X509Certificate[0];
+            }
+          };
+      try {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] {trustAll}, null);
+        trustAllSocketFactory = context.getSocketFactory();
+      } catch (GeneralSecurityException ex) {
+        throw new IOException("Cannot create an insecure connection", ex);
+      }
+    }
+    return trustAllSocketFactory;
+  }
+}
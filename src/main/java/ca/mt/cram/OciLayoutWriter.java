@@ -0,0 +1,292 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.tools.jib.blob.BlobDescriptor;
+import com.google.cloud.tools.jib.image.Image;
+import com.google.cloud.tools.jib.image.Layer;
+import com.google.cloud.tools.jib.image.json.ImageToJsonTranslator;
+import com.google.cloud.tools.jib.json.JsonTemplateMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes an image into an <a href="https://github.com/opencontainers/image-spec">OCI image
+ * layout</a> directory. Jib 0.10 has no OCI layout target of its own, so the image is assembled
+ * from Jib's caches and written here.
+ *
+ * <p>The layers are copied straight from the blobs of Jib's base image and application layer
+ * caches, which are content-addressed like the layout. Blobs that are already present in the
+ * layout are not rewritten, so repeated builds into the same layout only write the new layers,
+ * the configuration and the manifest. The image is recorded in {@code index.json} under its tag,
+ * replacing any earlier image with the same tag; the index is updated under a lock on the
+ * layout's {@code .lock} file, so that builds writing to the same layout at once keep each other's
+ * tags.
+ *
+ * <p>Jib generates a Docker image configuration, which is converted to an OCI image configuration
+ * by keeping only the fields that the OCI specification defines.
+ */
+class OciLayoutWriter {
+  static final String MANIFEST_MEDIA_TYPE = "application/vnd.oci.image.manifest.v1+json";
+  static final String CONFIG_MEDIA_TYPE = "application/vnd.oci.image.config.v1+json";
+  static final String LAYER_MEDIA_TYPE = "application/vnd.oci.image.layer.v1.tar+gzip";
+  static final String REF_NAME_ANNOTATION = "org.opencontainers.image.ref.name";
+
+  /** The fields of an OCI image configuration. */
+  private static final List<String> CONFIG_FIELDS =
+      Arrays.asList("created", "author", "architecture", "os", "config", "rootfs", "history");
+
+  /** The fields of the execution parameters in an OCI image configuration. */
+  private static final List<String> EXECUTION_FIELDS =
+      Arrays.asList(
+          "User",
+          "ExposedPorts",
+          "Env",
+          "Entrypoint",
+          "Cmd",
+          "Volumes",
+          "WorkingDir",
+          "Labels",
+          "StopSignal");
+
+  /** Serializes updates of the index by the builds of this JVM, which cannot share file locks. */
+  private static final Object INDEX_LOCK = new Object();
+
+  private final Path layoutDirectory;
+  private final ObjectMapper mapper = new ObjectMapper();
+  private int blobsWritten;
+  private int blobsReused;
+
+  OciLayoutWriter(Path layoutDirectory) {
+    this.layoutDirectory = layoutDirectory;
+  }
+
+  /**
+   * Write {@code image} into the layout.
+   *
+   * @param image the image, whose layers hold their compressed blobs, such as Jib's cached layers
+   * @param refName the name for the image in the layout's index, typically its tag
+   * @return the digest of the image manifest, e.g. {@code sha256:...}
+   */
+  String write(Image image, String refName) throws IOException {
+    return write(image, Collections.singletonList(refName));
+  }
+
+  /** Write {@code image} into the layout, recording it under each of {@code refNames}. */
+  String write(Image image, List<String> refNames) throws IOException {
+    byte[] config =
+        toOciConfig(
+            JsonTemplateMapper.toByteArray(
+                new ImageToJsonTranslator(image).getContainerConfiguration()));
+
+    Files.createDirectories(layoutDirectory.resolve("blobs").resolve("sha256"));
+    Path layoutFile = layoutDirectory.resolve("oci-layout");
+    if (!Files.exists(layoutFile)) {
+      byte[] layout = "{\"imageLayoutVersion\":\"1.0.0\"}".getBytes(StandardCharsets.UTF_8);
+      writeAtomically(layoutFile, layout);
+    }
+
+    ObjectNode manifest = mapper.createObjectNode();
+    manifest.put("schemaVersion", 2);
+    manifest.put("mediaType", MANIFEST_MEDIA_TYPE);
+    manifest.set("config", descriptor(CONFIG_MEDIA_TYPE, writeBlob(config), config.length));
+    ArrayNode layers = manifest.putArray("layers");
+    for (Layer layer : image.getLayers()) {
+      BlobDescriptor blob = copyBlob(layer);
+      layers.add(descriptor(LAYER_MEDIA_TYPE, blob.getDigest().toString(), blob.getSize()));
+    }
+    byte[] manifestBytes = mapper.writeValueAsBytes(manifest);
+    String manifestDigest = writeBlob(manifestBytes);
+    updateIndex(manifestDigest, manifestBytes.length, refNames);
+    return manifestDigest;
+  }
+
+  /** Return the number of blobs written by this writer. */
+  int getBlobsWritten() {
+    return blobsWritten;
+  }
+
+  /** Return the number of blobs that were already present in the layout. */
+  int getBlobsReused() {
+    return blobsReused;
+  }
+
+  /**
+   * Return the digest of the manifest recorded in {@code index.json} under {@code refName}, or
+   * {@code null} if there is none or its manifest blob is missing.
+   */
+  String getManifestDigest(String refName) throws IOException {
+    Path indexFile = layoutDirectory.resolve("index.json");
+    if (!Files.exists(indexFile)) {
+      return null;
+    }
+    for (JsonNode descriptor : mapper.readTree(indexFile.toFile()).path("manifests")) {
+      if (refName.equals(descriptor.path("annotations").path(REF_NAME_ANNOTATION).asText(null))) {
+        String digest = descriptor.path("digest").asText(null);
+        return digest != null && Files.exists(blobPath(digest)) ? digest : null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Convert a Docker image configuration to an OCI image configuration, dropping the fields that
+   * only Docker defines, such as the health check.
+   */
+  private byte[] toOciConfig(byte[] dockerConfig) throws IOException {
+    ObjectNode config = mapper.createObjectNode();
+    JsonNode original = mapper.readTree(dockerConfig);
+    for (String name : CONFIG_FIELDS) {
+      if (original.has(name)) {
+        config.set(name, original.get(name));
+      }
+    }
+    if (original.path("config").isObject()) {
+      ObjectNode execution = config.putObject("config");
+      for (String name : EXECUTION_FIELDS) {
+        if (original.get("config").has(name)) {
+          execution.set(name, original.get("config").get(name));
+        }
+      }
+    }
+    return mapper.writeValueAsBytes(config);
+  }
+
+  /**
+   * Record the manifest in {@code index.json}, replacing any manifests with the same names, while
+   * holding the layout's lock.
+   */
+  private void updateIndex(String manifestDigest, long manifestSize, List<String> refNames)
+      throws IOException {
+    synchronized (INDEX_LOCK) {
+      try (FileChannel lockChannel =
+              FileChannel.open(
+                  layoutDirectory.resolve(".lock"),
+                  StandardOpenOption.CREATE,
+                  StandardOpenOption.WRITE)) {
+        // closing the channel releases the lock
+        lockChannel.lock();
+        updateIndexLocked(manifestDigest, manifestSize, refNames);
+      }
+    }
+  }
+
+  private void updateIndexLocked(String manifestDigest, long manifestSize, List<String> refNames)
+      throws IOException {
+    Path indexFile = layoutDirectory.resolve("index.json");
+    ObjectNode index;
+    if (Files.exists(indexFile)) {
+      index = (ObjectNode) mapper.readTree(indexFile.toFile());
+    } else {
+      index = mapper.createObjectNode();
+      index.put("schemaVersion", 2);
+    }
+    ArrayNode manifests =
+        index.has("manifests") ? (ArrayNode) index.get("manifests") : index.putArray("manifests");
+    for (Iterator<JsonNode> iterator = manifests.iterator(); iterator.hasNext(); ) {
+      JsonNode existing = iterator.next();
+      if (refNames.contains(existing.path("annotations").path(REF_NAME_ANNOTATION).asText(null))) {
+        iterator.remove();
+      }
+    }
+    for (String refName : refNames) {
+      ObjectNode descriptor = descriptor(MANIFEST_MEDIA_TYPE, manifestDigest, manifestSize);
+      descriptor.putObject("annotations").put(REF_NAME_ANNOTATION, refName);
+      manifests.add(descriptor);
+    }
+    writeAtomically(indexFile, mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(index));
+  }
+
+  /** Write {@code contents} as a blob unless already present; return its digest. */
+  private String writeBlob(byte[] contents) throws IOException {
+    String digest = "sha256:" + Hashing.sha256().hashBytes(contents);
+    Path blob = blobPath(digest);
+    if (Files.exists(blob) && Files.size(blob) == contents.length) {
+      blobsReused++;
+    } else {
+      writeAtomically(blob, contents);
+      blobsWritten++;
+    }
+    return digest;
+  }
+
+  /** Copy the compressed blob of {@code layer} unless already present; return its descriptor. */
+  private BlobDescriptor copyBlob(Layer layer) throws IOException {
+    BlobDescriptor descriptor = layer.getBlobDescriptor();
+    Path blob = blobPath(descriptor.getDigest().toString());
+    if (Files.exists(blob) && Files.size(blob) == descriptor.getSize()) {
+      blobsReused++;
+      return descriptor;
+    }
+    Path temporary = Files.createTempFile(blob.getParent(), ".blob", ".tmp");
+    try {
+      try (OutputStream out = Files.newOutputStream(temporary)) {
+        layer.getBlob().writeTo(out);
+      }
+      Files.move(temporary, blob, StandardCopyOption.REPLACE_EXISTING);
+      blobsWritten++;
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+    return descriptor;
+  }
+
+  @VisibleForTesting
+  Path blobPath(String digest) {
+    int colon = digest.indexOf(':');
+    return layoutDirectory
+        .resolve("blobs")
+        .resolve(digest.substring(0, colon))
+        .resolve(digest.substring(colon + 1));
+  }
+
+  private ObjectNode descriptor(String mediaType, String digest, long size) {
+    ObjectNode descriptor = mapper.createObjectNode();
+    descriptor.put("mediaType", mediaType);
+    descriptor.put("digest", digest);
+    descriptor.put("size", size);
+    return descriptor;
+  }
+
+  /** Write to a temporary file and rename it, so readers never see a partial file. */
+  private static void writeAtomically(Path file, byte[] contents) throws IOException {
+    Path temporary = Files.createTempFile(file.getParent(), ".cram", ".tmp");
+    try {
+      Files.write(temporary, contents);
+      Files.move(
+          temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+}
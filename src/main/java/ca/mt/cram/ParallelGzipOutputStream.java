@@ -0,0 +1,296 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip stream that deflates blocks of its input in parallel, as pigz does, so that a large layer
+ * is not compressed on a single core. Each block is deflated on its own, primed with the last 32
+ * KiB of the previous block as a dictionary, and all but the last end with a sync flush so that
+ * the blocks concatenate into a single deflate stream. The output therefore depends only on the
+ * input, the compression level and the block size.
+ *
+ * <p>Blocks are deflated on an executor with a bounded number in flight, and written in order. A
+ * writer that must wait for a block that no thread has started deflates it itself, so that the
+ * stream cannot deadlock on an executor whose threads are all writing such streams.
+ *
+ * <p>The blocks in flight in all streams are also bounded by a shared {@link MemoryBudget}. A
+ * stream over the budget writes out its own blocks first, and only waits for other streams once it
+ * has none in flight; it may then go over the budget by one block if no other stream has any.
+ */
+class ParallelGzipOutputStream extends FilterOutputStream {
+  /** The smallest block size, the size of the deflate window. */
+  static final int MINIMUM_BLOCK_SIZE = 32 * 1024;
+
+  /** The header of a gzip member without a file name or modification time, as Java writes. */
+  private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+  /** The budget shared by streams that are not given one: a quarter of the maximum heap. */
+  private static final MemoryBudget SHARED_BUDGET =
+      new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+
+  private final int level;
+  private final int blockSize;
+  private final Executor executor;
+  private final MemoryBudget budget;
+  private final int maximumPending = 2 * Runtime.getRuntime().availableProcessors();
+  private final Deque<Block> pending = new ArrayDeque<>();
+  private final CRC32 crc = new CRC32();
+  private long size;
+  private byte[] block;
+  private int blockLength;
+  private byte[] dictionary;
+  private boolean finished;
+
+  /**
+   * Create a stream writing to {@code out}.
+   *
+   * @param level the {@link Deflater} compression level
+   * @param blockSize the number of bytes deflated by each task, at least {@link
+   *     #MINIMUM_BLOCK_SIZE}
+   * @param executor where blocks are deflated
+   */
+  ParallelGzipOutputStream(OutputStream out, int level, int blockSize, Executor executor)
+      throws IOException {
+    this(out, level, blockSize, executor, SHARED_BUDGET);
+  }
+
+  /**
+   * Create a stream writing to {@code out}, with the bytes of its blocks in flight drawn from
+   * {@code budget}.
+   */
+  @VisibleForTesting
+  ParallelGzipOutputStream(
+      OutputStream out, int level, int blockSize, Executor executor, MemoryBudget budget)
+      throws IOException {
+    super(out);
+    Preconditions.checkArgument(
+        blockSize >= MINIMUM_BLOCK_SIZE, "block size must be at least %s", MINIMUM_BLOCK_SIZE);
+    this.level = level;
+    this.blockSize = blockSize;
+    this.executor = executor;
+    this.budget = budget;
+    this.block = new byte[blockSize];
+    out.write(HEADER);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    if (finished) {
+      throw new IOException("stream is finished");
+    }
+    crc.update(bytes, offset, length);
+    size += length;
+    while (length > 0) {
+      int count = Math.min(length, blockSize - blockLength);
+      System.arraycopy(bytes, offset, block, blockLength, count);
+      blockLength += count;
+      offset += count;
+      length -= count;
+      if (blockLength == blockSize) {
+        submit(false);
+      }
+    }
+  }
+
+  /** Write the buffered input as the last block, and the gzip trailer. */
+  void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    submit(true);
+    long checksum = crc.getValue();
+    for (long value : new long[] {checksum, size}) {
+      // little-endian, and the size modulo 2^32
+      for (int shift = 0; shift < 32; shift += 8) {
+        out.write((int) (value >>> shift) & 0xff);
+      }
+    }
+    finished = true;
+  }
+
+  /** Flushes only the blocks already deflated: the deflate stream is flushed at block ends. */
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      try {
+        out.close();
+      } finally {
+        // blocks left by a failure are abandoned, but their budget must be returned
+        for (Block abandoned : pending) {
+          budget.release(abandoned.length);
+        }
+        pending.clear();
+      }
+    }
+  }
+
+  /** Deflate the buffered block, writing out completed blocks to bound those in flight. */
+  private void submit(boolean last) throws IOException {
+    byte[] input = block;
+    int length = blockLength;
+    byte[] priming = dictionary;
+    while (!budget.tryAcquire(length)) {
+      if (pending.isEmpty()) {
+        budget.acquire(length);
+        break;
+      }
+      writeNext();
+    }
+    Block task = new Block(() -> deflate(input, length, priming, last), length);
+    pending.add(task);
+    executor.execute(task);
+    if (!last) {
+      dictionary = Arrays.copyOfRange(input, length - MINIMUM_BLOCK_SIZE, length);
+      block = new byte[blockSize];
+      blockLength = 0;
+    }
+    while (pending.size() > maximumPending || (last && !pending.isEmpty())) {
+      writeNext();
+    }
+  }
+
+  private void writeNext() throws IOException {
+    Block task = pending.remove();
+    try {
+      // deflate the block here if no thread has started it
+      task.run();
+      out.write(task.get());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException ex) {
+      throw new IOException("unable to compress", ex.getCause());
+    } finally {
+      budget.release(task.length);
+    }
+  }
+
+  private byte[] deflate(byte[] input, int length, byte[] priming, boolean last) {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      if (priming != null) {
+        deflater.setDictionary(priming);
+      }
+      deflater.setInput(input, 0, length);
+      ByteArrayOutputStream output = new ByteArrayOutputStream(length / 2 + 64);
+      byte[] buffer = new byte[64 * 1024];
+      if (last) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          output.write(buffer, 0, deflater.deflate(buffer));
+        }
+      } else {
+        int count;
+        do {
+          count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+          output.write(buffer, 0, count);
+        } while (count == buffer.length);
+      }
+      return output.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** The deflation of a block, holding {@code length} bytes of the budget until written. */
+  private static class Block extends FutureTask<byte[]> {
+    final int length;
+
+    Block(Callable<byte[]> deflation, int length) {
+      super(deflation);
+      this.length = length;
+    }
+  }
+
+  /** A number of bytes that blocks in flight may hold in total, across streams. */
+  static class MemoryBudget {
+    private final long limit;
+    private long used;
+    private long peak;
+
+    MemoryBudget(long limit) {
+      this.limit = limit;
+    }
+
+    /** Take {@code bytes} if they fit within the limit. */
+    synchronized boolean tryAcquire(long bytes) {
+      if (used > 0 && used + bytes > limit) {
+        return false;
+      }
+      used += bytes;
+      peak = Math.max(peak, used);
+      return true;
+    }
+
+    /** Take {@code bytes}, waiting until they fit or nothing else is in use. */
+    synchronized void acquire(long bytes) throws InterruptedIOException {
+      while (!tryAcquire(bytes)) {
+        try {
+          wait();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+    }
+
+    synchronized void release(long bytes) {
+      used -= bytes;
+      notifyAll();
+    }
+
+    @VisibleForTesting
+    synchronized long getUsed() {
+      return used;
+    }
+
+    /** Return the most bytes in use at once. */
+    @VisibleForTesting
+    synchronized long getPeak() {
+      return peak;
+    }
+  }
+}
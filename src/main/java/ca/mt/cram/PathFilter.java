@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+import picocli.CommandLine;
+
+/**
+ * Selects the files of a tree to add to a layer from {@code include} and {@code exclude} globs,
+ * matched against paths relative to the root of the tree. As in a {@code .gitignore}, a glob
+ * without a {@code /}, like {@code *.map} or {@code node_modules}, matches a file or directory of
+ * that name at any depth, while a glob with a {@code /}, like {@code logs/*.log} or {@code
+ * /static}, matches from the root. A trailing {@code /} is ignored.
+ *
+ * <p>An excluded directory is skipped together with everything below it, and takes precedence
+ * over any include. When there are includes, only matching files, and everything below matching
+ * directories, are added, along with the directories leading to them. The globs are compiled once
+ * so that {@link FileTreeScanner} can test each path as it is listed, before reading its
+ * attributes.
+ */
+class PathFilter {
+  /** A filter that selects every file. */
+  static final PathFilter ALL = new PathFilter(Collections.emptyList(), Collections.emptyList());
+
+  /** A glob compiled to match either the file name or the whole relative path. */
+  private static class Glob {
+    final PathMatcher matcher;
+    final boolean matchesName;
+
+    Glob(PathMatcher matcher, boolean matchesName) {
+      this.matcher = matcher;
+      this.matchesName = matchesName;
+    }
+
+    boolean matches(Path relative) {
+      return matcher.matches(matchesName ? relative.getFileName() : relative);
+    }
+  }
+
+  private final List<Glob> includes;
+  private final List<Glob> excludes;
+
+  /**
+   * Compile include and exclude globs.
+   *
+   * @throws CommandLine.TypeConversionException if a glob is invalid
+   */
+  static PathFilter compile(List<String> includes, List<String> excludes) {
+    if (includes.isEmpty() && excludes.isEmpty()) {
+      return ALL;
+    }
+    FileSystem fileSystem = FileSystems.getDefault();
+    return new PathFilter(compile(fileSystem, includes), compile(fileSystem, excludes));
+  }
+
+  private static List<Glob> compile(FileSystem fileSystem, List<String> patterns) {
+    List<Glob> globs = new ArrayList<>(patterns.size());
+    for (String pattern : patterns) {
+      String glob = pattern;
+      while (glob.endsWith("/")) {
+        glob = glob.substring(0, glob.length() - 1);
+      }
+      boolean matchesName = !glob.contains("/");
+      while (glob.startsWith("/")) {
+        glob = glob.substring(1);
+      }
+      if (glob.isEmpty()) {
+        throw new CommandLine.TypeConversionException("empty glob: " + pattern);
+      }
+      try {
+        globs.add(new Glob(fileSystem.getPathMatcher("glob:" + glob), matchesName));
+      } catch (PatternSyntaxException ex) {
+        throw new CommandLine.TypeConversionException("invalid glob: " + pattern);
+      }
+    }
+    return globs;
+  }
+
+  private PathFilter(List<Glob> includes, List<Glob> excludes) {
+    this.includes = includes;
+    this.excludes = excludes;
+  }
+
+  /** Return true if only the paths matching an include are to be added. */
+  boolean hasIncludes() {
+    return !includes.isEmpty();
+  }
+
+  /** Return true if the path, relative to the root of the tree, is excluded. */
+  boolean isExcluded(Path relative) {
+    return matchesAny(excludes, relative);
+  }
+
+  /** Return true if the path, relative to the root of the tree, matches an include. */
+  boolean isIncluded(Path relative) {
+    return matchesAny(includes, relative);
+  }
+
+  private static boolean matchesAny(List<Glob> globs, Path relative) {
+    for (Glob glob : globs) {
+      if (glob.matches(relative)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.Objects;
+import picocli.CommandLine;
+
+/**
+ * An operating system and architecture, with an optional variant, as in {@code linux/amd64} or
+ * {@code linux/arm/v7}; the platform of an image in a manifest list.
+ */
+class Platform {
+
+  /** Parses a platform like {@code linux/arm64}. */
+  static class Parser implements CommandLine.ITypeConverter<Platform> {
+
+    @Override
+    public Platform convert(String value) throws Exception {
+      String[] parts = value.split("/");
+      if (parts.length < 2 || parts.length > 3) {
+        throw new CommandLine.TypeConversionException(
+            "invalid platform: " + value + " (expected os/architecture[/variant])");
+      }
+      for (String part : parts) {
+        if (!part.matches("[a-z0-9_]+")) {
+          throw new CommandLine.TypeConversionException("invalid platform: " + value);
+        }
+      }
+      return new Platform(parts[0], parts[1], parts.length == 3 ? parts[2] : null);
+    }
+  }
+
+  private final String os;
+  private final String architecture;
+  private final String variant;
+
+  Platform(String os, String architecture, String variant) {
+    this.os = os;
+    this.architecture = architecture;
+    this.variant = variant;
+  }
+
+  String getOs() {
+    return os;
+  }
+
+  String getArchitecture() {
+    return architecture;
+  }
+
+  /** Return the variant, like {@code v8}, or {@code null} if unspecified. */
+  String getVariant() {
+    return variant;
+  }
+
+  /**
+   * Return true if the {@code platform} object of a manifest list entry describes this platform.
+   * An unspecified variant matches any variant.
+   */
+  boolean matches(JsonNode platform) {
+    return os.equals(platform.path("os").asText(null))
+        && architecture.equals(platform.path("architecture").asText(null))
+        && (variant == null || variant.equals(platform.path("variant").asText(null)));
+  }
+
+  /** Return a suffix for a tag, like {@code linux-arm64}. */
+  String toTagSuffix() {
+    return toString().replace('/', '-');
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof Platform)) {
+      return false;
+    }
+    Platform platform = (Platform) other;
+    return os.equals(platform.os)
+        && architecture.equals(platform.architecture)
+        && Objects.equals(variant, platform.variant);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(os, architecture, variant);
+  }
+
+  @Override
+  public String toString() {
+    return os + "/" + architecture + (variant == null ? "" : "/" + variant);
+  }
+}
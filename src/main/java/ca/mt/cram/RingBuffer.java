@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A bounded, lock-free queue for many producers and a single consumer. Producers never wait: an
+ * element offered when the buffer is full is dropped and counted, or left to the producer to
+ * retry. A producer claims a slot by advancing the tail, then publishes its element into the slot;
+ * the consumer stops at a claimed slot whose element is not yet published, and takes it on its
+ * next drain.
+ */
+class RingBuffer<T> {
+  private final AtomicReferenceArray<T> slots;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  /** Written only by the consumer. */
+  private volatile long head;
+
+  /** Create a buffer holding {@code capacity} elements, a power of two. */
+  RingBuffer(int capacity) {
+    Preconditions.checkArgument(
+        capacity > 0 && Integer.bitCount(capacity) == 1, "capacity must be a power of two");
+    slots = new AtomicReferenceArray<>(capacity);
+    mask = capacity - 1;
+  }
+
+  /** Add an element, or drop it if the buffer is full; return false if dropped. */
+  boolean offer(T element) {
+    if (!tryOffer(element)) {
+      dropped.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Add an element if the buffer has room; return false, without counting the element as dropped,
+   * if it is full.
+   */
+  boolean tryOffer(T element) {
+    Preconditions.checkNotNull(element);
+    long claimed;
+    do {
+      claimed = tail.get();
+      if (claimed - head > mask) {
+        return false;
+      }
+    } while (!tail.compareAndSet(claimed, claimed + 1));
+    slots.lazySet((int) claimed & mask, element);
+    return true;
+  }
+
+  /**
+   * Pass the published elements to {@code consumer} in order; called only by the consumer thread.
+   *
+   * @return the number of elements drained
+   */
+  int drain(Consumer<? super T> consumer) {
+    int count = 0;
+    long next = head;
+    while (next < tail.get()) {
+      int index = (int) next & mask;
+      T element = slots.get(index);
+      if (element == null) {
+        // claimed but not yet published
+        break;
+      }
+      slots.lazySet(index, null);
+      head = ++next;
+      count++;
+      consumer.accept(element);
+    }
+    return count;
+  }
+
+  /** Return and reset the number of elements dropped since the last call. */
+  long takeDropped() {
+    return dropped.getAndSet(0);
+  }
+}
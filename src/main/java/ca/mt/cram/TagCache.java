@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.ImageReference;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+/**
+ * Remembers the digest that each base image tag last resolved to, so that builds within the time
+ * to live use the image by digest rather than asking the registry what the tag refers to. A base
+ * image pulled by digest never changes, so Jib's cached manifest and configuration for it can be
+ * used without contacting the registry at all. The time to live is zero unless configured, so that
+ * by default every build resolves the tag and only {@code --offline} uses an older resolution.
+ *
+ * <p>Resolutions are kept in cram's own cache, one file per tag holding the tag, the digest and the
+ * time of resolution.
+ */
+class TagCache {
+  static final Duration DEFAULT_TIME_TO_LIVE = Duration.ZERO;
+
+  /** Where resolutions are kept when there is no {@code --cache-dir}. */
+  static final Path DEFAULT_DIRECTORY =
+      Paths.get(System.getProperty("user.home"), ".cache", "cram", "tags");
+
+  private final Path directory;
+  private final Duration timeToLive;
+  private final Clock clock;
+
+  /** Create a cache keeping its resolutions in {@code directory}. */
+  TagCache(Path directory, Duration timeToLive) {
+    this(directory, timeToLive, Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  TagCache(Path directory, Duration timeToLive, Clock clock) {
+    this.directory = directory;
+    this.timeToLive = timeToLive;
+    this.clock = clock;
+  }
+
+  /**
+   * Return the digest that {@code tag} last resolved to, or {@code null} if it has not been
+   * resolved within the time to live.
+   *
+   * @param ignoreExpiry true to return the last resolution however old, as when offline
+   */
+  String get(ImageReference tag, boolean ignoreExpiry) throws IOException {
+    List<String> lines;
+    try {
+      lines = Files.readAllLines(file(tag), StandardCharsets.UTF_8);
+    } catch (NoSuchFileException ex) {
+      return null;
+    }
+    if (lines.size() < 3 || !lines.get(0).equals(tag.toString())) {
+      // corrupt, or another tag with the same hash: treat as never resolved
+      return null;
+    }
+    Instant resolved;
+    try {
+      resolved = Instant.parse(lines.get(2));
+    } catch (DateTimeParseException ex) {
+      return null;
+    }
+    if (!ignoreExpiry && !clock.instant().isBefore(resolved.plus(timeToLive))) {
+      return null;
+    }
+    return lines.get(1);
+  }
+
+  /** Record that {@code tag} now resolves to {@code digest}. */
+  void put(ImageReference tag, String digest) throws IOException {
+    Path file = file(tag);
+    Files.createDirectories(file.getParent());
+    Path temporary = Files.createTempFile(file.getParent(), ".tag", ".tmp");
+    try {
+      String contents = tag + "\n" + digest + "\n" + clock.instant() + "\n";
+      Files.write(temporary, contents.getBytes(StandardCharsets.UTF_8));
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  private Path file(ImageReference tag) {
+    String name = Hashing.sha256().hashString(tag.toString(), StandardCharsets.UTF_8).toString();
+    return directory.resolve(name);
+  }
+}
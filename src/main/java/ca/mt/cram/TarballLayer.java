@@ -0,0 +1,295 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.AbsoluteUnixPath;
+import com.google.cloud.tools.jib.api.FilePermissions;
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.api.LayerEntry;
+import com.google.cloud.tools.jib.blob.Blobs;
+import com.google.cloud.tools.jib.cache.Cache;
+import com.google.cloud.tools.jib.cache.CacheCorruptedException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+/**
+ * A layer taken from an existing tarball, as given by the {@code tar=} source of a layer
+ * definition, rather than built from a file tree. Jib only builds layers from files, so the layer
+ * is represented to Jib by a placeholder entry for the archive, and the tarball is stored in Jib's
+ * application-layers cache as the layer for that entry before containerizing; Jib then finds the
+ * layer already built. The placeholder's container path is derived from the rewrites below, so
+ * that changing them selects another cached layer.
+ *
+ * <p>A gzip-compressed tarball is stored as is, so the layer's digest is that of the archive. A
+ * tarball is otherwise streamed once, and compressed as other layers are: with the directives of
+ * the definition, its entries are placed under the container path rather than at the root, and
+ * their permissions and modification times are rewritten.
+ */
+class TarballLayer {
+  /** The prefix of a layer definition source that is a tarball. */
+  static final String SOURCE_PREFIX = "tar=";
+
+  private final Path archive;
+  private final AbsoluteUnixPath containerRoot;
+  private final FilePermissions filePermissions;
+  private final FilePermissions directoryPermissions;
+  private final Instant timestamp;
+  private final LayerConfiguration layer;
+
+  /**
+   * Create a layer from {@code archive}.
+   *
+   * @param containerRoot the container directory to place the archive's entries in
+   * @param filePermissions the permissions for files, or {@code null} to keep those in the archive
+   * @param directoryPermissions the permissions for directories, or {@code null} to keep those in
+   *     the archive
+   * @param timestamp the modification time for all entries, or {@code null} to keep those in the
+   *     archive
+   * @param name the name of the layer
+   */
+  TarballLayer(
+      Path archive,
+      AbsoluteUnixPath containerRoot,
+      FilePermissions filePermissions,
+      FilePermissions directoryPermissions,
+      Instant timestamp,
+      String name) {
+    this.archive = archive;
+    this.containerRoot = containerRoot;
+    this.filePermissions = filePermissions;
+    this.directoryPermissions = directoryPermissions;
+    this.timestamp = timestamp;
+    String rewrites =
+        containerRoot + "\n" + filePermissions + "\n" + directoryPermissions + "\n" + timestamp;
+    String placeholder =
+        "/.cram-tarball/" + Hashing.sha256().hashString(rewrites, StandardCharsets.UTF_8);
+    this.layer =
+        LayerConfiguration.builder()
+            .setName(name)
+            .addEntry(
+                new LayerEntry(
+                    archive,
+                    AbsoluteUnixPath.get(placeholder),
+                    FilePermissions.DEFAULT_FILE_PERMISSIONS,
+                    LayerConfiguration.DEFAULT_MODIFIED_TIME))
+            .build();
+  }
+
+  /** Return the layer to give to Jib. */
+  LayerConfiguration getLayer() {
+    return layer;
+  }
+
+  /** Return true if the archive's entries are changed in the layer. */
+  boolean isRewritten() {
+    return !"/".equals(containerRoot.toString())
+        || filePermissions != null
+        || directoryPermissions != null
+        || timestamp != null;
+  }
+
+  /**
+   * Store the tarball layers missing from the cache in {@code cacheDirectory} on {@code executor}.
+   *
+   * @param level the {@link java.util.zip.Deflater} compression level for tarballs that are not
+   *     already compressed, or are rewritten
+   * @param blockSize the size of the blocks to compress in parallel, or 0 to compress each layer
+   *     as a single stream
+   * @return the number of layers stored
+   */
+  static int store(
+      Path cacheDirectory, List<TarballLayer> tarballs, int level, int blockSize, Executor executor)
+      throws IOException {
+    Cache cache = Cache.withDirectory(cacheDirectory);
+    List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+    for (TarballLayer tarball : tarballs) {
+      pending.add(
+          CompletableFuture.supplyAsync(
+              () -> {
+                try {
+                  return tarball.store(cache, cacheDirectory, level, blockSize, executor);
+                } catch (IOException ex) {
+                  throw new CompletionException(ex);
+                }
+              },
+              executor));
+    }
+    int stored = 0;
+    for (CompletableFuture<Boolean> layer : pending) {
+      try {
+        stored += layer.join() ? 1 : 0;
+      } catch (CompletionException ex) {
+        Throwables.throwIfUnchecked(ex.getCause());
+        Throwables.throwIfInstanceOf(ex.getCause(), IOException.class);
+        throw ex;
+      }
+    }
+    return stored;
+  }
+
+  private boolean store(
+      Cache cache, Path cacheDirectory, int level, int blockSize, Executor executor)
+      throws IOException {
+    ImmutableList<LayerEntry> entries = layer.getLayerEntries();
+    try {
+      if (cache.retrieve(entries).isPresent()) {
+        return false;
+      }
+    } catch (CacheCorruptedException ex) {
+      // overwritten below
+    }
+    if (!isRewritten() && isCompressed(archive)) {
+      LayerCompressor.storeCompressed(cacheDirectory, entries, archive);
+    } else {
+      LayerCompressor.store(
+          cache, cacheDirectory, entries, Blobs.from(this::writeTo), level, blockSize, executor);
+    }
+    return true;
+  }
+
+  /** Write the uncompressed tarball of the layer. */
+  @VisibleForTesting
+  void writeTo(OutputStream output) throws IOException {
+    try (InputStream input = open(archive)) {
+      if (!isRewritten()) {
+        ByteStreams.copy(input, output);
+        return;
+      }
+      rewrite(input, output);
+    }
+  }
+
+  /** Copy the archive, placing its entries under the container root and rewriting them. */
+  private void rewrite(InputStream input, OutputStream output) throws IOException {
+    String prefix = containerRoot.toString().substring(1);
+    try (TarArchiveInputStream tarInput = new TarArchiveInputStream(input, "UTF-8");
+        TarArchiveOutputStream tarOutput = new TarArchiveOutputStream(output, "UTF-8")) {
+      tarOutput.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+      tarOutput.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+      // the container root and the directories above it, as Jib adds them; the container root
+      // stands for the archive's root, whose own entry is dropped
+      String parent = "";
+      for (String component : prefix.isEmpty() ? new String[0] : prefix.split("/")) {
+        parent += component + "/";
+        TarArchiveEntry directory = new TarArchiveEntry(parent);
+        if (parent.length() == prefix.length() + 1 && directoryPermissions != null) {
+          directory.setMode(
+              (directory.getMode() & ~0777) | directoryPermissions.getPermissionBits());
+        }
+        directory.setModTime(
+            (timestamp != null ? timestamp : LayerConfiguration.DEFAULT_MODIFIED_TIME)
+                .toEpochMilli());
+        tarOutput.putArchiveEntry(directory);
+        tarOutput.closeArchiveEntry();
+      }
+
+      TarArchiveEntry entry;
+      while ((entry = tarInput.getNextTarEntry()) != null) {
+        entry.setName(relocate(prefix, entry.getName()));
+        if (entry.getName().equals(parent)) {
+          continue;
+        }
+        if (entry.isLink()) {
+          entry.setLinkName(relocate(prefix, entry.getLinkName()));
+        }
+        if (entry.isDirectory() && directoryPermissions != null) {
+          entry.setMode((entry.getMode() & ~0777) | directoryPermissions.getPermissionBits());
+        } else if (!entry.isDirectory() && !entry.isSymbolicLink() && filePermissions != null) {
+          entry.setMode((entry.getMode() & ~0777) | filePermissions.getPermissionBits());
+        }
+        if (timestamp != null) {
+          entry.setModTime(timestamp.toEpochMilli());
+        }
+        tarOutput.putArchiveEntry(entry);
+        // only the contents of regular files are read from the archive
+        ByteStreams.copy(tarInput, tarOutput);
+        tarOutput.closeArchiveEntry();
+      }
+    }
+  }
+
+  /**
+   * Return the normalized path of an archive entry placed under {@code prefix}.
+   *
+   * @throws IOException if the path climbs out of the archive's root
+   */
+  @VisibleForTesting
+  static String relocate(String prefix, String name) throws IOException {
+    Deque<String> components = new ArrayDeque<>();
+    for (String component : name.split("/")) {
+      if (component.isEmpty() || component.equals(".")) {
+        continue;
+      }
+      if (component.equals("..")) {
+        if (components.isEmpty()) {
+          throw new IOException("archive entry outside of the archive's root: " + name);
+        }
+        components.removeLast();
+      } else {
+        components.addLast(component);
+      }
+    }
+    if (components.isEmpty()) {
+      return prefix.isEmpty() ? "./" : prefix + "/";
+    }
+    String path = (prefix.isEmpty() ? "" : prefix + "/") + String.join("/", components);
+    return name.endsWith("/") ? path + "/" : path;
+  }
+
+  /** Open the archive, decompressing it if it is gzip-compressed. */
+  private static InputStream open(Path archive) throws IOException {
+    InputStream input = new BufferedInputStream(Files.newInputStream(archive), 64 * 1024);
+    try {
+      input.mark(2);
+      boolean compressed = input.read() == 0x1f && input.read() == 0x8b;
+      input.reset();
+      return compressed ? new GZIPInputStream(input, 64 * 1024) : input;
+    } catch (IOException ex) {
+      input.close();
+      throw ex;
+    }
+  }
+
+  /** Return true if the file starts with the gzip magic number. */
+  private static boolean isCompressed(Path archive) throws IOException {
+    try (InputStream input = Files.newInputStream(archive)) {
+      return input.read() == 0x1f && input.read() == 0x8b;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Opens Unix domain socket channels. These are only available from Java 16, and Cram is compiled
+ * for Java 8, so the relevant factory methods are found reflectively.
+ */
+class UnixSockets {
+
+  /** Return the default socket path for the daemon. */
+  static Path defaultSocketPath() {
+    return Paths.get(
+        System.getProperty("java.io.tmpdir"), "cram-" + System.getProperty("user.name") + ".sock");
+  }
+
+  /** Return true if this JVM supports Unix domain sockets. */
+  static boolean isSupported() {
+    try {
+      unixFamily();
+      Class.forName("java.net.UnixDomainSocketAddress");
+      return true;
+    } catch (UnsupportedOperationException | ClassNotFoundException ex) {
+      return false;
+    }
+  }
+
+  /** Open a server channel bound to {@code path}. */
+  static ServerSocketChannel bind(Path path) throws IOException {
+    ServerSocketChannel channel =
+        (ServerSocketChannel) invoke(ServerSocketChannel.class, unixFamily());
+    channel.bind(address(path));
+    return channel;
+  }
+
+  /** Open a channel connected to the server listening on {@code path}. */
+  static SocketChannel connect(Path path) throws IOException {
+    SocketChannel channel = (SocketChannel) invoke(SocketChannel.class, unixFamily());
+    try {
+      channel.connect(address(path));
+      return channel;
+    } catch (IOException ex) {
+      channel.close();
+      throw ex;
+    }
+  }
+
+  private static ProtocolFamily unixFamily() {
+    try {
+      return StandardProtocolFamily.valueOf("UNIX");
+    } catch (IllegalArgumentException ex) {
+      throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later");
+    }
+  }
+
+  private static SocketAddress address(Path path) throws IOException {
+    try {
+      return (SocketAddress)
+          Class.forName("java.net.UnixDomainSocketAddress")
+              .getMethod("of", Path.class)
+              .invoke(null, path);
+    } catch (ReflectiveOperationException ex) {
+      throw new IOException("unable to create socket address for " + path, ex);
+    }
+  }
+
+  /** Invoke the static {@code open(ProtocolFamily)} method on the channel class. */
+  private static Object invoke(Class<?> channelClass, ProtocolFamily family) throws IOException {
+    try {
+      return channelClass.getMethod("open", ProtocolFamily.class).invoke(null, family);
+    } catch (InvocationTargetException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+      throw new IOException("unable to open " + channelClass.getSimpleName(), ex.getCause());
+    } catch (ReflectiveOperationException ex) {
+      throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later");
+    }
+  }
+}
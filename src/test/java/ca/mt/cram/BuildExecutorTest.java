@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+/** Tests for {@link BuildExecutor}. */
+class BuildExecutorTest {
+
+  @Test
+  void testCreate_bounded() throws InterruptedException {
+    BuildExecutor executor = BuildExecutor.create(BuildExecutor.Kind.PLATFORM, 2);
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      for (int i = 0; i < 5; i++) {
+        executor.execute(
+            () -> {
+              try {
+                release.await();
+              } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+              }
+            });
+      }
+      Assertions.assertEquals(2, executor.getPoolSize());
+      Assertions.assertEquals(3, executor.getLargestQueueDepth());
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+    Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    Assertions.assertEquals(2, executor.getLargestPoolSize());
+    Assertions.assertEquals(5, executor.getCompletedTaskCount());
+    Assertions.assertEquals(
+        "2 platform threads max, 2 used, 5 tasks completed, largest queue depth 3, "
+            + "0 step threads used",
+        executor.getStatistics());
+  }
+
+  @Test
+  void testStepExecutor() throws Exception {
+    BuildExecutor executor = BuildExecutor.create(BuildExecutor.Kind.PLATFORM, 1);
+    try {
+      ExecutorService steps = executor.getStepExecutor();
+      // like Jib's final steps: block on tasks scheduled on the same executor, while the build
+      // threads are all busy
+      CountDownLatch release = new CountDownLatch(1);
+      executor.execute(
+          () -> {
+            try {
+              release.await();
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+            }
+          });
+      Future<String> outer =
+          steps.submit(() -> steps.submit(() -> steps.submit(() -> "done").get()).get());
+      Assertions.assertEquals("done", outer.get(10, TimeUnit.SECONDS));
+      Assertions.assertEquals(1, executor.getPoolSize());
+      release.countDown();
+    } finally {
+      executor.shutdown();
+    }
+    Assertions.assertTrue(executor.getStepExecutor().isShutdown());
+  }
+
+  @Test
+  void testBusyTime() throws Exception {
+    BuildExecutor executor = BuildExecutor.create(BuildExecutor.Kind.PLATFORM, 2);
+    try {
+      BuildExecutor.Tracker tracker = executor.track();
+      BuildExecutor.Tracker other = executor.track();
+      Assertions.assertEquals(0, tracker.getBusyNanos());
+      CompletableFuture.runAsync(() -> sleep(20), tracker).get(10, TimeUnit.SECONDS);
+      // another build's tasks, and those submitted directly, are not counted
+      CompletableFuture.runAsync(() -> sleep(50), other).get(10, TimeUnit.SECONDS);
+      executor.submit(() -> sleep(50)).get(10, TimeUnit.SECONDS);
+      Assertions.assertTrue(tracker.getBusyNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+      Assertions.assertTrue(tracker.getBusyNanos() < TimeUnit.MILLISECONDS.toNanos(50));
+      Assertions.assertTrue(other.getBusyNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  void testCreate_invalidThreads() {
+    Assertions.assertThrows(
+        IllegalArgumentException.class,
+        () -> BuildExecutor.create(BuildExecutor.Kind.PLATFORM, 0));
+  }
+
+  @Test
+  void testCreate_virtual() throws InterruptedException {
+    Assumptions.assumeTrue(BuildExecutor.isVirtualThreadsSupported());
+    BuildExecutor executor = BuildExecutor.create(BuildExecutor.Kind.VIRTUAL, 1);
+    executor.execute(() -> {});
+    executor.shutdown();
+    Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    Assertions.assertEquals(1, executor.getCompletedTaskCount());
+  }
+
+  @Test
+  void testCreate_virtualUnsupported() {
+    Assumptions.assumeFalse(BuildExecutor.isVirtualThreadsSupported());
+    Assertions.assertThrows(
+        UnsupportedOperationException.class,
+        () -> BuildExecutor.create(BuildExecutor.Kind.VIRTUAL, 1));
+  }
+}
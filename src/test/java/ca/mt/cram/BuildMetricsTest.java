@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.cloud.tools.jib.api.LogEvent;
+import com.google.cloud.tools.jib.event.events.ProgressEvent;
+import com.google.cloud.tools.jib.event.events.TimerEvent;
+import com.google.cloud.tools.jib.event.progress.Allocation;
+import java.time.Duration;
+import java.util.Optional;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Tests for {@link BuildMetrics}. */
+class BuildMetricsTest {
+  private static final String LAYER1 = "sha256:" + repeat('1');
+  private static final String LAYER2 = "sha256:" + repeat('2');
+  private static final String BASE = "sha256:" + repeat('3');
+
+  private BuildMetrics metrics;
+
+  @BeforeEach
+  void setUp() {
+    metrics = new BuildMetrics("registry.example.com/app:1.0");
+    // a pushed layer, a layer already on the registry, and a base layer found in the cache
+    progress("pushing blob " + LAYER1, 3000);
+    progress("pushing blob " + LAYER1, 1000);
+    timer("Pushing BLOB " + LAYER1, 2000);
+    metrics.accept(LogEvent.info("BLOB : " + LAYER2 + " already exists on registry"));
+    timer("Pushing BLOB " + LAYER2, 10);
+    timer("Pulling base image layer " + BASE, 5);
+    timer("Building app-classes layer", 40);
+    timer("Building app-resources layer", 60);
+    metrics.recordPhase("resolve-layers", Duration.ofMillis(25).toNanos());
+    metrics.recordCache("layer", 2, 1);
+    metrics.finish(true, LAYER1);
+  }
+
+  @Test
+  void testToJson() {
+    JsonNode json = metrics.toJson();
+    Assertions.assertEquals("registry.example.com/app:1.0", json.get("image").asText());
+    Assertions.assertTrue(json.get("succeeded").asBoolean());
+
+    JsonNode phases = json.get("phases");
+    Assertions.assertEquals(2, phases.get("pushing-blob").get("count").asInt());
+    Assertions.assertEquals(2010, phases.get("pushing-blob").get("totalMillis").asLong());
+    Assertions.assertEquals(2000, phases.get("pushing-blob").get("maximumMillis").asLong());
+    Assertions.assertEquals(2, phases.get("building-layer").get("count").asInt());
+    Assertions.assertEquals(25, phases.get("resolve-layers").get("totalMillis").asLong());
+
+    // only the layer that was actually pushed
+    JsonNode layers = json.get("layers");
+    Assertions.assertEquals(1, layers.size());
+    Assertions.assertEquals(LAYER1, layers.get(0).get("digest").asText());
+    Assertions.assertEquals("push", layers.get(0).get("direction").asText());
+    Assertions.assertEquals(4000, layers.get(0).get("bytes").asLong());
+    Assertions.assertEquals(2000, layers.get(0).get("bytesPerSecond").asLong());
+
+    JsonNode caches = json.get("caches");
+    Assertions.assertEquals(2, caches.get("layer").get("hits").asLong());
+    Assertions.assertEquals(1, caches.get("registry").get("hits").asLong());
+    Assertions.assertEquals(1, caches.get("registry").get("misses").asLong());
+    Assertions.assertEquals(1, caches.get("base-image").get("hits").asLong());
+    Assertions.assertEquals(0, caches.get("base-image").get("misses").asLong());
+  }
+
+  @Test
+  void testToPrometheus() {
+    String text = metrics.toPrometheus();
+    String image = "image=\"registry.example.com/app:1.0\"";
+    Assertions.assertTrue(text.contains("# TYPE cram_build_duration_seconds gauge\n"));
+    Assertions.assertTrue(text.contains("cram_build_success{" + image + "} 1\n"));
+    Assertions.assertTrue(
+        text.contains("cram_phase_duration_seconds{" + image + ",phase=\"pushing-blob\"} 2.01\n"));
+    // transfers are summed by direction rather than labelled with digests
+    Assertions.assertTrue(
+        text.contains("cram_layer_bytes_per_second{" + image + ",direction=\"push\"} 2000\n"));
+    Assertions.assertTrue(
+        text.contains("cram_layers_transferred{" + image + ",direction=\"push\"} 1\n"));
+    Assertions.assertFalse(text.contains(LAYER1));
+    Assertions.assertTrue(text.contains("cram_cache_misses{" + image + ",cache=\"layer\"} 1\n"));
+  }
+
+  @Test
+  void testPhaseName() {
+    Assertions.assertEquals("pushing-blob", BuildMetrics.phaseName("Pushing BLOB " + LAYER1));
+    Assertions.assertEquals(
+        "building-image-to-tar-file", BuildMetrics.phaseName("Building image to tar file..."));
+    Assertions.assertEquals("building-layer", BuildMetrics.phaseName("Building classes layer"));
+  }
+
+  private void timer(String description, long millis) {
+    TimerEvent.Timer timer = Optional::empty;
+    Duration elapsed = Duration.ofMillis(millis);
+    metrics.accept(
+        new TimerEvent(TimerEvent.State.START, timer, Duration.ZERO, Duration.ZERO, description));
+    metrics.accept(
+        new TimerEvent(TimerEvent.State.FINISHED, timer, elapsed, elapsed, description));
+  }
+
+  private void progress(String description, long bytes) {
+    metrics.accept(new ProgressEvent(Allocation.newRoot(description, 4000), bytes));
+  }
+
+  private static String repeat(char c) {
+    StringBuilder hash = new StringBuilder();
+    for (int i = 0; i < 64; i++) {
+      hash.append(c);
+    }
+    return hash.toString();
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link BuildRecord}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class BuildRecordTest {
+  private Path directory;
+  private DescriptorDigest digest;
+
+  @BeforeEach
+  public void setUp(TemporaryFolder temporaryFolder) throws Exception {
+    directory = temporaryFolder.getRoot().toPath();
+    digest =
+        DescriptorDigest.fromDigest(
+            "sha256:0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef");
+  }
+
+  @Test
+  void testLoad_neverBuilt() throws Exception {
+    Assertions.assertNull(BuildRecord.load(directory, "registry:foo").getDigest("abc"));
+  }
+
+  @Test
+  void testSave() throws Exception {
+    String fingerprint = BuildRecord.fingerprint("base=scratch\n");
+    BuildRecord.load(directory, "registry:foo").save(fingerprint, digest);
+
+    BuildRecord record = BuildRecord.load(directory, "registry:foo");
+    Assertions.assertEquals(digest, record.getDigest(fingerprint));
+    Assertions.assertNull(record.getDigest(BuildRecord.fingerprint("base=busybox\n")));
+    // each destination has its own record
+    Assertions.assertNull(BuildRecord.load(directory, "registry:bar").getDigest(fingerprint));
+  }
+
+  @Test
+  void testLoad_corrupt() throws Exception {
+    BuildRecord.load(directory, "registry:foo").save("abc", digest);
+    try (Stream<Path> files = Files.list(directory.resolve("builds"))) {
+      Files.write(
+          files.findFirst().get(), "abc\nnot-a-digest\n".getBytes(StandardCharsets.UTF_8));
+    }
+    Assertions.assertNull(BuildRecord.load(directory, "registry:foo").getDigest("abc"));
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link ChangeHistory}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class ChangeHistoryTest {
+  private Path directory;
+
+  @BeforeEach
+  public void setUp(TemporaryFolder temporaryFolder) {
+    directory = temporaryFolder.getRoot().toPath().resolve("history");
+  }
+
+  @Test
+  void testRecord_countsChanges() throws IOException {
+    Assertions.assertEquals(0, build("/app", "a"));
+    Assertions.assertEquals(0, build("/app", "a"));
+    Assertions.assertEquals(1, build("/app", "b"));
+    Assertions.assertEquals(2, build("/app", "a"));
+    // a different definition has its own history
+    ChangeHistory other = ChangeHistory.load(directory, "other");
+    Assertions.assertEquals(0, other.record("/app", "c"));
+  }
+
+  @Test
+  void testRecord_forgetsOldBuilds() throws IOException {
+    build("/app", "a");
+    for (int i = 0; i < ChangeHistory.DEPTH; i++) {
+      build("/app", "b");
+    }
+    Assertions.assertEquals(0, build("/app", "b"));
+  }
+
+  @Test
+  void testSave_dropsRemovedSubtrees() throws IOException {
+    build("/app", "a");
+    build("/lib", "x");
+    Assertions.assertEquals(0, build("/app", "b"));
+  }
+
+  /** Simulate a build of the definition "key" with a single subtree. */
+  private int build(String subtree, String fingerprint) throws IOException {
+    ChangeHistory history = ChangeHistory.load(directory, "key");
+    int changes = history.record(subtree, fingerprint);
+    history.save();
+    return changes;
+  }
+}
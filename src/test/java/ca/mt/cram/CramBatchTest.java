@@ -0,0 +1,92 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import picocli.CommandLine;
+
+/** Tests of {@link CramBatch}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class CramBatchTest {
+  private TemporaryFolder temporaryFolder;
+
+  @BeforeEach
+  public void prepare(TemporaryFolder temporaryFolder) {
+    this.temporaryFolder = temporaryFolder;
+  }
+
+  @Test
+  void testReadManifest_json() throws Exception {
+    File file = temporaryFolder.createFile("builds.json");
+    Files.write(
+        file.toPath(),
+        ("{\"concurrency\": 2, \"defaults\": [\"--registry\"], "
+                + "\"builds\": [{\"name\": \"one\", \"args\": [\"scratch\", \"foo\"]}]}")
+            .getBytes(StandardCharsets.UTF_8));
+    CramBatch.Manifest manifest = CramBatch.readManifest(file.toPath());
+    Assertions.assertEquals(2, manifest.concurrency);
+    Assertions.assertEquals(Arrays.asList("--registry"), manifest.defaults);
+    Assertions.assertEquals(1, manifest.builds.size());
+    Assertions.assertEquals("one", manifest.builds.get(0).name);
+    Assertions.assertEquals(Arrays.asList("scratch", "foo"), manifest.builds.get(0).args);
+  }
+
+  @Test
+  void testReadManifest_yaml() throws Exception {
+    File file = temporaryFolder.createFile("builds.yaml");
+    Files.write(
+        file.toPath(),
+        ("builds:\n"
+                + "  - name: one\n"
+                + "    args: [scratch, foo]\n"
+                + "  - args: [scratch, bar]\n")
+            .getBytes(StandardCharsets.UTF_8));
+    CramBatch.Manifest manifest = CramBatch.readManifest(file.toPath());
+    Assertions.assertEquals(0, manifest.concurrency);
+    Assertions.assertEquals(2, manifest.builds.size());
+    Assertions.assertNull(manifest.builds.get(1).name);
+    Assertions.assertEquals(Arrays.asList("scratch", "bar"), manifest.builds.get(1).args);
+  }
+
+  @Test
+  void testCall_reportsFailures() throws Exception {
+    File file = temporaryFolder.createFile("builds.yaml");
+    // neither --docker nor --registry, so each build fails immediately
+    Files.write(
+        file.toPath(),
+        ("builds:\n  - args: [scratch, foo]\n  - args: [scratch, bar]\n")
+            .getBytes(StandardCharsets.UTF_8));
+    CramBatch fixture = CommandLine.populateCommand(new CramBatch(), "-j", "2", file.toString());
+    IllegalStateException ex = Assertions.assertThrows(IllegalStateException.class, fixture::call);
+    Assertions.assertEquals("2 of 2 builds failed", ex.getMessage());
+  }
+
+  @Test
+  void testShortForms_concurrency() {
+    CramBatch fixture = CommandLine.populateCommand(new CramBatch(), "-j", "3", "builds.json");
+    Assertions.assertEquals(3, fixture.concurrency);
+  }
+}
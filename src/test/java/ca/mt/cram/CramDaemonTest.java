@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import picocli.CommandLine;
+
+/** Tests of {@link CramDaemon} and {@link CramClient}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class CramDaemonTest {
+
+  @Test
+  void testDurationParsing() throws Exception {
+    CramDaemon.DurationParser parser = new CramDaemon.DurationParser();
+    Assertions.assertEquals(Duration.ofSeconds(90), parser.convert("90s"));
+    Assertions.assertEquals(Duration.ofSeconds(90), parser.convert("90"));
+    Assertions.assertEquals(Duration.ofMinutes(30), parser.convert("30m"));
+    Assertions.assertEquals(Duration.ofHours(2), parser.convert("2h"));
+    Assertions.assertEquals(Duration.ofMinutes(5), parser.convert("PT5M"));
+  }
+
+  @Test
+  void testClient_forwardsArguments() {
+    CramClient client = new CramClient();
+    CommandLine commandLine = new CommandLine(client);
+    commandLine.setStopAtPositional(true);
+    commandLine.setStopAtUnmatched(true);
+    commandLine.parse("--timing", "--registry", "-v", "scratch", "foo");
+    Assertions.assertTrue(client.timing);
+    Assertions.assertEquals(
+        Arrays.asList("--registry", "-v", "scratch", "foo"),
+        client.getForwardedArguments());
+  }
+
+  @Test
+  void testServe_roundTrip(TemporaryFolder temporaryFolder) throws Exception {
+    Assumptions.assumeTrue(UnixSockets.isSupported());
+    Path socket = temporaryFolder.getRoot().toPath().resolve("cram.sock");
+    CramDaemon daemon =
+        CommandLine.populateCommand(
+            new CramDaemon(), "--socket", socket.toString(), "--idle-timeout", "1s");
+    ExecutorService runner = Executors.newSingleThreadExecutor();
+    try {
+      Future<Void> result = runner.submit(daemon);
+      for (int i = 0; i < 100 && !Files.exists(socket); i++) {
+        Thread.sleep(50);
+      }
+
+      CramClient client = CommandLine.populateCommand(new CramClient(), "-s", socket.toString());
+      client.arguments.add("scratch");
+      client.arguments.add("foo");
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      int exitCode = client.send(System.nanoTime(), new PrintStream(output, true, "UTF-8"));
+      Assertions.assertEquals(2, exitCode);
+      Assertions.assertTrue(
+          new String(output.toByteArray(), StandardCharsets.UTF_8)
+              .startsWith("One of --docker, --registry, --tar or --oci-layout is required"));
+
+      // the daemon exits once idle
+      result.get(10, TimeUnit.SECONDS);
+      Assertions.assertFalse(Files.exists(socket));
+    } finally {
+      runner.shutdownNow();
+    }
+  }
+}
@@ -16,17 +16,43 @@
 
 package ca.mt.cram;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.cloud.tools.jib.api.AbsoluteUnixPath;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
 import com.google.cloud.tools.jib.api.ImageReference;
+import com.google.cloud.tools.jib.api.LayerConfiguration;
 import com.google.cloud.tools.jib.api.Port;
+import com.google.common.hash.Hashing;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.utils.Sets;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
 import picocli.CommandLine;
 
 /** Tests of {@link Cram}. */
@@ -75,6 +101,14 @@ public class CramTest {
     Assertions.assertEquals(AbsoluteUnixPath.get("/foo"), new Cram.PathParser().convert("/foo"));
   }
 
+  @Test
+  public void testHelp() {
+    // the usage is shown without the required images
+    CommandLine commandLine = new CommandLine(new Cram());
+    commandLine.parse("--help");
+    Assertions.assertTrue(commandLine.isUsageHelpRequested());
+  }
+
   @Test
   public void testShortForms_creationTime() {
     Cram fixture =
@@ -159,15 +193,997 @@ public class CramTest {
     Cram fixture = CommandLine.populateCommand(new Cram(), "-u", "foo", "scratch", "foo");
     Assertions.assertEquals("foo", fixture.user);
   }
-  
+
+  @Test
+  public void testSubcommands() {
+    List<CommandLine> parsed = Cram.newCommandLine().parse("batch", "images.yaml");
+    Assertions.assertEquals(2, parsed.size());
+    Assertions.assertTrue(parsed.get(1).getCommand() instanceof CramBatch);
+
+    parsed = Cram.newCommandLine().parse("client", "--timing", "--registry", "scratch", "foo");
+    CramClient client = parsed.get(1).getCommand();
+    Assertions.assertTrue(client.timing);
+    Assertions.assertEquals(
+        Arrays.asList("--registry", "scratch", "foo"), client.getForwardedArguments());
+
+    parsed = Cram.newCommandLine().parse("--registry", "scratch", "foo");
+    Assertions.assertEquals(1, parsed.size());
+  }
+
+  @Test
+  public void testThreads() {
+    Cram fixture = CommandLine.populateCommand(new Cram(), "--threads", "3", "scratch", "foo");
+    Assertions.assertEquals(3, fixture.threads);
+  }
+
+  @Test
+  public void testExecutor_default() {
+    Cram fixture = CommandLine.populateCommand(new Cram(), "scratch", "foo");
+    Assertions.assertEquals(BuildExecutor.Kind.PLATFORM, fixture.executorKind);
+  }
+
+  @Test
+  public void testExecutor_virtual() {
+    Cram fixture =
+        CommandLine.populateCommand(new Cram(), "--executor", "virtual", "scratch", "foo");
+    Assertions.assertEquals(BuildExecutor.Kind.VIRTUAL, fixture.executorKind);
+  }
+
+  @Test
+  public void testSizeParsing() throws Exception {
+    Assertions.assertEquals(100L, (long) new Cram.SizeParser().convert("100"));
+    Assertions.assertEquals(2048L, (long) new Cram.SizeParser().convert("2k"));
+    Assertions.assertEquals(512L << 20, (long) new Cram.SizeParser().convert("512M"));
+    Assertions.assertEquals(10L << 30, (long) new Cram.SizeParser().convert("10g"));
+  }
+
+  @Test
+  public void testCompressionLevelParsing() throws Exception {
+    Cram.CompressionLevelParser parser = new Cram.CompressionLevelParser();
+    Assertions.assertEquals(0, (int) parser.convert("none"));
+    Assertions.assertEquals(1, (int) parser.convert("fast"));
+    Assertions.assertEquals(9, (int) parser.convert("BEST"));
+    Assertions.assertEquals(4, (int) parser.convert("4"));
+    Assertions.assertThrows(CommandLine.TypeConversionException.class, () -> parser.convert("10"));
+  }
+
+  @Test
+  public void testCompressionBlockSize() {
+    Cram fixture =
+        CommandLine.populateCommand(
+            new Cram(), "-r", "--compression-block-size", "16k", "scratch", "foo");
+    CommandLine.ParameterException ex =
+        Assertions.assertThrows(CommandLine.ParameterException.class, fixture::call);
+    Assertions.assertEquals(
+        "--compression-block-size must be between 32k and 16m", ex.getMessage());
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testCompression(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.write(temporaryFolder.createFile("file.txt").toPath(), new byte[64 * 1024]);
+    List<DescriptorDigest> digests = new ArrayList<>();
+    for (String blockSize : new String[] {"32k", "32k", "64k"}) {
+      Cram fixture =
+          CommandLine.populateCommand(
+              new Cram(),
+              "--oci-layout",
+              "layout",
+              "--reproducible",
+              "--compression-level",
+              "fast",
+              "--compression-block-size",
+              blockSize,
+              "scratch",
+              "foo",
+              "file.txt");
+      fixture.workingDirectory = root;
+      fixture.out = new PrintStream(new ByteArrayOutputStream());
+      fixture.call();
+      digests.add(fixture.imageDigest);
+    }
+    // stable for a given block size
+    Assertions.assertEquals(digests.get(0), digests.get(1));
+    Assertions.assertNotEquals(digests.get(0), digests.get(2));
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testDeduplicate(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    byte[] contents = new byte[4096];
+    Arrays.fill(contents, (byte) 7);
+    for (String file : new String[] {"a/one.bin", "a/two.bin", "b/three.bin"}) {
+      Files.createDirectories(root.resolve(file).getParent());
+      Files.write(root.resolve(file), contents);
+    }
+    Files.write(root.resolve("b/other.bin"), new byte[4096]);
+    Cram fixture =
+        CommandLine.populateCommand(
+            new Cram(),
+            "--oci-layout",
+            "layout",
+            "--reproducible",
+            "--dedup",
+            "scratch",
+            "foo",
+            "a:/app/a",
+            "b:/app/b");
+    fixture.workingDirectory = root;
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    fixture.out = new PrintStream(output);
+    fixture.call();
+
+    Assertions.assertTrue(
+        output.toString("UTF-8").contains("Deduplicated 2 files, saving 8192 bytes"));
+    Path manifest = root.resolve("layout/blobs/sha256").resolve(fixture.imageDigest.getHash());
+    // the files shared by both layers are moved to a layer of their own
+    Assertions.assertEquals(3, new ObjectMapper().readTree(manifest.toFile()).get("layers").size());
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testTarballLayer(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Path archive = root.resolve("app.tar.gz");
+    try (TarArchiveOutputStream tar =
+        new TarArchiveOutputStream(new GZIPOutputStream(Files.newOutputStream(archive)))) {
+      TarArchiveEntry entry = new TarArchiveEntry("app/file.txt");
+      entry.setSize(3);
+      tar.putArchiveEntry(entry);
+      tar.write(new byte[] {1, 2, 3});
+      tar.closeArchiveEntry();
+    }
+    Cram fixture =
+        CommandLine.populateCommand(
+            new Cram(),
+            "--oci-layout",
+            "layout",
+            "--reproducible",
+            "scratch",
+            "foo",
+            "tar=app.tar.gz");
+    fixture.workingDirectory = root;
+    fixture.out = new PrintStream(new ByteArrayOutputStream());
+    fixture.call();
+
+    Path manifest = root.resolve("layout/blobs/sha256").resolve(fixture.imageDigest.getHash());
+    JsonNode layers = new ObjectMapper().readTree(manifest.toFile()).get("layers");
+    Assertions.assertEquals(1, layers.size());
+    // the compressed tarball is the layer
+    Assertions.assertEquals(
+        "sha256:" + Hashing.sha256().hashBytes(Files.readAllBytes(archive)),
+        layers.get(0).get("digest").asText());
+  }
+
   @Test
-  public void testIncomplete() {
+  public void testCache() {
+    Cram fixture =
+        CommandLine.populateCommand(
+            new Cram(), "--cache-dir", "/tmp/cache", "--cache-size", "1g", "scratch", "foo");
+    Assertions.assertEquals(Paths.get("/tmp/cache"), fixture.cacheDirectory);
+    Assertions.assertEquals(1L << 30, fixture.cacheSize);
+  }
+
+  @Test
+  public void testIncomplete() throws Exception {
     try {
-      CommandLine.populateCommand(new Cram());
+      CommandLine.populateCommand(new Cram()).call();
       Assertions.fail("should have errored with incomplete arguments");
     } catch (CommandLine.MissingParameterException ex) {
       Assertions.assertEquals(
           "Missing required parameters: base-image, destination-image", ex.getMessage());
     }
   }
+
+  @Test
+  public void testResolveLayers() throws Exception {
+    Cram fixture =
+        CommandLine.populateCommand(
+            new Cram(), "scratch", "foo", "src/main:/app/main", "src/test:/app/test:name=tests");
+    fixture.workingDirectory = Paths.get("").toAbsolutePath();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<LayerConfiguration> layers = Cram.awaitLayers(fixture.resolveLayers(executor));
+      Assertions.assertEquals(2, layers.size());
+      Assertions.assertEquals("tests", layers.get(1).getName());
+      Assertions.assertEquals(
+          AbsoluteUnixPath.get("/app/main"),
+          layers.get(0).getLayerEntries().get(0).getExtractionPath());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testResolveLayers_invalid() throws Exception {
+    Cram fixture =
+        CommandLine.populateCommand(new Cram(), "scratch", "foo", "src/main:/app:perms=xyz");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Cram.awaitLayers(fixture.resolveLayers(executor));
+      Assertions.fail("should have failed with an invalid layer definition");
+    } catch (CommandLine.ParameterException ex) {
+      Assertions.assertTrue(ex.getMessage().startsWith("Invalid layer definition 'src/main:/app"));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testTargets() {
+    Cram fixture =
+        CommandLine.populateCommand(
+            new Cram(), "--tar", "image.tar", "--oci-layout", "layout", "scratch", "foo");
+    Assertions.assertEquals(Paths.get("image.tar"), fixture.tarFile);
+    Assertions.assertEquals(Paths.get("layout"), fixture.ociLayoutDirectory);
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testTarTarget(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.write(temporaryFolder.createFile("file.txt").toPath(), new byte[] {1, 2, 3});
+    Cram fixture =
+        CommandLine.populateCommand(
+            new Cram(), "--tar", "image.tar", "scratch", "foo", "file.txt:/app/file.txt");
+    fixture.workingDirectory = root;
+    fixture.out = new PrintStream(new ByteArrayOutputStream());
+    fixture.call();
+    Assertions.assertNotNull(fixture.imageDigest);
+    Assertions.assertTrue(Files.size(root.resolve("image.tar")) > 0);
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testOciLayoutTarget(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.write(temporaryFolder.createFile("file.txt").toPath(), new byte[] {1, 2, 3});
+    String[] args = {
+      "--oci-layout", "layout", "-c", "2019-01-01T00:00:00Z", "scratch", "foo:1.0", "file.txt:/app"
+    };
+    Cram fixture = CommandLine.populateCommand(new Cram(), args);
+    fixture.workingDirectory = root;
+    fixture.out = new PrintStream(new ByteArrayOutputStream());
+    fixture.call();
+
+    Path layout = root.resolve("layout");
+    Path manifest = layout.resolve("blobs/sha256").resolve(fixture.imageDigest.getHash());
+    Assertions.assertTrue(Files.exists(manifest));
+    Assertions.assertTrue(
+        new String(Files.readAllBytes(layout.resolve("index.json")), StandardCharsets.UTF_8)
+            .contains(fixture.imageDigest.toString()));
+    try (Stream<Path> files = Files.list(layout)) {
+      // the intermediate tarball is removed
+      Assertions.assertFalse(files.anyMatch(file -> file.toString().endsWith(".tar")));
+    }
+
+    Cram rebuild = CommandLine.populateCommand(new Cram(), args);
+    rebuild.workingDirectory = root;
+    rebuild.out = fixture.out;
+    rebuild.call();
+    Assertions.assertEquals(fixture.imageDigest, rebuild.imageDigest);
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testOciLayoutTarget_fromCaches(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.write(temporaryFolder.createFile("file.txt").toPath(), new byte[] {1, 2, 3});
+    try (TestRegistry registry = new TestRegistry()) {
+      Cram baseBuild =
+          CommandLine.populateCommand(
+              new Cram(),
+              "--registry",
+              "--insecure",
+              "--entrypoint",
+              "/base/run",
+              "scratch",
+              registry.getAddress() + "/base:1.0",
+              "file.txt:/base/file.txt");
+      baseBuild.workingDirectory = root;
+      baseBuild.out = new PrintStream(new ByteArrayOutputStream());
+      baseBuild.call();
+
+      String[] args = {
+        "--oci-layout",
+        "layout",
+        "--insecure",
+        "-v",
+        "-c",
+        "2019-01-01T00:00:00Z",
+        registry.getAddress() + "/base:1.0",
+        "foo:1.0",
+        "file.txt:/app/file.txt"
+      };
+      Path baseCache = temporaryFolder.createDirectory("base-cache").toPath();
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      Cram fixture = CommandLine.populateCommand(new Cram(), args);
+      fixture.workingDirectory = root;
+      fixture.baseImageCache = baseCache;
+      fixture.tagCacheDirectory = root.resolve("tags");
+      fixture.out = new PrintStream(output, true);
+      fixture.call();
+      // the base and application layers, the configuration and the manifest
+      Assertions.assertTrue(output.toString("UTF-8").contains("OCI layout: 4 blobs written"));
+
+      Path blobs = root.resolve("layout/blobs/sha256");
+      ObjectMapper mapper = new ObjectMapper();
+      JsonNode manifest = mapper.readTree(blobs.resolve(fixture.imageDigest.getHash()).toFile());
+      Assertions.assertEquals(2, manifest.get("layers").size());
+      String configDigest = manifest.get("config").get("digest").asText();
+      JsonNode config = mapper.readTree(blobs.resolve(configDigest.substring(7)).toFile());
+      // the base image's entrypoint is kept, and each layer has its history
+      Assertions.assertEquals("[\"/base/run\"]", config.get("config").get("Entrypoint").toString());
+      Assertions.assertEquals(2, config.get("history").size());
+      try (Stream<Path> files = Files.list(root.resolve("layout"))) {
+        Assertions.assertFalse(files.anyMatch(file -> file.toString().endsWith(".tar")));
+      }
+
+      output.reset();
+      Cram rebuild = CommandLine.populateCommand(new Cram(), args);
+      rebuild.workingDirectory = root;
+      rebuild.baseImageCache = baseCache;
+      rebuild.tagCacheDirectory = root.resolve("tags");
+      rebuild.out = fixture.out;
+      rebuild.call();
+      Assertions.assertEquals(fixture.imageDigest, rebuild.imageDigest);
+      // nothing is rewritten
+      Assertions.assertTrue(
+          output.toString("UTF-8").contains("OCI layout: 0 blobs written, 4 reused"));
+    }
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testMetrics(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.write(temporaryFolder.createFile("file.txt").toPath(), new byte[] {1, 2, 3});
+    Cram fixture =
+        CommandLine.populateCommand(
+            new Cram(),
+            "--tar",
+            "image.tar",
+            "--metrics",
+            "metrics/build.json",
+            "scratch",
+            "foo",
+            "file.txt:/app/file.txt");
+    fixture.workingDirectory = root;
+    fixture.out = new PrintStream(new ByteArrayOutputStream());
+    fixture.call();
+
+    JsonNode metrics = new ObjectMapper().readTree(root.resolve("metrics/build.json").toFile());
+    Assertions.assertTrue(metrics.get("succeeded").asBoolean());
+    Assertions.assertEquals(fixture.imageDigest.toString(), metrics.get("digest").asText());
+    Assertions.assertTrue(metrics.get("phases").has("resolve-layers"));
+    Assertions.assertTrue(metrics.get("phases").has("containerize"));
+    Assertions.assertTrue(metrics.get("phases").has("building-layer"));
+    Assertions.assertTrue(metrics.get("executor").get("threads").asInt() > 0);
+
+    fixture.metricsFile = Paths.get("build.prom");
+    fixture.call();
+    byte[] text = Files.readAllBytes(root.resolve("build.prom"));
+    Assertions.assertTrue(
+        new String(text, StandardCharsets.UTF_8).contains("cram_build_success{image=\"foo\"} 1\n"));
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testRegistryTarget(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.write(temporaryFolder.createFile("file.txt").toPath(), new byte[] {1, 2, 3});
+    try (TestRegistry registry = new TestRegistry()) {
+      String[] args = {
+        "--registry",
+        "--insecure",
+        // Jib's steps block on each other, but never on the build threads
+        "--threads",
+        "1",
+        "-c",
+        "2019-01-01T00:00:00Z",
+        "scratch",
+        registry.getAddress() + "/test/app:1.0",
+        "file.txt:/app/file.txt"
+      };
+      Cram fixture = CommandLine.populateCommand(new Cram(), args);
+      fixture.workingDirectory = root;
+      fixture.out = new PrintStream(new ByteArrayOutputStream());
+      fixture.call();
+      Assertions.assertTrue(registry.hasManifest("test/app", "1.0"));
+      Assertions.assertTrue(registry.hasManifest("test/app", fixture.imageDigest.toString()));
+      // the layer and the container configuration
+      Assertions.assertEquals(2, registry.getRequestCount("blob-upload"));
+
+      // the blobs are already present when the same image is pushed again
+      Cram rebuild = CommandLine.populateCommand(new Cram(), args);
+      rebuild.workingDirectory = root;
+      rebuild.out = fixture.out;
+      rebuild.call();
+      Assertions.assertEquals(fixture.imageDigest, rebuild.imageDigest);
+      Assertions.assertEquals(2, registry.getRequestCount("blob-upload"));
+      Assertions.assertEquals(2, registry.getRequestCount("manifest-put"));
+    }
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testRegistryTarget_threadsBoundWork(TemporaryFolder temporaryFolder)
+      throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    List<String> args =
+        new ArrayList<>(
+            Arrays.asList("--registry", "--insecure", "--threads", "2", "scratch", "app"));
+    for (int i = 0; i < 6; i++) {
+      Files.write(root.resolve("file" + i), new byte[] {(byte) i});
+      args.add("file" + i + ":/app/file" + i);
+    }
+    BuildExecutor executor = BuildExecutor.create(BuildExecutor.Kind.PLATFORM, 2);
+    try (TestRegistry registry = new TestRegistry()) {
+      // long enough for the uploads to overlap if they were not bounded
+      registry.setLatency(Duration.ofMillis(100));
+      args.set(5, registry.getAddress() + "/test/app:1.0");
+      Cram fixture = CommandLine.populateCommand(new Cram(), args.toArray(new String[0]));
+      fixture.workingDirectory = root;
+      fixture.out = new PrintStream(new ByteArrayOutputStream());
+      fixture.sharedExecutor = executor;
+      fixture.call();
+      Assertions.assertTrue(registry.hasManifest("test/app", "1.0"));
+      // the six layers are compressed and pushed on the build threads, not on Jib's steps
+      Assertions.assertEquals(7, registry.getRequestCount("blob-upload"));
+      Assertions.assertTrue(executor.getLargestPoolSize() <= 2);
+      Assertions.assertTrue(
+          registry.getPeakConcurrentUploads() <= 2,
+          "peak concurrent uploads: " + registry.getPeakConcurrentUploads());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testReproducible() {
+    Cram fixture = CommandLine.populateCommand(new Cram(), "--reproducible", "scratch", "foo");
+    Assertions.assertTrue(fixture.reproducible);
+    Assertions.assertNull(fixture.creationTime);
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testReproducible_sameDigest(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.write(temporaryFolder.createFile("file.txt").toPath(), new byte[] {1, 2, 3});
+    List<DescriptorDigest> digests = new ArrayList<>();
+    for (String layout : new String[] {"layout1", "layout2"}) {
+      Cram fixture =
+          CommandLine.populateCommand(
+              new Cram(), "--oci-layout", layout, "--reproducible", "scratch", "foo", "file.txt");
+      fixture.workingDirectory = root;
+      fixture.out = new PrintStream(new ByteArrayOutputStream());
+      fixture.call();
+      digests.add(fixture.imageDigest);
+    }
+    Assertions.assertEquals(digests.get(0), digests.get(1));
+  }
+
+  @Test
+  public void testAdditionalTags() {
+    Cram fixture =
+        CommandLine.populateCommand(
+            new Cram(), "-r", "-t", "latest", "--tag", "stable", "scratch", "foo:1.0");
+    Assertions.assertEquals(Arrays.asList("latest", "stable"), fixture.additionalTags);
+
+    Cram invalid =
+        CommandLine.populateCommand(new Cram(), "-r", "-t", "not:a-tag", "scratch", "foo");
+    CommandLine.ParameterException ex =
+        Assertions.assertThrows(CommandLine.ParameterException.class, invalid::call);
+    Assertions.assertEquals("Invalid tag: not:a-tag", ex.getMessage());
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testMultipleDestinations(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.write(temporaryFolder.createFile("file.txt").toPath(), new byte[] {1, 2, 3});
+    try (TestRegistry registry = new TestRegistry()) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      Cram fixture =
+          CommandLine.populateCommand(
+              new Cram(),
+              "--registry",
+              "--oci-layout",
+              "layout",
+              "--also-push",
+              registry.getAddress() + "/mirror/app:1.0",
+              "--tag",
+              "latest",
+              "--insecure",
+              "scratch",
+              registry.getAddress() + "/test/app:1.0",
+              "file.txt:/app/file.txt");
+      fixture.workingDirectory = root;
+      fixture.out = new PrintStream(output, true);
+      fixture.call();
+
+      for (String repository : new String[] {"test/app", "mirror/app"}) {
+        Assertions.assertTrue(registry.hasManifest(repository, "1.0"));
+        Assertions.assertTrue(registry.hasManifest(repository, "latest"));
+      }
+      Assertions.assertTrue(registry.hasManifest("test/app", fixture.imageDigest.toString()));
+      OciLayoutWriter layout = new OciLayoutWriter(root.resolve("layout"));
+      Assertions.assertNotNull(layout.getManifestDigest("1.0"));
+      Assertions.assertEquals(layout.getManifestDigest("1.0"), layout.getManifestDigest("latest"));
+      String log = output.toString("UTF-8");
+      Assertions.assertEquals(3, log.split("Containerized to ", -1).length - 1);
+      Assertions.assertTrue(log.contains("Containerized to layout as 1.0"));
+    }
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testMultipleDestinations_baseImagePulledOnce(TemporaryFolder temporaryFolder)
+      throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.write(temporaryFolder.createFile("file.txt").toPath(), new byte[] {1, 2, 3});
+    try (TestRegistry registry = new TestRegistry()) {
+      Cram baseBuild =
+          CommandLine.populateCommand(
+              new Cram(),
+              "--registry",
+              "--insecure",
+              "scratch",
+              registry.getAddress() + "/base:1.0",
+              "file.txt:/base/file.txt");
+      baseBuild.workingDirectory = root;
+      baseBuild.out = new PrintStream(new ByteArrayOutputStream());
+      baseBuild.call();
+
+      Cram fixture =
+          CommandLine.populateCommand(
+              new Cram(),
+              "--tar",
+              "image.tar",
+              "--oci-layout",
+              "layout",
+              "--insecure",
+              registry.getAddress() + "/base:1.0",
+              "foo:1.0",
+              "file.txt:/app/file.txt");
+      fixture.workingDirectory = root;
+      fixture.baseImageCache = temporaryFolder.createDirectory("base-cache").toPath();
+      fixture.tagCacheDirectory = root.resolve("tags");
+      fixture.out = new PrintStream(new ByteArrayOutputStream());
+      fixture.call();
+
+      Assertions.assertTrue(Files.exists(root.resolve("image.tar")));
+      Assertions.assertNotNull(
+          new OciLayoutWriter(root.resolve("layout")).getManifestDigest("1.0"));
+      // the base image's layer and configuration, pulled once for both targets
+      Assertions.assertEquals(2, registry.getRequestCount("blob-get"));
+    }
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testMultipleDestinations_failure(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.write(temporaryFolder.createFile("file.txt").toPath(), new byte[] {1, 2, 3});
+    String unreachable;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      unreachable = "localhost:" + socket.getLocalPort() + "/test/app:1.0";
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Cram fixture =
+        CommandLine.populateCommand(
+            new Cram(),
+            "--oci-layout",
+            "layout",
+            "--also-push",
+            unreachable,
+            "--insecure",
+            "scratch",
+            "foo:1.0",
+            "file.txt:/app/file.txt");
+    fixture.workingDirectory = root;
+    fixture.out = new PrintStream(output, true);
+    Assertions.assertThrows(Exception.class, fixture::call);
+
+    // the other destination is still written, and each is reported
+    Assertions.assertNotNull(new OciLayoutWriter(root.resolve("layout")).getManifestDigest("1.0"));
+    String log = output.toString("UTF-8");
+    Assertions.assertTrue(log.contains("Containerized to layout as 1.0"));
+    Assertions.assertTrue(log.contains("Failed to containerize to " + unreachable));
+  }
+
+  @Test
+  public void testPlatforms_requirements() {
+    Cram fixture =
+        CommandLine.populateCommand(
+            new Cram(), "-r", "--platforms", "linux/amd64,linux/arm64", "base", "foo");
+    Assertions.assertEquals(
+        Arrays.asList(new Platform("linux", "amd64", null), new Platform("linux", "arm64", null)),
+        fixture.platforms);
+
+    Cram docker =
+        CommandLine.populateCommand(
+            new Cram(), "-r", "-d", "--platforms", "linux/amd64", "base", "foo");
+    CommandLine.ParameterException ex =
+        Assertions.assertThrows(CommandLine.ParameterException.class, docker::call);
+    Assertions.assertEquals(
+        "--platforms requires --registry as the only destination", ex.getMessage());
+
+    Cram scratch =
+        CommandLine.populateCommand(
+            new Cram(), "-r", "--platforms", "linux/amd64", "scratch", "foo");
+    ex = Assertions.assertThrows(CommandLine.ParameterException.class, scratch::call);
+    Assertions.assertEquals("--platforms requires a multi-platform base image", ex.getMessage());
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testPlatforms(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.write(temporaryFolder.createFile("file.txt").toPath(), new byte[] {1, 2, 3});
+    try (TestRegistry registry = new TestRegistry()) {
+      // a multi-platform base image, whose platforms' images have different contents
+      Platform amd64 = new Platform("linux", "amd64", null);
+      Platform arm64 = new Platform("linux", "arm64", null);
+      ManifestListClient base = new ManifestListClient(registry.getAddress(), "base", null, true);
+      Map<Platform, ManifestListClient.Manifest> bases = new LinkedHashMap<>();
+      for (Platform platform : Arrays.asList(amd64, arm64)) {
+        String architecture = platform.getArchitecture();
+        Files.write(root.resolve(architecture), architecture.getBytes(StandardCharsets.UTF_8));
+        Cram baseBuild =
+            CommandLine.populateCommand(
+                new Cram(),
+                "--registry",
+                "--insecure",
+                "scratch",
+                registry.getAddress() + "/base:" + architecture,
+                architecture + ":/" + architecture);
+        baseBuild.workingDirectory = root;
+        baseBuild.out = new PrintStream(new ByteArrayOutputStream());
+        baseBuild.call();
+        bases.put(platform, base.pull(architecture));
+      }
+      base.push("multi", bases);
+      int uploads = registry.getRequestCount("blob-upload");
+
+      Cram fixture =
+          CommandLine.populateCommand(
+              new Cram(),
+              "--registry",
+              "--insecure",
+              "--platforms",
+              "linux/amd64,linux/arm64",
+              "--tag",
+              "latest",
+              registry.getAddress() + "/base:multi",
+              registry.getAddress() + "/test/app:1.0",
+              "file.txt:/app/file.txt");
+      fixture.workingDirectory = root;
+      fixture.out = new PrintStream(new ByteArrayOutputStream());
+      fixture.call();
+
+      Assertions.assertTrue(registry.hasManifest("test/app", "1.0-linux-amd64"));
+      Assertions.assertTrue(registry.hasManifest("test/app", "1.0-linux-arm64"));
+      Assertions.assertTrue(registry.hasManifest("test/app", "latest"));
+      ManifestListClient.Manifest list =
+          new ManifestListClient(registry.getAddress(), "test/app", null, true).pull("1.0");
+      Assertions.assertTrue(list.isList());
+      JsonNode manifests = new ObjectMapper().readTree(list.contents).path("manifests");
+      Assertions.assertEquals(2, manifests.size());
+      Assertions.assertTrue(arm64.matches(manifests.get(1).path("platform")));
+      // each platform's base layer and container configuration, and the application layer once
+      Assertions.assertEquals(uploads + 5, registry.getRequestCount("blob-upload"));
+
+      // a base image that is not multi-platform
+      Cram single =
+          CommandLine.populateCommand(
+              new Cram(),
+              "--registry",
+              "--insecure",
+              "--platforms",
+              "linux/amd64",
+              registry.getAddress() + "/base:amd64",
+              registry.getAddress() + "/test/app:1.0",
+              "file.txt:/app/file.txt");
+      single.workingDirectory = root;
+      single.out = fixture.out;
+      Exception ex = Assertions.assertThrows(Exception.class, single::call);
+      Assertions.assertTrue(
+          ex.getMessage().endsWith("base:amd64 is not a multi-platform image"), ex.getMessage());
+    }
+  }
+
+  @Test
+  public void testSkipIfUnchanged_requirements() {
+    Cram noCache =
+        CommandLine.populateCommand(
+            new Cram(), "--oci-layout", "layout", "--skip-if-unchanged", "scratch", "foo");
+    CommandLine.ParameterException ex =
+        Assertions.assertThrows(CommandLine.ParameterException.class, noCache::call);
+    Assertions.assertEquals("--skip-if-unchanged requires --cache-dir", ex.getMessage());
+
+    Cram tar =
+        CommandLine.populateCommand(
+            new Cram(),
+            "--tar",
+            "image.tar",
+            "--cache-dir",
+            "cache",
+            "--skip-if-unchanged",
+            "scratch",
+            "foo");
+    ex = Assertions.assertThrows(CommandLine.ParameterException.class, tar::call);
+    Assertions.assertEquals(
+        "--skip-if-unchanged requires --registry or --oci-layout", ex.getMessage());
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testSkipIfUnchanged_registry(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.write(temporaryFolder.createFile("file.txt").toPath(), new byte[] {1, 2, 3});
+    try (TestRegistry registry = new TestRegistry()) {
+      String[] args = {
+        "--registry",
+        "--insecure",
+        "--cache-dir",
+        "cache",
+        "--skip-if-unchanged",
+        "scratch",
+        registry.getAddress() + "/test/app:1.0",
+        "file.txt:/app/file.txt"
+      };
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      Cram fixture = CommandLine.populateCommand(new Cram(), args);
+      fixture.workingDirectory = root;
+      fixture.out = new PrintStream(output, true);
+      fixture.call();
+      Assertions.assertEquals(1, registry.getRequestCount("manifest-put"));
+
+      // the tag still points at the image built from the same inputs
+      Cram unchanged = CommandLine.populateCommand(new Cram(), args);
+      unchanged.workingDirectory = root;
+      unchanged.out = fixture.out;
+      unchanged.call();
+      Assertions.assertEquals(fixture.imageDigest, unchanged.imageDigest);
+      Assertions.assertEquals(1, registry.getRequestCount("manifest-put"));
+      Assertions.assertTrue(output.toString("UTF-8").contains("Unchanged: "));
+
+      Files.write(root.resolve("file.txt"), new byte[] {4, 5, 6, 7});
+      Cram changed = CommandLine.populateCommand(new Cram(), args);
+      changed.workingDirectory = root;
+      changed.out = fixture.out;
+      changed.call();
+      Assertions.assertNotEquals(fixture.imageDigest, changed.imageDigest);
+      Assertions.assertEquals(2, registry.getRequestCount("manifest-put"));
+    }
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testSkipIfUnchanged_ociLayout(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.write(temporaryFolder.createFile("file.txt").toPath(), new byte[] {1, 2, 3});
+    String[] args = {
+      "--oci-layout",
+      "layout",
+      "--cache-dir",
+      "cache",
+      "--skip-if-unchanged",
+      "scratch",
+      "foo:1.0",
+      "file.txt:/app"
+    };
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Cram fixture = CommandLine.populateCommand(new Cram(), args);
+    fixture.workingDirectory = root;
+    fixture.out = new PrintStream(output, true);
+    fixture.call();
+
+    Cram unchanged = CommandLine.populateCommand(new Cram(), args);
+    unchanged.workingDirectory = root;
+    unchanged.out = fixture.out;
+    unchanged.call();
+    Assertions.assertEquals(fixture.imageDigest, unchanged.imageDigest);
+    Assertions.assertTrue(output.toString("UTF-8").contains("Unchanged: layout as 1.0"));
+
+    // the image is rebuilt once the layout no longer holds it
+    Files.delete(root.resolve("layout/index.json"));
+    output.reset();
+    Cram rebuild = CommandLine.populateCommand(new Cram(), args);
+    rebuild.workingDirectory = root;
+    rebuild.out = fixture.out;
+    rebuild.call();
+    Assertions.assertEquals(fixture.imageDigest, rebuild.imageDigest);
+    Assertions.assertTrue(output.toString("UTF-8").contains("Containerized to layout as 1.0"));
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testBaseImageTimeToLive(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.write(root.resolve("base.txt"), new byte[] {1});
+    Files.write(root.resolve("file.txt"), new byte[] {1, 2, 3});
+    Path baseImageCache = root.resolve("base-cache");
+    try (TestRegistry registry = new TestRegistry()) {
+      String base = registry.getAddress() + "/base:1.0";
+      String[] baseArgs = {"--registry", "--insecure", "scratch", base, "base.txt:/base.txt"};
+      build(root, null, baseArgs);
+      String[] args = {
+        "--base-image-ttl",
+        "10m",
+        "--tar",
+        "image.tar",
+        "--insecure",
+        "-c",
+        "2019-01-01T00:00:00Z",
+        base,
+        "app:1.0",
+        "file.txt:/app/file.txt"
+      };
+      Cram fixture = build(root, baseImageCache, args);
+      Assertions.assertEquals(1, registry.getRequestCount("manifest-head"));
+      int pings = registry.getRequestCount("ping");
+      int manifestGets = registry.getRequestCount("manifest-get");
+      int blobGets = registry.getRequestCount("blob-get");
+
+      // resolved within the time to live and held by Jib: the registry is not contacted, not
+      // even to authorize, and the pinned digest is printed
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      Cram cached = CommandLine.populateCommand(new Cram(), args);
+      cached.workingDirectory = root;
+      cached.out = new PrintStream(output, true);
+      cached.baseImageCache = baseImageCache;
+      cached.tagCacheDirectory = baseImageCache.resolveSibling("tags");
+      cached.call();
+      Assertions.assertEquals(fixture.imageDigest, cached.imageDigest);
+      Assertions.assertEquals(1, registry.getRequestCount("manifest-head"));
+      Assertions.assertEquals(pings, registry.getRequestCount("ping"));
+      Assertions.assertEquals(manifestGets, registry.getRequestCount("manifest-get"));
+      Assertions.assertEquals(blobGets, registry.getRequestCount("blob-get"));
+      Assertions.assertTrue(
+          output.toString("UTF-8").contains("Using " + base + " as last resolved, sha256:"));
+
+      // a new image under the tag is used once the resolution expires
+      Files.write(root.resolve("base.txt"), new byte[] {2});
+      build(root, null, baseArgs);
+      Assertions.assertEquals(fixture.imageDigest, build(root, baseImageCache, args).imageDigest);
+      // by default, the tag is always resolved
+      Cram updated = build(root, baseImageCache, Arrays.copyOfRange(args, 2, args.length));
+      Assertions.assertNotEquals(fixture.imageDigest, updated.imageDigest);
+      Assertions.assertEquals(2, registry.getRequestCount("manifest-head"));
+    }
+  }
+
+  @Test
+  public void testOffline_requirements() {
+    Cram fixture = CommandLine.populateCommand(new Cram(), "--offline", "-r", "scratch", "foo");
+    CommandLine.ParameterException ex =
+        Assertions.assertThrows(CommandLine.ParameterException.class, fixture::call);
+    Assertions.assertEquals("--offline cannot be used to push to a registry", ex.getMessage());
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testOffline(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.write(root.resolve("base.txt"), new byte[] {1});
+    Files.write(root.resolve("file.txt"), new byte[] {1, 2, 3});
+    Path baseImageCache = root.resolve("base-cache");
+    String[] args;
+    DescriptorDigest online;
+    try (TestRegistry registry = new TestRegistry()) {
+      String base = registry.getAddress() + "/base:1.0";
+      build(root, null, "--registry", "--insecure", "scratch", base, "base.txt:/base.txt");
+      args =
+          new String[] {
+            "--offline",
+            "--base-image-ttl",
+            "0",
+            "--tar",
+            "image.tar",
+            "--insecure",
+            "-c",
+            "2019-01-01T00:00:00Z",
+            base,
+            "app:1.0",
+            "file.txt:/app/file.txt"
+          };
+      // pull the base image
+      online = build(root, baseImageCache, Arrays.copyOfRange(args, 3, args.length)).imageDigest;
+    }
+
+    // the registry is gone, and the resolution has expired
+    Assertions.assertEquals(online, build(root, baseImageCache, args).imageDigest);
+
+    args[args.length - 3] = "localhost:5000/never-pulled:1.0";
+    String[] neverPulled = args;
+    Exception ex =
+        Assertions.assertThrows(Exception.class, () -> build(root, baseImageCache, neverPulled));
+    Assertions.assertTrue(ex.getMessage().contains("offline mode"), ex.getMessage());
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  public void testWatch(TemporaryFolder temporaryFolder) throws Exception {
+    Path root = temporaryFolder.getRoot().toPath();
+    Files.createDirectories(root.resolve("web"));
+    Files.createDirectories(root.resolve("lib"));
+    Files.write(root.resolve("web/index.html"), new byte[] {1});
+    Files.write(root.resolve("lib/lib.jar"), new byte[] {2});
+    try (TestRegistry registry = new TestRegistry()) {
+      String[] args = {
+        "--registry",
+        "--insecure",
+        "--verbose",
+        "--watch",
+        "--watch-delay",
+        "100",
+        "scratch",
+        registry.getAddress() + "/test/app:1.0",
+        "web:/web",
+        "lib:/lib"
+      };
+      Cram fixture = CommandLine.populateCommand(new Cram(), args);
+      fixture.workingDirectory = root;
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      fixture.out = new PrintStream(output, true);
+      Thread watcher =
+          new Thread(
+              () -> {
+                try {
+                  fixture.call();
+                } catch (Exception ex) {
+                  // interrupted
+                }
+              });
+      watcher.start();
+      try {
+        awaitOutput(output, "Watching for changes...", 1);
+        Assertions.assertEquals(3, registry.getRequestCount("blob-upload"));
+        Files.write(root.resolve("web/index.html"), new byte[] {3});
+        awaitOutput(output, "Watching for changes...", 2);
+      } finally {
+        watcher.interrupt();
+        watcher.join(30_000);
+      }
+      String log = output.toString("UTF-8");
+      Assertions.assertTrue(log.contains("Changed: web:/web"));
+      Assertions.assertFalse(log.contains("Changed: lib:/lib"));
+      // the changed layer and the new container configuration
+      Assertions.assertEquals(5, registry.getRequestCount("blob-upload"));
+      Assertions.assertEquals(2, registry.getRequestCount("manifest-put"));
+      Assertions.assertFalse(watcher.isAlive());
+    }
+  }
+
+  /** Build with {@code args} in {@code root}, keeping base images in {@code baseImageCache}. */
+  private static Cram build(Path root, Path baseImageCache, String... args) throws Exception {
+    Cram cram = CommandLine.populateCommand(new Cram(), args);
+    cram.workingDirectory = root;
+    cram.out = new PrintStream(new ByteArrayOutputStream());
+    if (baseImageCache != null) {
+      cram.baseImageCache = baseImageCache;
+      cram.tagCacheDirectory = baseImageCache.resolveSibling("tags");
+    }
+    cram.call();
+    return cram;
+  }
+
+  /** Wait until {@code text} has been written {@code count} times. */
+  private static void awaitOutput(ByteArrayOutputStream output, String text, int count)
+      throws Exception {
+    long deadline = System.nanoTime() + Duration.ofSeconds(60).toNanos();
+    while (System.nanoTime() < deadline) {
+      String log = output.toString("UTF-8");
+      if (log.split(Pattern.quote(text), -1).length > count) {
+        return;
+      }
+      Thread.sleep(50);
+    }
+    Assertions.fail("timed out waiting for '" + text + "': " + output.toString("UTF-8"));
+  }
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.Credential;
+import com.google.cloud.tools.jib.api.CredentialRetriever;
+import com.google.cloud.tools.jib.registry.credentials.CredentialRetrievalException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/** Tests for {@link CredentialCache}. */
+class CredentialCacheTest {
+  private static final Credential FIRST = Credential.from("first", "secret");
+  private static final Credential SECOND = Credential.from("second", "secret");
+
+  @Test
+  void testTimeToLive() throws Exception {
+    AtomicLong now = new AtomicLong();
+    AtomicInteger retrievals = new AtomicInteger();
+    CredentialCache cache = new CredentialCache(Duration.ofMinutes(10), now::get);
+    CredentialRetriever retriever =
+        cache.forRegistry(
+            "registry",
+            Collections.singletonList(
+                () -> {
+                  retrievals.incrementAndGet();
+                  return Optional.of(FIRST);
+                }));
+    Assertions.assertEquals(FIRST, retriever.retrieve().get());
+    now.addAndGet(Duration.ofMinutes(9).toNanos());
+    Assertions.assertEquals(FIRST, retriever.retrieve().get());
+    Assertions.assertEquals(1, retrievals.get());
+
+    now.addAndGet(Duration.ofMinutes(1).toNanos());
+    Assertions.assertEquals(FIRST, retriever.retrieve().get());
+    Assertions.assertEquals(2, retrievals.get());
+  }
+
+  @Test
+  void testPriorityOrder() throws Exception {
+    CredentialCache cache = new CredentialCache();
+    CountDownLatch secondDone = new CountDownLatch(1);
+    // the first retriever only finishes after the second: they are probed concurrently
+    CredentialRetriever slowFirst =
+        () -> {
+          try {
+            Assertions.assertTrue(secondDone.await(10, TimeUnit.SECONDS));
+          } catch (InterruptedException ex) {
+            throw new CredentialRetrievalException(ex);
+          }
+          return Optional.of(FIRST);
+        };
+    CredentialRetriever second =
+        () -> {
+          secondDone.countDown();
+          return Optional.of(SECOND);
+        };
+    Assertions.assertEquals(
+        FIRST, cache.forRegistry("a", Arrays.asList(slowFirst, second)).retrieve().get());
+
+    CredentialRetriever none = Optional::empty;
+    CredentialRetriever found = () -> Optional.of(SECOND);
+    Assertions.assertEquals(
+        SECOND, cache.forRegistry("b", Arrays.asList(none, found)).retrieve().get());
+    Assertions.assertFalse(
+        cache.forRegistry("c", Arrays.asList(none, none)).retrieve().isPresent());
+  }
+
+  @Test
+  void testFailure() throws Exception {
+    CredentialCache cache = new CredentialCache();
+    CredentialRetriever failing =
+        () -> {
+          throw new CredentialRetrievalException(new IllegalStateException("helper failed"));
+        };
+    // a failure after credentials were found is ignored
+    Assertions.assertEquals(
+        FIRST,
+        cache.forRegistry("a", Arrays.asList(() -> Optional.of(FIRST), failing)).retrieve().get());
+
+    AtomicInteger attempts = new AtomicInteger();
+    CredentialRetriever failingOnce =
+        () -> {
+          if (attempts.incrementAndGet() == 1) {
+            failing.retrieve();
+          }
+          return Optional.of(SECOND);
+        };
+    CredentialRetriever retriever =
+        cache.forRegistry("b", Collections.singletonList(failingOnce));
+    Assertions.assertThrows(CredentialRetrievalException.class, retriever::retrieve);
+    // failures are not remembered
+    Assertions.assertEquals(SECOND, retriever.retrieve().get());
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.tools.jib.api.LogEvent;
+import com.google.cloud.tools.jib.event.events.ProgressEvent;
+import com.google.cloud.tools.jib.event.progress.Allocation;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link EventLog}. */
+class EventLogTest {
+
+  @Test
+  void testLogEvents() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (EventLog log = new EventLog(new PrintStream(output, true), false, null)) {
+      for (int i = 0; i < 100; i++) {
+        log.accept(LogEvent.lifecycle("message " + i));
+      }
+    }
+    String[] lines = output.toString("UTF-8").split("\n");
+    Assertions.assertEquals(100, lines.length);
+    for (int i = 0; i < 100; i++) {
+      Assertions.assertEquals(LogEvent.lifecycle("message " + i).toString(), lines[i]);
+    }
+  }
+
+  @Test
+  void testWarningsNotDropped() throws Exception {
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    // a console that stalls the writer on its first line
+    OutputStream stalling =
+        new OutputStream() {
+          @Override
+          public void write(int b) {
+            writing.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+            }
+            output.write(b);
+          }
+        };
+    try (EventLog log = new EventLog(new PrintStream(stalling, true), false, null)) {
+      log.accept(LogEvent.info("first"));
+      writing.await();
+      for (int i = 0; i < 5000; i++) {
+        log.accept(LogEvent.info("info " + i));
+      }
+      Thread warnings =
+          new Thread(
+              () -> {
+                for (int i = 0; i < 10; i++) {
+                  log.accept(LogEvent.warn("warning " + i));
+                }
+                log.accept(LogEvent.error("error"));
+              });
+      warnings.start();
+      // the warnings wait for the stalled writer rather than being dropped
+      warnings.join(200);
+      Assertions.assertTrue(warnings.isAlive());
+      release.countDown();
+      warnings.join();
+    }
+    String printed = output.toString("UTF-8");
+    for (int i = 0; i < 10; i++) {
+      Assertions.assertTrue(printed.contains(LogEvent.warn("warning " + i).toString()));
+    }
+    Assertions.assertTrue(printed.contains(LogEvent.error("error").toString()));
+    Assertions.assertTrue(printed.contains("(904 build events dropped)"), printed);
+  }
+
+  @Test
+  @ExtendWith(TemporaryFolderExtension.class)
+  void testEventsFile(TemporaryFolder temporaryFolder) throws Exception {
+    Path eventsFile = temporaryFolder.getRoot().toPath().resolve("events.jsonl");
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Allocation root = Allocation.newRoot("building image", 1);
+    Allocation push = root.newChild("pushing blob sha256:0123456789abcdef", 1000);
+    try (EventLog log = new EventLog(new PrintStream(output, true), true, eventsFile)) {
+      log.accept(LogEvent.info("hello"));
+      // coalesced into one progress event per tick
+      for (int i = 0; i < 500; i++) {
+        log.accept(new ProgressEvent(push, 1));
+      }
+      Thread.sleep(300);
+      log.accept(new ProgressEvent(push, 500));
+    }
+    List<JsonNode> events = new ArrayList<>();
+    ObjectMapper mapper = new ObjectMapper();
+    for (String line : Files.readAllLines(eventsFile, StandardCharsets.UTF_8)) {
+      events.add(mapper.readTree(line));
+    }
+    Assertions.assertEquals("log", events.get(0).path("type").asText());
+    Assertions.assertEquals("info", events.get(0).path("level").asText());
+    Assertions.assertEquals("hello", events.get(0).path("message").asText());
+    JsonNode last = events.get(events.size() - 1);
+    Assertions.assertEquals("progress", last.path("type").asText());
+    Assertions.assertEquals("sha256:0123456789abcdef", last.path("blob").asText());
+    Assertions.assertEquals(1000, last.path("bytes").asLong());
+    Assertions.assertEquals(1000, last.path("total").asLong());
+    Assertions.assertTrue(events.size() <= 4, events.toString());
+
+    // the progress line was shown, and cleared on close
+    String console = output.toString("UTF-8");
+    Assertions.assertTrue(console.matches("(?s).*\\] (49|50)% .*"), console);
+    Assertions.assertTrue(console.contains("| 0123456 ETA "), console);
+    Assertions.assertTrue(console.endsWith("\r"), console);
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.AbsoluteUnixPath;
+import com.google.cloud.tools.jib.api.LayerEntry;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link FileAttributesCache}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class FileAttributesCacheTest {
+  private Path root;
+  private FileAttributesCache fixture = new FileAttributesCache();
+
+  @BeforeEach
+  public void setUp(TemporaryFolder temporaryFolder) throws IOException {
+    root = temporaryFolder.getRoot().toPath();
+    Files.createDirectories(root.resolve("sub"));
+    Files.write(root.resolve("sub/file.txt"), new byte[] {1});
+  }
+
+  @Test
+  void testGet_readsOnce() throws IOException {
+    Path file = root.resolve("sub/file.txt");
+    Files.setLastModifiedTime(file, FileTime.from(Instant.ofEpochSecond(1000)));
+
+    Assertions.assertFalse(fixture.isDirectory(file));
+    Assertions.assertEquals(Instant.ofEpochSecond(1000), fixture.getLastModifiedTime(file));
+    fixture.getPosixFilePermissions(file);
+    Assertions.assertEquals(1, fixture.getReadCount());
+  }
+
+  @Test
+  void testIsDirectory_missing() {
+    Assertions.assertFalse(fixture.isDirectory(Paths.get("does-not-exist")));
+  }
+
+  @Test
+  void testScan_singleReadPerPath() throws IOException {
+    FileTreeScanner scanner = new FileTreeScanner(1, fixture);
+    List<LayerEntry> entries =
+        scanner.scan(
+            root,
+            AbsoluteUnixPath.get("/"),
+            LayerDefinitionParser.configurePermissionsProvider("actual", fixture),
+            LayerDefinitionParser.configureTimestampsProvider("actual", fixture));
+    Assertions.assertEquals(3, entries.size());
+    Assertions.assertEquals(3, fixture.getReadCount());
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.AbsoluteUnixPath;
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.api.LayerEntry;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link FileTreeScanner}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class FileTreeScannerTest {
+  private Path root;
+
+  @BeforeEach
+  public void setUp(TemporaryFolder temporaryFolder) throws IOException {
+    root = temporaryFolder.getRoot().toPath();
+    Files.createDirectories(root.resolve("b/d"));
+    Files.createDirectories(root.resolve("a"));
+    Files.write(root.resolve("c.txt"), new byte[] {1});
+    Files.write(root.resolve("a/z.txt"), new byte[] {2});
+    Files.write(root.resolve("a/y.txt"), new byte[] {3});
+    Files.write(root.resolve("b/d/x.txt"), new byte[] {4});
+  }
+
+  @Test
+  void testScan_orderedPreorder() throws IOException {
+    List<LayerEntry> entries =
+        new FileTreeScanner()
+            .scan(
+                root,
+                AbsoluteUnixPath.get("/app"),
+                LayerConfiguration.DEFAULT_FILE_PERMISSIONS_PROVIDER,
+                LayerConfiguration.DEFAULT_MODIFIED_TIME_PROVIDER);
+    Assertions.assertEquals(
+        Arrays.asList(
+            "/app",
+            "/app/a",
+            "/app/a/y.txt",
+            "/app/a/z.txt",
+            "/app/b",
+            "/app/b/d",
+            "/app/b/d/x.txt",
+            "/app/c.txt"),
+        paths(entries));
+  }
+
+  @Test
+  void testScan_sameAsAddEntryRecursive() throws IOException {
+    List<LayerEntry> expected =
+        LayerConfiguration.builder()
+            .addEntryRecursive(root, AbsoluteUnixPath.get("/"))
+            .build()
+            .getLayerEntries();
+    List<LayerEntry> actual =
+        new FileTreeScanner(2)
+            .scan(
+                root,
+                AbsoluteUnixPath.get("/"),
+                LayerConfiguration.DEFAULT_FILE_PERMISSIONS_PROVIDER,
+                LayerConfiguration.DEFAULT_MODIFIED_TIME_PROVIDER);
+    Assertions.assertEquals(expected.size(), actual.size());
+    Assertions.assertEquals(new HashSet<>(expected), new HashSet<>(actual));
+  }
+
+  @Test
+  void testScan_singleFile() throws IOException {
+    List<LayerEntry> entries =
+        new FileTreeScanner(1)
+            .scan(
+                root.resolve("c.txt"),
+                AbsoluteUnixPath.get("/c.txt"),
+                LayerConfiguration.DEFAULT_FILE_PERMISSIONS_PROVIDER,
+                LayerConfiguration.DEFAULT_MODIFIED_TIME_PROVIDER);
+    Assertions.assertEquals(1, entries.size());
+    Assertions.assertEquals(root.resolve("c.txt"), entries.get(0).getSourceFile());
+  }
+
+  @Test
+  void testScan_excludePrunesWalk() throws IOException {
+    FileAttributesCache attributesCache = new FileAttributesCache();
+    List<LayerEntry> entries =
+        new FileTreeScanner(1, attributesCache)
+            .scan(
+                root,
+                AbsoluteUnixPath.get("/app"),
+                LayerConfiguration.DEFAULT_FILE_PERMISSIONS_PROVIDER,
+                LayerConfiguration.DEFAULT_MODIFIED_TIME_PROVIDER,
+                PathFilter.compile(Collections.emptyList(), Arrays.asList("b", "z.txt")));
+    Assertions.assertEquals(
+        Arrays.asList("/app", "/app/a", "/app/a/y.txt", "/app/c.txt"), paths(entries));
+    // neither b, its descendants, nor z.txt were stat'ed
+    Assertions.assertEquals(4, attributesCache.getReadCount());
+  }
+
+  @Test
+  void testScan_include() throws IOException {
+    List<LayerEntry> entries =
+        new FileTreeScanner(1)
+            .scan(
+                root,
+                AbsoluteUnixPath.get("/app"),
+                LayerConfiguration.DEFAULT_FILE_PERMISSIONS_PROVIDER,
+                LayerConfiguration.DEFAULT_MODIFIED_TIME_PROVIDER,
+                PathFilter.compile(Arrays.asList("x.txt", "a"), Arrays.asList("z.txt")));
+    Assertions.assertEquals(
+        Arrays.asList("/app", "/app/a", "/app/a/y.txt", "/app/b", "/app/b/d", "/app/b/d/x.txt"),
+        paths(entries));
+  }
+
+  @Test
+  void testInvalidParallelism() {
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new FileTreeScanner(-1));
+  }
+
+  private static List<String> paths(List<LayerEntry> entries) {
+    return entries.stream()
+        .map(entry -> entry.getExtractionPath().toString())
+        .collect(Collectors.toList());
+  }
+}
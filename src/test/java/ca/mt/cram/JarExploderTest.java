@@ -0,0 +1,286 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.AbsoluteUnixPath;
+import com.google.cloud.tools.jib.api.FilePermissions;
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.api.LayerEntry;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link JarExploder}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class JarExploderTest {
+  private static final AbsoluteUnixPath APP = AbsoluteUnixPath.get("/app");
+
+  private Path root;
+  private JarExploder exploder;
+
+  @BeforeEach
+  public void setUp(TemporaryFolder temporaryFolder) throws IOException {
+    root = temporaryFolder.getRoot().toPath();
+    FileAttributesCache attributesCache = new FileAttributesCache();
+    exploder =
+        new JarExploder(
+            root.resolve("staging"),
+            new FixedPermissionsProvider(
+                FilePermissions.DEFAULT_FILE_PERMISSIONS,
+                FilePermissions.DEFAULT_FOLDER_PERMISSIONS,
+                attributesCache),
+            LayerConfiguration.DEFAULT_MODIFIED_TIME_PROVIDER,
+            attributesCache);
+  }
+
+  @Test
+  void testExplode_fatJar() throws IOException {
+    Path jar =
+        writeJar(
+            "app.jar",
+            "com.example.Main",
+            null,
+            "com/example/Main.class",
+            "com/example/util/Util.class",
+            "com/example/app.properties",
+            "log4j2.xml",
+            "org/lib/Lib.class",
+            "META-INF/services/org.lib.Spi");
+    JarExploder.Application application = exploder.explode(jar, APP, "");
+    List<LayerConfiguration> layers = application.getLayers();
+    Assertions.assertEquals(
+        Arrays.asList("app-dependencies", "app-resources", "app-classes"), names(layers));
+    Assertions.assertTrue(paths(layers.get(0)).contains("/app/dependencies/org/lib/Lib.class"));
+    Assertions.assertTrue(
+        paths(layers.get(0)).contains("/app/dependencies/META-INF/services/org.lib.Spi"));
+    Assertions.assertTrue(paths(layers.get(1)).contains("/app/resources/log4j2.xml"));
+    Assertions.assertTrue(
+        paths(layers.get(1)).contains("/app/resources/com/example/app.properties"));
+    Assertions.assertTrue(
+        paths(layers.get(2)).contains("/app/classes/com/example/util/Util.class"));
+    Assertions.assertFalse(paths(layers.get(2)).contains("/app/classes/org/lib/Lib.class"));
+
+    Assertions.assertEquals("com.example.Main", application.getMainClass());
+    Assertions.assertEquals(
+        Arrays.asList("/app/resources", "/app/classes", "/app/dependencies"),
+        application.getClasspath());
+  }
+
+  @Test
+  void testExplode_springBoot() throws IOException {
+    Path libraries = root.resolve("libraries");
+    Files.createDirectories(libraries);
+    writeJar("libraries/lib-1.0.jar", null, null, "org/lib/Lib.class");
+    writeJar("libraries/other-2.0-SNAPSHOT.jar", null, null, "org/other/Other.class");
+    Path jar =
+        writeJar(
+            "boot.jar",
+            "org.springframework.boot.loader.JarLauncher",
+            "com.example.Main",
+            "org/springframework/boot/loader/JarLauncher.class",
+            "BOOT-INF/classes/com/example/Main.class",
+            "BOOT-INF/classes/application.yml",
+            "BOOT-INF/lib/lib-1.0.jar=libraries/lib-1.0.jar",
+            "BOOT-INF/lib/other-2.0-SNAPSHOT.jar=libraries/other-2.0-SNAPSHOT.jar");
+    JarExploder.Application application = exploder.explode(jar, APP, "svc");
+    List<LayerConfiguration> layers = application.getLayers();
+    Assertions.assertEquals(
+        Arrays.asList(
+            "svc-dependencies", "svc-snapshot-dependencies", "svc-resources", "svc-classes"),
+        names(layers));
+    Assertions.assertTrue(paths(layers.get(0)).contains("/app/libs/lib-1.0.jar"));
+    Assertions.assertTrue(paths(layers.get(1)).contains("/app/libs/other-2.0-SNAPSHOT.jar"));
+    Assertions.assertTrue(paths(layers.get(2)).contains("/app/resources/application.yml"));
+    Assertions.assertTrue(paths(layers.get(3)).contains("/app/classes/com/example/Main.class"));
+    for (LayerConfiguration layer : layers) {
+      Assertions.assertFalse(
+          paths(layer).stream().anyMatch(path -> path.contains("springframework")));
+    }
+
+    Assertions.assertEquals("com.example.Main", application.getMainClass());
+    Assertions.assertEquals(
+        Arrays.asList("/app/resources", "/app/classes", "/app/libs/*"),
+        application.getClasspath());
+  }
+
+  @Test
+  void testExplode_buildDirectory() throws IOException {
+    Path target = root.resolve("target");
+    Files.createDirectories(target.resolve("lib"));
+    writeJar("target/lib/lib-1.0.jar", null, null, "org/lib/Lib.class");
+    writeJar("target/app-1.0-sources.jar", null, null, "com/example/Main.java");
+    // in a thin jar, classes outside the main class's package still belong to the application
+    writeJar(
+        "target/app-1.0.jar",
+        "com.example.Main",
+        null,
+        "com/example/Main.class",
+        "org/example/Helper.class");
+    JarExploder.Application application = exploder.explode(target, APP, "");
+    List<LayerConfiguration> layers = application.getLayers();
+    Assertions.assertEquals(Arrays.asList("app-dependencies", "app-classes"), names(layers));
+    Assertions.assertEquals(
+        target.resolve("lib/lib-1.0.jar"), layers.get(0).getLayerEntries().get(0).getSourceFile());
+    Assertions.assertTrue(paths(layers.get(1)).contains("/app/classes/org/example/Helper.class"));
+    Assertions.assertEquals(
+        Arrays.asList("/app/resources", "/app/classes", "/app/libs/*"),
+        application.getClasspath());
+  }
+
+  @Test
+  void testExplode_buildDirectoryWithoutJar() throws IOException {
+    Files.createDirectories(root.resolve("target/lib"));
+    Assertions.assertThrows(
+        picocli.CommandLine.TypeConversionException.class,
+        () -> exploder.explode(root.resolve("target"), APP, ""));
+  }
+
+  @Test
+  void testStage_reusedWhileUnchanged() throws IOException {
+    Path jar = writeJar("app.jar", "com.example.Main", null, "com/example/Main.class");
+    Path staging = exploder.stage(jar, false);
+    Path extracted = staging.resolve("CLASSES/classes/com/example/Main.class");
+    Assertions.assertTrue(Files.exists(extracted));
+    long extractedTime = Files.getLastModifiedTime(extracted).toMillis();
+    Files.delete(extracted);
+    Assertions.assertEquals(staging, exploder.stage(jar, false));
+    Assertions.assertFalse(Files.exists(extracted));
+
+    // a changed jar is extracted afresh, and the extracted files keep the jar's timestamps
+    writeJar("app.jar", "com.example.Main", null, "com/example/Main.class", "extra.txt");
+    Assertions.assertEquals(staging, exploder.stage(jar, false));
+    Assertions.assertTrue(Files.exists(extracted));
+    Assertions.assertTrue(Files.exists(staging.resolve("RESOURCES/resources/extra.txt")));
+    Assertions.assertEquals(extractedTime, Files.getLastModifiedTime(extracted).toMillis());
+  }
+
+  @Test
+  void testStage_concurrently() throws Exception {
+    Path jar = writeJar("app.jar", "com.example.Main", null, "com/example/Main.class");
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Path>> results = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        results.add(executor.submit(() -> exploder.stage(jar, false)));
+      }
+      for (Future<Path> result : results) {
+        Path staging = result.get();
+        Assertions.assertTrue(
+            Files.exists(staging.resolve("CLASSES/classes/com/example/Main.class")));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void testTemporaryStagingRoot_private() throws IOException {
+    Path staging = JarExploder.getTemporaryStagingRoot();
+    Assertions.assertSame(staging, JarExploder.getTemporaryStagingRoot());
+    Assertions.assertEquals(
+        PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(staging));
+  }
+
+  @Test
+  void testClassify() {
+    Assertions.assertNull(JarExploder.classify("META-INF/MANIFEST.MF", false, null));
+    Assertions.assertEquals(
+        "CLASSES/classes/a/B.class", JarExploder.classify("a/B.class", false, null));
+    Assertions.assertEquals(
+        "DEPENDENCIES/dependencies/c/D.class", JarExploder.classify("c/D.class", false, "a/"));
+    Assertions.assertNull(JarExploder.classify("org/springframework/boot/L.class", true, null));
+    Assertions.assertEquals(
+        "SNAPSHOT_DEPENDENCIES/libs/x-1-SNAPSHOT.jar",
+        JarExploder.classify("BOOT-INF/lib/x-1-SNAPSHOT.jar", true, null));
+  }
+
+  @Test
+  void testRewriteEntrypoint() {
+    JarExploder.Application application =
+        new JarExploder.Application(
+            null, "com.example.Main", Arrays.asList("/app/resources", "/app/classes"));
+    Assertions.assertEquals(
+        Arrays.asList("java", "-cp", "/app/resources:/app/classes", "com.example.Main"),
+        application.rewriteEntrypoint(null));
+    Assertions.assertEquals(
+        Arrays.asList(
+            "java", "-Xmx1g", "-cp", "/app/resources:/app/classes", "com.example.Main", "run"),
+        application.rewriteEntrypoint(
+            Arrays.asList("java", "-Xmx1g", "-jar", "/app/app.jar", "run")));
+    List<String> script = Arrays.asList("/bin/sh", "start.sh");
+    Assertions.assertEquals(script, application.rewriteEntrypoint(script));
+  }
+
+  /**
+   * Write a jar of empty entries. An entry of the form {@code name=file} takes its contents from
+   * {@code file}.
+   */
+  private Path writeJar(String name, String mainClass, String startClass, String... entries)
+      throws IOException {
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    if (mainClass != null) {
+      manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
+    }
+    if (startClass != null) {
+      manifest.getMainAttributes().putValue("Start-Class", startClass);
+    }
+    Path jar = root.resolve(name);
+    try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+      for (String entry : entries) {
+        String[] parts = entry.split("=", 2);
+        JarEntry jarEntry = new JarEntry(parts[0]);
+        jarEntry.setTime(1_000_000_000_000L);
+        out.putNextEntry(jarEntry);
+        if (parts.length > 1) {
+          out.write(Files.readAllBytes(root.resolve(parts[1])));
+        }
+        out.closeEntry();
+      }
+    }
+    return jar;
+  }
+
+  private static List<String> names(List<LayerConfiguration> layers) {
+    return layers.stream().map(LayerConfiguration::getName).collect(Collectors.toList());
+  }
+
+  private static List<String> paths(LayerConfiguration layer) {
+    return layer.getLayerEntries().stream()
+        .map(LayerEntry::getExtractionPath)
+        .map(AbsoluteUnixPath::toString)
+        .collect(Collectors.toList());
+  }
+}
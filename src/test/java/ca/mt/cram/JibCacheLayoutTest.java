@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.cache.Cache;
+import com.google.cloud.tools.jib.cache.CachedLayer;
+import com.google.cloud.tools.jib.image.ReproducibleLayerBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link JibCacheLayout}, against Jib's own {@link Cache}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class JibCacheLayoutTest {
+  private LayerConfiguration layer;
+  private Path cacheDirectory;
+
+  @BeforeEach
+  public void setUp(TemporaryFolder temporaryFolder) throws Exception {
+    Path source = temporaryFolder.createDirectory("source").toPath();
+    Files.write(source.resolve("file.txt"), new byte[] {1, 2, 3});
+    layer = new LayerDefinitionParser().convert(source + ":/app:perms=600/700");
+    cacheDirectory = temporaryFolder.createDirectory("cache").toPath();
+  }
+
+  @Test
+  void testSelector_matchesJib() throws Exception {
+    CachedLayer cached =
+        Cache.withDirectory(cacheDirectory)
+            .writeUncompressedLayer(
+                new ReproducibleLayerBuilder(layer.getLayerEntries()).build(),
+                layer.getLayerEntries());
+
+    // where Jib looks the layer up
+    JibCacheLayout layout = new JibCacheLayout(cacheDirectory);
+    Path selectorFile = layout.getSelectorFile(layer.getLayerEntries());
+    Assertions.assertTrue(Files.exists(selectorFile));
+    Assertions.assertEquals(
+        layout.getLayersDirectory().resolve(cached.getDigest().getHash()),
+        layout.readSelectedLayer(selectorFile));
+    Assertions.assertTrue(
+        Files.exists(
+            layout.readSelectedLayer(selectorFile).resolve(cached.getDiffId().getHash())));
+  }
+
+  @Test
+  void testWriteLayer_retrievedByJib() throws Exception {
+    ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+    new ReproducibleLayerBuilder(layer.getLayerEntries()).build().writeTo(uncompressed);
+    JibCacheLayout layout = new JibCacheLayout(cacheDirectory);
+    Path temporaryFile = layout.createTemporaryFile();
+    HashingOutputStream compressed;
+    try (OutputStream output = Files.newOutputStream(temporaryFile)) {
+      compressed = new HashingOutputStream(Hashing.sha256(), output);
+      try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+        gzip.write(uncompressed.toByteArray());
+      }
+    }
+    String digest = compressed.hash().toString();
+    String diffId = Hashing.sha256().hashBytes(uncompressed.toByteArray()).toString();
+
+    layout.writeLayer(layer.getLayerEntries(), temporaryFile, digest, diffId);
+
+    Optional<CachedLayer> cached =
+        Cache.withDirectory(cacheDirectory).retrieve(layer.getLayerEntries());
+    Assertions.assertTrue(cached.isPresent());
+    Assertions.assertEquals(digest, cached.get().getDigest().getHash());
+    Assertions.assertEquals(diffId, cached.get().getDiffId().getHash());
+    Assertions.assertFalse(Files.exists(temporaryFile));
+  }
+
+  @Test
+  void testReadSelectedLayer_missing() throws IOException {
+    JibCacheLayout layout = new JibCacheLayout(cacheDirectory);
+    Assertions.assertNull(
+        layout.readSelectedLayer(layout.getSelectorFile(layer.getLayerEntries())));
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link LayerCache}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class LayerCacheTest {
+  private Path source;
+  private Path cacheDirectory;
+
+  @BeforeEach
+  public void setUp(TemporaryFolder temporaryFolder) throws IOException {
+    source = temporaryFolder.createDirectory("source").toPath();
+    Files.write(source.resolve("file.txt"), new byte[] {1, 2, 3});
+    cacheDirectory = temporaryFolder.createDirectory("cache").toPath();
+  }
+
+  @Test
+  void testFingerprint_stable() throws Exception {
+    LayerDefinitionParser parser = new LayerDefinitionParser();
+    Assertions.assertEquals(
+        LayerCache.fingerprint(parser.convert(source + ":/app")),
+        LayerCache.fingerprint(parser.convert(source + ":/app")));
+  }
+
+  @Test
+  void testFingerprint_changes() throws Exception {
+    LayerDefinitionParser parser = new LayerDefinitionParser();
+    String original = LayerCache.fingerprint(parser.convert(source + ":/app"));
+    Assertions.assertNotEquals(
+        original, LayerCache.fingerprint(parser.convert(source + ":/app:ts=1000")));
+    Assertions.assertNotEquals(
+        original, LayerCache.fingerprint(parser.convert(source + ":/app:perms=600/700")));
+    Assertions.assertNotEquals(original, LayerCache.fingerprint(parser.convert(source + ":/opt")));
+
+    FileTime modified = Files.getLastModifiedTime(source.resolve("file.txt"));
+    Files.write(source.resolve("file.txt"), new byte[] {1, 2, 3, 4});
+    Files.setLastModifiedTime(source.resolve("file.txt"), modified);
+    Assertions.assertNotEquals(original, LayerCache.fingerprint(parser.convert(source + ":/app")));
+  }
+
+  @Test
+  void testPrepare_missThenHit() throws Exception {
+    LayerConfiguration layer = new LayerDefinitionParser().convert(source + ":/app");
+    try (LayerCache cache = LayerCache.open(cacheDirectory, 0)) {
+      cache.prepare(Collections.singletonList(layer));
+      Assertions.assertEquals(0, cache.getHits());
+      Assertions.assertEquals(1, cache.getMisses());
+      simulateJibWrite(cache, "abc");
+      cache.recordUse();
+    }
+    try (LayerCache cache = LayerCache.open(cacheDirectory, 0)) {
+      cache.prepare(Collections.singletonList(layer));
+      Assertions.assertEquals(1, cache.getHits());
+      Assertions.assertEquals(0, cache.getMisses());
+    }
+  }
+
+  @Test
+  void testPrepare_changedTimestampsDiscardsSelector() throws Exception {
+    LayerDefinitionParser parser = new LayerDefinitionParser();
+    try (LayerCache cache = LayerCache.open(cacheDirectory, 0)) {
+      cache.prepare(Collections.singletonList(parser.convert(source + ":/app")));
+      simulateJibWrite(cache, "abc");
+      cache.recordUse();
+    }
+    try (LayerCache cache = LayerCache.open(cacheDirectory, 0)) {
+      // Jib's selector ignores the configured timestamps, so the cache must discard it
+      cache.prepare(Collections.singletonList(parser.convert(source + ":/app:ts=1000")));
+      Assertions.assertEquals(1, cache.getMisses());
+      Path selectors = cache.getApplicationLayersDirectory().resolve("selectors");
+      Assertions.assertEquals(0, selectors.toFile().list().length);
+    }
+  }
+
+  @Test
+  void testPrepare_revertedContentsDiscardsSelector() throws Exception {
+    LayerDefinitionParser parser = new LayerDefinitionParser();
+    Path file = source.resolve("file.txt");
+    FileTime modified = Files.getLastModifiedTime(file);
+    try (LayerCache cache = LayerCache.open(cacheDirectory, 0)) {
+      cache.prepare(Collections.singletonList(parser.convert(source + ":/app")));
+      simulateJibWrite(cache, "contentsA");
+      cache.recordUse();
+    }
+    // Jib's selector is unchanged, as the modification time is
+    Files.write(file, new byte[] {1, 2, 3, 4});
+    Files.setLastModifiedTime(file, modified);
+    try (LayerCache cache = LayerCache.open(cacheDirectory, 0)) {
+      cache.prepare(Collections.singletonList(parser.convert(source + ":/app")));
+      Assertions.assertEquals(1, cache.getMisses());
+      simulateJibWrite(cache, "contentsB");
+      cache.recordUse();
+    }
+    // back to the original contents, which the selector's layer is not built from
+    Files.write(file, new byte[] {1, 2, 3});
+    Files.setLastModifiedTime(file, modified);
+    try (LayerCache cache = LayerCache.open(cacheDirectory, 0)) {
+      cache.prepare(Collections.singletonList(parser.convert(source + ":/app")));
+      Assertions.assertEquals(0, cache.getHits());
+      Assertions.assertEquals(1, cache.getMisses());
+      Path selectors = cache.getApplicationLayersDirectory().resolve("selectors");
+      Assertions.assertEquals(0, selectors.toFile().list().length);
+    }
+  }
+
+  @Test
+  void testEvict_leastRecentlyUsed() throws Exception {
+    try (LayerCache cache = LayerCache.open(cacheDirectory, 150)) {
+      Path layers = cache.getApplicationLayersDirectory().resolve("layers");
+      for (int i = 0; i < 3; i++) {
+        Path layer = Files.createDirectories(layers.resolve("layer" + i));
+        Files.write(layer.resolve("blob"), new byte[100]);
+        Files.setLastModifiedTime(layer, FileTime.fromMillis(1000L * (i + 1)));
+      }
+      cache.evict();
+      Assertions.assertFalse(Files.exists(layers.resolve("layer0")));
+      Assertions.assertFalse(Files.exists(layers.resolve("layer1")));
+      Assertions.assertTrue(Files.exists(layers.resolve("layer2")));
+    }
+  }
+
+  @Test
+  void testOpen_releasesLockOnClose() throws Exception {
+    LayerConfiguration layer = new LayerDefinitionParser().convert(source + ":/app");
+    try (LayerCache cache = LayerCache.open(cacheDirectory, 0)) {
+      cache.prepare(Collections.singletonList(layer));
+    }
+    // an exclusive lock can be taken once the cache is closed
+    try (FileChannel channel =
+            FileChannel.open(cacheDirectory.resolve(".lock"), StandardOpenOption.WRITE);
+        FileLock lock = channel.tryLock()) {
+      Assertions.assertNotNull(lock);
+    }
+  }
+
+  @Test
+  void testClose_lastInJvmEvicts() throws Exception {
+    LayerCache first = LayerCache.open(cacheDirectory, 50);
+    LayerCache second = LayerCache.open(cacheDirectory.resolve("../cache"), 50);
+    Path layer = first.getApplicationLayersDirectory().resolve("layers").resolve("layer");
+    Files.createDirectories(layer);
+    Files.write(layer.resolve("blob"), new byte[100]);
+    // the second build is still using the cache
+    first.close();
+    Assertions.assertTrue(Files.exists(layer));
+    second.close();
+    Assertions.assertFalse(Files.exists(layer));
+  }
+
+  /** Populate the selector and layer for the prepared layer as Jib would when building it. */
+  private static void simulateJibWrite(LayerCache cache, String layerDigest) throws IOException {
+    Path jib = cache.getApplicationLayersDirectory();
+    Files.createDirectories(jib.resolve("layers").resolve(layerDigest));
+    Path selectors = Files.createDirectories(jib.resolve("selectors"));
+    for (String selector : cache.getSelectors()) {
+      Files.write(selectors.resolve(selector), layerDigest.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.blob.Blob;
+import com.google.cloud.tools.jib.cache.Cache;
+import com.google.cloud.tools.jib.cache.CachedLayer;
+import com.google.common.io.ByteStreams;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link LayerCompressor}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class LayerCompressorTest {
+  private Path root;
+  private ExecutorService executor;
+
+  @BeforeEach
+  public void setUp(TemporaryFolder temporaryFolder) throws Exception {
+    root = temporaryFolder.getRoot().toPath();
+    Files.createDirectories(root.resolve("a"));
+    Files.createDirectories(root.resolve("b"));
+    Files.write(root.resolve("a/file.txt"), new byte[] {1, 2, 3});
+    Files.write(root.resolve("b/file.txt"), new byte[] {4, 5, 6});
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test
+  void testCompress() throws Exception {
+    LayerDefinitionParser parser = new LayerDefinitionParser(root);
+    LayerConfiguration empty = LayerConfiguration.builder().build();
+    List<LayerConfiguration> layers =
+        Arrays.asList(parser.convert("a:/a"), parser.convert("b:/b"), empty);
+    Path cacheDirectory = root.resolve("cache");
+
+    // the empty layer is skipped, as Jib does
+    Assertions.assertEquals(2, LayerCompressor.compress(cacheDirectory, layers, executor));
+    Cache cache = Cache.withDirectory(cacheDirectory);
+    for (LayerConfiguration layer : layers.subList(0, 2)) {
+      Assertions.assertTrue(cache.retrieve(layer.getLayerEntries()).isPresent());
+    }
+    // already compressed
+    Assertions.assertEquals(0, LayerCompressor.compress(cacheDirectory, layers, executor));
+  }
+
+  @Test
+  void testCompress_levelAndBlockSize() throws Exception {
+    LayerDefinitionParser parser = new LayerDefinitionParser(root);
+    List<LayerConfiguration> layers = Arrays.asList(parser.convert("a:/a"));
+    Path jibCache = root.resolve("jib");
+    LayerCompressor.compress(jibCache, layers, executor);
+    CachedLayer expected =
+        Cache.withDirectory(jibCache).retrieve(layers.get(0).getLayerEntries()).get();
+
+    List<DescriptorDigest> digests = new ArrayList<>();
+    for (int blockSize : new int[] {0, ParallelGzipOutputStream.MINIMUM_BLOCK_SIZE}) {
+      Path cacheDirectory = root.resolve("cache" + blockSize);
+      Assertions.assertEquals(
+          1,
+          LayerCompressor.compress(
+              cacheDirectory, layers, Deflater.BEST_COMPRESSION, blockSize, null, executor));
+      // Jib finds the layer, with the same contents as it would have compressed
+      CachedLayer layer =
+          Cache.withDirectory(cacheDirectory).retrieve(layers.get(0).getLayerEntries()).get();
+      Assertions.assertEquals(expected.getDiffId(), layer.getDiffId());
+      Assertions.assertEquals(layer.getDigest(), digest(layer.getBlob()));
+      digests.add(layer.getDigest());
+      Assertions.assertEquals(
+          0,
+          LayerCompressor.compress(
+              cacheDirectory, layers, Deflater.BEST_COMPRESSION, blockSize, null, executor));
+    }
+    Assertions.assertNotEquals(digests.get(0), digests.get(1));
+  }
+
+  private static DescriptorDigest digest(Blob blob) throws IOException {
+    return blob.writeTo(ByteStreams.nullOutputStream()).getDigest();
+  }
+}
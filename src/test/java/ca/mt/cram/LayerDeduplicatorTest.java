@@ -0,0 +1,227 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.AbsoluteUnixPath;
+import com.google.cloud.tools.jib.api.FilePermissions;
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.api.LayerEntry;
+import com.google.common.hash.Hashing;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link LayerDeduplicator}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class LayerDeduplicatorTest {
+  private Path root;
+  private ExecutorService executor;
+
+  @BeforeEach
+  public void setUp(TemporaryFolder temporaryFolder) throws Exception {
+    root = temporaryFolder.getRoot().toPath();
+    Files.write(root.resolve("one"), new byte[] {1, 2, 3});
+    Files.write(root.resolve("copy"), new byte[] {1, 2, 3});
+    Files.write(root.resolve("other"), new byte[] {4, 5, 6});
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test
+  void testDeduplicate_withinLayer() throws Exception {
+    List<LayerConfiguration> layers =
+        Arrays.asList(layer("app", entry("one", "/app/one"), entry("copy", "/app/copy")));
+    LayerDeduplicator.Result result = deduplicate(layers);
+    // linked within the layer
+    Assertions.assertSame(layers, result.layers);
+    Assertions.assertEquals(1, result.duplicates);
+    Assertions.assertEquals(3, result.bytesSaved);
+    Assertions.assertEquals(
+        result.contents.get(root.resolve("one")), result.contents.get(root.resolve("copy")));
+  }
+
+  @Test
+  void testDeduplicate_acrossLayers() throws Exception {
+    LayerEntry directory = entry(".", "/app");
+    List<LayerConfiguration> layers =
+        Arrays.asList(
+            layer("lower", directory, entry("one", "/app/one"), entry("other", "/app/other")),
+            layer("upper", entry("copy", "/app/copy")));
+    LayerDeduplicator.Result result = deduplicate(layers);
+    Assertions.assertEquals(1, result.duplicates);
+    Assertions.assertEquals(3, result.bytesSaved);
+    Assertions.assertEquals(3, result.layers.size());
+    // below the lowest layer it takes files from, so that the layers keep their order
+    LayerConfiguration shared = result.layers.get(0);
+    Assertions.assertEquals(LayerDeduplicator.SHARED_LAYER_NAME, shared.getName());
+    // with the directory holding the files
+    Assertions.assertEquals(
+        Arrays.asList("/app", "/app/one", "/app/copy"), extractionPaths(shared));
+    Assertions.assertEquals(
+        Arrays.asList("/app", "/app/other"), extractionPaths(result.layers.get(1)));
+    Assertions.assertEquals("upper", result.layers.get(2).getName());
+    Assertions.assertTrue(result.layers.get(2).getLayerEntries().isEmpty());
+  }
+
+  @Test
+  void testDeduplicate_highestDirectory() throws Exception {
+    LayerEntry lowerDirectory =
+        new LayerEntry(
+            root,
+            AbsoluteUnixPath.get("/app"),
+            FilePermissions.fromOctalString("700"),
+            LayerConfiguration.DEFAULT_MODIFIED_TIME);
+    LayerEntry upperDirectory =
+        new LayerEntry(
+            root,
+            AbsoluteUnixPath.get("/app"),
+            FilePermissions.fromOctalString("750"),
+            LayerConfiguration.DEFAULT_MODIFIED_TIME);
+    List<LayerConfiguration> layers =
+        Arrays.asList(
+            layer("base", entry("other", "/other")),
+            layer("lower", lowerDirectory, entry("one", "/app/one")),
+            layer("upper", upperDirectory, entry("copy", "/app/copy")));
+    LayerDeduplicator.Result result = deduplicate(layers);
+    Assertions.assertEquals(
+        Arrays.asList("base", LayerDeduplicator.SHARED_LAYER_NAME, "lower", "upper"),
+        result.layers.stream().map(LayerConfiguration::getName).collect(Collectors.toList()));
+    // the directory as seen in the image, from the highest layer holding it
+    LayerEntry sharedDirectory = result.layers.get(1).getLayerEntries().get(0);
+    Assertions.assertEquals("/app", sharedDirectory.getExtractionPath().toString());
+    Assertions.assertEquals("750", sharedDirectory.getPermissions().toOctalString());
+  }
+
+  @Test
+  void testDeduplicate_samePathInSeveralLayers() throws Exception {
+    List<LayerConfiguration> layers =
+        Arrays.asList(
+            layer("lower", entry("one", "/app/file")), layer("upper", entry("copy", "/app/file")));
+    LayerDeduplicator.Result result = deduplicate(layers);
+    // moving either file would change which is seen
+    Assertions.assertSame(layers, result.layers);
+    Assertions.assertEquals(0, result.duplicates);
+    Assertions.assertEquals(0, result.bytesSaved);
+  }
+
+  @Test
+  void testDeduplicate_opaqueLayer() throws Exception {
+    LayerConfiguration tarball = layer("tarball", entry("other", "/.tarball"));
+    List<LayerConfiguration> layers =
+        Arrays.asList(
+            layer("lower", entry("one", "/app/one")),
+            tarball,
+            layer("upper", entry("copy", "/app/copy"), entry("other", "/app/other")));
+    LayerDeduplicator.Result result =
+        LayerDeduplicator.deduplicate(
+            layers, Collections.singleton(tarball), new FileAttributesCache(), executor);
+    // the tarball may hold either path, so neither file is moved above it, and its entry is not a
+    // duplicate of the file with the same contents
+    Assertions.assertSame(layers, result.layers);
+    Assertions.assertEquals(0, result.duplicates);
+
+    List<LayerConfiguration> below =
+        Arrays.asList(
+            tarball,
+            layer("lower", entry("one", "/app/one")),
+            layer("upper", entry("copy", "/app/copy")));
+    result =
+        LayerDeduplicator.deduplicate(
+            below, Collections.singleton(tarball), new FileAttributesCache(), executor);
+    Assertions.assertEquals(4, result.layers.size());
+    Assertions.assertSame(tarball, result.layers.get(0));
+    Assertions.assertEquals(LayerDeduplicator.SHARED_LAYER_NAME, result.layers.get(1).getName());
+  }
+
+  @Test
+  void testDeduplicate_differentAttributes() throws Exception {
+    LayerEntry executable =
+        new LayerEntry(
+            root.resolve("copy"),
+            AbsoluteUnixPath.get("/app/copy"),
+            FilePermissions.fromOctalString("755"),
+            LayerConfiguration.DEFAULT_MODIFIED_TIME);
+    LayerEntry later =
+        new LayerEntry(
+            root.resolve("copy"),
+            AbsoluteUnixPath.get("/app/later"),
+            FilePermissions.DEFAULT_FILE_PERMISSIONS,
+            Instant.parse("2019-01-01T00:00:00Z"));
+    List<LayerConfiguration> layers =
+        Arrays.asList(layer("app", entry("one", "/app/one"), executable, later));
+    LayerDeduplicator.Result result = deduplicate(layers);
+    Assertions.assertEquals(0, result.duplicates);
+  }
+
+  @Test
+  void testHash() throws Exception {
+    byte[] contents = new byte[3 * LayerDeduplicator.HASH_BUFFER_SIZE + 100];
+    new Random(0).nextBytes(contents);
+    Path large = root.resolve("large");
+    Files.write(large, contents);
+    // streamed through several reads
+    Assertions.assertEquals(Hashing.sha256().hashBytes(contents), LayerDeduplicator.hash(large));
+    Assertions.assertEquals(
+        Hashing.sha256().hashBytes(new byte[] {1, 2, 3}),
+        LayerDeduplicator.hash(root.resolve("one")));
+  }
+
+  private LayerDeduplicator.Result deduplicate(List<LayerConfiguration> layers) throws Exception {
+    return LayerDeduplicator.deduplicate(
+        layers, Collections.emptySet(), new FileAttributesCache(), executor);
+  }
+
+  private LayerEntry entry(String source, String extractionPath) {
+    return new LayerEntry(
+        root.resolve(source).normalize(),
+        AbsoluteUnixPath.get(extractionPath),
+        FilePermissions.DEFAULT_FILE_PERMISSIONS,
+        LayerConfiguration.DEFAULT_MODIFIED_TIME);
+  }
+
+  private static LayerConfiguration layer(String name, LayerEntry... entries) {
+    LayerConfiguration.Builder builder = LayerConfiguration.builder().setName(name);
+    for (LayerEntry entry : entries) {
+      builder.addEntry(entry);
+    }
+    return builder.build();
+  }
+
+  private static List<String> extractionPaths(LayerConfiguration layer) {
+    return layer.getLayerEntries().stream()
+        .map(entry -> entry.getExtractionPath().toString())
+        .collect(Collectors.toList());
+  }
+}
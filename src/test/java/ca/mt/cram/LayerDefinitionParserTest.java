@@ -24,11 +24,19 @@ import io.github.glytching.junit.extension.folder.TemporaryFolder;
 import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -157,4 +165,189 @@ class LayerDefinitionParserTest {
         AbsoluteUnixPath.get("/dest/sub/file.txt"), layerEntry.getExtractionPath());
     Assertions.assertEquals(file.lastModified(), layerEntry.getLastModifiedTime().toEpochMilli());
   }
+
+  @Test
+  void testSourceDestinationParallelism() throws Exception {
+    File root = temporaryFolder.getRoot();
+    File subdir = new File(root, "sub");
+    Assertions.assertTrue(subdir.mkdir());
+    File file = new File(subdir, "file.txt");
+    Files.copy(new ByteArrayInputStream("foo".getBytes(StandardCharsets.UTF_8)), file.toPath());
+
+    LayerConfiguration result = fixture.convert(root.toString() + ":/dest:parallelism=1");
+    Assertions.assertEquals(3, result.getLayerEntries().size());
+    Assertions.assertEquals(
+        AbsoluteUnixPath.get("/dest"), result.getLayerEntries().get(0).getExtractionPath());
+    Assertions.assertEquals(
+        AbsoluteUnixPath.get("/dest/sub"), result.getLayerEntries().get(1).getExtractionPath());
+    Assertions.assertEquals(
+        AbsoluteUnixPath.get("/dest/sub/file.txt"),
+        result.getLayerEntries().get(2).getExtractionPath());
+  }
+
+  @Test
+  void testSourceDestinationWithInvalidParallelism() throws Exception {
+    try {
+      fixture.convert("foo:/dest:parallelism=0");
+      Assertions.fail("Should have errored on invalid parallelism");
+    } catch (CommandLine.TypeConversionException ex) {
+      Assertions.assertEquals("invalid parallelism: 0", ex.getMessage());
+    }
+  }
+
+  @Test
+  void testSourceRelativeToBaseDirectory() throws Exception {
+    LayerConfiguration result =
+        new LayerDefinitionParser(Paths.get("/base")).convert("foo:/dest");
+    Assertions.assertEquals(
+        Paths.get("/base/foo"), result.getLayerEntries().get(0).getSourceFile());
+  }
+
+  @Test
+  void testSourceDestinationAutoSplit() throws Exception {
+    File root = temporaryFolder.createDirectory("root");
+    Files.write(new File(root, "a").toPath(), new byte[600]);
+    Files.write(new File(root, "b").toPath(), new byte[600]);
+    Assertions.assertEquals(1, fixture.convertAll(root + ":/app:name=data:auto-split").size());
+    List<LayerConfiguration> layers = fixture.convertAll(root + ":/app:name=data:auto-split=1k");
+    Assertions.assertEquals(2, layers.size());
+    Assertions.assertEquals("data-1", layers.get(0).getName());
+    Assertions.assertEquals("data-2", layers.get(1).getName());
+    try {
+      fixture.convert(root + ":/app:auto-split=1k");
+      Assertions.fail("should have failed as the definition results in several layers");
+    } catch (CommandLine.TypeConversionException ex) {
+      Assertions.assertEquals("definition results in 2 layers", ex.getMessage());
+    }
+  }
+
+  @Test
+  void testAutoSplit_historySavedOnRequest() throws Exception {
+    File root = temporaryFolder.createDirectory("root");
+    Files.write(new File(root, "a").toPath(), new byte[600]);
+    File cache = temporaryFolder.createDirectory("cache");
+    LayerDefinitionParser parser = new LayerDefinitionParser(Paths.get(""), cache.toPath());
+    parser.convertAll(root + ":/app:auto-split=1k");
+    Assertions.assertFalse(new File(cache, "history").exists());
+    parser.saveHistories();
+    Assertions.assertEquals(1, new File(cache, "history").list().length);
+  }
+
+  @Test
+  void testSourceDestinationWithInvalidAutoSplit() throws Exception {
+    try {
+      fixture.convertAll("foo:/app:auto-split=lots");
+      Assertions.fail("should have errored with an invalid size");
+    } catch (CommandLine.TypeConversionException ex) {
+      Assertions.assertEquals("invalid auto-split size: lots", ex.getMessage());
+    }
+  }
+
+  @Test
+  void testSourceDestinationIncludeExclude() throws Exception {
+    File root = temporaryFolder.createDirectory("root");
+    Files.createDirectories(root.toPath().resolve(".git/objects"));
+    Files.createDirectories(root.toPath().resolve("static/js"));
+    Files.write(root.toPath().resolve("static/js/app.js"), new byte[1]);
+    Files.write(root.toPath().resolve("static/js/app.js.map"), new byte[1]);
+    Files.write(root.toPath().resolve("build.log"), new byte[1]);
+    LayerConfiguration result =
+        fixture.convert(root + ":/app:exclude=.git:exclude=*.{map,log}");
+    Assertions.assertEquals(
+        Arrays.asList("/app", "/app/static", "/app/static/js", "/app/static/js/app.js"),
+        extractionPaths(result));
+    result = fixture.convert(root + ":/app:include=static/**.js");
+    Assertions.assertEquals(
+        Arrays.asList("/app", "/app/static", "/app/static/js", "/app/static/js/app.js"),
+        extractionPaths(result));
+    try {
+      fixture.convert(root + ":/app:exclude=[a");
+      Assertions.fail("should have errored with an invalid glob");
+    } catch (CommandLine.TypeConversionException ex) {
+      Assertions.assertEquals("invalid glob: [a", ex.getMessage());
+    }
+  }
+
+  @Test
+  void testSourceDestinationExplode() throws Exception {
+    File cache = temporaryFolder.createDirectory("cache");
+    File jar = new File(temporaryFolder.getRoot(), "app.jar");
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "com.example.Main");
+    try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest)) {
+      out.putNextEntry(new JarEntry("com/example/Main.class"));
+      out.closeEntry();
+    }
+    LayerDefinitionParser parser =
+        new LayerDefinitionParser(temporaryFolder.getRoot().toPath(), cache.toPath());
+    List<LayerConfiguration> layers = parser.convertAll("app.jar:/srv:name=web:explode");
+    Assertions.assertEquals(1, layers.size());
+    Assertions.assertEquals("web-classes", layers.get(0).getName());
+    Assertions.assertTrue(new File(cache, "exploded").isDirectory());
+    Assertions.assertEquals(1, parser.getApplications().size());
+    Assertions.assertEquals("com.example.Main", parser.getApplications().get(0).getMainClass());
+    try {
+      parser.convertAll("app.jar:/srv:explode:auto-split");
+      Assertions.fail("should have failed as exploded layers cannot be split");
+    } catch (CommandLine.TypeConversionException ex) {
+      Assertions.assertEquals("cannot auto-split an exploded layer", ex.getMessage());
+    }
+  }
+
+  @Test
+  void testTarball() throws Exception {
+    temporaryFolder.createFile("app.tar");
+    temporaryFolder.createDirectory("src");
+    LayerDefinitionParser parser = new LayerDefinitionParser(temporaryFolder.getRoot().toPath());
+    List<LayerConfiguration> layers = parser.convertAll("src:/src;tar=app.tar:/opt:name=app");
+    // the tarball is a layer of its own, after that of the files
+    Assertions.assertEquals(2, layers.size());
+    Assertions.assertEquals(Arrays.asList("/src"), extractionPaths(layers.get(0)));
+    LayerConfiguration tarball = layers.get(1);
+    Assertions.assertEquals("app", tarball.getName());
+    Assertions.assertEquals(1, tarball.getLayerEntries().size());
+    Assertions.assertEquals(
+        temporaryFolder.getRoot().toPath().resolve("app.tar"),
+        tarball.getLayerEntries().get(0).getSourceFile());
+    Assertions.assertEquals(1, parser.getTarballs().size());
+    Assertions.assertTrue(parser.getTarballs().get(tarball).isRewritten());
+    LayerConfiguration unchanged = parser.convert("tar=app.tar:/:perms=actual");
+    Assertions.assertFalse(parser.getTarballs().get(unchanged).isRewritten());
+    // the rewrites select a different cached layer
+    Assertions.assertNotEquals(
+        parser.convert("tar=app.tar:/:ts=0").getLayerEntries(),
+        parser.convert("tar=app.tar:/:ts=1").getLayerEntries());
+    Assertions.assertEquals(
+        Arrays.asList(Paths.get("base/app.tar"), Paths.get("base/src")),
+        LayerDefinitionParser.getSourcePaths(Paths.get("base"), "tar=app.tar:/opt;src"));
+  }
+
+  @Test
+  void testTarballWithInvalidDirectives() throws Exception {
+    temporaryFolder.createFile("app.tar");
+    LayerDefinitionParser parser = new LayerDefinitionParser(temporaryFolder.getRoot().toPath());
+    String[][] invalid = {
+      {"tar=missing.tar", "no such tarball: "},
+      {"tar=app.tar:/:explode", "cannot explode a tarball layer"},
+      {"tar=app.tar:/:include=*.txt", "cannot include or exclude files of a tarball layer"},
+      {"tar=app.tar:/:auto-split", "cannot auto-split a tarball layer"},
+      {"tar=app.tar:/:perms=rwx", "invalid permissions: rwx"},
+      {"tar=app.tar:/:perms=644/888", "invalid permissions: 888"},
+    };
+    for (String[] definition : invalid) {
+      try {
+        parser.convertAll(definition[0]);
+        Assertions.fail("should have failed: " + definition[0]);
+      } catch (CommandLine.TypeConversionException ex) {
+        Assertions.assertTrue(ex.getMessage().startsWith(definition[1]), ex.getMessage());
+      }
+    }
+  }
+
+  private static List<String> extractionPaths(LayerConfiguration layer) {
+    return layer.getLayerEntries().stream()
+        .map(entry -> entry.getExtractionPath().toString())
+        .collect(Collectors.toList());
+  }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.LayerConfiguration;
+import com.google.cloud.tools.jib.api.LayerEntry;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link LayerSplitter}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class LayerSplitterTest {
+  private Path root;
+  private Path historyDirectory;
+  private List<LayerEntry> entries;
+
+  @BeforeEach
+  public void setUp(TemporaryFolder temporaryFolder) throws Exception {
+    root = temporaryFolder.createDirectory("root").toPath();
+    historyDirectory = temporaryFolder.createDirectory("history").toPath();
+    Files.createDirectories(root.resolve("lib"));
+    Files.createDirectories(root.resolve("app"));
+    for (int i = 0; i < 3; i++) {
+      write("lib/lib" + i + ".jar", 40, 1000);
+    }
+    write("app/main.js", 40, 2000);
+    write("app/style.css", 40, 2000);
+    write("model.bin", 200, 1000);
+    entries = new LayerDefinitionParser().convert(root + ":/srv").getLayerEntries();
+  }
+
+  @Test
+  void testSplit_withinBudget() throws IOException {
+    List<LayerConfiguration> layers = new LayerSplitter(10_000, null).split("web", entries);
+    Assertions.assertEquals(1, layers.size());
+    Assertions.assertEquals("web-1", layers.get(0).getName());
+    Assertions.assertEquals(entries, layers.get(0).getLayerEntries());
+  }
+
+  @Test
+  void testSplit_bySize() throws IOException {
+    List<LayerConfiguration> layers = new LayerSplitter(100, null).split("", entries);
+    Assertions.assertEquals(4, layers.size());
+    Assertions.assertEquals("layer-1", layers.get(0).getName());
+    assertPartition(layers);
+    // directories that are split go in the lowest layer, and older content is placed lower
+    Assertions.assertEquals(
+        sources("/srv", "/srv/lib", "/srv/lib/lib0.jar", "/srv/lib/lib1.jar"), sources(layers, 0));
+    Assertions.assertEquals(sources("/srv/lib/lib2.jar"), sources(layers, 1));
+    Assertions.assertEquals(sources("/srv/model.bin"), sources(layers, 2));
+    Assertions.assertEquals(
+        sources("/srv/app", "/srv/app/main.js", "/srv/app/style.css"), sources(layers, 3));
+  }
+
+  @Test
+  void testSplit_changedContentIsPlacedHigher() throws Exception {
+    split();
+    // the libraries change, but are older than the application
+    write("lib/lib1.jar", 41, 1000);
+    write("lib/lib2.jar", 39, 1000);
+    entries = new LayerDefinitionParser().convert(root + ":/srv").getLayerEntries();
+    List<LayerConfiguration> layers = split();
+    assertPartition(layers);
+    LayerConfiguration top = layers.get(layers.size() - 1);
+    Assertions.assertTrue(
+        top.getLayerEntries().stream()
+            .allMatch(entry -> entry.getExtractionPath().toString().startsWith("/srv/lib")));
+    Assertions.assertTrue(sources(layers, 0).contains("/srv/lib/lib0.jar"));
+  }
+
+  private List<LayerConfiguration> split() throws IOException {
+    ChangeHistory history = ChangeHistory.load(historyDirectory, root.toString());
+    List<LayerConfiguration> layers = new LayerSplitter(100, history).split("", entries);
+    history.save();
+    return layers;
+  }
+
+  /** Check that each entry is in exactly one layer. */
+  private void assertPartition(List<LayerConfiguration> layers) {
+    List<LayerEntry> all = new ArrayList<>();
+    for (LayerConfiguration layer : layers) {
+      all.addAll(layer.getLayerEntries());
+    }
+    Assertions.assertEquals(entries.size(), all.size());
+    Assertions.assertEquals(new HashSet<>(entries), new HashSet<>(all));
+  }
+
+  private void write(String path, int size, long lastModified) throws IOException {
+    Path file = root.resolve(path);
+    Files.write(file, new byte[size]);
+    Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+  }
+
+  private static Set<String> sources(List<LayerConfiguration> layers, int index) {
+    Set<String> paths = new HashSet<>();
+    for (LayerEntry entry : layers.get(index).getLayerEntries()) {
+      paths.add(entry.getExtractionPath().toString());
+    }
+    return paths;
+  }
+
+  private static Set<String> sources(String... paths) {
+    Set<String> set = new HashSet<>();
+    for (String path : paths) {
+      set.add(path);
+    }
+    return set;
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link LayerWatcher}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class LayerWatcherTest {
+  private static final Duration QUIET = Duration.ofMillis(200);
+
+  private Path root;
+
+  @BeforeEach
+  public void setUp(TemporaryFolder temporaryFolder) throws IOException {
+    root = temporaryFolder.getRoot().toPath();
+    Files.createDirectories(root.resolve("web/css"));
+    Files.createDirectories(root.resolve("lib"));
+    Files.write(root.resolve("web/css/site.css"), new byte[] {1});
+    Files.write(root.resolve("app.jar"), new byte[] {1});
+  }
+
+  @Test
+  void testChangesMappedToDefinitions() throws Exception {
+    List<List<Path>> sources =
+        Arrays.asList(
+            Collections.singletonList(root.resolve("web")),
+            Arrays.asList(root.resolve("lib"), root.resolve("app.jar")));
+    try (LayerWatcher watcher = new LayerWatcher(sources)) {
+      Files.write(root.resolve("web/css/site.css"), new byte[] {2});
+      Assertions.assertEquals(Collections.singleton(0), await(watcher));
+
+      Files.write(root.resolve("app.jar"), new byte[] {2});
+      Assertions.assertEquals(Collections.singleton(1), await(watcher));
+
+      // a file next to a source file is not a change
+      Files.write(root.resolve("other.txt"), new byte[] {1});
+      Assertions.assertEquals(Collections.emptySet(), await(watcher));
+    }
+  }
+
+  @Test
+  void testNewDirectoriesWatched() throws Exception {
+    List<List<Path>> sources = Collections.singletonList(Arrays.asList(root.resolve("web")));
+    try (LayerWatcher watcher = new LayerWatcher(sources)) {
+      Files.createDirectories(root.resolve("web/js"));
+      Assertions.assertEquals(Collections.singleton(0), await(watcher));
+      Files.write(root.resolve("web/js/app.js"), new byte[] {1});
+      Assertions.assertEquals(Collections.singleton(0), await(watcher));
+    }
+  }
+
+  @Test
+  void testBurstDebounced() throws Exception {
+    List<List<Path>> sources =
+        Arrays.asList(
+            Collections.singletonList(root.resolve("web")),
+            Collections.singletonList(root.resolve("lib")));
+    try (LayerWatcher watcher = new LayerWatcher(sources)) {
+      Files.write(root.resolve("web/index.html"), new byte[] {1});
+      Files.write(root.resolve("lib/a.jar"), new byte[] {1});
+      Set<Integer> changed = new TreeSet<>(Arrays.asList(0, 1));
+      Assertions.assertEquals(changed, await(watcher));
+    }
+  }
+
+  @Test
+  void testExcludedIgnored() throws Exception {
+    Files.createDirectories(root.resolve("web/node_modules/lib"));
+    List<List<Path>> sources = Collections.singletonList(Arrays.asList(root.resolve("web")));
+    List<List<PathFilter>> filters =
+        Collections.singletonList(
+            Arrays.asList(
+                PathFilter.compile(
+                    Collections.emptyList(), Arrays.asList("node_modules", "*.map"))));
+    try (LayerWatcher watcher = new LayerWatcher(sources, filters)) {
+      Files.write(root.resolve("web/node_modules/lib/index.js"), new byte[] {1});
+      Files.write(root.resolve("web/node_modules/index.js"), new byte[] {1});
+      Files.write(root.resolve("web/css/site.css.map"), new byte[] {1});
+      Assertions.assertEquals(Collections.emptySet(), await(watcher));
+
+      Files.write(root.resolve("web/css/site.css"), new byte[] {2});
+      Assertions.assertEquals(Collections.singleton(0), await(watcher));
+    }
+  }
+
+  private static Set<Integer> await(LayerWatcher watcher) throws Exception {
+    CompletableFuture<Set<Integer>> changes =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return watcher.awaitChanges(QUIET);
+              } catch (Exception ex) {
+                throw new RuntimeException(ex);
+              }
+            });
+    return changes.get(30, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.LayerEntry;
+import com.google.cloud.tools.jib.blob.Blob;
+import com.google.cloud.tools.jib.image.ReproducibleLayerBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link LinkingLayerBuilder}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class LinkingLayerBuilderTest {
+  private Path root;
+  private ImmutableList<LayerEntry> entries;
+
+  @BeforeEach
+  public void setUp(TemporaryFolder temporaryFolder) throws Exception {
+    root = temporaryFolder.getRoot().toPath();
+    Files.createDirectories(root.resolve("lib"));
+    Files.write(root.resolve("lib/one"), new byte[] {1, 2, 3});
+    Files.write(root.resolve("lib/copy"), new byte[] {1, 2, 3});
+    Files.write(root.resolve("lib/other"), new byte[] {4, 5, 6});
+    entries = new LayerDefinitionParser(root).convert("lib:/app/lib").getLayerEntries();
+  }
+
+  @Test
+  void testBuild_asJib() throws Exception {
+    // without duplicates, the same tarball as Jib
+    Assertions.assertArrayEquals(
+        toByteArray(new ReproducibleLayerBuilder(entries).build()),
+        toByteArray(new LinkingLayerBuilder(entries, Collections.emptyMap()).build()));
+  }
+
+  @Test
+  void testBuild_noDuplicatesAsJib() throws Exception {
+    Map<Path, HashCode> contents = new HashMap<>();
+    for (String file : new String[] {"lib/one", "lib/other"}) {
+      contents.put(root.resolve(file), LayerDeduplicator.hash(root.resolve(file)));
+    }
+    Assertions.assertArrayEquals(
+        toByteArray(new ReproducibleLayerBuilder(entries).build()),
+        toByteArray(new LinkingLayerBuilder(entries, contents).build()));
+  }
+
+  @Test
+  void testBuild_hardLinks() throws Exception {
+    Map<Path, HashCode> contents = new HashMap<>();
+    for (String file : new String[] {"lib/one", "lib/copy", "lib/other"}) {
+      contents.put(root.resolve(file), LayerDeduplicator.hash(root.resolve(file)));
+    }
+    Map<String, TarArchiveEntry> tarEntries = new LinkedHashMap<>();
+    byte[] tar = toByteArray(new LinkingLayerBuilder(entries, contents).build());
+    try (TarArchiveInputStream input = new TarArchiveInputStream(new ByteArrayInputStream(tar))) {
+      TarArchiveEntry entry;
+      while ((entry = input.getNextTarEntry()) != null) {
+        tarEntries.put(entry.getName(), entry);
+      }
+    }
+    Assertions.assertEquals(
+        Arrays.asList("app/", "app/lib/", "app/lib/copy", "app/lib/one", "app/lib/other"),
+        new ArrayList<>(tarEntries.keySet()));
+    // the first in the tarball holds the contents, and its duplicate links to it
+    Assertions.assertTrue(tarEntries.get("app/lib/copy").isFile());
+    Assertions.assertEquals(3, tarEntries.get("app/lib/copy").getSize());
+    TarArchiveEntry link = tarEntries.get("app/lib/one");
+    Assertions.assertTrue(link.isLink());
+    Assertions.assertEquals("app/lib/copy", link.getLinkName());
+    Assertions.assertEquals(tarEntries.get("app/lib/copy").getMode(), link.getMode());
+    Assertions.assertTrue(tarEntries.get("app/lib/other").isFile());
+  }
+
+  private static byte[] toByteArray(Blob blob) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    blob.writeTo(output);
+    return output.toByteArray();
+  }
+}
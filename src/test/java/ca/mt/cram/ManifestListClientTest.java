@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import picocli.CommandLine;
+
+/** Tests for {@link ManifestListClient}. */
+class ManifestListClientTest {
+  private static final Platform AMD64 = new Platform("linux", "amd64", null);
+  private static final Platform ARM64 = new Platform("linux", "arm64", null);
+
+  @Test
+  void testPushAndResolve() throws IOException {
+    try (TestRegistry registry = new TestRegistry()) {
+      ManifestListClient client = new ManifestListClient(registry.getAddress(), "a", null, true);
+      Map<Platform, ManifestListClient.Manifest> images = new LinkedHashMap<>();
+      images.put(AMD64, manifest("{\"amd64\":1}"));
+      images.put(ARM64, manifest("{\"arm64\":1}"));
+      String digest = client.push("1.0", images);
+
+      ManifestListClient.Manifest list = client.pull("1.0");
+      Assertions.assertTrue(list.isList());
+      Assertions.assertEquals(digest, list.getDigest());
+      Map<Platform, String> resolved = client.resolvePlatforms("1.0", Arrays.asList(ARM64, AMD64));
+      Assertions.assertEquals(images.get(ARM64).getDigest(), resolved.get(ARM64));
+      Assertions.assertEquals(images.get(AMD64).getDigest(), resolved.get(AMD64));
+
+      IOException missing =
+          Assertions.assertThrows(
+              IOException.class,
+              () ->
+                  client.resolvePlatforms(
+                      "1.0", Collections.singletonList(new Platform("linux", "s390x", null))));
+      Assertions.assertTrue(missing.getMessage().endsWith("has no image for linux/s390x"));
+    }
+  }
+
+  @Test
+  void testResolveDigest() throws Exception {
+    try (TestRegistry registry = new TestRegistry()) {
+      Cram build =
+          CommandLine.populateCommand(
+              new Cram(), "--registry", "--insecure", "scratch", registry.getAddress() + "/a:1.0");
+      build.out = new PrintStream(new ByteArrayOutputStream());
+      build.call();
+
+      ManifestListClient client = new ManifestListClient(registry.getAddress(), "a", null, true);
+      Assertions.assertEquals(build.imageDigest.toString(), client.resolveDigest("1.0"));
+      // from the registry's reply to a HEAD
+      Assertions.assertEquals(1, registry.getRequestCount("manifest-head"));
+      Assertions.assertEquals(0, registry.getRequestCount("manifest-get"));
+    }
+  }
+
+  @Test
+  void testPull_missing() throws IOException {
+    try (TestRegistry registry = new TestRegistry()) {
+      ManifestListClient client = new ManifestListClient(registry.getAddress(), "a", null, true);
+      IOException ex = Assertions.assertThrows(IOException.class, () -> client.pull("1.0"));
+      Assertions.assertTrue(ex.getMessage().contains("failed with 404"));
+    }
+  }
+
+  @Test
+  void testUrl() throws IOException {
+    Assertions.assertEquals(
+        new URL("https://gcr.io/v2/a/manifests/1.0"),
+        ManifestListClient.url("https", "gcr.io", "/v2/a/manifests/1.0"));
+    URL withPort = ManifestListClient.url("http", "localhost:5000", "/v2/");
+    Assertions.assertEquals("localhost", withPort.getHost());
+    Assertions.assertEquals(5000, withPort.getPort());
+    URL ipv6 = ManifestListClient.url("https", "[::1]:5000", "/v2/");
+    Assertions.assertEquals("[::1]", ipv6.getHost());
+    Assertions.assertEquals(5000, ipv6.getPort());
+    URL ipv6DefaultPort = ManifestListClient.url("https", "[fe80::1]", "/v2/");
+    Assertions.assertEquals("[fe80::1]", ipv6DefaultPort.getHost());
+    Assertions.assertEquals(-1, ipv6DefaultPort.getPort());
+
+    Assertions.assertThrows(
+        MalformedURLException.class, () -> ManifestListClient.url("https", "a/b", "/v2/"));
+    Assertions.assertThrows(
+        MalformedURLException.class, () -> ManifestListClient.url("https", ":5000", "/v2/"));
+  }
+
+  @Test
+  void testPull_httpOnlyIfInsecure() throws IOException {
+    try (TestRegistry registry = new TestRegistry()) {
+      new ManifestListClient(registry.getAddress(), "a", null, true)
+          .push("1.0", Collections.singletonMap(AMD64, manifest("{\"amd64\":1}")));
+
+      // the registry drops TLS connections, which only an insecure client retries over HTTP
+      Assertions.assertThrows(
+          IOException.class,
+          () -> new ManifestListClient(registry.getAddress(), "a", null, false).pull("1.0"));
+      Assertions.assertEquals(0, registry.getRequestCount("manifest-get"));
+      Assertions.assertTrue(
+          new ManifestListClient(registry.getAddress(), "a", null, true).pull("1.0").isList());
+    }
+  }
+
+  private static ManifestListClient.Manifest manifest(String json) {
+    return new ManifestListClient.Manifest(
+        ManifestListClient.MANIFEST_MEDIA_TYPE, json.getBytes(StandardCharsets.UTF_8));
+  }
+}
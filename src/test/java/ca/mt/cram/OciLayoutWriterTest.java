@@ -0,0 +1,217 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.tools.jib.blob.Blobs;
+import com.google.cloud.tools.jib.cache.Cache;
+import com.google.cloud.tools.jib.cache.CachedLayer;
+import com.google.cloud.tools.jib.configuration.DockerHealthCheck;
+import com.google.cloud.tools.jib.image.Image;
+import com.google.cloud.tools.jib.image.json.OCIManifestTemplate;
+import com.google.common.hash.Hashing;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link OciLayoutWriter}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class OciLayoutWriterTest {
+  private Path layout;
+  private CachedLayer layer1;
+  private CachedLayer layer2;
+
+  @BeforeEach
+  public void setUp(TemporaryFolder temporaryFolder) throws IOException {
+    layout = temporaryFolder.getRoot().toPath().resolve("layout");
+    Cache cache = Cache.withDirectory(temporaryFolder.createDirectory("cache").toPath());
+    Random random = new Random(0);
+    layer1 = cacheLayer(cache, random, 1000);
+    layer2 = cacheLayer(cache, random, 70001);
+  }
+
+  @Test
+  void testWrite() throws IOException {
+    OciLayoutWriter writer = new OciLayoutWriter(layout);
+    String manifestDigest = writer.write(image(layer1, layer2), "latest");
+    Assertions.assertEquals(4, writer.getBlobsWritten());
+    Assertions.assertEquals(0, writer.getBlobsReused());
+
+    Assertions.assertTrue(Files.exists(layout.resolve("oci-layout")));
+    for (CachedLayer layer : Arrays.asList(layer1, layer2)) {
+      // copied unchanged from the cache
+      byte[] blob = Files.readAllBytes(writer.blobPath(layer.getDigest().toString()));
+      Assertions.assertArrayEquals(Blobs.writeToByteArray(layer.getBlob()), blob);
+      Assertions.assertEquals(layer.getDigest().toString(), digest(blob));
+    }
+
+    ObjectMapper mapper = new ObjectMapper();
+    byte[] manifestBytes = Files.readAllBytes(writer.blobPath(manifestDigest));
+    Assertions.assertEquals(manifestDigest, digest(manifestBytes));
+    JsonNode manifest = mapper.readTree(manifestBytes);
+    Assertions.assertEquals(
+        OciLayoutWriter.MANIFEST_MEDIA_TYPE, manifest.get("mediaType").asText());
+    Assertions.assertEquals(2, manifest.get("layers").size());
+    Assertions.assertEquals(
+        layer2.getDigest().toString(), manifest.get("layers").get(1).get("digest").asText());
+    Assertions.assertEquals(layer2.getSize(), manifest.get("layers").get(1).get("size").asLong());
+
+    JsonNode index = mapper.readTree(layout.resolve("index.json").toFile());
+    Assertions.assertEquals(1, index.get("manifests").size());
+    JsonNode descriptor = index.get("manifests").get(0);
+    Assertions.assertEquals(manifestDigest, descriptor.get("digest").asText());
+    Assertions.assertEquals(
+        "latest",
+        descriptor.get("annotations").get(OciLayoutWriter.REF_NAME_ANNOTATION).asText());
+  }
+
+  @Test
+  void testWrite_ociConfig() throws IOException {
+    Image image =
+        Image.builder(OCIManifestTemplate.class)
+            .addLayer(layer1)
+            .setEntrypoint(Arrays.asList("/bin/app"))
+            .setHealthCheck(DockerHealthCheck.fromCommand(Arrays.asList("NONE")).build())
+            .build();
+    OciLayoutWriter writer = new OciLayoutWriter(layout);
+    String manifestDigest = writer.write(image, "latest");
+
+    ObjectMapper mapper = new ObjectMapper();
+    JsonNode descriptor =
+        mapper.readTree(Files.readAllBytes(writer.blobPath(manifestDigest))).get("config");
+    Assertions.assertEquals(
+        OciLayoutWriter.CONFIG_MEDIA_TYPE, descriptor.get("mediaType").asText());
+    // Docker's health check is not part of an OCI configuration
+    JsonNode config =
+        mapper.readTree(Files.readAllBytes(writer.blobPath(descriptor.get("digest").asText())));
+    Assertions.assertEquals("linux", config.get("os").asText());
+    Assertions.assertEquals("[\"/bin/app\"]", config.get("config").get("Entrypoint").toString());
+    Assertions.assertFalse(config.get("config").has("Healthcheck"));
+    Assertions.assertEquals(
+        layer1.getDiffId().toString(), config.get("rootfs").get("diff_ids").get(0).asText());
+  }
+
+  @Test
+  void testWrite_concurrently() throws Exception {
+    Image image = image(layer1);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        String tag = "tag" + i;
+        results.add(executor.submit(() -> new OciLayoutWriter(layout).write(image, tag)));
+      }
+      for (Future<String> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    // no build loses another's tag
+    JsonNode index = new ObjectMapper().readTree(layout.resolve("index.json").toFile());
+    Assertions.assertEquals(8, index.get("manifests").size());
+  }
+
+  @Test
+  void testWrite_reusesBlobs() throws IOException {
+    new OciLayoutWriter(layout).write(image(layer1), "1.0");
+
+    OciLayoutWriter writer = new OciLayoutWriter(layout);
+    writer.write(image(layer1, layer2), "2.0");
+    // the new layer, configuration and manifest are written; the first layer is reused
+    Assertions.assertEquals(3, writer.getBlobsWritten());
+    Assertions.assertEquals(1, writer.getBlobsReused());
+
+    JsonNode index = new ObjectMapper().readTree(layout.resolve("index.json").toFile());
+    Assertions.assertEquals(2, index.get("manifests").size());
+  }
+
+  @Test
+  void testWrite_severalTags() throws IOException {
+    OciLayoutWriter writer = new OciLayoutWriter(layout);
+    String manifestDigest = writer.write(image(layer1), Arrays.asList("1.0", "latest"));
+
+    JsonNode index = new ObjectMapper().readTree(layout.resolve("index.json").toFile());
+    Assertions.assertEquals(2, index.get("manifests").size());
+    Assertions.assertEquals(manifestDigest, writer.getManifestDigest("1.0"));
+    Assertions.assertEquals(manifestDigest, writer.getManifestDigest("latest"));
+  }
+
+  @Test
+  void testGetManifestDigest() throws IOException {
+    OciLayoutWriter writer = new OciLayoutWriter(layout);
+    Assertions.assertNull(writer.getManifestDigest("1.0"));
+    String manifestDigest = writer.write(image(layer1), "1.0");
+    Assertions.assertEquals(manifestDigest, writer.getManifestDigest("1.0"));
+    Assertions.assertNull(writer.getManifestDigest("2.0"));
+
+    // a tag whose manifest was removed is not considered present
+    Files.delete(writer.blobPath(manifestDigest));
+    Assertions.assertNull(writer.getManifestDigest("1.0"));
+  }
+
+  @Test
+  void testWrite_replacesTag() throws IOException {
+    new OciLayoutWriter(layout).write(image(layer1), "latest");
+    String manifestDigest = new OciLayoutWriter(layout).write(image(layer2), "latest");
+
+    JsonNode index = new ObjectMapper().readTree(layout.resolve("index.json").toFile());
+    Assertions.assertEquals(1, index.get("manifests").size());
+    Assertions.assertEquals(manifestDigest, index.get("manifests").get(0).get("digest").asText());
+  }
+
+  /** Compress random contents of {@code size} bytes into a layer in {@code cache}. */
+  private static CachedLayer cacheLayer(Cache cache, Random random, int size) throws IOException {
+    byte[] contents = new byte[size];
+    random.nextBytes(contents);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      out.write(contents);
+    }
+    return cache.writeCompressedLayer(
+        Blobs.from(new ByteArrayInputStream(compressed.toByteArray())));
+  }
+
+  private static Image image(CachedLayer... layers) {
+    Image.Builder image = Image.builder(OCIManifestTemplate.class);
+    for (CachedLayer layer : layers) {
+      image.addLayer(layer);
+    }
+    return image.build();
+  }
+
+  private static String digest(byte[] contents) {
+    return "sha256:" + Hashing.sha256().hashBytes(contents);
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Tests for {@link ParallelGzipOutputStream}. */
+class ParallelGzipOutputStreamTest {
+  private static final int BLOCK_SIZE = ParallelGzipOutputStream.MINIMUM_BLOCK_SIZE;
+
+  private ExecutorService executor;
+
+  @BeforeEach
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test
+  void testRoundTrip() throws IOException {
+    int[] sizes = {0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, 3 * BLOCK_SIZE, 50 * BLOCK_SIZE + 7};
+    int[] levels = {Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION};
+    for (int size : sizes) {
+      byte[] input = generate(size);
+      for (int level : levels) {
+        Assertions.assertArrayEquals(
+            input, decompress(compress(input, level, BLOCK_SIZE, executor)), size + "@" + level);
+      }
+    }
+  }
+
+  @Test
+  void testDeterministic() throws IOException {
+    byte[] input = generate(20 * BLOCK_SIZE + 100);
+    byte[] expected = compress(input, Deflater.BEST_SPEED, BLOCK_SIZE, executor);
+    Assertions.assertArrayEquals(
+        expected, compress(input, Deflater.BEST_SPEED, BLOCK_SIZE, Runnable::run));
+    Assertions.assertFalse(
+        Arrays.equals(
+            expected, compress(input, Deflater.BEST_SPEED, 2 * BLOCK_SIZE, executor)));
+  }
+
+  @Test
+  void testExecutorNeverRuns() throws IOException {
+    // the writer deflates blocks that no thread has started
+    byte[] input = generate(40 * BLOCK_SIZE);
+    Executor idle = runnable -> {};
+    Assertions.assertArrayEquals(
+        input, decompress(compress(input, Deflater.BEST_SPEED, BLOCK_SIZE, idle)));
+  }
+
+  @Test
+  void testWriteAfterClose() throws IOException {
+    ParallelGzipOutputStream output =
+        new ParallelGzipOutputStream(new ByteArrayOutputStream(), 1, BLOCK_SIZE, executor);
+    output.close();
+    Assertions.assertThrows(IOException.class, () -> output.write(1));
+  }
+
+  @Test
+  void testMemoryBudget_sharedAcrossStreams() throws Exception {
+    ParallelGzipOutputStream.MemoryBudget budget =
+        new ParallelGzipOutputStream.MemoryBudget(3 * BLOCK_SIZE);
+    List<Future<byte[]>> results = new ArrayList<>();
+    ExecutorService writers = Executors.newFixedThreadPool(4);
+    try {
+      for (int i = 0; i < 4; i++) {
+        byte[] input = generate(30 * BLOCK_SIZE + i);
+        results.add(
+            writers.submit(
+                () -> {
+                  ByteArrayOutputStream output = new ByteArrayOutputStream();
+                  try (ParallelGzipOutputStream gzip =
+                      new ParallelGzipOutputStream(
+                          output, Deflater.BEST_SPEED, BLOCK_SIZE, executor, budget)) {
+                    gzip.write(input);
+                  }
+                  Assertions.assertArrayEquals(input, decompress(output.toByteArray()));
+                  return input;
+                }));
+      }
+      for (Future<byte[]> result : results) {
+        result.get();
+      }
+    } finally {
+      writers.shutdown();
+    }
+    Assertions.assertTrue(budget.getPeak() <= 3 * BLOCK_SIZE, "peak " + budget.getPeak());
+    Assertions.assertEquals(0, budget.getUsed());
+  }
+
+  @Test
+  void testMemoryBudget_releasedOnFailure() throws IOException {
+    ParallelGzipOutputStream.MemoryBudget budget =
+        new ParallelGzipOutputStream.MemoryBudget(100 * BLOCK_SIZE);
+    OutputStream failing =
+        new OutputStream() {
+          private int count;
+
+          @Override
+          public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+          }
+
+          @Override
+          public void write(byte[] bytes, int offset, int length) throws IOException {
+            // accept the header, then fail
+            if (count++ > 0) {
+              throw new IOException("disk full");
+            }
+          }
+        };
+    ParallelGzipOutputStream gzip =
+        new ParallelGzipOutputStream(failing, Deflater.BEST_SPEED, BLOCK_SIZE, executor, budget);
+    Assertions.assertThrows(
+        IOException.class,
+        () -> {
+          try (ParallelGzipOutputStream stream = gzip) {
+            stream.write(generate(40 * BLOCK_SIZE));
+          }
+        });
+    Assertions.assertEquals(0, budget.getUsed());
+  }
+
+  /** Generate compressible input: random words from a small vocabulary. */
+  private static byte[] generate(int size) {
+    Random random = new Random(size);
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) {
+      bytes[i] = (byte) (random.nextInt(8) == 0 ? ' ' : 'a' + random.nextInt(6));
+    }
+    return bytes;
+  }
+
+  private static byte[] compress(byte[] input, int level, int blockSize, Executor executor)
+      throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (ParallelGzipOutputStream gzip =
+        new ParallelGzipOutputStream(output, level, blockSize, executor)) {
+      // uneven writes, crossing block boundaries
+      for (int offset = 0; offset < input.length; offset += 10_000) {
+        gzip.write(input, offset, Math.min(10_000, input.length - offset));
+      }
+    }
+    return output.toByteArray();
+  }
+
+  private static byte[] decompress(byte[] compressed) throws IOException {
+    try (GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      return ByteStreams.toByteArray(input);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import picocli.CommandLine;
+
+/** Tests for {@link PathFilter}. */
+class PathFilterTest {
+
+  @Test
+  void testNameGlobMatchesAtAnyDepth() {
+    PathFilter filter =
+        PathFilter.compile(Collections.emptyList(), Arrays.asList("node_modules", "*.map"));
+    Assertions.assertTrue(filter.isExcluded(Paths.get("node_modules")));
+    Assertions.assertTrue(filter.isExcluded(Paths.get("web/node_modules")));
+    Assertions.assertTrue(filter.isExcluded(Paths.get("web/js/app.js.map")));
+    Assertions.assertFalse(filter.isExcluded(Paths.get("web/js/app.js")));
+    Assertions.assertFalse(filter.hasIncludes());
+  }
+
+  @Test
+  void testPathGlobMatchesFromRoot() {
+    PathFilter filter =
+        PathFilter.compile(Arrays.asList("/static/"), Arrays.asList("logs/*.log"));
+    Assertions.assertTrue(filter.isIncluded(Paths.get("static")));
+    Assertions.assertFalse(filter.isIncluded(Paths.get("web/static")));
+    Assertions.assertTrue(filter.isExcluded(Paths.get("logs/build.log")));
+    Assertions.assertFalse(filter.isExcluded(Paths.get("logs/old/build.log")));
+    Assertions.assertFalse(filter.isExcluded(Paths.get("web/logs/build.log")));
+    Assertions.assertTrue(filter.hasIncludes());
+  }
+
+  @Test
+  void testNoGlobs() {
+    Assertions.assertSame(
+        PathFilter.ALL, PathFilter.compile(Collections.emptyList(), Collections.emptyList()));
+  }
+
+  @Test
+  void testInvalidGlob() {
+    Assertions.assertThrows(
+        CommandLine.TypeConversionException.class,
+        () -> PathFilter.compile(Collections.emptyList(), Arrays.asList("/")));
+    Assertions.assertThrows(
+        CommandLine.TypeConversionException.class,
+        () -> PathFilter.compile(Arrays.asList("{a,b"), Collections.emptyList()));
+  }
+}
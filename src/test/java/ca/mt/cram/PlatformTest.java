@@ -0,0 +1,59 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import picocli.CommandLine;
+
+/** Tests for {@link Platform}. */
+class PlatformTest {
+
+  @Test
+  void testParse() throws Exception {
+    Platform platform = new Platform.Parser().convert("linux/arm64");
+    Assertions.assertEquals("linux", platform.getOs());
+    Assertions.assertEquals("arm64", platform.getArchitecture());
+    Assertions.assertNull(platform.getVariant());
+    Assertions.assertEquals(
+        new Platform("linux", "arm", "v7"), new Platform.Parser().convert("linux/arm/v7"));
+    Assertions.assertEquals("linux-arm-v7", new Platform("linux", "arm", "v7").toTagSuffix());
+  }
+
+  @Test
+  void testParse_invalid() {
+    for (String invalid : new String[] {"linux", "linux/", "linux/arm/v7/x", "Linux/amd64"}) {
+      Assertions.assertThrows(
+          CommandLine.TypeConversionException.class,
+          () -> new Platform.Parser().convert(invalid),
+          invalid);
+    }
+  }
+
+  @Test
+  void testMatches() throws Exception {
+    JsonNode arm =
+        new ObjectMapper()
+            .readTree("{\"architecture\":\"arm\",\"os\":\"linux\",\"variant\":\"v7\"}");
+    Assertions.assertTrue(new Platform("linux", "arm", null).matches(arm));
+    Assertions.assertTrue(new Platform("linux", "arm", "v7").matches(arm));
+    Assertions.assertFalse(new Platform("linux", "arm", "v6").matches(arm));
+    Assertions.assertFalse(new Platform("linux", "amd64", null).matches(arm));
+  }
+}
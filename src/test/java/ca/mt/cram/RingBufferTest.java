@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/** Tests for {@link RingBuffer}. */
+class RingBufferTest {
+
+  @Test
+  void testOfferAndDrain() {
+    RingBuffer<Integer> buffer = new RingBuffer<>(4);
+    List<Integer> drained = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      Assertions.assertEquals(i < 4, buffer.offer(i));
+    }
+    Assertions.assertEquals(2, buffer.takeDropped());
+    Assertions.assertEquals(0, buffer.takeDropped());
+    Assertions.assertEquals(4, buffer.drain(drained::add));
+    // wraps around
+    buffer.offer(4);
+    buffer.offer(5);
+    Assertions.assertEquals(2, buffer.drain(drained::add));
+    Assertions.assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), drained);
+    Assertions.assertEquals(0, buffer.drain(drained::add));
+  }
+
+  @Test
+  void testTryOffer_notCountedAsDropped() {
+    RingBuffer<Integer> buffer = new RingBuffer<>(2);
+    Assertions.assertTrue(buffer.tryOffer(0));
+    Assertions.assertTrue(buffer.tryOffer(1));
+    Assertions.assertFalse(buffer.tryOffer(2));
+    Assertions.assertEquals(0, buffer.takeDropped());
+  }
+
+  @Test
+  void testCapacity() {
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new RingBuffer<>(3));
+  }
+
+  @Test
+  void testConcurrentProducers() throws Exception {
+    RingBuffer<int[]> buffer = new RingBuffer<>(1024);
+    int producers = 4;
+    int count = 20_000;
+    ExecutorService executor = Executors.newFixedThreadPool(producers);
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int producer = 0; producer < producers; producer++) {
+        int id = producer;
+        results.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < count; i++) {
+                    buffer.offer(new int[] {id, i});
+                  }
+                }));
+      }
+      // each producer's elements are drained in order, and none are lost without being counted
+      int[] last = new int[producers];
+      Arrays.fill(last, -1);
+      long[] drained = new long[1];
+      boolean done = false;
+      while (!done) {
+        done = results.stream().allMatch(Future::isDone);
+        buffer.drain(
+            element -> {
+              Assertions.assertTrue(element[1] > last[element[0]]);
+              last[element[0]] = element[1];
+              drained[0]++;
+            });
+      }
+      buffer.drain(element -> drained[0]++);
+      Assertions.assertEquals((long) producers * count, drained[0] + buffer.takeDropped());
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.ImageReference;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link TagCache}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class TagCacheTest {
+  private static final String DIGEST =
+      "sha256:0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+  private Path directory;
+  private ImageReference nginx;
+
+  @BeforeEach
+  public void setUp(TemporaryFolder temporaryFolder) throws Exception {
+    directory = temporaryFolder.getRoot().toPath();
+    nginx = ImageReference.parse("nginx:1.17");
+  }
+
+  @Test
+  void testGet_neverResolved() throws Exception {
+    TagCache cache = new TagCache(directory, Duration.ofMinutes(10));
+    Assertions.assertNull(cache.get(nginx, false));
+    Assertions.assertNull(cache.get(nginx, true));
+  }
+
+  @Test
+  void testTimeToLive() throws Exception {
+    Instant resolved = Instant.parse("2019-06-01T12:00:00Z");
+    new TagCache(directory, Duration.ofMinutes(10), Clock.fixed(resolved, ZoneOffset.UTC))
+        .put(nginx, DIGEST);
+
+    TagCache later = at(resolved.plus(Duration.ofMinutes(9)));
+    Assertions.assertEquals(DIGEST, later.get(nginx, false));
+    Assertions.assertNull(later.get(ImageReference.parse("nginx:1.16"), false));
+
+    TagCache expired = at(resolved.plus(Duration.ofMinutes(10)));
+    Assertions.assertNull(expired.get(nginx, false));
+    // as when offline
+    Assertions.assertEquals(DIGEST, expired.get(nginx, true));
+  }
+
+  @Test
+  void testPut_replaces() throws Exception {
+    TagCache cache = new TagCache(directory, Duration.ofMinutes(10));
+    cache.put(nginx, DIGEST);
+    String newer = "sha256:" + DIGEST.substring(DIGEST.length() - 64).replace('0', 'f');
+    cache.put(nginx, newer);
+    Assertions.assertEquals(newer, cache.get(nginx, false));
+    try (Stream<Path> files = Files.list(directory)) {
+      // no temporary files are left behind
+      Assertions.assertEquals(1, files.count());
+    }
+  }
+
+  @Test
+  void testGet_corrupt() throws Exception {
+    TagCache cache = new TagCache(directory, Duration.ofMinutes(10));
+    cache.put(nginx, DIGEST);
+    try (Stream<Path> files = Files.list(directory)) {
+      Path file = files.findFirst().get();
+      Files.write(file, "nginx:1.17\n".getBytes(StandardCharsets.UTF_8));
+    }
+    Assertions.assertNull(cache.get(nginx, true));
+  }
+
+  private TagCache at(Instant now) {
+    return new TagCache(directory, Duration.ofMinutes(10), Clock.fixed(now, ZoneOffset.UTC));
+  }
+}
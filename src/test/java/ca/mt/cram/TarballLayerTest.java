@@ -0,0 +1,252 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.cloud.tools.jib.api.AbsoluteUnixPath;
+import com.google.cloud.tools.jib.api.FilePermissions;
+import com.google.cloud.tools.jib.cache.Cache;
+import com.google.cloud.tools.jib.cache.CachedLayer;
+import com.google.common.hash.Hashing;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link TarballLayer}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class TarballLayerTest {
+  private Path root;
+  private byte[] tar;
+  private ExecutorService executor;
+
+  @BeforeEach
+  public void setUp(TemporaryFolder temporaryFolder) throws Exception {
+    root = temporaryFolder.getRoot().toPath();
+    tar = createTarball();
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test
+  void testStore_compressed() throws Exception {
+    Path archive = root.resolve("app.tar.gz");
+    try (OutputStream output = new GZIPOutputStream(Files.newOutputStream(archive))) {
+      output.write(tar);
+    }
+    TarballLayer tarball = tarball(archive, "/", null, null, null);
+    Path cacheDirectory = root.resolve("cache");
+    Assertions.assertEquals(1, store(cacheDirectory, tarball));
+
+    // the archive is the layer
+    CachedLayer layer =
+        Cache.withDirectory(cacheDirectory).retrieve(tarball.getLayer().getLayerEntries()).get();
+    Assertions.assertEquals(
+        Hashing.sha256().hashBytes(Files.readAllBytes(archive)).toString(),
+        layer.getDigest().getHash());
+    Assertions.assertEquals(
+        Hashing.sha256().hashBytes(tar).toString(), layer.getDiffId().getHash());
+    Assertions.assertEquals(Files.size(archive), layer.getSize());
+    Assertions.assertEquals(0, store(cacheDirectory, tarball));
+  }
+
+  @Test
+  void testStore_uncompressed() throws Exception {
+    Path archive = root.resolve("app.tar");
+    Files.write(archive, tar);
+    TarballLayer tarball = tarball(archive, "/", null, null, null);
+    for (int blockSize : new int[] {0, ParallelGzipOutputStream.MINIMUM_BLOCK_SIZE}) {
+      Path cacheDirectory = root.resolve("cache" + blockSize);
+      Assertions.assertEquals(
+          1,
+          TarballLayer.store(
+              cacheDirectory,
+              Collections.singletonList(tarball),
+              Deflater.DEFAULT_COMPRESSION,
+              blockSize,
+              executor));
+      CachedLayer layer =
+          Cache.withDirectory(cacheDirectory).retrieve(tarball.getLayer().getLayerEntries()).get();
+      Assertions.assertEquals(
+          Hashing.sha256().hashBytes(tar).toString(), layer.getDiffId().getHash());
+    }
+  }
+
+  @Test
+  void testWriteTo_rewritten() throws Exception {
+    Path archive = root.resolve("app.tar");
+    Files.write(archive, tar);
+    Instant timestamp = Instant.parse("2019-06-01T00:00:00Z");
+    TarballLayer tarball =
+        tarball(
+            archive,
+            "/opt/app",
+            FilePermissions.fromOctalString("644"),
+            FilePermissions.fromOctalString("750"),
+            timestamp);
+    Assertions.assertTrue(tarball.isRewritten());
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    tarball.writeTo(output);
+
+    List<String> names = new ArrayList<>();
+    Map<String, TarArchiveEntry> entries = new LinkedHashMap<>();
+    Map<String, String> contents = new LinkedHashMap<>();
+    try (TarArchiveInputStream input =
+        new TarArchiveInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+      TarArchiveEntry entry;
+      while ((entry = input.getNextTarEntry()) != null) {
+        names.add(entry.getName());
+        entries.put(entry.getName(), entry);
+        byte[] data = new byte[(int) entry.getSize()];
+        Assertions.assertEquals(data.length, Math.max(input.read(data), 0));
+        contents.put(entry.getName(), new String(data, StandardCharsets.UTF_8));
+      }
+    }
+    Assertions.assertEquals(
+        Arrays.asList(
+            "opt/",
+            "opt/app/",
+            "opt/app/bin/",
+            "opt/app/bin/run",
+            "opt/app/bin/alias",
+            "opt/app/bin/link"),
+        names);
+    Assertions.assertEquals("echo hello\n", contents.get("opt/app/bin/run"));
+    Assertions.assertEquals(0755, entries.get("opt/").getMode() & 0777);
+    // the container root stands for the archive's root
+    Assertions.assertEquals(0750, entries.get("opt/app/").getMode() & 0777);
+    Assertions.assertEquals(0750, entries.get("opt/app/bin/").getMode() & 0777);
+    Assertions.assertEquals(0644, entries.get("opt/app/bin/run").getMode() & 0777);
+    // links are relocated too, but a symbolic link's target is left as is
+    Assertions.assertEquals("opt/app/bin/run", entries.get("opt/app/bin/alias").getLinkName());
+    Assertions.assertEquals("run", entries.get("opt/app/bin/link").getLinkName());
+    Assertions.assertEquals(0777, entries.get("opt/app/bin/link").getMode() & 0777);
+    for (TarArchiveEntry entry : entries.values()) {
+      Assertions.assertEquals(timestamp.toEpochMilli(), entry.getModTime().getTime());
+    }
+  }
+
+  @Test
+  void testRelocate() throws Exception {
+    Assertions.assertEquals("opt/app/", TarballLayer.relocate("opt/app", "./"));
+    Assertions.assertEquals("opt/app/bin/", TarballLayer.relocate("opt/app", "./bin/"));
+    Assertions.assertEquals("opt/app/bin/run", TarballLayer.relocate("opt/app", "/bin//./run"));
+    Assertions.assertEquals("opt/app/run", TarballLayer.relocate("opt/app", "bin/../run"));
+    Assertions.assertEquals("run", TarballLayer.relocate("", "./bin/../run"));
+    Assertions.assertEquals("./", TarballLayer.relocate("", "."));
+    for (String name : new String[] {"../etc/passwd", "./bin/../../etc/passwd", "/.."}) {
+      IOException ex =
+          Assertions.assertThrows(IOException.class, () -> TarballLayer.relocate("opt", name));
+      Assertions.assertEquals(
+          "archive entry outside of the archive's root: " + name, ex.getMessage());
+    }
+  }
+
+  @Test
+  void testWriteTo_unchanged() throws Exception {
+    Path archive = root.resolve("app.tar");
+    Files.write(archive, tar);
+    TarballLayer tarball = tarball(archive, "/", null, null, null);
+    Assertions.assertFalse(tarball.isRewritten());
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    tarball.writeTo(output);
+    Assertions.assertArrayEquals(tar, output.toByteArray());
+  }
+
+  private int store(Path cacheDirectory, TarballLayer tarball) throws IOException {
+    return TarballLayer.store(
+        cacheDirectory,
+        Collections.singletonList(tarball),
+        Deflater.DEFAULT_COMPRESSION,
+        0,
+        executor);
+  }
+
+  private static TarballLayer tarball(
+      Path archive,
+      String containerRoot,
+      FilePermissions filePermissions,
+      FilePermissions directoryPermissions,
+      Instant timestamp) {
+    return new TarballLayer(
+        archive,
+        AbsoluteUnixPath.get(containerRoot),
+        filePermissions,
+        directoryPermissions,
+        timestamp,
+        "app");
+  }
+
+  /** Create a tarball as {@code tar -C dir -cf - .} would, with a hard and a symbolic link. */
+  private static byte[] createTarball() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (TarArchiveOutputStream output = new TarArchiveOutputStream(bytes)) {
+      output.putArchiveEntry(new TarArchiveEntry("./"));
+      output.closeArchiveEntry();
+      output.putArchiveEntry(new TarArchiveEntry("./bin/"));
+      output.closeArchiveEntry();
+
+      byte[] script = "echo hello\n".getBytes(StandardCharsets.UTF_8);
+      TarArchiveEntry run = new TarArchiveEntry("./bin/run");
+      run.setMode(0100755);
+      run.setSize(script.length);
+      output.putArchiveEntry(run);
+      output.write(script);
+      output.closeArchiveEntry();
+
+      TarArchiveEntry alias = new TarArchiveEntry("./bin/alias", TarConstants.LF_LINK);
+      alias.setLinkName("./bin/run");
+      output.putArchiveEntry(alias);
+      output.closeArchiveEntry();
+
+      TarArchiveEntry link = new TarArchiveEntry("./bin/link", TarConstants.LF_SYMLINK);
+      link.setLinkName("run");
+      link.setMode(0120777);
+      output.putArchiveEntry(link);
+      output.closeArchiveEntry();
+    }
+    return bytes.toByteArray();
+  }
+}
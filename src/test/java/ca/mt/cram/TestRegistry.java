@@ -0,0 +1,490 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A minimal <a href="https://github.com/opencontainers/distribution-spec">OCI distribution</a>
+ * registry for pushing and pulling images in tests and benchmarks without a real registry. It
+ * supports checking for, uploading, mounting and fetching blobs, and putting and fetching
+ * manifests, over plain HTTP without authentication; use {@code --insecure} to push to it. Jib
+ * tries HTTPS first and falls back to HTTP when the TLS handshake fails, so connections that
+ * start with a TLS handshake are closed at once rather than left waiting for a reply.
+ *
+ * <p>Blobs are kept in memory, or in a directory if one is given. A latency can be added to every
+ * request, and the bandwidth of request and response bodies can be limited, to approximate a
+ * remote registry.
+ */
+class TestRegistry implements AutoCloseable {
+  private static final Pattern UPLOADS = Pattern.compile("/v2/(.+)/blobs/uploads/?");
+  private static final Pattern UPLOAD = Pattern.compile("/v2/(.+)/blobs/uploads/([^/]+)");
+  private static final Pattern BLOB = Pattern.compile("/v2/(.+)/blobs/(sha256:[0-9a-f]{64})");
+  private static final Pattern MANIFEST = Pattern.compile("/v2/(.+)/manifests/([^/]+)");
+  private static final int CHUNK_SIZE = 16 * 1024;
+  /** The first byte of a TLS connection: the content type of a handshake record. */
+  private static final int TLS_HANDSHAKE = 0x16;
+
+  /** A manifest and its media type. */
+  private static class Manifest {
+    final String mediaType;
+    final byte[] contents;
+
+    Manifest(String mediaType, byte[] contents) {
+      this.mediaType = mediaType;
+      this.contents = contents;
+    }
+  }
+
+  private final Path storage;
+  private final HttpServer server;
+  private final ServerSocket frontSocket;
+  private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+  private final ExecutorService executor =
+      Executors.newCachedThreadPool(
+          runnable -> {
+            Thread thread = new Thread(runnable, "test-registry");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+  /** The blobs in each repository, as a blob is only visible in the repositories it was put in. */
+  private final Map<String, Set<String>> repositoryBlobs = new HashMap<>();
+  /** Manifests by repository and tag or digest, e.g. {@code app:1.0} or {@code app@sha256:...}. */
+  private final Map<String, Manifest> manifests = new ConcurrentHashMap<>();
+  private final Map<String, ByteArrayOutputStream> uploads = new ConcurrentHashMap<>();
+  private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+  private final AtomicInteger activeUploads = new AtomicInteger();
+  private final AtomicInteger peakUploads = new AtomicInteger();
+  private volatile Duration latency = Duration.ZERO;
+  private volatile long bandwidth;
+
+  /** Create a registry that keeps its blobs in memory. */
+  TestRegistry() throws IOException {
+    this(null);
+  }
+
+  /**
+   * Create a registry on an unused port of the loopback interface.
+   *
+   * @param storage the directory in which to keep blobs, or {@code null} to keep them in memory
+   */
+  TestRegistry(Path storage) throws IOException {
+    this.storage = storage;
+    InetAddress loopback = InetAddress.getLoopbackAddress();
+    server = HttpServer.create(new InetSocketAddress(loopback, 0), 0);
+    server.createContext("/v2/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+    frontSocket = new ServerSocket(0, 50, loopback);
+    executor.execute(this::accept);
+  }
+
+  /** Return the registry's host and port, e.g. {@code localhost:5000}. */
+  String getAddress() {
+    return "localhost:" + frontSocket.getLocalPort();
+  }
+
+  /** Delay every response by {@code latency}. */
+  void setLatency(Duration latency) {
+    this.latency = latency;
+  }
+
+  /** Limit request and response bodies to {@code bytesPerSecond}, or 0 for no limit. */
+  void setBandwidth(long bytesPerSecond) {
+    this.bandwidth = bytesPerSecond;
+  }
+
+  /**
+   * Return the number of requests of a kind: {@code ping} (for the API version check, as made to
+   * authorize), {@code blob-head}, {@code blob-get}, {@code blob-upload}, {@code blob-mount},
+   * {@code manifest-head}, {@code manifest-get} or {@code manifest-put}.
+   */
+  int getRequestCount(String kind) {
+    AtomicInteger count = requestCounts.get(kind);
+    return count == null ? 0 : count.get();
+  }
+
+  /** Return the largest number of blob uploads that were sending their contents at one time. */
+  int getPeakConcurrentUploads() {
+    return peakUploads.get();
+  }
+
+  /** Return true if the repository has a manifest with this tag or digest. */
+  boolean hasManifest(String repository, String reference) {
+    return manifests.containsKey(manifestKey(repository, reference));
+  }
+
+  @Override
+  public void close() throws IOException {
+    frontSocket.close();
+    for (Socket connection : connections) {
+      connection.close();
+    }
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /** Accept connections, relaying each to the HTTP server unless it starts a TLS handshake. */
+  private void accept() {
+    while (!frontSocket.isClosed()) {
+      try {
+        Socket client = frontSocket.accept();
+        connections.add(client);
+        executor.execute(() -> relay(client));
+      } catch (IOException ex) {
+        // closed
+      }
+    }
+  }
+
+  private void relay(Socket client) {
+    InetSocketAddress serverAddress = server.getAddress();
+    try (Socket clientSocket = client;
+        Socket serverSocket = new Socket(serverAddress.getAddress(), serverAddress.getPort())) {
+      connections.add(serverSocket);
+      PushbackInputStream in = new PushbackInputStream(clientSocket.getInputStream());
+      int first = in.read();
+      if (first == TLS_HANDSHAKE || first < 0) {
+        return;
+      }
+      in.unread(first);
+      executor.execute(
+          () -> {
+            try {
+              ByteStreams.copy(in, serverSocket.getOutputStream());
+              serverSocket.shutdownOutput();
+            } catch (IOException ex) {
+              // closed
+            }
+          });
+      ByteStreams.copy(serverSocket.getInputStream(), clientSocket.getOutputStream());
+    } catch (IOException ex) {
+      // closed
+    } finally {
+      connections.remove(client);
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    boolean upload =
+        UPLOAD.matcher(exchange.getRequestURI().getPath()).matches()
+            && (exchange.getRequestMethod().equals("PATCH")
+                || exchange.getRequestMethod().equals("PUT"));
+    if (upload) {
+      peakUploads.accumulateAndGet(activeUploads.incrementAndGet(), Math::max);
+    }
+    try {
+      if (!latency.isZero()) {
+        TimeUnit.NANOSECONDS.sleep(latency.toNanos());
+      }
+      dispatch(exchange);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      exchange.sendResponseHeaders(503, -1);
+    } catch (RuntimeException | IOException ex) {
+      sendError(exchange, 500, "UNKNOWN", ex.toString());
+    } finally {
+      if (upload) {
+        activeUploads.decrementAndGet();
+      }
+      exchange.close();
+    }
+  }
+
+  private void dispatch(HttpExchange exchange) throws IOException, InterruptedException {
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath();
+    exchange.getResponseHeaders().set("Docker-Distribution-API-Version", "registry/2.0");
+    Matcher matcher;
+    if (path.equals("/v2/")) {
+      // no authentication is required
+      count("ping");
+      sendBody(exchange, 200, "application/json", "{}".getBytes(StandardCharsets.UTF_8));
+    } else if ((matcher = UPLOADS.matcher(path)).matches() && method.equals("POST")) {
+      startUpload(exchange, matcher.group(1));
+    } else if ((matcher = UPLOAD.matcher(path)).matches()
+        && (method.equals("PATCH") || method.equals("PUT"))) {
+      continueUpload(exchange, matcher.group(1), matcher.group(2), method.equals("PUT"));
+    } else if ((matcher = BLOB.matcher(path)).matches()
+        && (method.equals("HEAD") || method.equals("GET"))) {
+      getBlob(exchange, matcher.group(1), matcher.group(2), method.equals("HEAD"));
+    } else if ((matcher = MANIFEST.matcher(path)).matches() && method.equals("PUT")) {
+      putManifest(exchange, matcher.group(1), matcher.group(2));
+    } else if ((matcher = MANIFEST.matcher(path)).matches()
+        && (method.equals("HEAD") || method.equals("GET"))) {
+      getManifest(exchange, matcher.group(1), matcher.group(2), method.equals("HEAD"));
+    } else {
+      sendError(exchange, 404, "UNSUPPORTED", method + " " + path);
+    }
+  }
+
+  /** Start an upload, or mount a blob from another repository if requested and possible. */
+  private void startUpload(HttpExchange exchange, String repository) throws IOException {
+    Map<String, String> query = parseQuery(exchange.getRequestURI());
+    String mount = query.get("mount");
+    String from = query.get("from");
+    if (mount != null && from != null && containsBlob(from, mount)) {
+      count("blob-mount");
+      addToRepository(repository, mount);
+      exchange.getResponseHeaders().set("Location", "/v2/" + repository + "/blobs/" + mount);
+      exchange.getResponseHeaders().set("Docker-Content-Digest", mount);
+      exchange.sendResponseHeaders(201, -1);
+      return;
+    }
+    count("blob-upload");
+    String id = UUID.randomUUID().toString();
+    uploads.put(id, new ByteArrayOutputStream());
+    sendUploadLocation(exchange, repository, id);
+  }
+
+  /** Append the request body to an upload, and if {@code commit}, verify and store the blob. */
+  private void continueUpload(HttpExchange exchange, String repository, String id, boolean commit)
+      throws IOException, InterruptedException {
+    ByteArrayOutputStream upload = uploads.get(id);
+    if (upload == null) {
+      sendError(exchange, 404, "BLOB_UPLOAD_UNKNOWN", id);
+      return;
+    }
+    byte[] chunk = readBody(exchange);
+    synchronized (upload) {
+      upload.write(chunk);
+    }
+    if (!commit) {
+      sendUploadLocation(exchange, repository, id);
+      return;
+    }
+    uploads.remove(id);
+    String digest = parseQuery(exchange.getRequestURI()).get("digest");
+    byte[] contents = upload.toByteArray();
+    String actual = "sha256:" + Hashing.sha256().hashBytes(contents);
+    if (!actual.equals(digest)) {
+      sendError(exchange, 400, "DIGEST_INVALID", "expected " + digest + " but was " + actual);
+      return;
+    }
+    storeBlob(digest, contents);
+    addToRepository(repository, digest);
+    exchange.getResponseHeaders().set("Location", "/v2/" + repository + "/blobs/" + digest);
+    exchange.getResponseHeaders().set("Docker-Content-Digest", digest);
+    exchange.sendResponseHeaders(201, -1);
+  }
+
+  private void getBlob(HttpExchange exchange, String repository, String digest, boolean head)
+      throws IOException, InterruptedException {
+    count(head ? "blob-head" : "blob-get");
+    if (!containsBlob(repository, digest)) {
+      sendError(exchange, 404, "BLOB_UNKNOWN", digest);
+      return;
+    }
+    byte[] contents = loadBlob(digest);
+    exchange.getResponseHeaders().set("Docker-Content-Digest", digest);
+    if (head) {
+      exchange.getResponseHeaders().set("Content-Length", String.valueOf(contents.length));
+      exchange.sendResponseHeaders(200, -1);
+    } else {
+      sendBody(exchange, 200, "application/octet-stream", contents);
+    }
+  }
+
+  private void putManifest(HttpExchange exchange, String repository, String reference)
+      throws IOException, InterruptedException {
+    count("manifest-put");
+    byte[] contents = readBody(exchange);
+    String digest = "sha256:" + Hashing.sha256().hashBytes(contents);
+    Manifest manifest =
+        new Manifest(exchange.getRequestHeaders().getFirst("Content-Type"), contents);
+    manifests.put(manifestKey(repository, reference), manifest);
+    manifests.put(manifestKey(repository, digest), manifest);
+    exchange.getResponseHeaders().set("Location", "/v2/" + repository + "/manifests/" + digest);
+    exchange.getResponseHeaders().set("Docker-Content-Digest", digest);
+    exchange.sendResponseHeaders(201, -1);
+  }
+
+  private void getManifest(HttpExchange exchange, String repository, String reference, boolean head)
+      throws IOException, InterruptedException {
+    count(head ? "manifest-head" : "manifest-get");
+    Manifest manifest = manifests.get(manifestKey(repository, reference));
+    if (manifest == null) {
+      sendError(exchange, 404, "MANIFEST_UNKNOWN", repository + ":" + reference);
+      return;
+    }
+    exchange
+        .getResponseHeaders()
+        .set("Docker-Content-Digest", "sha256:" + Hashing.sha256().hashBytes(manifest.contents));
+    if (head) {
+      exchange.getResponseHeaders().set("Content-Type", manifest.mediaType);
+      exchange.getResponseHeaders().set("Content-Length", String.valueOf(manifest.contents.length));
+      exchange.sendResponseHeaders(200, -1);
+    } else {
+      sendBody(exchange, 200, manifest.mediaType, manifest.contents);
+    }
+  }
+
+  private synchronized boolean containsBlob(String repository, String digest) {
+    Set<String> digests = repositoryBlobs.get(repository);
+    return digests != null && digests.contains(digest);
+  }
+
+  private synchronized void addToRepository(String repository, String digest) {
+    repositoryBlobs.computeIfAbsent(repository, key -> new HashSet<>()).add(digest);
+  }
+
+  private void storeBlob(String digest, byte[] contents) throws IOException {
+    if (storage == null) {
+      blobs.put(digest, contents);
+      return;
+    }
+    Path file = blobFile(digest);
+    Files.createDirectories(file.getParent());
+    Path temporary = Files.createTempFile(file.getParent(), ".blob", ".tmp");
+    try {
+      Files.write(temporary, contents);
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  private byte[] loadBlob(String digest) throws IOException {
+    return storage == null ? blobs.get(digest) : Files.readAllBytes(blobFile(digest));
+  }
+
+  private Path blobFile(String digest) {
+    return storage.resolve("blobs").resolve("sha256").resolve(digest.substring("sha256:".length()));
+  }
+
+  private void sendUploadLocation(HttpExchange exchange, String repository, String id)
+      throws IOException {
+    ByteArrayOutputStream upload = uploads.get(id);
+    int size;
+    synchronized (upload) {
+      size = upload.size();
+    }
+    exchange.getResponseHeaders().set("Location", "/v2/" + repository + "/blobs/uploads/" + id);
+    exchange.getResponseHeaders().set("Range", "0-" + Math.max(0, size - 1));
+    exchange.getResponseHeaders().set("Docker-Upload-UUID", id);
+    exchange.sendResponseHeaders(202, -1);
+  }
+
+  private void sendError(HttpExchange exchange, int status, String code, String message)
+      throws IOException {
+    String body =
+        String.format(
+            "{\"errors\":[{\"code\":\"%s\",\"message\":\"%s\"}]}",
+            code, message.replace("\\", "\\\\").replace("\"", "\\\""));
+    try {
+      sendBody(exchange, status, "application/json", body.getBytes(StandardCharsets.UTF_8));
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void sendBody(HttpExchange exchange, int status, String contentType, byte[] body)
+      throws IOException, InterruptedException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    if (exchange.getRequestMethod().equals("HEAD")) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      long start = System.nanoTime();
+      for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+        int length = Math.min(CHUNK_SIZE, body.length - offset);
+        throttle(start, offset + length);
+        out.write(body, offset, length);
+      }
+    }
+  }
+
+  private byte[] readBody(HttpExchange exchange) throws IOException, InterruptedException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[CHUNK_SIZE];
+    long start = System.nanoTime();
+    try (InputStream in = exchange.getRequestBody()) {
+      int read;
+      while ((read = ByteStreams.read(in, buffer, 0, buffer.length)) > 0) {
+        body.write(buffer, 0, read);
+        throttle(start, body.size());
+      }
+    }
+    return body.toByteArray();
+  }
+
+  /** Sleep until {@code bytes} bytes would have taken to transfer at the limited bandwidth. */
+  private void throttle(long start, long bytes) throws InterruptedException {
+    long limit = bandwidth;
+    if (limit > 0) {
+      long due = start + bytes * TimeUnit.SECONDS.toNanos(1) / limit;
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+    }
+  }
+
+  private void count(String kind) {
+    requestCounts.computeIfAbsent(kind, key -> new AtomicInteger()).incrementAndGet();
+  }
+
+  private static String manifestKey(String repository, String reference) {
+    return reference.startsWith("sha256:")
+        ? repository + "@" + reference
+        : repository + ":" + reference;
+  }
+
+  private static Map<String, String> parseQuery(URI uri) {
+    Map<String, String> query = new HashMap<>();
+    if (uri.getQuery() != null) {
+      for (String pair : uri.getQuery().split("&")) {
+        String[] parts = pair.split("=", 2);
+        query.put(parts[0], parts.length > 1 ? parts[1] : "");
+      }
+    }
+    return query;
+  }
+}
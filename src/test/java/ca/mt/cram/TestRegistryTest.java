@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 Manumitting Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ca.mt.cram;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import io.github.glytching.junit.extension.folder.TemporaryFolder;
+import io.github.glytching.junit.extension.folder.TemporaryFolderExtension;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+/** Tests for {@link TestRegistry}. */
+@ExtendWith(TemporaryFolderExtension.class)
+class TestRegistryTest {
+  private static final byte[] BLOB = new byte[64 * 1024];
+  private static final String DIGEST = "sha256:" + Hashing.sha256().hashBytes(BLOB);
+
+  @Test
+  void testUploadAndMount(TemporaryFolder temporaryFolder) throws IOException {
+    Path storage = temporaryFolder.getRoot().toPath();
+    try (TestRegistry registry = new TestRegistry(storage)) {
+      Assertions.assertEquals(404, request(registry, "HEAD", "/v2/a/blobs/" + DIGEST, null));
+      upload(registry, "a");
+      Assertions.assertEquals(200, request(registry, "HEAD", "/v2/a/blobs/" + DIGEST, null));
+      Assertions.assertTrue(
+          Files.exists(storage.resolve("blobs/sha256/" + DIGEST.substring("sha256:".length()))));
+
+      // a blob is only visible in another repository once mounted there
+      Assertions.assertEquals(404, request(registry, "HEAD", "/v2/b/blobs/" + DIGEST, null));
+      String mount = "/v2/b/blobs/uploads/?mount=" + DIGEST + "&from=a";
+      Assertions.assertEquals(201, request(registry, "POST", mount, null));
+      Assertions.assertEquals(200, request(registry, "GET", "/v2/b/blobs/" + DIGEST, null));
+      Assertions.assertEquals(1, registry.getRequestCount("blob-upload"));
+      Assertions.assertEquals(1, registry.getRequestCount("blob-mount"));
+    }
+  }
+
+  @Test
+  void testDigestVerified() throws IOException {
+    try (TestRegistry registry = new TestRegistry()) {
+      HttpURLConnection start = open(registry, "POST", "/v2/a/blobs/uploads/");
+      Assertions.assertEquals(202, start.getResponseCode());
+      String location = start.getHeaderField("Location");
+      String digest = "sha256:" + Hashing.sha256().hashBytes(new byte[1]);
+      Assertions.assertEquals(400, request(registry, "PUT", location + "?digest=" + digest, BLOB));
+      Assertions.assertEquals(404, request(registry, "HEAD", "/v2/a/blobs/" + DIGEST, null));
+    }
+  }
+
+  @Test
+  void testShaping() throws IOException {
+    try (TestRegistry registry = new TestRegistry()) {
+      upload(registry, "a");
+      registry.setLatency(Duration.ofMillis(200));
+      long start = System.nanoTime();
+      Assertions.assertEquals(200, request(registry, "HEAD", "/v2/a/blobs/" + DIGEST, null));
+      Assertions.assertTrue(elapsedMillis(start) >= 200);
+
+      // 64KB at 128KB/s
+      registry.setLatency(Duration.ZERO);
+      registry.setBandwidth(128 * 1024);
+      start = System.nanoTime();
+      Assertions.assertEquals(200, request(registry, "GET", "/v2/a/blobs/" + DIGEST, null));
+      Assertions.assertTrue(elapsedMillis(start) >= 500);
+    }
+  }
+
+  /** Upload {@link #BLOB} to a repository in a single {@code PUT}. */
+  private static void upload(TestRegistry registry, String repository) throws IOException {
+    HttpURLConnection start = open(registry, "POST", "/v2/" + repository + "/blobs/uploads/");
+    Assertions.assertEquals(202, start.getResponseCode());
+    String location = start.getHeaderField("Location");
+    Assertions.assertEquals(201, request(registry, "PUT", location + "?digest=" + DIGEST, BLOB));
+  }
+
+  private static int request(TestRegistry registry, String method, String path, byte[] body)
+      throws IOException {
+    HttpURLConnection connection = open(registry, method, path);
+    if (body != null) {
+      connection.setDoOutput(true);
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(body);
+      }
+    }
+    int status = connection.getResponseCode();
+    InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+    if (in != null) {
+      try (InputStream stream = in) {
+        ByteStreams.exhaust(stream);
+      }
+    }
+    return status;
+  }
+
+  private static HttpURLConnection open(TestRegistry registry, String method, String path)
+      throws IOException {
+    URL url = new URL("http://" + registry.getAddress() + path);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod(method);
+    return connection;
+  }
+
+  private static long elapsedMillis(long start) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+}